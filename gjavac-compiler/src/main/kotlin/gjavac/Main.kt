@@ -1,9 +1,18 @@
 package gjavac
 
 import gjavac.cecil.ClassDefinitionReader
+import gjavac.core.EvalStackModeEnum
+import gjavac.core.UvmBytecodeWriter
+import gjavac.core.UvmGpcWriter
+import gjavac.core.UvmTypeInfoEnum
+import gjavac.optimizer.JvmInliner
 import gjavac.translater.JavaToUvmTranslator
+import gjavac.utils.DiagnosticCategory
+import gjavac.utils.DiagnosticLevel
+import gjavac.utils.Diagnostics
 import gjavac.utils.use
 import java.io.*
+import java.nio.file.Files
 import java.nio.file.Paths
 
 fun main(args: Array<String>) {
@@ -15,6 +24,13 @@ fun main(args: Array<String>) {
     }
     var i = 0
     var outputPath = ""
+    var evalStackMode = EvalStackModeEnum.Register
+    val disabledPasses = mutableListOf<String>()
+    var inlineBudget = JvmInliner.DEFAULT_BUDGET
+    var emitFormat = "ass"
+    var parallelism = 1
+    val diagnostics = Diagnostics()
+    var diagnosticsFile = ""
     while(i <=(args.size-1)) {
         var path = args[i]
         if(path == "-o"){
@@ -23,6 +39,72 @@ fun main(args: Array<String>) {
                 outputPath = args[i]
             }
         }
+        else if(path == "-j"){
+            // -j N 用N个线程读取class文件和翻译方法，输出和顺序执行一致
+            i++;
+            val threads = if(i<=(args.size-1)) (try { args[i].toInt() } catch(e: NumberFormatException) { 0 }) else 0
+            if(threads < 1) {
+                println("invalid thread count for -j, need a positive integer")
+                return
+            }
+            parallelism = threads
+        }
+        else if(path.startsWith("--eval-stack=")){
+            // --eval-stack=table 使用旧的table模拟eval stack的方式
+            val mode = path.substring("--eval-stack=".length)
+            evalStackMode = when(mode) {
+                "table" -> EvalStackModeEnum.Table
+                "register" -> EvalStackModeEnum.Register
+                else -> {
+                    println("unknown eval stack mode $mode, need table or register")
+                    return
+                }
+            }
+        }
+        else if(path.startsWith("--inline-budget=")){
+            // --inline-budget=N 指令数不超过N的方法内联到调用处，0表示不内联
+            val budget = try { path.substring("--inline-budget=".length).toInt() } catch(e: NumberFormatException) { -1 }
+            if(budget < 0) {
+                println("invalid inline budget ${path.substring("--inline-budget=".length)}, need a non-negative integer")
+                return
+            }
+            inlineBudget = budget
+        }
+        else if(path.startsWith("--emit=")){
+            // --emit=bytecode 直接生成uvm字节码(.out)，不输出.ass，不需要再用uvm_ass汇编
+            // --emit=gpc 直接生成可以部署的.gpc，不需要再用uvm_ass和package_gpc
+            val emit = path.substring("--emit=".length)
+            if(emit != "ass" && emit != "bytecode" && emit != "gpc") {
+                println("unknown emit format $emit, need ass, bytecode or gpc")
+                return
+            }
+            emitFormat = emit
+        }
+        else if(path.startsWith("--diag=")){
+            // --diag=stats,timings,trace:detail 开启诊断信息，分类后面可以加:summary或:detail，默认summary
+            for(item in path.substring("--diag=".length).split(",").filter { it.length > 0 }) {
+                val parts = item.split(":")
+                val category = DiagnosticCategory.fromOptionName(parts[0])
+                if(category == null) {
+                    println("unknown diagnostics category ${parts[0]}, need ${DiagnosticCategory.values().map { it.optionName }.joinToString(",")}")
+                    return
+                }
+                val level = if(parts.size > 1) DiagnosticLevel.fromOptionName(parts[1]) else DiagnosticLevel.Summary
+                if(level == null) {
+                    println("unknown diagnostics level ${parts[1]}, need ${DiagnosticLevel.values().map { it.optionName }.joinToString(",")}")
+                    return
+                }
+                diagnostics.enable(category, level)
+            }
+        }
+        else if(path.startsWith("--diag-file=")){
+            // --diag-file=path 诊断信息在后台线程中写到文件，不输出到控制台
+            diagnosticsFile = path.substring("--diag-file=".length)
+        }
+        else if(path.startsWith("--disable-pass=")){
+            // --disable-pass=name1,name2 关闭指定的优化pass
+            disabledPasses.addAll(path.substring("--disable-pass=".length).split(",").filter { it.length > 0 })
+        }
         else if(!path.endsWith(".class")){
             path = path +".class"
             classesPaths.add(path)
@@ -32,30 +114,82 @@ fun main(args: Array<String>) {
         }
         i++;
     }
+    if(diagnosticsFile.length > 0) {
+        diagnostics.writeToFile(diagnosticsFile)
+    }
+    var phaseStart = System.nanoTime()
+    classDefReader.parallelism = parallelism
+    classDefReader.diagnostics = diagnostics
     val moduleDef = classDefReader.readClass(classesPaths)
+    phaseStart = reportTiming(diagnostics, "read classes", phaseStart)
     val translator = JavaToUvmTranslator()
+    translator.diagnostics = diagnostics
+    translator.evalStackMode = evalStackMode
+    translator.inliner.budget = inlineBudget
+    translator.parallelism = parallelism
+    for(passName in disabledPasses) {
+        if(!translator.passes.names().contains(passName)) {
+            println("unknown optimize pass $passName, available passes: ${translator.passes.names().joinToString(",")}")
+            return
+        }
+        translator.passes.disable(passName)
+    }
     val jvmContentBuilder = StringBuilder()
-    val uvmAssBuilder = StringBuilder()
-    translator.translateModule(moduleDef, jvmContentBuilder, uvmAssBuilder)
-    var outFilename = "result.ass"
+    val topProto = translator.translateModule(moduleDef, jvmContentBuilder)
+    phaseStart = reportTiming(diagnostics, "translate", phaseStart)
+    diagnostics.report(DiagnosticCategory.Trace, DiagnosticLevel.Summary, jvmContentBuilder)
+    var outFilename = when(emitFormat) {
+        "bytecode" -> "result.out"
+        "gpc" -> "result.gpc"
+        else -> "result.ass"
+    }
     if(outputPath.length>0){
         outFilename = Paths.get(outputPath, outFilename).toString()
     }
-    use(FileOutputStream(File(outFilename)), { fos ->
-        val bw = BufferedWriter(PrintWriter(fos))
-        bw.write(uvmAssBuilder.toString())
-        bw.flush()
-    })
-    val metaInfoJson = translator.getMetaInfoJson()
+    if(emitFormat == "bytecode" || emitFormat == "gpc") {
+        UvmBytecodeWriter.internConstants(topProto)
+    }
+    if(emitFormat == "bytecode") {
+        use(BufferedOutputStream(FileOutputStream(File(outFilename))), { bos ->
+            UvmBytecodeWriter(bos).write(topProto)
+        })
+    } else if(emitFormat == "gpc") {
+        val bytecodeStream = ByteArrayOutputStream()
+        UvmBytecodeWriter(bytecodeStream).write(topProto)
+        // 先在内存中打包，不能打包时不留下不完整的文件
+        val gpcStream = ByteArrayOutputStream()
+        UvmGpcWriter(gpcStream).write(bytecodeStream.toByteArray(), translator.contractApiNames, translator.contractOfflineApiNames,
+                translator.eventNames, translator.contractStoragePropertiesTypes)
+        Files.write(Paths.get(outFilename), gpcStream.toByteArray())
+        // .gpc中没有api_args_types，链上按一个字符串参数调用api
+        for ((api, argsTypes) in translator.contractApiArgsTypes) {
+            if (argsTypes.size > 1 || (argsTypes.size == 1 && argsTypes[0] != UvmTypeInfoEnum.LTI_STRING)) {
+                diagnostics.warn("args types $argsTypes of api $api are not stored in .gpc, only in result.meta.json")
+            }
+        }
+    } else {
+        // proto按深度优先直接写到文件，不先拼接成整个字符串
+        use(Files.newBufferedWriter(Paths.get(outFilename), Charsets.UTF_8), { bw ->
+            topProto.writeUvmAss(bw, true)
+        })
+    }
     var metaOutputfilename = "result.meta.json"
     if(outputPath.length>0) {
         metaOutputfilename = Paths.get(outputPath, metaOutputfilename).toString()
     }
-    use(FileOutputStream(File(metaOutputfilename)), { fos ->
-        val bw = BufferedWriter(PrintWriter(fos))
-        bw.write(metaInfoJson)
-        bw.flush()
+    use(Files.newBufferedWriter(Paths.get(metaOutputfilename), Charsets.UTF_8), { bw ->
+        translator.writeMetaInfoJson(bw)
     })
+    reportTiming(diagnostics, "write output", phaseStart)
+    diagnostics.report(DiagnosticCategory.OptimizerStats, DiagnosticLevel.Summary, translator.passes.statsString())
+    diagnostics.close()
     println("compilation done, result file is $outFilename and $metaOutputfilename")
 }
 
+// 输出从start开始的阶段耗时，返回下一个阶段的开始时间
+fun reportTiming(diagnostics: Diagnostics, phase: String, start: Long): Long {
+    val now = System.nanoTime()
+    diagnostics.report(DiagnosticCategory.Timings, DiagnosticLevel.Summary, phase + ": " + (now - start) / 1000000 + " ms")
+    return now
+}
+
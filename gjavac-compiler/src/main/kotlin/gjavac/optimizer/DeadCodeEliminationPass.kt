@@ -0,0 +1,140 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmOpCodeEnums
+import gjavac.core.UvmProto
+
+/**
+ * 删除死代码
+ * 1. 从入口不可达的指令，比如return后面翻译出的return %0 1，以及jmp跳过的代码
+ * 2. 写入临时寄存器(tmp1StackTopSlotIndex..tmpMaxStackTopSlotIndex)后再也不会被读取的指令，以及move %a %a
+ * 有label的指令和紧跟在条件跳过指令(eq/lt/le/test等)后面的指令不删除，以免改变跳转目标
+ */
+class DeadCodeEliminationPass : UvmOptimizePass {
+    override val name = "dce"
+
+    override fun run(proto: UvmProto, stats: UvmPassStats) {
+        removeUnreachableInstructions(proto, stats)
+        if (proto.method == null || proto.tmpMaxStackTopSlotIndex <= proto.tmp1StackTopSlotIndex
+                || proto.tmpMaxStackTopSlotIndex - proto.tmp1StackTopSlotIndex >= 63) {
+            // 不是方法翻译出的proto，没有临时寄存器区域
+            return
+        }
+        while (removeDeadTempStores(proto, stats) > 0) {
+            proto.removeDeletedInstructions()
+        }
+    }
+
+    private fun deleteInstruction(proto: UvmProto, index: Int, stats: UvmPassStats) {
+        val code = proto.codeInstructions
+        code[index] = proto.makeEmptyInstruction(";deleted inst;original inst:" + code[index])
+        stats.removedInstructions++
+    }
+
+    private fun removeUnreachableInstructions(proto: UvmProto, stats: UvmPassStats) {
+        val code = proto.codeInstructions.toList()
+        if (code.isEmpty()) {
+            return
+        }
+        val labelIndexes = UvmInstructionEffects.labelIndexes(code)
+        val reachable = BooleanArray(code.size)
+        val worklist: MutableList<Int> = mutableListOf(0)
+        reachable[0] = true
+        while (worklist.size > 0) {
+            val index = worklist.removeAt(worklist.size - 1)
+            for (succ in UvmInstructionEffects.successors(code, index, labelIndexes)) {
+                if (succ < code.size && !reachable[succ]) {
+                    reachable[succ] = true
+                    worklist.add(succ)
+                }
+            }
+        }
+        for (j in 0 until code.size) {
+            if (!reachable[j]) {
+                deleteInstruction(proto, j, stats)
+            }
+        }
+        proto.removeDeletedInstructions()
+    }
+
+    /**
+     * 临时寄存器的活跃分析，每个临时寄存器对应一个bit
+     */
+    private fun removeDeadTempStores(proto: UvmProto, stats: UvmPassStats): Int {
+        val code = proto.codeInstructions.toList()
+        val tmpFirst = proto.tmp1StackTopSlotIndex
+        val tmpLast = proto.tmpMaxStackTopSlotIndex
+        val labelIndexes = UvmInstructionEffects.labelIndexes(code)
+        val uses = LongArray(code.size)
+        val defs = LongArray(code.size)
+        val succs: MutableList<List<Int>> = mutableListOf()
+        for (j in 0 until code.size) {
+            uses[j] = tempMask(UvmInstructionEffects.readRanges(code[j]), tmpFirst, tmpLast)
+            defs[j] = tempMask(UvmInstructionEffects.definiteWriteRanges(code[j]), tmpFirst, tmpLast)
+            succs.add(UvmInstructionEffects.successors(code, j, labelIndexes))
+        }
+        val liveIn = LongArray(code.size)
+        val liveOut = LongArray(code.size)
+        var changed = true
+        while (changed) {
+            changed = false
+            for (j in code.size - 1 downTo 0) {
+                var out = 0L
+                for (succ in succs[j]) {
+                    if (succ < code.size) {
+                        out = out or liveIn[succ]
+                    }
+                }
+                val newIn = uses[j] or (out and defs[j].inv())
+                if (out != liveOut[j] || newIn != liveIn[j]) {
+                    liveOut[j] = out
+                    liveIn[j] = newIn
+                    changed = true
+                }
+            }
+        }
+        var removed = 0
+        for (j in 0 until code.size) {
+            val inst = code[j]
+            if (inst.hasLocationLabel() || (j > 0 && UvmInstructionEffects.skipsNext(code[j - 1]))) {
+                continue
+            }
+            if (isSelfMove(inst) || (isRemovableStore(inst) && defs[j] != 0L && (defs[j] and liveOut[j]) == 0L
+                    && writesOnlyTemps(inst, tmpFirst, tmpLast))) {
+                deleteInstruction(proto, j, stats)
+                removed++
+            }
+        }
+        return removed
+    }
+
+    private fun isSelfMove(inst: UvmInstruction): Boolean {
+        return inst.opCode == UvmOpCodeEnums.OP_MOVE && inst.operands.size == 2 && inst.operands[0] == inst.operands[1]
+    }
+
+    // 没有副作用，只写入寄存器的指令(gettable等可能触发元方法，不删除)
+    private fun isRemovableStore(inst: UvmInstruction): Boolean {
+        return when (inst.opCode) {
+            UvmOpCodeEnums.OP_MOVE, UvmOpCodeEnums.OP_LOADK, UvmOpCodeEnums.OP_LOADNIL, UvmOpCodeEnums.OP_GETUPVAL,
+            UvmOpCodeEnums.OP_NEWTABLE -> true
+            UvmOpCodeEnums.OP_LOADBOOL -> !UvmInstructionEffects.skipsNext(inst)
+            else -> false
+        }
+    }
+
+    private fun writesOnlyTemps(inst: UvmInstruction, tmpFirst: Int, tmpLast: Int): Boolean {
+        return UvmInstructionEffects.writeRanges(inst).all { it.first >= tmpFirst && it.last <= tmpLast }
+    }
+
+    private fun tempMask(ranges: List<IntRange>, tmpFirst: Int, tmpLast: Int): Long {
+        var mask = 0L
+        for (range in ranges) {
+            val first = Math.max(range.first, tmpFirst)
+            val last = Math.min(range.last, tmpLast)
+            for (r in first..last) {
+                mask = mask or (1L shl (r - tmpFirst))
+            }
+        }
+        return mask
+    }
+}
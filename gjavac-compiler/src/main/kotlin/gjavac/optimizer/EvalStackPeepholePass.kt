@@ -0,0 +1,175 @@
+package gjavac.optimizer
+
+import gjavac.core.*
+import gjavac.exceptions.GjavacException
+
+/**
+ * 消除eval stack的压栈后马上出栈
+ * 1. 压栈(SetEvalStackTop)后出栈(GetEvalStackTop)，中间没有修改压栈的值，直接move/loadk到出栈的目标寄存器
+ * 2. table模式下栈大小加1后减1(AddEvalStackSize, SubEvalStackSize)，中间没有读写栈，两条都删除
+ * 中间遇到location label时不优化，因为可能从别的地方跳转过来
+ */
+class EvalStackPeepholePass : PeepholePass() {
+    override val name = "eval-stack"
+
+    override val rules: List<PeepholeRule> = listOf(PushPopForwardRule(), StackSizePairRule())
+
+    companion object {
+        // 扫描时跳过的指令，已删除的和没有对应jvm指令的(方法开头创建eval stack等)
+        fun isSkipped(context: PeepholeContext, index: Int): Boolean {
+            return context.isDeleted(index) || context.code[index].jvmInstruction == null
+        }
+    }
+
+    /**
+     * 删除或改写后，前面最近的一条eval stack指令可能可以继续优化
+     */
+    override fun onChanged(context: PeepholeContext, index: Int) {
+        var j = index - 1
+        while (j >= 0) {
+            if (!isSkipped(context, j)) {
+                val inst = context.code[j]
+                if (inst.evalStackOp != EvalStackOpEnum.NotEvalStackOp) {
+                    if (inst.evalStackOp == EvalStackOpEnum.SetEvalStackTop || inst.evalStackOp == EvalStackOpEnum.AddEvalStackSize) {
+                        context.enqueue(j)
+                    }
+                    return
+                }
+                if (inst.hasLocationLabel()) {
+                    return
+                }
+            }
+            j--
+        }
+    }
+
+    class PushPopForwardRule : PeepholeRule {
+        override fun isCandidate(inst: UvmInstruction): Boolean {
+            return inst.evalStackOp == EvalStackOpEnum.SetEvalStackTop && inst.jvmInstruction != null
+        }
+
+        override fun apply(context: PeepholeContext, index: Int): Boolean {
+            val code = context.code
+            val setInst = code[index]
+            if (setInst.hasLocationLabel()) {
+                return false
+            }
+            var evalStackOperand: UvmOperand? = null // register模式下压栈的目标寄存器
+            val affectedOperand: UvmOperand // 压栈的值，寄存器或者常量
+            if (setInst.opCode == UvmOpCodeEnums.OP_MOVE) {
+                // register模式: move %stackSlot %slot
+                evalStackOperand = checkSlot(setInst.operand(0), setInst)
+                affectedOperand = checkSlot(setInst.operand(1), setInst)
+            } else if (setInst.opCode == UvmOpCodeEnums.OP_SETTABLE) {
+                // table模式: settable %evalstack %size %slot或者const
+                affectedOperand = setInst.operand(2)
+                if (!affectedOperand.isRegister() && !affectedOperand.isConstant()) {
+                    throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + setInst)
+                }
+            } else {
+                throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + setInst)
+            }
+            val registerMode = context.proto.evalStackMode == EvalStackModeEnum.Register
+            for (j in index + 1 until code.size) {
+                if (isSkipped(context, j)) {
+                    continue
+                }
+                val inst = code[j]
+                if (inst.hasLocationLabel()) {
+                    return false
+                }
+                val opCode = inst.opCode
+                when (inst.evalStackOp) {
+                    EvalStackOpEnum.GetEvalStackTop -> {
+                        if (opCode == UvmOpCodeEnums.OP_MOVE && (inst.operands.size != 2 || inst.operands[1] != evalStackOperand)) {
+                            // register模式下只有读取的是同一个栈寄存器才能合并
+                            return false
+                        }
+                        if (opCode != UvmOpCodeEnums.OP_GETTABLE && opCode != UvmOpCodeEnums.OP_MOVE) {
+                            throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + inst)
+                        }
+                        val targetSlot = inst.operand(0)
+                        val newOpCode = if (affectedOperand.isRegister()) UvmOpCodeEnums.OP_MOVE else UvmOpCodeEnums.OP_LOADK
+                        context.replace(j, context.proto.makeInstruction(newOpCode, inst.comment.trim() + ";get from slot",
+                                inst.jvmInstruction, targetSlot, affectedOperand))
+                        context.delete(index)
+                        return true
+                    }
+                    EvalStackOpEnum.NotEvalStackOp -> {
+                        // 压栈的是常量时不会被其他指令修改
+                        if (affectedOperand.isRegister() && isBlocked(inst, affectedOperand, evalStackOperand, registerMode)) {
+                            return false
+                        }
+                    }
+                    else -> return false
+                }
+            }
+            return false
+        }
+
+        /**
+         * 压栈和出栈之间的指令inst是否可能修改压栈的寄存器值，或者需要用到栈寄存器
+         * 除了显式的操作数，还要考虑call/loadnil/self等隐式写入的寄存器范围
+         */
+        private fun isBlocked(inst: UvmInstruction, affectedOperand: UvmOperand, evalStackOperand: UvmOperand?, registerMode: Boolean): Boolean {
+            val opCode = inst.opCode
+            if (inst.operands.contains(affectedOperand) || writesRegister(inst, affectedOperand.index)) {
+                return true
+            }
+            if (registerMode && ((evalStackOperand != null && (inst.operands.contains(evalStackOperand)
+                    || writesRegister(inst, evalStackOperand.index)
+                    || UvmInstructionEffects.readRanges(inst).any { evalStackOperand.index in it }))
+                    || opCode == UvmOpCodeEnums.OP_JMP
+                    || opCode == UvmOpCodeEnums.OP_FORPREP || opCode == UvmOpCodeEnums.OP_FORLOOP
+                    || opCode == UvmOpCodeEnums.OP_TFORCALL || opCode == UvmOpCodeEnums.OP_TFORLOOP)) {
+                // register模式下栈寄存器被其他指令使用，或者有跳转时栈寄存器的值在跳转目标可能还需要
+                return true
+            }
+            return opCode == UvmOpCodeEnums.OP_RETURN || opCode == UvmOpCodeEnums.OP_TAILCALL
+        }
+
+        private fun writesRegister(inst: UvmInstruction, register: Int): Boolean {
+            return UvmInstructionEffects.writeRanges(inst).any { register in it }
+        }
+
+        private fun checkSlot(slot: UvmOperand, uvmIns: UvmInstruction): UvmOperand {
+            if (!slot.isRegister()) {
+                throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + uvmIns)
+            }
+            return slot
+        }
+    }
+
+    class StackSizePairRule : PeepholeRule {
+        override fun isCandidate(inst: UvmInstruction): Boolean {
+            return inst.evalStackOp == EvalStackOpEnum.AddEvalStackSize && inst.jvmInstruction != null
+        }
+
+        override fun apply(context: PeepholeContext, index: Int): Boolean {
+            val code = context.code
+            if (code[index].hasLocationLabel()) {
+                return false
+            }
+            for (j in index + 1 until code.size) {
+                if (isSkipped(context, j)) {
+                    continue
+                }
+                val inst = code[j]
+                if (inst.hasLocationLabel()) {
+                    return false
+                }
+                when (inst.evalStackOp) {
+                    EvalStackOpEnum.NotEvalStackOp -> {
+                    }
+                    EvalStackOpEnum.SubEvalStackSize -> {
+                        context.delete(index)
+                        context.delete(j)
+                        return true
+                    }
+                    else -> return false
+                }
+            }
+            return false
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmOpCodeEnums
+import gjavac.core.UvmOperand
+import gjavac.core.UvmOperandKind
+import gjavac.core.UvmProto
+import kotlin.comparisons.compareByDescending
+import kotlin.comparisons.thenByDescending
+
+/**
+ * 把proto中多次使用或者在循环中使用的gettabup %x @ENV const "name"提前，取一次放到专用寄存器，被提前的使用处改成move
+ * 1. 提到某个使用u的支配者p前面，p要被u后支配(从p开始到返回的路径都经过u)，p支配的使用都改成move，
+ *    至少替换两次使用时才提升，这样任何路径上的查找次数都不会增加。调用error的失败分支不会返回，不算到达返回的路径
+ * 2. 否则循环中的使用提到这个循环前面(preheader)，只能通过preheader进入的循环才可以
+ * 每个使用只算一次，循环中的使用不会因为在循环中多算
+ * 专用寄存器用proto.reserveRegisters插入在循环寄存器前面，函数调用和tforcall不会覆盖它们
+ * 合约代码不会给全局变量赋值(翻译结果中没有settabup @ENV)，proto中有对同名全局变量的settabup时不提升
+ */
+class GlobalHoistPass : UvmOptimizePass {
+    override val name = "hoist-globals"
+
+    companion object {
+        const val MAX_HOISTED_GLOBALS = 8
+        const val MAX_REGISTER = 250
+        // error只在失败分支调用，提到入口反而让正常执行多一次查找
+        val COLD_GLOBALS = setOf("\"error\"")
+    }
+
+    // 取值指令插入在position前面，替换uses中的使用
+    private data class Placement(val position: Int, val uses: List<Int>)
+
+    // 向回跳转和它的目标之间的指令，start..end
+    private data class LoopRegion(val start: Int, val end: Int)
+
+    override fun run(proto: UvmProto, stats: UvmPassStats) {
+        if (proto.method == null || proto.tmp1StackTopSlotIndex <= 0) {
+            // 不是方法翻译出的proto，没有tmp区域
+            return
+        }
+        val envIndex = proto.upvalues.indexOfFirst { it.name == "ENV" }
+        if (envIndex < 0) {
+            return
+        }
+        val code = proto.codeInstructions.toList()
+        // closure可能捕获寄存器，寄存器编号不能移动
+        if (code.isEmpty() || code.any { it.opCode == UvmOpCodeEnums.OP_CLOSURE }) {
+            return
+        }
+        val uses: MutableMap<String, MutableList<Int>> = linkedMapOf()
+        val assigned: MutableSet<String> = mutableSetOf()
+        for (j in 0 until code.size) {
+            val inst = code[j]
+            if (inst.opCode == UvmOpCodeEnums.OP_SETTABUP && inst.operand(0).index == envIndex
+                    && inst.operand(1).isConstant()) {
+                assigned.add(inst.operand(1).literal)
+            }
+            if (!isEnvLookup(inst, envIndex) || COLD_GLOBALS.contains(inst.operand(2).literal)) {
+                continue
+            }
+            uses.getOrPut(inst.operand(2).literal, { mutableListOf() }).add(j)
+        }
+        val labelIndexes = UvmInstructionEffects.labelIndexes(code)
+        val exit = code.size
+        val successors: MutableList<List<Int>> = mutableListOf()
+        val postSuccessors: MutableList<List<Int>> = mutableListOf()
+        for (j in 0 until code.size) {
+            val succs = UvmInstructionEffects.successors(code, j, labelIndexes)
+            val inCode = succs.filter { it < code.size }
+            successors.add(inCode)
+            postSuccessors.add(if (isColdCall(code, j, envIndex)) listOf()
+            else if (inCode.size < succs.size || succs.isEmpty()) inCode + exit else inCode)
+        }
+        successors.add(listOf())
+        postSuccessors.add(listOf())
+        val idom = immediateDominators(successors, 0)
+        // 后支配树就是反向图上以虚拟出口为根的支配树
+        val predecessors: MutableList<MutableList<Int>> = (0..exit).map { mutableListOf<Int>() }.toMutableList()
+        for (j in 0..exit) {
+            for (succ in postSuccessors[j]) {
+                predecessors[succ].add(j)
+            }
+        }
+        val ipdom = immediateDominators(predecessors, exit)
+        // 外层循环优先，可以同时提升内层循环中的使用
+        val loops = loopRegions(code, labelIndexes).filter { canHoistBefore(it, code, labelIndexes) }
+                .sortedByDescending { it.end - it.start }
+
+        val placements: MutableMap<String, List<Placement>> = linkedMapOf()
+        for ((global, indexes) in uses) {
+            if (assigned.contains(global)) {
+                continue
+            }
+            var best: Placement? = null
+            for (use in indexes) {
+                val position = highestPostDominated(use, code, idom, ipdom) ?: continue
+                val covered = indexes.filter { dominates(position, it, idom) }
+                if (covered.size >= 2 && (best == null || covered.size > best.uses.size)) {
+                    best = Placement(position, covered)
+                }
+            }
+            if (best != null) {
+                placements[global] = listOf(best)
+                continue
+            }
+            val regions: MutableList<Placement> = mutableListOf()
+            for (region in loops) {
+                val inRegion = indexes.filter { it >= region.start && it <= region.end }
+                if (inRegion.isEmpty() || regions.any { it.uses.any { it >= region.start && it <= region.end } }) {
+                    continue
+                }
+                regions.add(Placement(region.start, inRegion))
+            }
+            if (regions.size > 0) {
+                placements[global] = regions
+            }
+        }
+        val hoisted = placements.toList().sortedByDescending { it.second.sumBy { it.uses.size } }
+                .take(MAX_HOISTED_GLOBALS).map { it.first }
+        val shift = hoisted.size
+        if (shift == 0 || proto.maxStackSize + shift > MAX_REGISTER
+                || proto.callStackStartIndex + 1 + proto.maxCallStackSize + shift > MAX_REGISTER) {
+            return
+        }
+
+        val cacheStart = proto.reserveRegisters(shift)
+        val buffer = proto.codeInstructions
+        val loads: MutableList<Pair<Int, Int>> = mutableListOf()
+        for (k in 0 until hoisted.size) {
+            for (placement in placements[hoisted[k]]!!) {
+                loads.add(Pair(placement.position, k))
+                for (index in placement.uses) {
+                    val inst = buffer[index]
+                    val move = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, inst.comment, inst.jvmInstruction,
+                            inst.operand(0), UvmOperand.register(cacheStart + k))
+                    move.lineNumber = inst.lineNumber
+                    move.locationLabel = inst.locationLabel
+                    buffer[index] = move
+                    stats.rewrittenInstructions++
+                }
+            }
+        }
+        // 从后往前插入，前面的下标不受影响
+        for ((position, k) in loads.sortedWith(compareByDescending<Pair<Int, Int>> { it.first }.thenByDescending { it.second })) {
+            val load = proto.makeInstruction(UvmOpCodeEnums.OP_GETTABUP, ";hoisted global", null,
+                    UvmOperand.register(cacheStart + k), UvmOperand.upvalue(envIndex), UvmOperand(UvmOperandKind.Constant, 0, hoisted[k]))
+            load.lineNumber = buffer[position].lineNumber
+            // locvar的startPc不计empty instruction，和插入位置的pc比较而不是下标
+            val pc = buffer.pcOf(buffer[position])
+            buffer.insert(position, load)
+            for (locvar in proto.locvars) {
+                if (locvar.startPc > 0 && locvar.startPc >= pc) {
+                    locvar.startPc++
+                }
+            }
+        }
+    }
+
+    private fun isEnvLookup(inst: UvmInstruction, envIndex: Int): Boolean {
+        return inst.opCode == UvmOpCodeEnums.OP_GETTABUP && inst.operand(1).index == envIndex
+                && inst.operand(2).isConstant() && inst.operand(2).literal.startsWith("\"")
+    }
+
+    /**
+     * 调用的函数是直接在前面的顺序代码中从_ENV取出的error，error抛出错误，不会执行后面的指令
+     * 向前查找写入函数寄存器的指令，遇到label或者可能被跳过的指令时不确定，按普通调用处理
+     */
+    private fun isColdCall(code: List<UvmInstruction>, index: Int, envIndex: Int): Boolean {
+        if (code[index].opCode != UvmOpCodeEnums.OP_CALL) {
+            return false
+        }
+        val function = code[index].operand(0).index
+        var k = index - 1
+        while (k >= 0) {
+            val label = code[k + 1].locationLabel
+            if ((label != null && label.length > 0) || UvmInstructionEffects.skipsNext(code[k])
+                    || code[k].opCode == UvmOpCodeEnums.OP_JMP) {
+                return false
+            }
+            if (UvmInstructionEffects.writeRanges(code[k]).any { it.contains(function) }) {
+                return isEnvLookup(code[k], envIndex) && COLD_GLOBALS.contains(code[k].operand(2).literal)
+            }
+            k--
+        }
+        return false
+    }
+
+    // 按label跳转的目标，不是跳转指令时返回null
+    private fun jumpTarget(inst: UvmInstruction, labelIndexes: Map<String, Int>): Int? {
+        return when (inst.opCode) {
+            UvmOpCodeEnums.OP_JMP, UvmOpCodeEnums.OP_FORLOOP, UvmOpCodeEnums.OP_FORPREP, UvmOpCodeEnums.OP_TFORLOOP ->
+                labelIndexes[inst.operand(1).literal]
+            else -> null
+        }
+    }
+
+    /**
+     * 向回跳转和它的目标之间的指令是一个循环
+     * 循环前面是跳进循环的jmp或者forprep时(迭代循环和计数循环的入口)，把它也算进循环，preheader放在它前面
+     */
+    private fun loopRegions(code: List<UvmInstruction>, labelIndexes: Map<String, Int>): List<LoopRegion> {
+        val ends: MutableMap<Int, Int> = linkedMapOf()
+        for (j in 0 until code.size) {
+            val target = jumpTarget(code[j], labelIndexes) ?: continue
+            if (target <= j) {
+                ends[target] = Math.max(ends[target] ?: j, j)
+            }
+        }
+        val result: MutableList<LoopRegion> = mutableListOf()
+        for ((target, end) in ends) {
+            var start = target
+            if (start > 0) {
+                val entryTarget = jumpTarget(code[start - 1], labelIndexes)
+                if (entryTarget != null && entryTarget > start && entryTarget <= end
+                        && (code[start - 1].opCode == UvmOpCodeEnums.OP_JMP || code[start - 1].opCode == UvmOpCodeEnums.OP_FORPREP)) {
+                    start--
+                }
+            }
+            result.add(LoopRegion(start, end))
+        }
+        return result
+    }
+
+    /**
+     * 插入在region.start前面的指令是否在每次进入循环时都会执行:
+     * 前一条指令不能跳过region.start，循环外也不能有按label跳进循环的指令(label跳转到start也会绕过插入的指令)
+     */
+    private fun canHoistBefore(region: LoopRegion, code: List<UvmInstruction>, labelIndexes: Map<String, Int>): Boolean {
+        if (region.start > 0 && UvmInstructionEffects.skipsNext(code[region.start - 1])) {
+            return false
+        }
+        for (j in 0 until code.size) {
+            if (j >= region.start && j <= region.end) {
+                continue
+            }
+            val target = jumpTarget(code[j], labelIndexes) ?: continue
+            if (target >= region.start && target <= region.end) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * 沿支配树从use向上找被use后支配的最高的指令，插入位置不能有label(按label跳转会绕过插入的指令)
+     * 没有这样的位置时返回null
+     */
+    private fun highestPostDominated(use: Int, code: List<UvmInstruction>, idom: IntArray, ipdom: IntArray): Int? {
+        var result: Int? = null
+        var node = use
+        while (node >= 0 && dominates(use, node, ipdom)) {
+            val label = code[node].locationLabel
+            if (node == 0 || label == null || label.length == 0) {
+                result = node
+            }
+            if (node == 0) {
+                break
+            }
+            node = idom[node]
+        }
+        return result
+    }
+
+    // a是否支配b，沿b的直接支配者向上查找，不可达的指令没有支配者
+    private fun dominates(a: Int, b: Int, idom: IntArray): Boolean {
+        var node = b
+        while (node >= 0) {
+            if (node == a) {
+                return true
+            }
+            if (idom[node] == node) {
+                return false
+            }
+            node = idom[node]
+        }
+        return false
+    }
+
+    /**
+     * 以root为根的直接支配者，根的支配者是自己，从root不可达的结点是-1
+     * 用Cooper-Harvey-Kennedy的迭代算法，按逆后序计算
+     */
+    private fun immediateDominators(successors: List<List<Int>>, root: Int): IntArray {
+        val size = successors.size
+        val order: MutableList<Int> = mutableListOf()
+        val visited = BooleanArray(size)
+        val stack: MutableList<Pair<Int, Int>> = mutableListOf(Pair(root, 0))
+        visited[root] = true
+        while (stack.size > 0) {
+            val (node, next) = stack[stack.size - 1]
+            if (next < successors[node].size) {
+                stack[stack.size - 1] = Pair(node, next + 1)
+                val succ = successors[node][next]
+                if (!visited[succ]) {
+                    visited[succ] = true
+                    stack.add(Pair(succ, 0))
+                }
+            } else {
+                order.add(node)
+                stack.removeAt(stack.size - 1)
+            }
+        }
+        order.reverse()
+        val rpoNumber = IntArray(size)
+        for (k in 0 until order.size) {
+            rpoNumber[order[k]] = k
+        }
+        val predecessors: MutableList<MutableList<Int>> = (0 until size).map { mutableListOf<Int>() }.toMutableList()
+        for (node in order) {
+            for (succ in successors[node]) {
+                predecessors[succ].add(node)
+            }
+        }
+        val idom = IntArray(size, { -1 })
+        idom[root] = root
+        var changed = true
+        while (changed) {
+            changed = false
+            for (node in order) {
+                if (node == root) {
+                    continue
+                }
+                var newIdom = -1
+                for (pred in predecessors[node]) {
+                    if (idom[pred] < 0) {
+                        continue
+                    }
+                    if (newIdom < 0) {
+                        newIdom = pred
+                        continue
+                    }
+                    var a = pred
+                    var b = newIdom
+                    while (a != b) {
+                        while (rpoNumber[a] > rpoNumber[b]) {
+                            a = idom[a]
+                        }
+                        while (rpoNumber[b] > rpoNumber[a]) {
+                            b = idom[b]
+                        }
+                    }
+                    newIdom = a
+                }
+                if (idom[node] != newIdom) {
+                    idom[node] = newIdom
+                    changed = true
+                }
+            }
+        }
+        return idom
+    }
+}
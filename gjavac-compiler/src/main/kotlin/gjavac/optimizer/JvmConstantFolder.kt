@@ -0,0 +1,378 @@
+package gjavac.optimizer
+
+import gjavac.cecil.ControlFlowGraph
+import gjavac.cecil.Instruction
+import gjavac.cecil.MethodDefinition
+import gjavac.cecil.MethodInfo
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.util.Printer
+
+/**
+ * 翻译前在jvm字节码上做常量折叠和常量传播
+ * 1. 同一个基本块内的常量表达式(int/long/double运算，lcmp，StringBuilder.append两个字符串常量)折叠成一条LDC
+ * 2. 只被赋值一次常量的局部变量，被赋值指令支配的读取替换成这个常量
+ * 3. 条件是常量的跳转改成GOTO或者删除，之后不可达的指令换成NOP
+ * 被折叠掉的指令替换成NOP，不改变指令下标，所以labelOffsets不需要修改
+ * uvm的整数是64位的，int运算只在结果不溢出int时折叠；除法/取模/移位和uvm的语义不同，不折叠
+ */
+class JvmConstantFolder {
+    val name = "const-fold"
+    var methodCount = 0
+    var foldedExpressions = 0
+    var propagatedLoads = 0
+    var foldedBranches = 0
+    var removedInstructions = 0
+
+    private val tab2 = "    "
+
+    /**
+     * 折叠method的指令，返回变成NOP的指令数量
+     */
+    fun fold(method: MethodDefinition): Int {
+        if (method.code.isEmpty()) {
+            return 0
+        }
+        methodCount++
+        val removedBefore = removedInstructions
+        // 折叠前可达的指令，跳转被折叠后变得不可达的指令要删除，避免按深度0翻译
+        val initialCfg = method.controlFlowGraph()
+        val reachableBefore = BooleanArray(method.code.size)
+        for (j in 0 until method.code.size) {
+            reachableBefore[j] = initialCfg.blockAt(j).isReachable()
+        }
+        var changed = true
+        while (changed) {
+            changed = false
+            val cfg = method.controlFlowGraph()
+            if (propagateLocals(method, cfg) > 0) {
+                changed = true
+            }
+            if (foldExpressions(method, cfg) > 0) {
+                changed = true
+            }
+            if (foldBranches(method, cfg) > 0) {
+                method.invalidateControlFlowGraph()
+                removeUnreachableInstructions(method, reachableBefore)
+                changed = true
+            }
+        }
+        method.invalidateControlFlowGraph()
+        return removedInstructions - removedBefore
+    }
+
+    fun statsString(): String {
+        return "pass " + name + ": methods = " + methodCount + " , folded = " + foldedExpressions +
+                " , propagated = " + propagatedLoads + " , branches = " + foldedBranches + " , removed = " + removedInstructions
+    }
+
+    /**
+     * 指令压入栈的常量值，不是常量时返回null(float不处理，uvm中按double计算精度不同)
+     */
+    private fun constantOf(inst: Instruction): Any? {
+        return when (inst.opCode) {
+            Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3, Opcodes.ICONST_4,
+            Opcodes.ICONST_5 -> inst.opCode - Opcodes.ICONST_0
+            Opcodes.LCONST_0, Opcodes.LCONST_1 -> (inst.opCode - Opcodes.LCONST_0).toLong()
+            Opcodes.DCONST_0, Opcodes.DCONST_1 -> (inst.opCode - Opcodes.DCONST_0).toDouble()
+            Opcodes.BIPUSH, Opcodes.SIPUSH -> inst.opArgs[0] as Int
+            Opcodes.LDC -> {
+                val value = inst.opArgs[0]
+                if (value is Int || value is Long || value is Double || value is String) value else null
+            }
+            else -> null
+        }
+    }
+
+    private fun makeConstInstruction(value: Any, old: Instruction): Instruction {
+        val buf = StringBuffer(tab2).append("LDC ")
+        if (value is String) {
+            Printer.appendString(buf, value)
+        } else {
+            buf.append(value)
+        }
+        buf.append('\n')
+        return Instruction(Opcodes.LDC, mutableListOf(value), buf.toString(), old.linenumber, old.offset)
+    }
+
+    private fun replaceWithConst(method: MethodDefinition, index: Int, value: Any) {
+        method.code[index] = makeConstInstruction(value, method.code[index])
+    }
+
+    private fun replaceWithNop(method: MethodDefinition, index: Int) {
+        val old = method.code[index]
+        method.code[index] = Instruction(Opcodes.NOP, mutableListOf(), tab2 + "NOP ; folded " + old.instLine.trim() + "\n",
+                old.linenumber, old.offset)
+        removedInstructions++
+    }
+
+    /**
+     * 同一基本块内index之前最近的非NOP指令，没有时返回-1
+     */
+    private fun previousInBlock(method: MethodDefinition, cfg: ControlFlowGraph, index: Int): Int {
+        val block = cfg.blockAt(index)
+        var j = index - 1
+        while (j >= block.startOffset) {
+            if (method.code[j].opCode != Opcodes.NOP) {
+                return j
+            }
+            j--
+        }
+        return -1
+    }
+
+    private fun foldExpressions(method: MethodDefinition, cfg: ControlFlowGraph): Int {
+        val code = method.code
+        var folded = 0
+        for (j in 0 until code.size) {
+            val inst = code[j]
+            val p2 = previousInBlock(method, cfg, j)
+            if (p2 < 0) {
+                continue
+            }
+            val right = constantOf(code[p2]) ?: continue
+            val unary = foldUnary(inst.opCode, right)
+            if (unary != null) {
+                replaceWithConst(method, p2, unary)
+                replaceWithNop(method, j)
+                folded++
+                continue
+            }
+            val p1 = previousInBlock(method, cfg, p2)
+            if (p1 < 0) {
+                continue
+            }
+            if (isStringAppend(inst) && right is String) {
+                // LDC s1; append(String); LDC s2; append(String) => LDC s1+s2; append(String)
+                val p0 = previousInBlock(method, cfg, p1)
+                if (p0 >= 0 && isStringAppend(code[p1]) && appendOwner(code[p1]) == appendOwner(inst)) {
+                    val left = constantOf(code[p0])
+                    if (left is String) {
+                        replaceWithConst(method, p0, left + right)
+                        replaceWithNop(method, p2)
+                        replaceWithNop(method, j)
+                        folded++
+                    }
+                }
+                continue
+            }
+            val left = constantOf(code[p1]) ?: continue
+            val binary = foldBinary(inst.opCode, left, right) ?: continue
+            replaceWithConst(method, p1, binary)
+            replaceWithNop(method, p2)
+            replaceWithNop(method, j)
+            folded++
+        }
+        foldedExpressions += folded
+        return folded
+    }
+
+    private fun isStringAppend(inst: Instruction): Boolean {
+        if (inst.opCode != Opcodes.INVOKEVIRTUAL) {
+            return false
+        }
+        val info = inst.opArgs[0] as MethodInfo
+        return (info.owner == "java/lang/StringBuilder" || info.owner == "java/lang/StringBuffer")
+                && info.name == "append" && info.desc == "(Ljava/lang/String;)L" + info.owner + ";"
+    }
+
+    private fun appendOwner(inst: Instruction): String = (inst.opArgs[0] as MethodInfo).owner
+
+    private fun fitsInt(value: Long): Boolean = value >= Int.MIN_VALUE && value <= Int.MAX_VALUE
+
+    private fun foldUnary(opCode: Int, value: Any): Any? {
+        return when (opCode) {
+            Opcodes.INEG -> if (value is Int && value != Int.MIN_VALUE) -value else null
+            Opcodes.LNEG -> if (value is Long) -value else null
+            Opcodes.DNEG -> if (value is Double) -value else null
+            Opcodes.I2L -> if (value is Int) value.toLong() else null
+            Opcodes.I2D -> if (value is Int) value.toDouble() else null
+            Opcodes.L2D -> if (value is Long) value.toDouble() else null
+            else -> null
+        }
+    }
+
+    private fun foldBinary(opCode: Int, left: Any, right: Any): Any? {
+        if (left is Int && right is Int) {
+            val result: Long = when (opCode) {
+                Opcodes.IADD -> left.toLong() + right
+                Opcodes.ISUB -> left.toLong() - right
+                Opcodes.IMUL -> left.toLong() * right
+                Opcodes.IAND -> (left and right).toLong()
+                Opcodes.IOR -> (left or right).toLong()
+                Opcodes.IXOR -> (left xor right).toLong()
+                else -> return null
+            }
+            return if (fitsInt(result)) result.toInt() else null
+        }
+        if (left is Long && right is Long) {
+            return when (opCode) {
+                Opcodes.LADD -> left + right
+                Opcodes.LSUB -> left - right
+                Opcodes.LMUL -> left * right
+                Opcodes.LAND -> left and right
+                Opcodes.LOR -> left or right
+                Opcodes.LXOR -> left xor right
+                Opcodes.LCMP -> left.compareTo(right)
+                else -> null
+            }
+        }
+        if (left is Double && right is Double) {
+            val result = when (opCode) {
+                Opcodes.DADD -> left + right
+                Opcodes.DSUB -> left - right
+                Opcodes.DMUL -> left * right
+                Opcodes.DDIV -> left / right
+                else -> return null
+            }
+            return if (result.isInfinite() || result.isNaN()) null else result
+        }
+        return null
+    }
+
+    private fun branchTaken(opCode: Int, left: Int, right: Int): Boolean? {
+        return when (opCode) {
+            Opcodes.IFEQ, Opcodes.IF_ICMPEQ -> left == right
+            Opcodes.IFNE, Opcodes.IF_ICMPNE -> left != right
+            Opcodes.IFLT, Opcodes.IF_ICMPLT -> left < right
+            Opcodes.IFGE, Opcodes.IF_ICMPGE -> left >= right
+            Opcodes.IFGT, Opcodes.IF_ICMPGT -> left > right
+            Opcodes.IFLE, Opcodes.IF_ICMPLE -> left <= right
+            else -> null
+        }
+    }
+
+    private fun foldBranches(method: MethodDefinition, cfg: ControlFlowGraph): Int {
+        val code = method.code
+        var folded = 0
+        for (j in 0 until code.size) {
+            val inst = code[j]
+            val isCompareZero = inst.opCode >= Opcodes.IFEQ && inst.opCode <= Opcodes.IFLE
+            val isCompare = inst.opCode >= Opcodes.IF_ICMPEQ && inst.opCode <= Opcodes.IF_ICMPLE
+            if (!isCompareZero && !isCompare) {
+                continue
+            }
+            val p2 = previousInBlock(method, cfg, j)
+            if (p2 < 0) {
+                continue
+            }
+            val right = constantOf(code[p2]) as? Int ?: continue
+            var p1 = -1
+            var left = right
+            var rightValue = 0
+            if (isCompare) {
+                p1 = previousInBlock(method, cfg, p2)
+                if (p1 < 0) {
+                    continue
+                }
+                left = constantOf(code[p1]) as? Int ?: continue
+                rightValue = right
+            }
+            val taken = branchTaken(inst.opCode, left, rightValue) ?: continue
+            if (p1 >= 0) {
+                replaceWithNop(method, p1)
+            }
+            replaceWithNop(method, p2)
+            if (taken) {
+                code[j] = Instruction(Opcodes.GOTO, mutableListOf(inst.opArgs[0]),
+                        inst.instLine.replace(inst.opCodeName(), "GOTO"), inst.linenumber, inst.offset)
+            } else {
+                replaceWithNop(method, j)
+            }
+            folded++
+        }
+        foldedBranches += folded
+        return folded
+    }
+
+    /**
+     * 折叠前可达，折叠跳转后不可达的指令换成NOP
+     */
+    private fun removeUnreachableInstructions(method: MethodDefinition, reachableBefore: BooleanArray) {
+        val cfg = method.controlFlowGraph()
+        for (block in cfg.unreachableBlocks()) {
+            for (j in block.startOffset until block.endOffset) {
+                if (reachableBefore[j] && method.code[j].opCode != Opcodes.NOP) {
+                    replaceWithNop(method, j)
+                }
+            }
+        }
+        method.invalidateControlFlowGraph()
+    }
+
+    private fun isStore(opCode: Int): Boolean {
+        return opCode == Opcodes.ISTORE || opCode == Opcodes.LSTORE || opCode == Opcodes.DSTORE
+                || opCode == Opcodes.FSTORE || opCode == Opcodes.ASTORE
+    }
+
+    private fun loadOpCodeOf(storeOpCode: Int): Int = storeOpCode - Opcodes.ISTORE + Opcodes.ILOAD
+
+    private fun isWide(opCode: Int): Boolean {
+        return opCode == Opcodes.LSTORE || opCode == Opcodes.DSTORE || opCode == Opcodes.LLOAD || opCode == Opcodes.DLOAD
+    }
+
+    /**
+     * 只被赋值一次常量的局部变量，读取处替换成常量(保留赋值指令，调试信息中的局部变量不变)
+     */
+    private fun propagateLocals(method: MethodDefinition, cfg: ControlFlowGraph): Int {
+        val code = method.code
+        var paramSlots = if (method.isStatic) 0 else 1
+        for (argType in Type.getArgumentTypes(method.desc.orEmpty())) {
+            paramSlots += argType.size
+        }
+        // 每个slot的赋值次数，long/double占用两个slot
+        val storeCounts = IntArray(method.maxLocals + 2)
+        val storeIndexes = IntArray(method.maxLocals + 2)
+        for (j in 0 until code.size) {
+            val inst = code[j]
+            if (!isStore(inst.opCode) && inst.opCode != Opcodes.IINC) {
+                continue
+            }
+            val slot = inst.opArgs[0] as Int
+            if (slot >= storeCounts.size) {
+                continue
+            }
+            storeCounts[slot]++
+            storeIndexes[slot] = j
+            if (isWide(inst.opCode) && slot + 1 < storeCounts.size) {
+                storeCounts[slot + 1] += 2
+            }
+        }
+        var propagated = 0
+        for (slot in paramSlots until storeCounts.size) {
+            if (storeCounts[slot] != 1) {
+                continue
+            }
+            val storeIndex = storeIndexes[slot]
+            val store = code[storeIndex]
+            if (!isStore(store.opCode)) {
+                continue
+            }
+            val valueIndex = previousInBlock(method, cfg, storeIndex)
+            if (valueIndex < 0) {
+                continue
+            }
+            val value = constantOf(code[valueIndex]) ?: continue
+            if (store.opCode == Opcodes.FSTORE || (store.opCode == Opcodes.ASTORE && !(value is String))) {
+                continue
+            }
+            val storeBlock = cfg.blockAt(storeIndex)
+            val loadOpCode = loadOpCodeOf(store.opCode)
+            for (j in 0 until code.size) {
+                val inst = code[j]
+                if (inst.opCode != loadOpCode || inst.opArgs[0] as Int != slot) {
+                    continue
+                }
+                val loadBlock = cfg.blockAt(j)
+                val dominated = if (loadBlock == storeBlock) storeIndex < j
+                        else cfg.dominates(storeBlock, loadBlock)
+                if (dominated) {
+                    replaceWithConst(method, j, value)
+                    propagated++
+                }
+            }
+        }
+        propagatedLoads += propagated
+        return propagated
+    }
+}
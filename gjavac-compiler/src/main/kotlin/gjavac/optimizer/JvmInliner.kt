@@ -0,0 +1,311 @@
+package gjavac.optimizer
+
+import gjavac.cecil.ClassDefinition
+import gjavac.cecil.Instruction
+import gjavac.cecil.MethodDefinition
+import gjavac.cecil.MethodInfo
+import gjavac.cecil.StackDepthAnalyzer
+import gjavac.utils.TranslatorUtils
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.util.Printer
+
+/**
+ * 翻译前在jvm字节码上把小的工具类(@Component)方法和本类方法内联到调用处，
+ * 省掉取函数(gettabup/gettable)，call和返回值在eval stack上的搬运
+ * 1. 被调用方法的指令数(不算NOP和return)不超过budget，不是递归调用，并且每个return处栈中只有返回值
+ * 2. 被调用方法的局部变量放到调用方局部变量的后面，内联代码开头把栈上的参数和this存入这些局部变量，
+ *    调用前直接从局部变量压栈并且不会被修改的参数使用调用方的局部变量，没有用到的参数不压栈
+ * 3. return改成跳到内联代码的末尾，返回值留在栈上
+ * 只内联一层，被内联的代码中的方法调用保持不变
+ * storage类的getXXX/setXXX翻译时已经是直接的table读写，不需要内联
+ */
+class JvmInliner {
+    val name = "inline"
+    // 被内联方法的最大指令数，0表示不内联
+    var budget = DEFAULT_BUDGET
+    var methodCount = 0
+    var inlinedCalls = 0
+    var inlinedInstructions = 0
+
+    private val tab2 = "    "
+
+    companion object {
+        val DEFAULT_BUDGET = 8
+        // 内联后方法的局部变量个数上限，每个局部变量占用一个uvm寄存器
+        private val MAX_LOCALS = 64
+    }
+
+    /**
+     * 内联method中的方法调用，classes是本次编译的所有类，返回内联的调用数量
+     */
+    fun inline(method: MethodDefinition, classes: List<ClassDefinition>): Int {
+        if (budget <= 0 || method.code.isEmpty()) {
+            return 0
+        }
+        methodCount++
+        val cfg = method.controlFlowGraph()
+        var inlined = 0
+        // 从后往前内联，前面指令的下标和cfg中的基本块不受影响
+        for (j in method.code.size - 1 downTo 0) {
+            if (!cfg.blockAt(j).isReachable()) {
+                continue
+            }
+            val callee = inlineTarget(method, method.code[j], classes) ?: continue
+            inlineCall(method, j, cfg.blockAt(j).startOffset, callee)
+            inlined++
+        }
+        if (inlined > 0) {
+            method.invalidateControlFlowGraph()
+        }
+        inlinedCalls += inlined
+        return inlined
+    }
+
+    fun statsString(): String {
+        return "pass " + name + ": methods = " + methodCount + " , budget = " + budget + " , inlined calls = " + inlinedCalls +
+                " , inlined instructions = " + inlinedInstructions
+    }
+
+    /**
+     * 可以内联的被调用方法，不能内联时返回null
+     */
+    private fun inlineTarget(caller: MethodDefinition, inst: Instruction, classes: List<ClassDefinition>): MethodDefinition? {
+        if (inst.opCode != Opcodes.INVOKEVIRTUAL && inst.opCode != Opcodes.INVOKESPECIAL && inst.opCode != Opcodes.INVOKESTATIC) {
+            return null
+        }
+        val calledMethod = inst.opArgs[0] as MethodInfo
+        if (calledMethod.name == "<init>" || calledMethod.name == "<clinit>") {
+            return null
+        }
+        val callerClass = caller.definitionClass
+        val calleeClass = classes.find { it.name == calledMethod.owner } ?: return null
+        if (calleeClass != callerClass && !(TranslatorUtils.isComponentClass(calleeClass)
+                && (TranslatorUtils.isContractType(callerClass) || TranslatorUtils.isComponentClass(callerClass)))) {
+            return null
+        }
+        // 虚方法可能被子类覆盖
+        val dottedName = calleeClass.name.replace('/', '.')
+        if (inst.opCode == Opcodes.INVOKEVIRTUAL && classes.any { it.superClassName == dottedName }) {
+            return null
+        }
+        val callee = calleeClass.methods.find { it.name == calledMethod.name && it.desc == calledMethod.desc } ?: return null
+        if (callee == caller || callee.code.isEmpty() || caller.maxLocals + callee.maxLocals > MAX_LOCALS) {
+            return null
+        }
+        return if (canInline(callee, calleeClass != callerClass, callerClass)) callee else null
+    }
+
+    private fun canInline(callee: MethodDefinition, otherClass: Boolean, callerClass: ClassDefinition): Boolean {
+        val cfg = callee.controlFlowGraph()
+        val depths = StackDepthAnalyzer.analyze(callee)
+        var cost = 0
+        for (inst in callee.code) {
+            if (!cfg.blockAt(inst.offset).isReachable() || inst.opCode == Opcodes.NOP) {
+                continue
+            }
+            when (inst.opCode) {
+                Opcodes.JSR, Opcodes.RET -> return false
+                Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN -> {
+                    if (depths.depthBefore(inst) != 1) {
+                        return false
+                    }
+                }
+                Opcodes.RETURN -> {
+                    if (depths.depthBefore(inst) != 0) {
+                        return false
+                    }
+                }
+                Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL, Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE -> {
+                    val calledMethod = inst.opArgs[0] as MethodInfo
+                    if (calledMethod.owner == callee.definitionClass.name && calledMethod.name == callee.name
+                            && calledMethod.desc == callee.desc) {
+                        // 递归调用
+                        return false
+                    }
+                    if (otherClass && calledMethod.owner == callerClass.name) {
+                        // 调用调用方所在类的方法，在调用方中会按本类方法翻译，和原来的翻译方式不同
+                        return false
+                    }
+                    cost++
+                }
+                else -> cost++
+            }
+            if (cost > budget) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun inlineCall(method: MethodDefinition, index: Int, blockStart: Int, callee: MethodDefinition) {
+        val call = method.code[index]
+        val base = method.maxLocals
+        val inlined: MutableList<Instruction> = mutableListOf()
+        // 被调用方法的局部变量slot在调用方中的slot
+        val slotMap = IntArray(Math.max(callee.maxLocals, 1)) { base + it }
+        // 栈上的参数，栈顶的最后一个参数在前面，this在最后
+        val argTypes = Type.getArgumentTypes(callee.desc.orEmpty())
+        val argSlots: MutableList<Int> = mutableListOf()
+        var slot = if (callee.isStatic) 0 else 1
+        for (argType in argTypes) {
+            argSlots.add(slot)
+            slot += argType.size
+        }
+        val stackSlots: MutableList<Int> = mutableListOf()
+        val stackTypes: MutableList<Type> = mutableListOf()
+        for (k in argTypes.size - 1 downTo 0) {
+            stackSlots.add(argSlots[k])
+            stackTypes.add(argTypes[k])
+        }
+        if (!callee.isStatic) {
+            stackSlots.add(0)
+            stackTypes.add(Type.getObjectType(callee.definitionClass.name))
+        }
+        val loaded = accessedSlots(callee, false)
+        val stored = accessedSlots(callee, true)
+        // 紧挨在调用前压栈的参数: 没有用到的直接删掉压栈指令，用局部变量传入并且被调用方法不修改的参数直接使用调用方的局部变量
+        var producer = index - 1
+        var handled = 0
+        while (handled < stackSlots.size) {
+            while (producer >= blockStart && method.code[producer].opCode == Opcodes.NOP) {
+                producer--
+            }
+            if (producer < blockStart) {
+                break
+            }
+            val calleeSlot = stackSlots[handled]
+            val pushInst = method.code[producer]
+            val isLoad = pushInst.opCode >= Opcodes.ILOAD && pushInst.opCode <= Opcodes.ALOAD
+            if (!loaded.contains(calleeSlot) && stackTypes[handled].size == 1 && (isLoad || isConstant(pushInst))) {
+                removePush(method, producer, "unused inlined argument")
+            } else if (isLoad && !stored.contains(calleeSlot)) {
+                slotMap[calleeSlot] = pushInst.opArgs[0] as Int
+                removePush(method, producer, "inlined argument")
+            } else {
+                break
+            }
+            handled++
+        }
+        // 其他参数依次存入被调用方法的参数局部变量，没有用到的直接出栈(翻译器不支持POP2，long/double参数仍然存入局部变量)
+        for (k in handled until stackSlots.size) {
+            if (loaded.contains(stackSlots[k]) || stackTypes[k].size == 2) {
+                inlined.add(makeVarInstruction(stackTypes[k].getOpcode(Opcodes.ISTORE), slotMap[stackSlots[k]], call.linenumber))
+            } else {
+                inlined.add(makePopInstruction(call.linenumber))
+            }
+        }
+        val bodyStart = index + inlined.size
+        val labels: MutableMap<Label, Label> = mutableMapOf()
+        for (label in callee.labelOffsets.keys) {
+            labels[label] = Label()
+        }
+        val endLabel = Label()
+        val cfg = callee.controlFlowGraph()
+        for (inst in callee.code) {
+            val reachable = cfg.blockAt(inst.offset).isReachable()
+            val copied = if (reachable) copyInstruction(inst, slotMap, labels, endLabel, inst.offset == callee.code.size - 1, call.linenumber)
+                else Instruction(Opcodes.NOP, mutableListOf(), tab2 + "NOP ; inlined unreachable " + inst.instLine.trim() + "\n", call.linenumber)
+            if (copied.opCode != Opcodes.NOP) {
+                inlinedInstructions++
+            }
+            inlined.add(copied)
+        }
+        val delta = inlined.size - 1
+        for (entry in method.labelOffsets.entries) {
+            if (entry.value > index) {
+                entry.setValue(entry.value + delta)
+            }
+        }
+        for ((label, offset) in callee.labelOffsets) {
+            method.labelOffsets[labels[label]!!] = bodyStart + offset
+        }
+        method.labelOffsets[endLabel] = index + inlined.size
+        method.code.removeAt(index)
+        method.code.addAll(index, inlined)
+        for (k in index until method.code.size) {
+            method.code[k].offset = k
+        }
+        method.maxLocals = base + callee.maxLocals
+        method.maxStack += callee.maxStack
+    }
+
+    // 方法中读取(stores为false)或者修改(stores为true)的局部变量，IINC同时算读取和修改
+    private fun accessedSlots(method: MethodDefinition, stores: Boolean): Set<Int> {
+        val slots: MutableSet<Int> = mutableSetOf()
+        for (inst in method.code) {
+            val accessed = if (stores) inst.opCode >= Opcodes.ISTORE && inst.opCode <= Opcodes.ASTORE
+                else inst.opCode >= Opcodes.ILOAD && inst.opCode <= Opcodes.ALOAD
+            if (accessed || inst.opCode == Opcodes.IINC) {
+                slots.add(inst.opArgs[0] as Int)
+            }
+        }
+        return slots
+    }
+
+    private fun isConstant(inst: Instruction): Boolean {
+        return when (inst.opCode) {
+            Opcodes.ACONST_NULL, Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3,
+            Opcodes.ICONST_4, Opcodes.ICONST_5, Opcodes.BIPUSH, Opcodes.SIPUSH, Opcodes.LDC -> true
+            else -> false
+        }
+    }
+
+    private fun removePush(method: MethodDefinition, index: Int, reason: String) {
+        val old = method.code[index]
+        method.code[index] = Instruction(Opcodes.NOP, mutableListOf(), tab2 + "NOP ; " + reason + " " + old.instLine.trim() + "\n",
+                old.linenumber, old.offset)
+    }
+
+    private fun makePopInstruction(linenumber: Int): Instruction {
+        return Instruction(Opcodes.POP, mutableListOf(), tab2 + "POP ; unused inlined argument\n", linenumber)
+    }
+
+    private fun makeVarInstruction(opCode: Int, slot: Int, linenumber: Int): Instruction {
+        return Instruction(opCode, mutableListOf<Any>(slot), tab2 + Printer.OPCODES[opCode] + " " + slot + "\n", linenumber)
+    }
+
+    /**
+     * 复制被内联的指令，局部变量按slotMap换成调用方的slot，跳转目标换成新的label，return换成跳到内联代码末尾(最后一条指令时直接顺序执行)
+     */
+    private fun copyInstruction(inst: Instruction, slotMap: IntArray, labels: Map<Label, Label>, endLabel: Label, isLast: Boolean,
+                                linenumber: Int): Instruction {
+        val opCode = inst.opCode
+        return when (opCode) {
+            Opcodes.ILOAD, Opcodes.LLOAD, Opcodes.FLOAD, Opcodes.DLOAD, Opcodes.ALOAD,
+            Opcodes.ISTORE, Opcodes.LSTORE, Opcodes.FSTORE, Opcodes.DSTORE, Opcodes.ASTORE -> {
+                makeVarInstruction(opCode, slotMap[inst.opArgs[0] as Int], linenumber)
+            }
+            Opcodes.IINC -> {
+                val slot = slotMap[inst.opArgs[0] as Int]
+                Instruction(opCode, mutableListOf<Any>(slot, inst.opArgs[1]), tab2 + "IINC " + slot + " " + inst.opArgs[1] + "\n", linenumber)
+            }
+            Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.RETURN -> {
+                if (isLast) {
+                    Instruction(Opcodes.NOP, mutableListOf(), tab2 + "NOP ; inlined " + inst.instLine.trim() + "\n", linenumber)
+                } else {
+                    Instruction(Opcodes.GOTO, mutableListOf<Any>(endLabel), tab2 + "GOTO ; inlined " + inst.instLine.trim() + "\n", linenumber)
+                }
+            }
+            Opcodes.TABLESWITCH -> {
+                @Suppress("UNCHECKED_CAST")
+                val targets = (inst.opArgs[3] as Array<Label>).map { labels[it]!! }.toTypedArray()
+                Instruction(opCode, mutableListOf<Any>(inst.opArgs[0], inst.opArgs[1], labels[inst.opArgs[2] as Label]!!, targets),
+                        inst.instLine, linenumber)
+            }
+            Opcodes.LOOKUPSWITCH -> {
+                @Suppress("UNCHECKED_CAST")
+                val targets = (inst.opArgs[2] as Array<Label>).map { labels[it]!! }.toTypedArray()
+                Instruction(opCode, mutableListOf<Any>(labels[inst.opArgs[0] as Label]!!, inst.opArgs[1], targets), inst.instLine, linenumber)
+            }
+            else -> {
+                if ((opCode >= Opcodes.IFEQ && opCode <= Opcodes.GOTO) || opCode == Opcodes.IFNULL || opCode == Opcodes.IFNONNULL) {
+                    Instruction(opCode, mutableListOf<Any>(labels[inst.opArgs[0] as Label]!!), inst.instLine, linenumber)
+                } else {
+                    Instruction(opCode, inst.opArgs.toMutableList(), inst.instLine, linenumber)
+                }
+            }
+        }
+    }
+}
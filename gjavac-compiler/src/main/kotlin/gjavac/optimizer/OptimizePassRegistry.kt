@@ -0,0 +1,52 @@
+package gjavac.optimizer
+
+import gjavac.exceptions.GjavacException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 所有可以单独关闭的优化，按执行顺序注册:
+ * 翻译前在jvm字节码上的优化(inline, const-fold)，翻译时的指令选择(for-loop, generic-for, tail-call)，翻译后的uvm指令优化pass
+ * --disable-pass和统计输出都只通过这里，不需要知道优化在哪个阶段执行
+ */
+class OptimizePassRegistry {
+    private class Entry(val name: String, val stats: () -> String)
+
+    private val entries: MutableList<Entry> = mutableListOf()
+    private val disabledPasses: MutableSet<String> = mutableSetOf()
+
+    fun register(name: String, stats: () -> String) {
+        if (names().contains(name)) {
+            throw GjavacException("optimize pass " + name + " registered twice")
+        }
+        entries.add(Entry(name, stats))
+    }
+
+    fun names(): List<String> = entries.map { it.name }
+
+    fun disable(name: String) {
+        if (!names().contains(name)) {
+            throw GjavacException("unknown optimize pass " + name + ", available passes: " + names().joinToString(","))
+        }
+        disabledPasses.add(name)
+    }
+
+    fun isEnabled(name: String): Boolean = !disabledPasses.contains(name)
+
+    // 启用的优化的统计，每个一行
+    fun statsString(): String {
+        return entries.filter { isEnabled(it.name) }.map { it.stats() }.joinToString("\n")
+    }
+}
+
+/**
+ * 翻译时的指令选择优化，改写在translator中完成，这里只记录改写的次数
+ * 方法可以并行翻译，计数使用AtomicInteger
+ */
+class LoweringPass(val name: String) {
+    val methodCount = AtomicInteger()
+    val lowered = AtomicInteger()
+
+    fun statsString(): String {
+        return "pass " + name + ": methods = " + methodCount.get() + " , lowered = " + lowered.get()
+    }
+}
@@ -0,0 +1,81 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmEmptyInstruction
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmProto
+import java.util.TreeSet
+
+/**
+ * 一条peephole规则，从worklist中取出的指令开始匹配
+ */
+interface PeepholeRule {
+    // 指令是否可能作为这条规则的起点
+    fun isCandidate(inst: UvmInstruction): Boolean
+
+    // 尝试从index处开始改写，改写了返回true
+    fun apply(context: PeepholeContext, index: Int): Boolean
+}
+
+class PeepholeContext(val proto: UvmProto, val stats: UvmPassStats, private val pass: PeepholePass) {
+    val code = proto.codeInstructions
+    private val worklist: TreeSet<Int> = TreeSet()
+
+    fun isDeleted(index: Int): Boolean = code[index] is UvmEmptyInstruction
+
+    fun enqueue(index: Int) {
+        if (index >= 0 && index < code.size && !isDeleted(index)) {
+            worklist.add(index)
+        }
+    }
+
+    fun poll(): Int? = worklist.pollFirst()
+
+    fun delete(index: Int) {
+        code[index] = proto.makeEmptyInstruction(";deleted inst;original inst:" + code[index])
+        stats.removedInstructions++
+        pass.onChanged(this, index)
+    }
+
+    fun replace(index: Int, inst: UvmInstruction) {
+        code[index] = inst
+        stats.rewrittenInstructions++
+        pass.onChanged(this, index)
+    }
+}
+
+/**
+ * 基于worklist的peephole优化，开始时把所有候选指令加入worklist，
+ * 之后只重新处理受改写影响的指令，直到worklist为空
+ */
+abstract class PeepholePass : UvmOptimizePass {
+    abstract val rules: List<PeepholeRule>
+
+    override fun run(proto: UvmProto, stats: UvmPassStats) {
+        val context = PeepholeContext(proto, stats, this)
+        val code = proto.codeInstructions
+        for (j in 0 until code.size) {
+            if (rules.any { it.isCandidate(code[j]) }) {
+                context.enqueue(j)
+            }
+        }
+        while (true) {
+            val index = context.poll() ?: break
+            if (context.isDeleted(index)) {
+                continue
+            }
+            val inst = code[index]
+            for (rule in rules) {
+                if (rule.isCandidate(inst) && rule.apply(context, index)) {
+                    break
+                }
+            }
+        }
+    }
+
+    // index处的指令被删除或改写后调用，默认把前后相邻的指令重新加入worklist
+    open fun onChanged(context: PeepholeContext, index: Int) {
+        context.enqueue(index - 1)
+        context.enqueue(index)
+        context.enqueue(index + 1)
+    }
+}
@@ -0,0 +1,417 @@
+package gjavac.optimizer
+
+import gjavac.core.EvalStackModeEnum
+import gjavac.core.UvmEmptyInstruction
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmOpCodeEnums
+import gjavac.core.UvmOperand
+import gjavac.core.UvmProto
+import java.util.HashMap
+
+/**
+ * 缓存一个proto中对storage的读取，合并对同一个storage属性的连续写入
+ * 1. 前向数据流分析每个寄存器中的值是不是参数p的storage表(p.storage)或者storage的某个属性(p.storage.name)，
+ *    gettable读取的值已经在某个寄存器中时改成move
+ * 2. 多次读取的值在第一次读取后保存到专用寄存器，专用寄存器用proto.reserveRegisters插入在循环寄存器前面，函数调用不会覆盖
+ * 3. 同一个基本块中对同一个storage属性的两次写入之间没有读取和函数调用时，删除前一次写入
+ * 函数调用(可能是其他合约或者本合约的方法)会修改storage的属性，调用后属性的缓存失效；
+ * 合约不会替换self.storage，storage表本身的缓存在调用后仍然有效
+ */
+class StorageCachePass : UvmOptimizePass {
+    override val name = "storage-cache"
+
+    companion object {
+        const val STORAGE_KEY = "\"storage\""
+        const val MAX_CACHED_VALUES = 8
+        const val MAX_REGISTER = 250
+        // 分析时专用寄存器的编号，确定要保留哪些后再映射到reserveRegisters分配的寄存器
+        const val VIRTUAL_REGISTER_START = 100000
+    }
+
+    enum class TrackedKind {
+        Param,      // 参数的初始值
+        Constant,   // loadk的常量
+        Storage,    // 参数p的storage表
+        Field       // 参数p的storage表的属性
+    }
+
+    data class TrackedValue(val kind: TrackedKind, val param: Int = 0, val literal: String = "")
+
+    // 一次分析的结果，hits是可以改成move的gettable的下标到来源寄存器的映射
+    private class Analysis(val code: List<UvmInstruction>, val states: List<MutableMap<Int, TrackedValue>?>,
+                           val caches: Map<TrackedValue, Int>) {
+        val hits: MutableMap<Int, Int> = linkedMapOf()
+        // 读取了需要缓存的值，后面要保存到专用寄存器的gettable
+        val cacheStores: MutableMap<Int, Int> = linkedMapOf()
+        val producedValues: MutableMap<Int, TrackedValue> = linkedMapOf()
+        // 目标寄存器中已经是同一个storage值的move
+        val redundantMoves: MutableList<Int> = mutableListOf()
+    }
+
+    override fun run(proto: UvmProto, stats: UvmPassStats) {
+        if (proto.method == null || proto.tmp1StackTopSlotIndex <= 0) {
+            return
+        }
+        val code = proto.codeInstructions.toList()
+        if (code.isEmpty() || code.any { it.opCode == UvmOpCodeEnums.OP_CLOSURE }) {
+            return
+        }
+        val loopStart = proto.forLoopStartIndex
+        var analysis = analyze(proto, code, mapOf())
+        if (analysis.producedValues.isEmpty()) {
+            return
+        }
+        // 被多次读取的值尝试缓存，分析后只保留真正被用到的专用寄存器
+        val readCounts: MutableMap<TrackedValue, Int> = linkedMapOf()
+        for (value in analysis.producedValues.values) {
+            readCounts[value] = (readCounts[value] ?: 0) + 1
+        }
+        var cached = readCounts.filter { it.value >= 2 }.keys.take(MAX_CACHED_VALUES)
+        while (cached.size > 0) {
+            val caches: MutableMap<TrackedValue, Int> = linkedMapOf()
+            for (k in 0 until cached.size) {
+                caches[cached[k]] = VIRTUAL_REGISTER_START + k
+            }
+            analysis = analyze(proto, code, caches)
+            val used = cached.filter { analysis.hits.values.contains(caches[it]) }
+            if (used.size == cached.size) {
+                break
+            }
+            cached = used
+        }
+        if (cached.size == 0) {
+            analysis = analyze(proto, code, mapOf())
+        }
+        val reserved = cached.size
+        if (reserved > 0 && proto.callStackStartIndex + 1 + proto.maxCallStackSize + reserved > MAX_REGISTER) {
+            return
+        }
+        val coalesced = findCoalescedWrites(analysis, proto)
+        if (analysis.hits.isEmpty() && coalesced.isEmpty() && analysis.redundantMoves.isEmpty()) {
+            return
+        }
+
+        val cacheStart = if (reserved > 0) proto.reserveRegisters(reserved) else loopStart
+        // 分析时的寄存器编号映射到保留寄存器后的编号
+        val mapRegister = { r: Int ->
+            if (r >= VIRTUAL_REGISTER_START) cacheStart + (r - VIRTUAL_REGISTER_START)
+            else if (r >= loopStart) r + reserved
+            else r
+        }
+        val buffer = proto.codeInstructions
+        for ((index, source) in analysis.hits) {
+            val inst = buffer[index]
+            val move = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, inst.comment, inst.jvmInstruction,
+                    inst.operand(0), UvmOperand.register(mapRegister(source)))
+            move.lineNumber = inst.lineNumber
+            move.locationLabel = inst.locationLabel
+            buffer[index] = move
+            stats.rewrittenInstructions++
+        }
+        for (index in coalesced + analysis.redundantMoves) {
+            buffer[index] = proto.makeEmptyInstruction(";deleted inst;original inst:" + buffer[index])
+            stats.removedInstructions++
+        }
+        // 从后往前插入保存到专用寄存器的move，前面的下标不受影响
+        for (index in analysis.cacheStores.keys.sortedDescending()) {
+            val inst = buffer[index]
+            val store = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, ";cache storage read", inst.jvmInstruction,
+                    UvmOperand.register(mapRegister(analysis.cacheStores[index]!!)), inst.operand(0))
+            store.lineNumber = inst.lineNumber
+            buffer.insert(index + 1, store)
+            for (locvar in proto.locvars) {
+                if (locvar.startPc > index) {
+                    locvar.startPc++
+                }
+            }
+        }
+    }
+
+    private fun keyOf(operand: UvmOperand, state: Map<Int, TrackedValue>): TrackedValue? {
+        if (operand.isConstant()) {
+            return TrackedValue(TrackedKind.Constant, 0, operand.literal)
+        }
+        if (operand.isRegister()) {
+            val value = state[operand.index]
+            if (value != null && value.kind == TrackedKind.Constant) {
+                return value
+            }
+        }
+        return null
+    }
+
+    private fun valueOf(operand: UvmOperand, state: Map<Int, TrackedValue>): TrackedValue? {
+        return if (operand.isRegister()) state[operand.index] else null
+    }
+
+    // gettable读出的值
+    private fun loadedValue(inst: UvmInstruction, state: Map<Int, TrackedValue>): TrackedValue? {
+        val table = valueOf(inst.operand(1), state) ?: return null
+        val key = keyOf(inst.operand(2), state) ?: return null
+        if (table.kind == TrackedKind.Param && key.literal == STORAGE_KEY) {
+            return TrackedValue(TrackedKind.Storage, table.param)
+        }
+        if (table.kind == TrackedKind.Storage) {
+            return TrackedValue(TrackedKind.Field, table.param, key.literal)
+        }
+        return null
+    }
+
+    // 已经有值的寄存器，优先用普通寄存器，其次专用寄存器
+    private fun holderOf(value: TrackedValue, target: Int, state: Map<Int, TrackedValue>): Int? {
+        if (state[target] == value) {
+            return target
+        }
+        var cacheHolder: Int? = null
+        for ((register, held) in state) {
+            if (held != value) {
+                continue
+            }
+            if (register < VIRTUAL_REGISTER_START) {
+                return register
+            }
+            cacheHolder = register
+        }
+        return cacheHolder
+    }
+
+    private fun kill(state: MutableMap<Int, TrackedValue>, from: Int, to: Int, loopStart: Int) {
+        val iterator = state.keys.iterator()
+        while (iterator.hasNext()) {
+            val register = iterator.next()
+            // 专用寄存器在循环寄存器前面，只有从它们前面开始的写入会覆盖
+            val real = if (register >= VIRTUAL_REGISTER_START) loopStart else register
+            if (real >= from && real <= to && (register < VIRTUAL_REGISTER_START || from < loopStart)) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private fun killValues(state: MutableMap<Int, TrackedValue>, predicate: (TrackedValue) -> Boolean) {
+        val iterator = state.values.iterator()
+        while (iterator.hasNext()) {
+            if (predicate(iterator.next())) {
+                iterator.remove()
+            }
+        }
+    }
+
+    // table模式下模拟eval stack的table
+    private fun isEvalStackTable(operand: UvmOperand, proto: UvmProto): Boolean {
+        return proto.evalStackMode == EvalStackModeEnum.Table && operand.isRegister() && operand.index == proto.evalStackIndex
+    }
+
+    private fun isFieldOrStorage(value: TrackedValue): Boolean {
+        return value.kind == TrackedKind.Field || value.kind == TrackedKind.Storage
+    }
+
+    private fun transfer(inst: UvmInstruction, state: MutableMap<Int, TrackedValue>, caches: Map<TrackedValue, Int>,
+                         canStoreCache: Boolean, proto: UvmProto) {
+        val all = UvmInstructionEffects.ALL_REGISTERS
+        val loopStart = proto.forLoopStartIndex
+        when (inst.opCode) {
+            UvmOpCodeEnums.OP_MOVE -> {
+                val value = valueOf(inst.operand(1), state)
+                kill(state, inst.operand(0).index, inst.operand(0).index, loopStart)
+                if (value != null) {
+                    state[inst.operand(0).index] = value
+                }
+            }
+            UvmOpCodeEnums.OP_LOADK -> {
+                kill(state, inst.operand(0).index, inst.operand(0).index, loopStart)
+                if (inst.operand(1).isConstant()) {
+                    state[inst.operand(0).index] = TrackedValue(TrackedKind.Constant, 0, inst.operand(1).literal)
+                }
+            }
+            UvmOpCodeEnums.OP_GETTABLE -> {
+                val value = loadedValue(inst, state)
+                kill(state, inst.operand(0).index, inst.operand(0).index, loopStart)
+                if (value != null) {
+                    state[inst.operand(0).index] = value
+                    val cache = caches[value]
+                    if (cache != null && canStoreCache) {
+                        state[cache] = value
+                    }
+                }
+            }
+            UvmOpCodeEnums.OP_SETTABLE -> {
+                val table = valueOf(inst.operand(0), state)
+                val key = keyOf(inst.operand(1), state)
+                if (table != null && table.kind == TrackedKind.Storage) {
+                    if (key == null) {
+                        killValues(state, { it.kind == TrackedKind.Field && it.param == table.param })
+                    } else {
+                        val written = TrackedValue(TrackedKind.Field, table.param, key.literal)
+                        killValues(state, { it == written })
+                        // 写入后值所在的寄存器就是这个属性的值
+                        val valueOperand = inst.operand(2)
+                        if (valueOperand.isRegister() && state[valueOperand.index] == null) {
+                            state[valueOperand.index] = written
+                        }
+                    }
+                } else if (table != null && table.kind == TrackedKind.Param) {
+                    if (key == null || key.literal == STORAGE_KEY) {
+                        killValues(state, { isFieldOrStorage(it) && it.param == table.param })
+                    }
+                } else if (table == null && !isEvalStackTable(inst.operand(0), proto)) {
+                    // 不知道写入的table是不是storage或者self
+                    if (key == null) {
+                        killValues(state, { isFieldOrStorage(it) })
+                    } else {
+                        killValues(state, { (it.kind == TrackedKind.Field && it.literal == key.literal)
+                                || (it.kind == TrackedKind.Storage && key.literal == STORAGE_KEY) })
+                    }
+                }
+            }
+            UvmOpCodeEnums.OP_CALL, UvmOpCodeEnums.OP_TAILCALL -> {
+                killValues(state, { it.kind == TrackedKind.Field })
+                kill(state, inst.operand(0).index, all, loopStart)
+            }
+            UvmOpCodeEnums.OP_TFORCALL -> {
+                killValues(state, { it.kind == TrackedKind.Field })
+                kill(state, inst.operand(0).index + 3, all, loopStart)
+            }
+            UvmOpCodeEnums.OP_VARARG -> kill(state, inst.operand(0).index, all, loopStart)
+            else -> {
+                for (range in UvmInstructionEffects.writeRanges(inst)) {
+                    kill(state, range.first, range.last, loopStart)
+                }
+            }
+        }
+    }
+
+    private fun analyze(proto: UvmProto, code: List<UvmInstruction>, caches: Map<TrackedValue, Int>): Analysis {
+        val labelIndexes = UvmInstructionEffects.labelIndexes(code)
+        val states: MutableList<MutableMap<Int, TrackedValue>?> = arrayOfNulls<MutableMap<Int, TrackedValue>>(code.size).toMutableList()
+        val entry: MutableMap<Int, TrackedValue> = mutableMapOf()
+        for (p in 0 until proto.numparams) {
+            entry[p] = TrackedValue(TrackedKind.Param, p)
+        }
+        states[0] = entry
+        val worklist: MutableList<Int> = mutableListOf(0)
+        while (worklist.size > 0) {
+            val index = worklist.removeAt(worklist.size - 1)
+            val out: MutableMap<Int, TrackedValue> = HashMap(states[index]!!)
+            transfer(code[index], out, caches, canStoreCache(code, index), proto)
+            for (succ in UvmInstructionEffects.successors(code, index, labelIndexes)) {
+                if (succ >= code.size) {
+                    continue
+                }
+                val old = states[succ]
+                if (old == null) {
+                    states[succ] = HashMap(out)
+                    worklist.add(succ)
+                } else {
+                    // 汇合处只保留所有前驱都成立的值
+                    val sizeBefore = old.size
+                    val iterator = old.entries.iterator()
+                    while (iterator.hasNext()) {
+                        val held = iterator.next()
+                        if (out[held.key] != held.value) {
+                            iterator.remove()
+                        }
+                    }
+                    if (old.size != sizeBefore) {
+                        worklist.add(succ)
+                    }
+                }
+            }
+        }
+        val analysis = Analysis(code, states, caches)
+        for (j in 0 until code.size) {
+            val state = states[j] ?: continue
+            val inst = code[j]
+            if (inst.opCode == UvmOpCodeEnums.OP_MOVE && !inst.hasLocationLabel() && canStoreCache(code, j)) {
+                val moved = valueOf(inst.operand(1), state)
+                if (moved != null && isFieldOrStorage(moved) && state[inst.operand(0).index] == moved) {
+                    analysis.redundantMoves.add(j)
+                }
+            }
+            if (inst.opCode != UvmOpCodeEnums.OP_GETTABLE) {
+                continue
+            }
+            val value = loadedValue(inst, state) ?: continue
+            analysis.producedValues[j] = value
+            val target = inst.operand(0).index
+            val holder = holderOf(value, target, state)
+            if (holder != null) {
+                analysis.hits[j] = holder
+            }
+            val cache = caches[value]
+            if (cache != null && canStoreCache(code, j) && holder != cache && state[cache] != value) {
+                analysis.cacheStores[j] = cache
+            }
+        }
+        return analysis
+    }
+
+    // 紧跟在条件跳过指令后面的指令不能在后面插入指令
+    private fun canStoreCache(code: List<UvmInstruction>, index: Int): Boolean {
+        return index == 0 || !UvmInstructionEffects.skipsNext(code[index - 1])
+    }
+
+    /**
+     * 同一个基本块中对同一个storage属性写入两次，中间没有读取，函数调用和跳转时，前一次写入可以删除
+     */
+    private fun findCoalescedWrites(analysis: Analysis, proto: UvmProto): List<Int> {
+        val code = analysis.code
+        val result: MutableList<Int> = mutableListOf()
+        for (j in 0 until code.size) {
+            val written = storageWrite(analysis, j) ?: continue
+            if (code[j].hasLocationLabel() || (j > 0 && UvmInstructionEffects.skipsNext(code[j - 1]))) {
+                continue
+            }
+            var k = j + 1
+            while (k < code.size) {
+                val inst = code[k]
+                if (inst.hasLocationLabel() || inst is UvmEmptyInstruction) {
+                    break
+                }
+                if (storageWrite(analysis, k) == written) {
+                    result.add(j)
+                    break
+                }
+                if (!isTransparentTo(inst, written, analysis.states[k], proto)) {
+                    break
+                }
+                k++
+            }
+        }
+        return result
+    }
+
+    private fun storageWrite(analysis: Analysis, index: Int): TrackedValue? {
+        val inst = analysis.code[index]
+        val state = analysis.states[index] ?: return null
+        if (inst.opCode != UvmOpCodeEnums.OP_SETTABLE) {
+            return null
+        }
+        val table = valueOf(inst.operand(0), state) ?: return null
+        val key = keyOf(inst.operand(1), state) ?: return null
+        if (table.kind != TrackedKind.Storage) {
+            return null
+        }
+        return TrackedValue(TrackedKind.Field, table.param, key.literal)
+    }
+
+    // 指令不会读取written属性，也不会改变控制流
+    private fun isTransparentTo(inst: UvmInstruction, written: TrackedValue, state: Map<Int, TrackedValue>?, proto: UvmProto): Boolean {
+        if (state == null || UvmInstructionEffects.skipsNext(inst)) {
+            return false
+        }
+        return when (inst.opCode) {
+            // 算术等指令可能触发元方法，不跨过
+            UvmOpCodeEnums.OP_MOVE, UvmOpCodeEnums.OP_LOADK, UvmOpCodeEnums.OP_LOADNIL, UvmOpCodeEnums.OP_LOADBOOL,
+            UvmOpCodeEnums.OP_GETUPVAL, UvmOpCodeEnums.OP_GETTABUP, UvmOpCodeEnums.OP_NEWTABLE -> true
+            UvmOpCodeEnums.OP_SETTABLE -> valueOf(inst.operand(0), state) != null || isEvalStackTable(inst.operand(0), proto)
+            UvmOpCodeEnums.OP_GETTABLE -> {
+                // 读取别的属性可以，读取同一个属性或者不知道读的是什么不行
+                val table = valueOf(inst.operand(1), state)
+                val key = keyOf(inst.operand(2), state)
+                isEvalStackTable(inst.operand(1), proto) || table != null && (table.kind == TrackedKind.Param || table.kind == TrackedKind.Field
+                        || (table.kind == TrackedKind.Storage && key != null && key.literal != written.literal))
+            }
+            else -> false
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmOpCodeEnums
+import gjavac.core.UvmOperand
+import gjavac.exceptions.GjavacException
+
+/**
+ * uvm指令读写哪些寄存器以及控制流走向，按lua 5.3的指令语义
+ * 寄存器范围的last为ALL_REGISTERS表示从first开始的所有寄存器
+ */
+object UvmInstructionEffects {
+    const val ALL_REGISTERS = Int.MAX_VALUE
+
+    private fun reg(operand: UvmOperand): List<IntRange> {
+        return if (operand.isRegister()) listOf(operand.index..operand.index) else listOf()
+    }
+
+    // B或C为0时表示到栈顶的所有寄存器
+    private fun range(first: Int, count: Int): IntRange {
+        return if (count < 0) first..ALL_REGISTERS else first..(first + count - 1)
+    }
+
+    /**
+     * 指令读取的寄存器，不认识的指令视为读取所有寄存器
+     */
+    fun readRanges(inst: UvmInstruction): List<IntRange> {
+        val opCode = inst.opCode ?: return listOf()
+        return when (opCode) {
+            UvmOpCodeEnums.OP_LOADK, UvmOpCodeEnums.OP_LOADKX, UvmOpCodeEnums.OP_LOADBOOL, UvmOpCodeEnums.OP_LOADNIL,
+            UvmOpCodeEnums.OP_GETUPVAL, UvmOpCodeEnums.OP_NEWTABLE, UvmOpCodeEnums.OP_JMP, UvmOpCodeEnums.OP_VARARG,
+            UvmOpCodeEnums.OP_EXTRAARG -> listOf()
+            UvmOpCodeEnums.OP_MOVE, UvmOpCodeEnums.OP_UNM, UvmOpCodeEnums.OP_BNOT, UvmOpCodeEnums.OP_NOT,
+            UvmOpCodeEnums.OP_LEN, UvmOpCodeEnums.OP_TESTSET -> reg(inst.operand(1))
+            UvmOpCodeEnums.OP_GETTABUP -> reg(inst.operand(2))
+            UvmOpCodeEnums.OP_GETTABLE, UvmOpCodeEnums.OP_SELF -> reg(inst.operand(1)) + reg(inst.operand(2))
+            UvmOpCodeEnums.OP_SETTABUP -> reg(inst.operand(1)) + reg(inst.operand(2))
+            UvmOpCodeEnums.OP_SETUPVAL, UvmOpCodeEnums.OP_TEST -> reg(inst.operand(0))
+            UvmOpCodeEnums.OP_SETTABLE -> reg(inst.operand(0)) + reg(inst.operand(1)) + reg(inst.operand(2))
+            UvmOpCodeEnums.OP_ADD, UvmOpCodeEnums.OP_SUB, UvmOpCodeEnums.OP_MUL, UvmOpCodeEnums.OP_MOD, UvmOpCodeEnums.OP_POW,
+            UvmOpCodeEnums.OP_DIV, UvmOpCodeEnums.OP_IDIV, UvmOpCodeEnums.OP_BAND, UvmOpCodeEnums.OP_BOR, UvmOpCodeEnums.OP_BXOR,
+            UvmOpCodeEnums.OP_SHL, UvmOpCodeEnums.OP_SHR, UvmOpCodeEnums.OP_EQ, UvmOpCodeEnums.OP_LT,
+            UvmOpCodeEnums.OP_LE -> reg(inst.operand(1)) + reg(inst.operand(2))
+            UvmOpCodeEnums.OP_CONCAT -> listOf(inst.operand(1).index..inst.operand(2).index)
+            UvmOpCodeEnums.OP_CALL, UvmOpCodeEnums.OP_TAILCALL -> {
+                // 函数和B-1个参数
+                val b = inst.operand(1).index
+                listOf(range(inst.operand(0).index, if (b == 0) -1 else b))
+            }
+            UvmOpCodeEnums.OP_RETURN -> {
+                val b = inst.operand(1).index
+                listOf(range(inst.operand(0).index, if (b == 0) -1 else b - 1))
+            }
+            UvmOpCodeEnums.OP_FORLOOP, UvmOpCodeEnums.OP_FORPREP -> listOf(range(inst.operand(0).index, 3))
+            UvmOpCodeEnums.OP_TFORCALL -> listOf(range(inst.operand(0).index, 3))
+            UvmOpCodeEnums.OP_TFORLOOP -> listOf(range(inst.operand(0).index + 1, 1))
+            UvmOpCodeEnums.OP_SETLIST -> listOf(range(inst.operand(0).index, if (inst.operand(1).index == 0) -1 else inst.operand(1).index + 1))
+            // closure可能捕获当前函数的寄存器
+            UvmOpCodeEnums.OP_CLOSURE -> listOf(0..ALL_REGISTERS)
+        }
+    }
+
+    /**
+     * 指令可能写入的寄存器，包括只在某些情况下写入的(forloop继续循环时写入A+3，testset和tforloop条件成立时写入A，
+     * call和vararg的C或B为0时写入到栈顶)
+     * 用来判断缓存在寄存器中的值会不会被覆盖
+     */
+    fun writeRanges(inst: UvmInstruction): List<IntRange> {
+        return when (inst.opCode) {
+            // forprep把初值/上限/步长转换后写回A..A+2，forloop继续循环时写入A+3
+            UvmOpCodeEnums.OP_FORPREP, UvmOpCodeEnums.OP_FORLOOP -> listOf(range(inst.operand(0).index, 4))
+            UvmOpCodeEnums.OP_TESTSET, UvmOpCodeEnums.OP_TFORLOOP -> reg(inst.operand(0))
+            // 返回值个数不确定时可能写入A开始的所有寄存器
+            UvmOpCodeEnums.OP_CALL -> listOf(range(inst.operand(0).index, inst.operand(2).index - 1))
+            UvmOpCodeEnums.OP_VARARG -> listOf(range(inst.operand(0).index, inst.operand(1).index - 1))
+            else -> definiteWriteRanges(inst)
+        }
+    }
+
+    /**
+     * 指令一定会写入的寄存器(调用返回多个值等不确定的情况不算)，用于活跃分析
+     */
+    fun definiteWriteRanges(inst: UvmInstruction): List<IntRange> {
+        val opCode = inst.opCode ?: return listOf()
+        return when (opCode) {
+            UvmOpCodeEnums.OP_MOVE, UvmOpCodeEnums.OP_LOADK, UvmOpCodeEnums.OP_LOADKX, UvmOpCodeEnums.OP_LOADBOOL,
+            UvmOpCodeEnums.OP_GETUPVAL, UvmOpCodeEnums.OP_GETTABUP, UvmOpCodeEnums.OP_GETTABLE, UvmOpCodeEnums.OP_NEWTABLE,
+            UvmOpCodeEnums.OP_ADD, UvmOpCodeEnums.OP_SUB, UvmOpCodeEnums.OP_MUL, UvmOpCodeEnums.OP_MOD, UvmOpCodeEnums.OP_POW,
+            UvmOpCodeEnums.OP_DIV, UvmOpCodeEnums.OP_IDIV, UvmOpCodeEnums.OP_BAND, UvmOpCodeEnums.OP_BOR, UvmOpCodeEnums.OP_BXOR,
+            UvmOpCodeEnums.OP_SHL, UvmOpCodeEnums.OP_SHR, UvmOpCodeEnums.OP_UNM, UvmOpCodeEnums.OP_BNOT, UvmOpCodeEnums.OP_NOT,
+            UvmOpCodeEnums.OP_LEN, UvmOpCodeEnums.OP_CONCAT, UvmOpCodeEnums.OP_CLOSURE,
+            UvmOpCodeEnums.OP_FORLOOP, UvmOpCodeEnums.OP_FORPREP -> reg(inst.operand(0))
+            UvmOpCodeEnums.OP_LOADNIL -> listOf(range(inst.operand(0).index, inst.operand(1).index + 1))
+            UvmOpCodeEnums.OP_SELF -> listOf(range(inst.operand(0).index, 2))
+            UvmOpCodeEnums.OP_CALL -> if (inst.operand(2).index > 0) listOf(range(inst.operand(0).index, inst.operand(2).index - 1)) else listOf()
+            UvmOpCodeEnums.OP_VARARG -> if (inst.operand(1).index > 0) listOf(range(inst.operand(0).index, inst.operand(1).index - 1)) else listOf()
+            UvmOpCodeEnums.OP_TFORCALL -> listOf(range(inst.operand(0).index + 3, inst.operand(1).index))
+            else -> listOf()
+        }
+    }
+
+    /**
+     * 条件成立时跳过下一条指令的指令
+     */
+    fun skipsNext(inst: UvmInstruction): Boolean {
+        return when (inst.opCode) {
+            UvmOpCodeEnums.OP_EQ, UvmOpCodeEnums.OP_LT, UvmOpCodeEnums.OP_LE, UvmOpCodeEnums.OP_TEST,
+            UvmOpCodeEnums.OP_TESTSET -> true
+            UvmOpCodeEnums.OP_LOADBOOL -> inst.operands.size > 2 && inst.operands[2].index != 0
+            else -> false
+        }
+    }
+
+    /**
+     * 第index条指令执行后可能到达的指令下标，等于code.size表示执行到函数末尾
+     * labelIndexes是label到指令下标的映射
+     */
+    fun successors(code: List<UvmInstruction>, index: Int, labelIndexes: Map<String, Int>): List<Int> {
+        val inst = code[index]
+        return when (inst.opCode) {
+            UvmOpCodeEnums.OP_JMP -> listOf(labelTarget(inst, 1, labelIndexes))
+            UvmOpCodeEnums.OP_FORLOOP, UvmOpCodeEnums.OP_TFORLOOP -> listOf(index + 1, labelTarget(inst, 1, labelIndexes))
+            UvmOpCodeEnums.OP_FORPREP -> listOf(labelTarget(inst, 1, labelIndexes))
+            // tailcall调用的是C函数时会继续执行后面的return
+            UvmOpCodeEnums.OP_TAILCALL -> listOf(index + 1)
+            UvmOpCodeEnums.OP_RETURN -> listOf()
+            UvmOpCodeEnums.OP_LOADBOOL -> if (skipsNext(inst)) listOf(index + 2) else listOf(index + 1)
+            else -> if (skipsNext(inst)) listOf(index + 1, index + 2) else listOf(index + 1)
+        }
+    }
+
+    private fun labelTarget(inst: UvmInstruction, operandIndex: Int, labelIndexes: Map<String, Int>): Int {
+        val label = inst.operand(operandIndex).literal
+        return labelIndexes[label] ?: throw GjavacException("Can't find label " + label + " of " + inst)
+    }
+
+    fun labelIndexes(code: List<UvmInstruction>): Map<String, Int> {
+        val result: MutableMap<String, Int> = mutableMapOf()
+        for (j in 0 until code.size) {
+            val label = code[j].locationLabel
+            if (label != null && label.length > 0) {
+                result[label] = j
+            }
+        }
+        return result
+    }
+}
@@ -0,0 +1,90 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmProto
+
+/**
+ * 对一个proto的uvm指令做的优化
+ * pass要删除的指令替换成empty instruction，由pass manager在pass结束后统一移除并修正pc
+ */
+interface UvmOptimizePass {
+    val name: String
+
+    fun run(proto: UvmProto, stats: UvmPassStats)
+}
+
+class UvmPassStats(val name: String) {
+    var protoCount = 0
+    var removedInstructions = 0
+    var rewrittenInstructions = 0
+    var timeNanos: Long = 0
+
+    override fun toString(): String {
+        return "pass " + name + ": protos = " + protoCount + " , removed = " + removedInstructions +
+                " , rewritten = " + rewrittenInstructions + " , time = " + (timeNanos / 1000000) + "ms"
+    }
+}
+
+/**
+ * 按顺序对每个proto执行启用的优化pass，并统计每个pass的效果
+ * pass注册到registry，是否启用和统计输出由registry统一管理
+ */
+class UvmPassManager(val registry: OptimizePassRegistry = OptimizePassRegistry()) {
+    val passes: MutableList<UvmOptimizePass> = mutableListOf()
+    val stats: MutableMap<String, UvmPassStats> = linkedMapOf()
+
+    companion object {
+        fun createDefault(registry: OptimizePassRegistry = OptimizePassRegistry()): UvmPassManager {
+            val passManager = UvmPassManager(registry)
+            passManager.addPass(EvalStackPeepholePass())
+            passManager.addPass(StorageCachePass())
+            passManager.addPass(DeadCodeEliminationPass())
+            passManager.addPass(GlobalHoistPass())
+            return passManager
+        }
+    }
+
+    fun addPass(pass: UvmOptimizePass) {
+        passes.add(pass)
+        val passStats = UvmPassStats(pass.name)
+        stats[pass.name] = passStats
+        registry.register(pass.name, { synchronized(stats) { passStats.toString() } })
+    }
+
+    fun passNames(): List<String> = passes.map { it.name }
+
+    fun isEnabled(name: String): Boolean = registry.isEnabled(name)
+
+    /**
+     * 优化proto，返回每个pass删除的指令数量
+     * 可以在多个线程中同时优化不同的proto: pass本身没有状态，统计先记在这次调用自己的stats中，最后再加到总的统计上
+     */
+    fun run(proto: UvmProto): Map<String, Int> {
+        // pass开始时指令列表中没有empty instruction，下标就是pc
+        proto.codeInstructions.removeEmptyInstructions()
+        val removed: MutableMap<String, Int> = linkedMapOf()
+        val protoStats: MutableList<UvmPassStats> = mutableListOf()
+        for (pass in passes) {
+            if (!isEnabled(pass.name)) {
+                continue
+            }
+            val passStats = UvmPassStats(pass.name)
+            val start = System.nanoTime()
+            pass.run(proto, passStats)
+            proto.removeDeletedInstructions()
+            passStats.timeNanos = System.nanoTime() - start
+            passStats.protoCount = 1
+            removed[pass.name] = passStats.removedInstructions
+            protoStats.add(passStats)
+        }
+        synchronized(stats) {
+            for (passStats in protoStats) {
+                val total = stats[passStats.name]!!
+                total.protoCount += passStats.protoCount
+                total.removedInstructions += passStats.removedInstructions
+                total.rewrittenInstructions += passStats.rewrittenInstructions
+                total.timeNanos += passStats.timeNanos
+            }
+        }
+        return removed
+    }
+}
@@ -5,10 +5,31 @@ import gjavac.exceptions.GjavacException
 import gjavac.cecil.*
 import gjavac.core.*
 import gjavac.lib.*
+import gjavac.optimizer.JvmConstantFolder
+import gjavac.optimizer.JvmInliner
+import gjavac.optimizer.LoweringPass
+import gjavac.optimizer.OptimizePassRegistry
+import gjavac.optimizer.UvmPassManager
+import gjavac.utils.DiagnosticCategory
+import gjavac.utils.DiagnosticLevel
+import gjavac.utils.Diagnostics
 import gjavac.utils.TranslatorUtils
 import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
+import java.util.Comparator
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+
+// switch的分支数不超过这个值时顺序比较，否则二分
+private const val SWITCH_LINEAR_CASES = 3
+// 循环和字符串拼接使用的寄存器不能超过的寄存器个数(lua的MAXREGS)
+private const val MAX_FOR_LOOP_REGISTER = 250
+
+const val FOR_LOOP_PASS_NAME = "for-loop"
+const val TAIL_CALL_PASS_NAME = "tail-call"
+const val GENERIC_FOR_PASS_NAME = "generic-for"
 
 open class JavaToUvmTranslator {
     val generatedInstructions: MutableList<UvmInstruction> = mutableListOf()
@@ -19,13 +40,71 @@ open class JavaToUvmTranslator {
     val contractApiArgsTypes: MutableMap<String, MutableList<UvmTypeInfoEnum>> = mutableMapOf()
     var contractType: ClassDefinition? = null
     val definedTypes: MutableList<ClassDefinition> = mutableListOf()
+    // operand stack的模拟方式，默认把栈深度映射到寄存器
+    var evalStackMode: EvalStackModeEnum = EvalStackModeEnum.Register
+    // 所有优化的开关和统计
+    val passes = OptimizePassRegistry()
+    // 翻译前把小的工具类方法和本类方法内联到调用处
+    val inliner = JvmInliner()
+    // 翻译前在jvm字节码上做常量折叠和传播
+    val constantFolder = JvmConstantFolder()
+    // 把计数循环翻译成forprep/forloop
+    val forLoopPass = LoweringPass(FOR_LOOP_PASS_NAME)
+    // 把pairs/ipairs迭代循环翻译成tforcall/tforloop
+    val genericForPass = LoweringPass(GENERIC_FOR_PASS_NAME)
+    // 把 return f(args) 翻译成tailcall
+    val tailCallPass = LoweringPass(TAIL_CALL_PASS_NAME)
+
+    init {
+        passes.register(inliner.name, { inliner.statsString() })
+        passes.register(constantFolder.name, { constantFolder.statsString() })
+        for (pass in listOf(forLoopPass, genericForPass, tailCallPass)) {
+            passes.register(pass.name, { pass.statsString() })
+        }
+    }
+
+    // 对每个方法生成的uvm指令执行的优化pass，注册在jvm和指令选择的优化后面
+    val passManager: UvmPassManager = UvmPassManager.createDefault(passes)
+
+    // 翻译方法使用的线程数，1表示在当前线程中顺序翻译
+    var parallelism = 1
+    // jvm指令列表只在开启trace时生成，每个proto的优化结果只在stats为detail时输出
+    var diagnostics = Diagnostics()
 
     private val gson = Gson()
 
+    /**
+     * 一个方法的翻译结果，翻译过程中的jvm内容，优化统计和警告先记录在这里，
+     * 合并到父proto时再输出，所以并行翻译和顺序翻译的输出一致
+     * jvmContent和console在对应的诊断信息没有开启时为null，不生成这些字符串
+     */
+    class MethodTranslation(val method: MethodDefinition, val jvmContent: StringBuilder?, val console: StringBuilder?) {
+        val warnings: MutableList<String> = mutableListOf()
+        var proto: UvmProto? = null
+    }
+
+    private fun newMethodTranslation(method: MethodDefinition): MethodTranslation {
+        return MethodTranslation(method,
+                if (diagnostics.isEnabled(DiagnosticCategory.Trace)) StringBuilder() else null,
+                if (diagnostics.isEnabled(DiagnosticCategory.OptimizerStats, DiagnosticLevel.Detail)) StringBuilder() else null)
+    }
+
+    // 已经在线程池中翻译好，还没有合并到父proto的方法
+    private val translatedMethods: MutableMap<MethodDefinition, MethodTranslation> = mutableMapOf()
+
     /**
      * 获取一些元信息，比如emit的event names, 合约的apis, 合约的offline apis
      */
     fun getMetaInfoJson(): String {
+        return gson.toJson(metaInfo())
+    }
+
+    // meta信息直接用gson写到out，不生成中间字符串
+    fun writeMetaInfoJson(out: Appendable) {
+        gson.toJson(metaInfo(), out)
+    }
+
+    private fun metaInfo(): Map<String, Any> {
         val info: MutableMap<String, Any> = mutableMapOf()
         info["event"] = eventNames as Any
         info["api"] = contractApiNames as Any
@@ -40,10 +119,10 @@ open class JavaToUvmTranslator {
             contractApiArgsTypesArray.add(mutableListOf(key as Any, contractApiArgsTypes.get(key)?.map { t -> t.value } as Any))
         }
         info.put("api_args_types", contractApiArgsTypesArray as Any)
-        return gson.toJson(info)
+        return info
     }
 
-    fun translateModule(module: ModuleDefinition, jvmContentBuilder: StringBuilder, luaAsmBuilder: StringBuilder) {
+    fun translateModule(module: ModuleDefinition, jvmContentBuilder: StringBuilder): UvmProto {
         generatedInstructions.clear()
         eventNames.clear()
         contractApiNames.clear()
@@ -52,6 +131,7 @@ open class JavaToUvmTranslator {
         contractApiArgsTypes.clear()
         definedTypes.clear()
         this.contractType = null;
+        translatedMethods.clear()
 
         definedTypes.clear()
         definedTypes.addAll(module.classes)
@@ -120,12 +200,16 @@ open class JavaToUvmTranslator {
             }
         }
         
-        val topProto = translateTopJvmType(mainTypes[0],jvmContentBuilder,luaAsmBuilder,utilTypes,contractType_)
-        luaAsmBuilder.append(topProto.toUvmAss(true))
+        if (parallelism > 1) {
+            // 和translateTopJvmType中的顺序一致: 工具类，main所在的类，合约类
+            translateMethodsInParallel(utilTypes + mainTypes[0] + contractType_)
+        }
+        // .ass由调用方用topProto.writeUvmAss(out, true)输出
+        return translateTopJvmType(mainTypes[0],jvmContentBuilder,utilTypes,contractType_)
     }
 
     fun translateTopJvmType(topType:ClassDefinition,jvmContentBuilder: StringBuilder,
-                         luaAsmBuilder: StringBuilder, utilTypes:List<ClassDefinition>,contractType:ClassDefinition): UvmProto{
+                         utilTypes:List<ClassDefinition>,contractType:ClassDefinition): UvmProto{
         if(topType==null || contractType==null){
             throw GjavacException("topType null or contractType null")
         }
@@ -144,7 +228,7 @@ open class JavaToUvmTranslator {
         topProto.addInstructionLine("newtable %" + tableSlot + " 0 0", null)
         for (utilType in utilTypes) {
             //utilProto直属于mainProto
-            val utilProto = translateJvmType(utilType, jvmContentBuilder, luaAsmBuilder,  topProto)
+            val utilProto = translateJvmType(utilType, jvmContentBuilder, topProto)
             //utilProto.parent = mainProto
             // 将utilProto在mainProto里closure化，作为mainProto的一个locvar，之后contractProto里可通过upval方式访问到
             topProto.internConstantValue(utilProto.name)
@@ -163,7 +247,7 @@ open class JavaToUvmTranslator {
         var mainFullName = "";
         var tmp1Slot = topType.methods.size + topProto.subProtos.size + 1;
         for (m in topType.methods) {
-            var methodProto = translateJvmMethod(m, jvmContentBuilder, luaAsmBuilder, topProto)
+            var methodProto = translateJvmMethod(m, jvmContentBuilder, topProto)
             if (methodProto == null) {
                 continue
             }
@@ -203,7 +287,7 @@ open class JavaToUvmTranslator {
 
         var contractProto: UvmProto? = null
         if (contractType != null) {
-            contractProto = translateJvmType(contractType, jvmContentBuilder, luaAsmBuilder, codeMainProto)
+            contractProto = translateJvmType(contractType, jvmContentBuilder, codeMainProto)
             codeMainProto?.subProtos?.add(contractProto) //合约class的proto从属于main函数的proto
         }
 
@@ -215,7 +299,7 @@ open class JavaToUvmTranslator {
     }
 
     fun translateJvmType(typeDefinition: ClassDefinition, jvmContentBuilder: StringBuilder,
-                         luaAsmBuilder: StringBuilder,  parentProto: UvmProto?): UvmProto {
+                         parentProto: UvmProto?): UvmProto {
         val proto = UvmProto(TranslatorUtils.makeProtoNameOfTypeConstructor(typeDefinition))
         proto.parent = parentProto
 
@@ -228,7 +312,7 @@ open class JavaToUvmTranslator {
 
         var tmp1Slot = typeDefinition.methods.size + 1;
         for (m in typeDefinition.methods) {
-            var methodProto = translateJvmMethod(m, jvmContentBuilder, luaAsmBuilder, proto)
+            var methodProto = translateJvmMethod(m, jvmContentBuilder, proto)
             if (methodProto == null) {
                 continue
             }
@@ -267,51 +351,450 @@ open class JavaToUvmTranslator {
         return argInfo
     }
 
+    fun asmOpCode(uvmOpName: String): UvmOpCodeEnums {
+        val opCode = UvmOpCodeEnums.fromAsmName(uvmOpName)
+        if (opCode == null) {
+            throw GjavacException("not supported uvm op " + uvmOpName)
+        }
+        return opCode
+    }
+
     fun makeJmpToInstruction(proto: UvmProto, i: Instruction, opName: String,
-                             toJmpToInst: Instruction, result: MutableList<UvmInstruction>, commentPrefix: String, onlyNeedResultCount: Boolean,needTranslateResult2Boolean:Boolean) {
+                             toJmpToInst: Instruction, result: MutableList<UvmInstruction>, commentPrefix: String) {
         // 满足条件，跳转到目标指令
-        // 在要跳转的目标指令的前面增加 label:
-        var jmpLabel = proto.name + "_to_dest_" + opName + "_" + i.offset;
-        var toJmpTooffset = toJmpToInst.offset;
-        if (toJmpTooffset < i.offset) {
-            var uvmInstToJmp = proto.findUvmInstructionMappedByIlInstruction(toJmpToInst)
-            var idx = proto.indexOfUvmInstruction(uvmInstToJmp)
-            if (idx < 1 && !onlyNeedResultCount) {
-                throw GjavacException("Can't find mapped instruction to jmp")
-            }
-            jmpLabel = proto.internNeedLocationLabel(idx, jmpLabel)
-            result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel + commentPrefix + " " + opName,
-                    i))
+        // 跳转目标先用符号表示，在方法翻译结束时统一重定位，在要跳转的目标指令的前面增加 label:
+        val jmpLabel = proto.name + "_to_dest_" + opName + "_" + i.offset
+        result.add(proto.makeJmpToJvmInstruction(jmpLabel, toJmpToInst, commentPrefix + " " + opName, i))
+    }
+
+    // 条件跳转/goto指令的目标jvm指令
+    fun jmpTargetInstruction(proto: UvmProto, i: Instruction): Instruction {
+        val gotoLabel = i.opArgs[0] as Label
+        val gotoInstIndex = proto.method?.offsetOfLabel(gotoLabel)
+        if (gotoInstIndex == null) throw GjavacException("Can't find position of label " + gotoLabel)
+        val toJmpToInst = proto.method?.code?.get(gotoInstIndex)
+        if (toJmpToInst == null) {
+            throw GjavacException("goto dest line not found " + i)
+        }
+        return toJmpToInst
+    }
+
+    /**
+     * 比较指令后面(跳过NOP)在同一个基本块中紧跟的IFEQ..IFLE指令，没有时返回null
+     * 这样的比较结果只被这条跳转使用，可以合并翻译成一条uvm比较指令+jmp，不用把-1/0/1压栈
+     */
+    fun nextFusableBranchInstruction(proto: UvmProto, i: Instruction): Instruction? {
+        val next = nextNonNopInstructionInBlock(proto, i) ?: return null
+        if (next.opCode < Opcodes.IFEQ || next.opCode > Opcodes.IFLE) {
+            return null
+        }
+        return next
+    }
+
+    /**
+     * 方法调用i的结果直接被返回时(return f(args))，返回后面的xRETURN指令，否则返回null
+     * 只对翻译成uvm函数的本合约和工具类方法使用，这些函数只返回一个值；
+     * 返回值的boolean转换必须两边抵消: 被调用函数返回boolean时本函数也要返回boolean
+     */
+    fun tailCallReturnInstruction(proto: UvmProto, i: Instruction, resultBool2IntValue: Boolean, needTranslateResult2Boolean: Boolean): Instruction? {
+        if (!passes.isEnabled(tailCallPass.name) || resultBool2IntValue != needTranslateResult2Boolean) {
+            return null
+        }
+        val next = nextNonNopInstructionInBlock(proto, i) ?: return null
+        return when (next.opCode) {
+            Opcodes.ARETURN, Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.DRETURN, Opcodes.FRETURN -> next
+            else -> null
+        }
+    }
+
+    // i后面(跳过NOP)在同一个基本块中的下一条指令，没有时返回null
+    fun nextNonNopInstructionInBlock(proto: UvmProto, i: Instruction): Instruction? {
+        val method = proto.method ?: return null
+        var index = i.offset + 1
+        while (index < method.code.size && method.code[index].opCode == Opcodes.NOP) {
+            index++
+        }
+        if (index >= method.code.size) {
+            return null
+        }
+        val cfg = method.controlFlowGraph()
+        return if (cfg.blockAt(index) == cfg.blockAt(i.offset)) method.code[index] else null
+    }
+
+    /**
+     * 弹出eval stack栈顶，返回可以直接作为指令操作数读取的寄存器
+     * register模式下直接读栈顶所在的寄存器，不需要先move到slotIndex
+     */
+    fun popEvalStackOperand(proto: UvmProto, slotIndex: Int, i: Instruction,
+                            result: MutableList<UvmInstruction>, commentPrefix: String): UvmOperand {
+        if (proto.evalStackMode == EvalStackModeEnum.Register) {
+            return UvmOperand.register(proto.popEvalStackRegister())
+        }
+        popFromEvalStackToSlot(proto, slotIndex, i, result, commentPrefix)
+        return UvmOperand.register(slotIndex)
+    }
+
+    /**
+     * 常量作为RK操作数，常量索引超过MAXINDEXRK时先loadk到slotIndex
+     */
+    fun makeConstOperand(proto: UvmProto, value: Any, slotIndex: Int, i: Instruction,
+                         result: MutableList<UvmInstruction>, commentPrefix: String): UvmOperand {
+        if (proto.internConstantValue(value) <= MAXINDEXRK) {
+            return UvmOperand.constant(value)
+        }
+        makeLoadConstInst(proto, i, result, slotIndex, value, commentPrefix)
+        return UvmOperand.register(slotIndex)
+    }
+
+    /**
+     * 把 比较指令 + IFxx 翻译成一条eq/lt/le + jmp
+     * cmpInst是lcmp/dcmpg/dcmpl/fcmpg/fcmpl(结果r为-1/0/1)，IFxx用r和0比较，等价于直接比较value1和value2，
+     * dcmpl/fcmpl遇到NaN时r=-1，所以IFLT/IFGE/IFGT/IFLE要交换操作数并取反，保证NaN时跳转行为不变
+     */
+    fun makeFusedCompareBranchInstructions(proto: UvmProto, cmpInst: Instruction, branchInst: Instruction,
+                                           result: MutableList<UvmInstruction>, commentPrefix: String) {
+        val nanIsLess = cmpInst.opCode == Opcodes.DCMPL || cmpInst.opCode == Opcodes.FCMPL
+        val value2 = popEvalStackOperand(proto, proto.tmp2StackTopSlotIndex, cmpInst, result, commentPrefix)
+        val value1 = popEvalStackOperand(proto, proto.tmp1StackTopSlotIndex, cmpInst, result, commentPrefix)
+        // A=1时比较成立执行下一条jmp，A=0时比较不成立执行jmp
+        val opCode: UvmOpCodeEnums
+        val jmpWhen: Int
+        var swap = false
+        when (branchInst.opCode) {
+            Opcodes.IFEQ -> { opCode = UvmOpCodeEnums.OP_EQ; jmpWhen = 1 }
+            Opcodes.IFNE -> { opCode = UvmOpCodeEnums.OP_EQ; jmpWhen = 0 }
+            Opcodes.IFLT -> if (nanIsLess) { opCode = UvmOpCodeEnums.OP_LE; jmpWhen = 0; swap = true }
+                            else { opCode = UvmOpCodeEnums.OP_LT; jmpWhen = 1 }
+            Opcodes.IFGE -> if (nanIsLess) { opCode = UvmOpCodeEnums.OP_LE; jmpWhen = 1; swap = true }
+                            else { opCode = UvmOpCodeEnums.OP_LT; jmpWhen = 0 }
+            Opcodes.IFGT -> if (nanIsLess) { opCode = UvmOpCodeEnums.OP_LT; jmpWhen = 1; swap = true }
+                            else { opCode = UvmOpCodeEnums.OP_LE; jmpWhen = 0 }
+            Opcodes.IFLE -> if (nanIsLess) { opCode = UvmOpCodeEnums.OP_LT; jmpWhen = 0; swap = true }
+                            else { opCode = UvmOpCodeEnums.OP_LE; jmpWhen = 1 }
+            else -> throw GjavacException("can't fuse compare with " + branchInst.opCodeName())
+        }
+        result.add(proto.makeInstruction(opCode, commentPrefix, cmpInst, UvmOperand.integer(jmpWhen),
+                if (swap) value2 else value1, if (swap) value1 else value2))
+        makeJmpToInstruction(proto, branchInst, branchInst.opCodeName(), jmpTargetInstruction(proto, branchInst), result, commentPrefix)
+        proto.fusedJvmInstructions.add(branchInst)
+    }
+
+    /**
+     * 计数循环的入口: 把循环变量的初值，limit和step放到forloop寄存器，forprep跳转到latch处的forloop做第一次判断
+     * forloop继续循环时把循环变量写入A+3，循环体开头再move回java局部变量所在的寄存器
+     */
+    fun makeForPrepInstructions(proto: UvmProto, loop: CountedLoop, i: Instruction, result: MutableList<UvmInstruction>,
+                                commentPrefix: String) {
+        val loopStartIndex = proto.forLoopStartIndex + 4 * loop.depth
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i,
+                UvmOperand.register(loopStartIndex), UvmOperand.register(loop.slot)))
+        if (loop.hasConstantLimit()) {
+            makeLoadConstInst(proto, i, result, loopStartIndex + 1, loop.limitConstant, commentPrefix)
+        } else if (loop.limitAdjust == 0) {
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i,
+                    UvmOperand.register(loopStartIndex + 1), UvmOperand.register(loop.limitSlot)))
         } else {
-            // 未来的指令位置
-            var toJmpUvmInstsCount = 1;
-            val idx1 = proto.method?.code?.indexOf(i)
-            val idx2 = proto.method?.code?.indexOf(toJmpToInst)
-            if (idx1 == null) {
-                throw GjavacException("not found instruction " + i)
-            }
-            if (idx2 == null) {
-                throw GjavacException("not found instruction " + toJmpToInst)
-            }
-            if (idx1 < 0 || idx2 < 0 || idx1 >= idx2) {
-                throw GjavacException("wrong to jmp instruction index")
-            }
-            for (j in (idx1 + 1)..(idx2 - 1)) {
-                var oldNotAffectMode = proto.inNotAffectMode;
-                proto.inNotAffectMode = true;
-                var uvmInsts = translateJvmInstruction(proto, proto.method!!.code[j],
-                        "", true,needTranslateResult2Boolean) // 因为可能有嵌套情况，这里只需要获取准确的指令数量不需要准确的指令内容
-                proto.inNotAffectMode = oldNotAffectMode;
-                var notEmptyUvmInstsCount = (uvmInsts.filter
-                {
-                    !(it is UvmEmptyInstruction)
-                }).size
-                toJmpUvmInstsCount += notEmptyUvmInstsCount
-            }
-            jmpLabel = proto.internNeedLocationLabel(toJmpUvmInstsCount + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel)
-            result.add(proto.makeInstructionLine("jmp 1 $$jmpLabel$commentPrefix $opName",
-                    i))
+            // i < n 即 i <= n - 1
+            val adjust = makeConstOperand(proto, loop.limitAdjust, loopStartIndex + 1, i, result, commentPrefix)
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_ADD, commentPrefix, i,
+                    UvmOperand.register(loopStartIndex + 1), UvmOperand.register(loop.limitSlot), adjust))
+        }
+        makeLoadConstInst(proto, i, result, loopStartIndex + 2, loop.step, commentPrefix)
+        val forLoopInst = proto.makeForLoopInstruction(UvmOpCodeEnums.OP_FORLOOP, loopStartIndex,
+                proto.name + "_forbody_" + i.offset, proto.makeEmptyInstruction(""), commentPrefix, loop.latchInst)
+        val bodyStartInst = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i,
+                UvmOperand.register(loop.slot), UvmOperand.register(loopStartIndex + 3))
+        forLoopInst.targetUvmInstruction = bodyStartInst
+        proto.pendingForLoopInstructions[loop] = forLoopInst
+        result.add(proto.makeForLoopInstruction(UvmOpCodeEnums.OP_FORPREP, loopStartIndex,
+                proto.name + "_forloop_" + loop.latchInst.offset, forLoopInst, commentPrefix, i))
+        result.add(bodyStartInst)
+    }
+
+    /**
+     * 计数循环的回边: forloop加step并判断是否继续，结束循环时跳转到循环出口
+     */
+    fun makeForLoopInstructions(proto: UvmProto, loop: CountedLoop, i: Instruction, result: MutableList<UvmInstruction>,
+                                commentPrefix: String) {
+        val forLoopInst = proto.pendingForLoopInstructions.remove(loop)
+                ?: throw GjavacException("counted loop latch before forprep " + i)
+        val loopStartIndex = proto.forLoopStartIndex + 4 * loop.depth
+        result.add(forLoopInst)
+        if (loop.incrementsOnExit) {
+            // forloop结束时A中是最后一次迭代的值，java的循环变量还要再加一次step
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_ADD, commentPrefix, i, UvmOperand.register(loop.slot),
+                    UvmOperand.register(loopStartIndex), makeConstOperand(proto, loop.step, loop.slot, i, result, commentPrefix)))
+        }
+        // 后面被跳过的指令(回边的GOTO等)之后紧接着就是循环出口时不需要jmp
+        val code = proto.method?.code ?: return
+        var next = i.offset + 1
+        while (next < code.size && (code[next].opCode == Opcodes.NOP || proto.countedLoops?.isSkipped(code[next]) == true)) {
+            next++
         }
+        if (next != loop.exitInst.offset) {
+            makeJmpToInstruction(proto, i, "loop_exit", loop.exitInst, result, commentPrefix)
+        }
+    }
+
+    /**
+     * 迭代循环的入口: 栈上的迭代函数，集合和初始key放到tforcall寄存器A，A+1，A+2，然后跳转到latch处的tforcall
+     * tforcall把key和value写入A+3和A+4，tforloop在key不为nil时跳转到循环体开头
+     */
+    fun makeTForPrepInstructions(proto: UvmProto, loop: IteratorLoop, i: Instruction, result: MutableList<UvmInstruction>,
+                                 commentPrefix: String) {
+        val loopStartIndex = proto.iteratorLoopStartIndex + 6 * loop.depth
+        popFromEvalStackToSlot(proto, loopStartIndex + 2, i, result, commentPrefix)
+        popFromEvalStackToSlot(proto, loopStartIndex + 1, i, result, commentPrefix)
+        popFromEvalStackToSlot(proto, loopStartIndex, i, result, commentPrefix)
+        val tforCallInst = proto.makeInstruction(UvmOpCodeEnums.OP_TFORCALL, commentPrefix, loop.latchInst,
+                UvmOperand.register(loopStartIndex), UvmOperand.integer(2))
+        proto.pendingIteratorLoopInstructions[loop] = tforCallInst
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_tforcall_" + loop.latchInst.offset, tforCallInst,
+                commentPrefix, i))
+    }
+
+    /**
+     * 迭代循环的回边: tforcall调用迭代函数，tforloop判断是否继续，结束循环时跳转到循环出口
+     */
+    fun makeTForLoopInstructions(proto: UvmProto, loop: IteratorLoop, i: Instruction, result: MutableList<UvmInstruction>,
+                                 commentPrefix: String) {
+        val tforCallInst = proto.pendingIteratorLoopInstructions.remove(loop)
+                ?: throw GjavacException("iterator loop latch before loop entry " + i)
+        val loopStartIndex = proto.iteratorLoopStartIndex + 6 * loop.depth
+        result.add(tforCallInst)
+        val tforLoopInst = UvmJmpInstruction(proto.name + "_tforbody_" + loop.bodyStartInst.offset, commentPrefix, i,
+                UvmOpCodeEnums.OP_TFORLOOP, UvmOperand.register(loopStartIndex + 2))
+        tforLoopInst.targetJvmInstruction = loop.bodyStartInst
+        proto.pendingJmpInstructions.add(tforLoopInst)
+        result.add(tforLoopInst)
+        val code = proto.method?.code ?: return
+        var next = i.offset + 1
+        while (next < code.size && (code[next].opCode == Opcodes.NOP || proto.iteratorLoops?.isSkipped(code[next]) == true)) {
+            next++
+        }
+        if (next != loop.exitInst.offset) {
+            makeJmpToInstruction(proto, i, "loop_exit", loop.exitInst, result, commentPrefix)
+        }
+    }
+
+    /**
+     * 字符串拼接的一个片段放到拼接寄存器，常量片段直接loadk
+     */
+    fun makeConcatPieceInstructions(proto: UvmProto, piece: StringConcatPiece, i: Instruction,
+                                    result: MutableList<UvmInstruction>, commentPrefix: String) {
+        val slot = proto.concatStartIndex + piece.concat.registerOffset + piece.index
+        val constant = piece.constant
+        if (constant != null) {
+            makeLoadConstInst(proto, i, result, slot, constant, commentPrefix)
+        } else {
+            popFromEvalStackToSlot(proto, slot, i, result, commentPrefix)
+        }
+    }
+
+    /**
+     * StringBuilder.toString或者invokedynamic处用一条concat拼接连续寄存器中的所有片段，结果压栈
+     */
+    fun makeConcatInstructions(proto: UvmProto, concat: StringConcat, i: Instruction,
+                               result: MutableList<UvmInstruction>, commentPrefix: String) {
+        val startSlot = proto.concatStartIndex + concat.registerOffset
+        val indyPieces = concat.indyPieces
+        if (indyPieces != null) {
+            // invokedynamic的参数按顺序在栈上，从最后一个片段开始出栈
+            for (k in indyPieces.indices.reversed()) {
+                val constant = indyPieces[k]
+                if (constant != null) {
+                    makeLoadConstInst(proto, i, result, startSlot + k, constant, commentPrefix)
+                } else {
+                    popFromEvalStackToSlot(proto, startSlot + k, i, result, commentPrefix)
+                }
+            }
+        } else if (proto.evalStackMode == EvalStackModeEnum.Register) {
+            // StringBuilder没有翻译成栈上的值，不需要出栈
+            proto.popEvalStackRegister()
+        }
+        if (concat.pieceCount == 0) {
+            makeLoadConstInst(proto, i, result, proto.tmp1StackTopSlotIndex, "", commentPrefix)
+        } else {
+            var endSlot = startSlot + concat.pieceCount - 1
+            if (concat.pieceCount == 1) {
+                // concat至少要2个操作数，再拼接一个空字符串
+                endSlot++
+                makeLoadConstInst(proto, i, result, endSlot, "", commentPrefix)
+            }
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_CONCAT, commentPrefix, i,
+                    UvmOperand.register(proto.tmp1StackTopSlotIndex), UvmOperand.register(startSlot), UvmOperand.register(endSlot)))
+        }
+        pushIntoEvalStackTopSlot(proto, proto.tmp1StackTopSlotIndex, i, result, commentPrefix)
+    }
+
+    /**
+     * 把 相等比较(Intrinsics.areEqual, String.equals) + IFEQ/IFNE 翻译成一条eq + jmp
+     * 比较结果为1表示相等，IFEQ在不相等时跳转
+     */
+    fun makeFusedEqualsBranchInstructions(proto: UvmProto, equalsInst: Instruction, branchInst: Instruction,
+                                          result: MutableList<UvmInstruction>, commentPrefix: String) {
+        val arg2 = popEvalStackOperand(proto, proto.tmp3StackTopSlotIndex + 2, equalsInst, result, commentPrefix)
+        val arg1 = popEvalStackOperand(proto, proto.tmp3StackTopSlotIndex + 1, equalsInst, result, commentPrefix)
+        val jmpWhen = if (branchInst.opCode == Opcodes.IFEQ) 0 else 1
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, equalsInst, UvmOperand.integer(jmpWhen), arg1, arg2))
+        makeJmpToInstruction(proto, branchInst, branchInst.opCodeName(), jmpTargetInstruction(proto, branchInst),
+                result, commentPrefix)
+        proto.fusedJvmInstructions.add(branchInst)
+    }
+
+    // switch中跳转到同一个目标的连续key区间[low, high]，string switch中low和high是同一个字符串
+    class SwitchCaseRange(val low: Any, val high: Any, val target: Instruction)
+
+    fun labelTargetInstruction(proto: UvmProto, label: Any, i: Instruction): Instruction {
+        val index = proto.method?.offsetOfLabel(label as Label)
+        if (index == null) throw GjavacException("Can't find position of label " + label)
+        return proto.method?.code?.get(index) ?: throw GjavacException("switch dest line not found " + i)
+    }
+
+    /**
+     * 按key排序的switch分支，跳转到default的key去掉，相邻并且目标相同的key合并成一个区间
+     */
+    fun switchCaseRanges(proto: UvmProto, i: Instruction): List<SwitchCaseRange> {
+        val keys: MutableList<Int> = mutableListOf()
+        val labels: MutableList<Any> = mutableListOf()
+        val defaultLabel: Any
+        if (i.opCode == Opcodes.TABLESWITCH) {
+            val min = i.opArgs[0] as Int
+            defaultLabel = i.opArgs[2]
+            for ((k, label) in (i.opArgs[3] as Array<*>).withIndex()) {
+                keys.add(min + k)
+                labels.add(label!!)
+            }
+        } else {
+            defaultLabel = i.opArgs[0]
+            keys.addAll((i.opArgs[1] as IntArray).toList())
+            labels.addAll((i.opArgs[2] as Array<*>).map { it!! })
+        }
+        val defaultInst = labelTargetInstruction(proto, defaultLabel, i)
+        val ranges: MutableList<SwitchCaseRange> = mutableListOf()
+        for (k in keys.indices.sortedBy { keys[it] }) {
+            val target = labelTargetInstruction(proto, labels[k], i)
+            if (target == defaultInst) {
+                continue
+            }
+            val last = if (ranges.isEmpty()) null else ranges[ranges.size - 1]
+            if (last != null && last.target == target && (last.high as Int) + 1 == keys[k]) {
+                ranges[ranges.size - 1] = SwitchCaseRange(last.low, keys[k], target)
+            } else {
+                ranges.add(SwitchCaseRange(keys[k], keys[k], target))
+            }
+        }
+        return ranges
+    }
+
+    /**
+     * javac把switch(string)翻译成 s.hashCode() + LOOKUPSWITCH，每个hash分支中依次是
+     * ALOAD s; LDC "case"; INVOKEVIRTUAL String.equals; IFEQ 下一个同hash的case或default
+     * uvm中没有java的String.hashCode，这里从各个hash分支中找出case字符串，switch直接按字符串分发，
+     * 跳转到这个字符串的equals检查处。不是这种结构时返回null
+     */
+    fun stringSwitchCaseRanges(proto: UvmProto, switchInst: Instruction): List<SwitchCaseRange>? {
+        val method = proto.method ?: return null
+        if (switchInst.opCode != Opcodes.LOOKUPSWITCH) {
+            return null
+        }
+        val defaultOffset = method.offsetOfLabel(switchInst.opArgs[0] as Label)
+        val ranges: MutableList<SwitchCaseRange> = mutableListOf()
+        for (label in switchInst.opArgs[2] as Array<*>) {
+            var offset: Int? = method.offsetOfLabel(label as Label)
+            while (offset != null && offset != defaultOffset) {
+                if (offset + 3 >= method.code.size) {
+                    return null
+                }
+                val loadInst = method.code[offset]
+                val literal = method.code[offset + 1].opArgs.firstOrNull()
+                val equalsInst = method.code[offset + 2]
+                val branchInst = method.code[offset + 3]
+                if (loadInst.opCode != Opcodes.ALOAD || method.code[offset + 1].opCode != Opcodes.LDC || literal !is String
+                        || equalsInst.opCode != Opcodes.INVOKEVIRTUAL || branchInst.opCode != Opcodes.IFEQ) {
+                    return null
+                }
+                val equalsMethod = equalsInst.opArgs[0] as MethodInfo
+                if (equalsMethod.owner != "java/lang/String" || equalsMethod.name != "equals") {
+                    return null
+                }
+                ranges.add(SwitchCaseRange(literal, literal, loadInst))
+                offset = method.offsetOfLabel(branchInst.opArgs[0] as Label)
+            }
+        }
+        return ranges.sortedWith(Comparator<SwitchCaseRange> { a, b -> compareSwitchKeys(a.low, b.low) })
+    }
+
+    // uvm的lt比较字符串时按字节比较，所以字符串key按utf-8字节序排序
+    fun compareSwitchKeys(a: Any, b: Any): Int {
+        if (a is Int && b is Int) {
+            return a.compareTo(b)
+        }
+        val bytes1 = a.toString().toByteArray(Charsets.UTF_8)
+        val bytes2 = b.toString().toByteArray(Charsets.UTF_8)
+        for (k in 0 until Math.min(bytes1.size, bytes2.size)) {
+            val cmp = (bytes1[k].toInt() and 0xff) - (bytes2[k].toInt() and 0xff)
+            if (cmp != 0) {
+                return cmp
+            }
+        }
+        return bytes1.size - bytes2.size
+    }
+
+    /**
+     * 把TABLESWITCH/LOOKUPSWITCH翻译成平衡的二分比较树，分发代价是O(log n)
+     * uvm没有间接跳转，稠密的TABLESWITCH也用二分查找，只是连续的同目标key合并成区间后比较次数更少
+     */
+    fun makeSwitchInstructions(proto: UvmProto, i: Instruction, ranges: List<SwitchCaseRange>,
+                               result: MutableList<UvmInstruction>, commentPrefix: String) {
+        val defaultLabel = if (i.opCode == Opcodes.TABLESWITCH) i.opArgs[2] else i.opArgs[0]
+        val defaultInst = labelTargetInstruction(proto, defaultLabel, i)
+        val key = popEvalStackOperand(proto, proto.tmp1StackTopSlotIndex, i, result, commentPrefix)
+        makeSwitchTreeInstructions(proto, i, key, ranges, 0, ranges.size - 1, null, defaultInst, result, commentPrefix)
+    }
+
+    /**
+     * ranges中下标from到to的分支的二分比较树，lowerBound不为null时表示已经确定key >= lowerBound
+     * 分支数不超过SWITCH_LINEAR_CASES时顺序比较，最后跳转到default
+     */
+    private fun makeSwitchTreeInstructions(proto: UvmProto, i: Instruction, key: UvmOperand, ranges: List<SwitchCaseRange>,
+                                           from: Int, to: Int, lowerBound: Any?, defaultInst: Instruction,
+                                           result: MutableList<UvmInstruction>, commentPrefix: String) {
+        // eq/lt/le: if ((RK(B) op RK(C)) ~= A) then pc++，A=1时比较成立执行下一条jmp
+        if (to - from + 1 <= SWITCH_LINEAR_CASES) {
+            for (j in from..to) {
+                val range = ranges[j]
+                val low = makeConstOperand(proto, range.low, proto.tmp2StackTopSlotIndex, i, result, commentPrefix)
+                if (range.low == range.high) {
+                    result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, i, UvmOperand.integer(1), key, low))
+                    makeJmpToInstruction(proto, i, "switch_" + result.size, range.target, result, commentPrefix)
+                    continue
+                }
+                val nextRangeInst = proto.makeEmptyInstruction("")
+                if (lowerBound == null || compareSwitchKeys(range.low, lowerBound) > 0) {
+                    // key < low时跳过这个区间
+                    result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LT, commentPrefix, i, UvmOperand.integer(1), key, low))
+                    result.add(proto.makeJmpToUvmInstruction(proto.name + "_switch_" + i.offset + "_" + result.size,
+                            nextRangeInst, commentPrefix, i))
+                }
+                val high = makeConstOperand(proto, range.high, proto.tmp2StackTopSlotIndex, i, result, commentPrefix)
+                result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LE, commentPrefix, i, UvmOperand.integer(1), key, high))
+                makeJmpToInstruction(proto, i, "switch_" + result.size, range.target, result, commentPrefix)
+                result.add(nextRangeInst)
+            }
+            makeJmpToInstruction(proto, i, "switch_default", defaultInst, result, commentPrefix)
+            return
+        }
+        val mid = (from + to + 1) / 2
+        val leftInst = proto.makeEmptyInstruction("")
+        // key < ranges[mid].low时到左半部分查找
+        val midLow = makeConstOperand(proto, ranges[mid].low, proto.tmp2StackTopSlotIndex, i, result, commentPrefix)
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LT, commentPrefix, i, UvmOperand.integer(1), key, midLow))
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_switch_" + i.offset + "_" + result.size,
+                leftInst, commentPrefix, i))
+        makeSwitchTreeInstructions(proto, i, key, ranges, mid, to, ranges[mid].low, defaultInst, result, commentPrefix)
+        result.add(leftInst)
+        makeSwitchTreeInstructions(proto, i, key, ranges, from, mid - 1, lowerBound, defaultInst, result, commentPrefix)
     }
 
     //fun addEvalStackSizeInstructions(proto: UvmProto, i: Instruction, result: MutableList<UvmInstruction>, commentPrefix: String) {
@@ -330,30 +813,49 @@ open class JavaToUvmTranslator {
 
     fun popFromEvalStackToSlot(proto: UvmProto, slotIndex: Int, i: Instruction,
                                result: MutableList<UvmInstruction>, commentPrefix: String) {
-        var uvmInst = proto.makeInstructionLine("gettable %" + slotIndex + " %" + proto.evalStackIndex +
-                " %" + proto.evalStackSizeIndex + commentPrefix, i)
+        if (proto.evalStackMode == EvalStackModeEnum.Register) {
+            val stackSlot = proto.popEvalStackRegister()
+            val uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i,
+                    UvmOperand.register(slotIndex), UvmOperand.register(stackSlot))
+            uvmInst.evalStackOp = EvalStackOpEnum.GetEvalStackTop
+            result.add(uvmInst)
+            return
+        }
+        var uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_GETTABLE, commentPrefix, i,
+                UvmOperand.register(slotIndex), UvmOperand.register(proto.evalStackIndex), UvmOperand.register(proto.evalStackSizeIndex))
         uvmInst.evalStackOp = EvalStackOpEnum.GetEvalStackTop
         result.add(uvmInst)
         proto.internConstantValue(1)
-        uvmInst = proto.makeInstructionLine("sub %" + proto.evalStackSizeIndex + " %" + proto.evalStackSizeIndex + " const 1" + commentPrefix, i)
+        uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_SUB, commentPrefix, i,
+                UvmOperand.register(proto.evalStackSizeIndex), UvmOperand.register(proto.evalStackSizeIndex), UvmOperand.constant(1))
         uvmInst.evalStackOp = EvalStackOpEnum.SubEvalStackSize
         result.add(uvmInst)
     }
 
     fun pushIntoEvalStackTopSlot(proto: UvmProto, slotIndex: Int, i: Instruction,
                                  result: MutableList<UvmInstruction>, commentPrefix: String) {
+        if (proto.evalStackMode == EvalStackModeEnum.Register) {
+            val stackSlot = proto.pushEvalStackRegister()
+            val uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i,
+                    UvmOperand.register(stackSlot), UvmOperand.register(slotIndex))
+            uvmInst.evalStackOp = EvalStackOpEnum.SetEvalStackTop
+            result.add(uvmInst)
+            return
+        }
         proto.internConstantValue(1)
-        var uvmInst = proto.makeInstructionLine("add %" + proto.evalStackSizeIndex + " %" + proto.evalStackSizeIndex + " const 1" + commentPrefix, i)
+        var uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_ADD, commentPrefix, i,
+                UvmOperand.register(proto.evalStackSizeIndex), UvmOperand.register(proto.evalStackSizeIndex), UvmOperand.constant(1))
         uvmInst.evalStackOp = EvalStackOpEnum.AddEvalStackSize
         result.add(uvmInst)
-        uvmInst =proto.makeInstructionLine("settable %" + proto.evalStackIndex + " %" + proto.evalStackSizeIndex + " %" + slotIndex + commentPrefix, i)
+        uvmInst = proto.makeInstruction(UvmOpCodeEnums.OP_SETTABLE, commentPrefix, i,
+                UvmOperand.register(proto.evalStackIndex), UvmOperand.register(proto.evalStackSizeIndex), UvmOperand.register(slotIndex))
         uvmInst.evalStackOp = EvalStackOpEnum.SetEvalStackTop
         result.add(uvmInst)
     }
 
     fun loadNilInstruction(proto: UvmProto, slotIndex: Int, i: Instruction, result: MutableList<UvmInstruction>, commentPrefix: String) {
-        result.add(proto.makeInstructionLine(
-                "loadnil %" + slotIndex + " 0" + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADNIL, commentPrefix, i,
+                UvmOperand.register(slotIndex), UvmOperand.integer(0)))
     }
 
     fun makeArithmeticInstructions(proto: UvmProto, uvmOpName: String, i: Instruction, result: MutableList<UvmInstruction>,
@@ -370,7 +872,8 @@ open class JavaToUvmTranslator {
         popFromEvalStackToSlot(proto, arg1SlotIndex, i, result, commentPrefix)
 
         // 执行算术操作符，结果存入tmp2
-        result.add(proto.makeInstructionLine(uvmOpName + " %" + proto.tmp2StackTopSlotIndex + " %" + arg1SlotIndex + " %" + arg2SlotIndex + commentPrefix, i))
+        result.add(proto.makeInstruction(asmOpCode(uvmOpName), commentPrefix, i, UvmOperand.register(proto.tmp2StackTopSlotIndex),
+                UvmOperand.register(arg1SlotIndex), UvmOperand.register(arg2SlotIndex)))
 
         if (convertResultBool2Javaboolean) {
             convertLuaBool2Javaboolean(proto,proto.tmp2StackTopSlotIndex,i,commentPrefix,result)
@@ -398,62 +901,49 @@ open class JavaToUvmTranslator {
 
         // 比较arg1和arg2
         // uvm的lt指令: if ((RK(B) <  RK(C)) ~= A) then pc++
+        val arg1 = UvmOperand.register(arg1SlotIndex)
+        val arg2 = UvmOperand.register(arg2SlotIndex)
         if (compareType == "gt") {
-            result.add(proto.makeInstructionLine(
-                    "lt 0 %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                            commentPrefix, i))
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LT, commentPrefix, i, UvmOperand.integer(0), arg1, arg2))
         } else if (compareType == "lt") {
             // lt: if ((RK(B) <  RK(C)) ~= A) then pc++
-            result.add(proto.makeInstructionLine(
-                    "lt 0 %" + arg2SlotIndex + " %" + arg1SlotIndex +
-                            commentPrefix, i))
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LT, commentPrefix, i, UvmOperand.integer(0), arg2, arg1))
         } else if (compareType == "ne") {
-            result.add(proto.makeInstructionLine(
-                    "eq 1 %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                            commentPrefix, i))
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, i, UvmOperand.integer(1), arg1, arg2))
         } else {
             // eq: if ((RK(B) == RK(C)) ~= A) then pc++
-            result.add(proto.makeInstructionLine(
-                    "eq 0 %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                            commentPrefix, i))
+            result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, i, UvmOperand.integer(0), arg1, arg2))
         }
         // 满足条件就执行下下条指令(把1压eval stack栈)，否则执行下条jmp指令(把0压eval stack栈)
         // 构造下条jmp指令和下下条指令
-        var jmpLabel1 = proto.name + "_1_cmp_" + i.offset;
-        var offsetOfInst1 = 2; // 如果比较失败，跳转到把0压eval-stack栈的指令
-        jmpLabel1 = proto.internNeedLocationLabel(offsetOfInst1 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel1)
-        result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel1 + commentPrefix,
-                i))
-
-        var jmpLabel2 = proto.name + "_2_cmp_" + i.offset;
-        var offsetOfInst2 = 5; // 如果比较成功，跳转到把1压eval-stack栈的指令
-        jmpLabel2 = proto.internNeedLocationLabel(offsetOfInst2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel2)
-        result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel2 + commentPrefix,
-                i))
+        val loadFalseInst = proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.constant(0))
+        val loadTrueInst = proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i,
+                UvmOperand.register(proto.tmp3StackTopSlotIndex), UvmOperand.constant(1))
+        val endInst = proto.makeEmptyInstruction("")
+        // 如果比较失败，跳转到把0压eval-stack栈的指令
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_1_cmp_" + i.offset, loadFalseInst, commentPrefix, i))
+        // 如果比较成功，跳转到把1压eval-stack栈的指令
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_2_cmp_" + i.offset, loadTrueInst, commentPrefix, i))
 
         proto.internConstantValue(0)
         proto.internConstantValue(1)
 
 
         // 把结果0存入eval stack
-        result.add(proto.makeInstructionLine(
-                "loadk %" + proto.tmp2StackTopSlotIndex + " const 0" + commentPrefix, i))
+        result.add(loadFalseInst)
+        val depthBeforePush = proto.evalStackDepth
         pushIntoEvalStackTopSlot(proto,proto.tmp2StackTopSlotIndex,i,result,commentPrefix)
 
         // jmp到压栈第1个分支后面
-        var jmpLabel3 = proto.name + "_3_cmp_" + i.offset;
-        var offsetOfInst3 = 4;
-        jmpLabel3 = proto.internNeedLocationLabel(offsetOfInst3 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel3)
-        result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel3 + commentPrefix,
-                i))
-
-        // 把结果1存入eval stack
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_3_cmp_" + i.offset, endInst, commentPrefix, i))
 
-        result.add(proto.makeInstructionLine(
-                "loadk %" + proto.tmp3StackTopSlotIndex + " const 1" + commentPrefix, i))
+        // 把结果1存入eval stack, 和上面的分支压入同一个栈位置
+        proto.evalStackDepth = depthBeforePush
+        result.add(loadTrueInst)
         pushIntoEvalStackTopSlot(proto,proto.tmp3StackTopSlotIndex,i,result,commentPrefix)
 
-        result.add(proto.makeEmptyInstruction(""))
+        result.add(endInst)
     }
 
     /**
@@ -481,10 +971,10 @@ open class JavaToUvmTranslator {
         popFromEvalStackToSlot(proto,tableSlot,i,result,commentPrefix)
 
         // settable
-        result.add(proto.makeInstructionLine(
-                "loadk %" + proto.tmp2StackTopSlotIndex + " const \"" + propName + "\"" + commentPrefix, i))
-        result.add(proto.makeInstructionLine(
-                "settable %" + tableSlot + " %" + proto.tmp2StackTopSlotIndex + " %" + valueSlot + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.constant(propName)))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_SETTABLE, commentPrefix, i,
+                UvmOperand.register(tableSlot), UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.register(valueSlot)))
     }
 
     /**
@@ -500,10 +990,10 @@ open class JavaToUvmTranslator {
         popFromEvalStackToSlot(proto,tableSlot,i,result,commentPrefix)
 
         // gettable
-        result.add(proto.makeInstructionLine(
-                "loadk %" + proto.tmp2StackTopSlotIndex + " const \"" + propName + "\"" + commentPrefix, i))
-        result.add(proto.makeInstructionLine(
-                "gettable %" + valueSlot + " %" + tableSlot + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.constant(propName)))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_GETTABLE, commentPrefix, i,
+                UvmOperand.register(valueSlot), UvmOperand.register(tableSlot), UvmOperand.register(proto.tmp2StackTopSlotIndex)))
 
         //
         if (needConvtToJavaboolean) {
@@ -527,7 +1017,8 @@ open class JavaToUvmTranslator {
         popFromEvalStackToSlot(proto,arg1SlotIndex,i,result,commentPrefix)
 
         // 执行算术操作符，结果存入tmp2
-        result.add(proto.makeInstructionLine(uvmOpName + " %" + proto.tmp2StackTopSlotIndex + " %" + arg1SlotIndex + commentPrefix, i))
+        result.add(proto.makeInstruction(asmOpCode(uvmOpName), commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.register(arg1SlotIndex)))
 
         if (convertResultBool2Javaboolean) {
             // 判断是否是0，如果是就是false，需要使用jmp
@@ -555,16 +1046,15 @@ open class JavaToUvmTranslator {
 
     fun makeLoadNilInst(proto: UvmProto, i: Instruction, result: MutableList<UvmInstruction>,
                         targetSlot: Int, commentPrefix: String) {
-        result.add(proto.makeInstructionLine("loadnil %" + targetSlot + " 0" + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADNIL, commentPrefix, i,
+                UvmOperand.register(targetSlot), UvmOperand.integer(0)))
     }
 
     fun makeLoadConstInst(proto: UvmProto, i: Instruction, result: MutableList<UvmInstruction>,
                           targetSlot: Int, value: Any, commentPrefix: String) {
-        if (value is String) {
-            val literalValueInUvms = TranslatorUtils.escape(value as String)
-        }
-        var constantIndex = proto.internConstantValue(value)
-        result.add(proto.makeInstructionLine("loadk %" + targetSlot + " const " + (if (value is String) ("\"" + value + "\"") else value) + commentPrefix, i))
+        proto.internConstantValue(value)
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i,
+                UvmOperand.register(targetSlot), UvmOperand.constant(value)))
     }
 
     /**
@@ -578,13 +1068,21 @@ open class JavaToUvmTranslator {
         val returnCount = 1
         var envUp = proto.internUpvalue("ENV")
         proto.internConstantValue(funcName)
-        result.add(proto.makeInstructionLine("gettabup %" + proto.tmp2StackTopSlotIndex + " @" + envUp + " const \"" + funcName + "\"" + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_GETTABUP, commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.upvalue(envUp), UvmOperand.constant(funcName)))
 
-        result.add(proto.makeInstructionLine("call %" + proto.tmp2StackTopSlotIndex + " " + (paramsCount + 1) + " " + (returnCount + 1) + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_CALL, commentPrefix, i,
+                UvmOperand.register(proto.tmp2StackTopSlotIndex), UvmOperand.integer(paramsCount + 1), UvmOperand.integer(returnCount + 1)))
 
         pushIntoEvalStackTopSlot(proto,proto.tmp2StackTopSlotIndex,i,result,commentPrefix)
     }
 
+    // jvm指令i压栈的值直接是uvm boolean
+    fun producesLuaBoolean(proto: UvmProto, i: Instruction): Boolean = proto.booleanTypes?.producesBoolean(i) ?: false
+
+    // jvm指令i使用的栈顶值已经是uvm boolean，不需要从int转换
+    fun consumesLuaBoolean(proto: UvmProto, i: Instruction): Boolean = proto.booleanTypes?.consumesBoolean(i) ?: false
+
     //convert false,true to 0,1 (java bool is int 0,1)
     fun convertLuaBool2Javaboolean(proto: UvmProto, slotresult:Int, i: Instruction,commentPrefix: String,result:MutableList<UvmInstruction>){
         proto.internConstantValue(0)
@@ -594,24 +1092,19 @@ open class JavaToUvmTranslator {
         val slotTemp = proto.tmpMaxStackTopSlotIndex
         //java合约API如果返回boolean类型数据  需要手动用Not not转换
 
-        result.add(proto.makeInstructionLine("loadk %" + slotint + " const 0" + commentPrefix, i))
-        result.add(proto.makeInstructionLine("loadk %" + slotTemp + " const false" + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotint), UvmOperand.constant(0)))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotTemp), UvmOperand.constant(false)))
         // if slotresult==false then pc++
-        result.add(proto.makeInstructionLine("eq 0 %" + slotresult + " %" + slotTemp + commentPrefix, i))
-
-        var labelWhenTrue = proto.name + "_1_" + i.offset;
-        var labelWhenFalse = proto.name + "_0_" + i.offset;
-        labelWhenTrue = proto.internNeedLocationLabel(
-                2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenTrue)
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, i,
+                UvmOperand.integer(0), UvmOperand.register(slotresult), UvmOperand.register(slotTemp)))
 
-        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenTrue + commentPrefix, i))
-        labelWhenFalse =
-                proto.internNeedLocationLabel(
-                        2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenFalse)
-        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenFalse + commentPrefix, i))
+        val whenTrueInst = proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotint), UvmOperand.constant(1))
+        val whenFalseInst = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i, UvmOperand.register(slotresult), UvmOperand.register(slotint))
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_1_" + i.offset, whenTrueInst, commentPrefix, i))
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_0_" + i.offset, whenFalseInst, commentPrefix, i))
 
-        result.add(proto.makeInstructionLine("loadk %" + slotint + " const 1" + commentPrefix, i))
-        result.add(proto.makeInstructionLine("move %" + slotresult + " %" + slotint + commentPrefix, i))
+        result.add(whenTrueInst)
+        result.add(whenFalseInst)
     }
 
     //convert 0,1 to false,true (java bool is int 0,1)
@@ -624,29 +1117,92 @@ open class JavaToUvmTranslator {
         val slotTemp = proto.tmpMaxStackTopSlotIndex
         //java合约API如果返回boolean类型数据  需要手动用Not not转换
 
-        result.add(proto.makeInstructionLine("loadk %" + slotLuaBool + " const false" + commentPrefix, i))
-        result.add(proto.makeInstructionLine("loadk %" + slotTemp + " const 0" + commentPrefix, i))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotLuaBool), UvmOperand.constant(false)))
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotTemp), UvmOperand.constant(0)))
         // if slotresult==false then pc++  // 判断是否是0，如果是就是false，需要使用jmp
-        result.add(proto.makeInstructionLine("eq 0 %" + slotresult + " %" + slotTemp + commentPrefix, i))
-
-        var labelWhenTrue = proto.name + "_true_" + i.offset;
-        var labelWhenFalse = proto.name + "_false_" + i.offset;
-        labelWhenTrue = proto.internNeedLocationLabel(
-                2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenTrue)
+        result.add(proto.makeInstruction(UvmOpCodeEnums.OP_EQ, commentPrefix, i,
+                UvmOperand.integer(0), UvmOperand.register(slotresult), UvmOperand.register(slotTemp)))
 
-        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenTrue + commentPrefix, i))
-        labelWhenFalse =
-                proto.internNeedLocationLabel(
-                        2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenFalse)
-        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenFalse + commentPrefix, i))
+        val whenTrueInst = proto.makeInstruction(UvmOpCodeEnums.OP_LOADK, commentPrefix, i, UvmOperand.register(slotLuaBool), UvmOperand.constant(true))
+        val whenFalseInst = proto.makeInstruction(UvmOpCodeEnums.OP_MOVE, commentPrefix, i, UvmOperand.register(slotresult), UvmOperand.register(slotLuaBool))
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_true_" + i.offset, whenTrueInst, commentPrefix, i))
+        result.add(proto.makeJmpToUvmInstruction(proto.name + "_false_" + i.offset, whenFalseInst, commentPrefix, i))
 
-        result.add(proto.makeInstructionLine("loadk %" + slotLuaBool + " const true" + commentPrefix, i))
-        result.add(proto.makeInstructionLine("move %" + slotresult + " %" + slotLuaBool + commentPrefix, i))
+        result.add(whenTrueInst)
+        result.add(whenFalseInst)
     }
 
-    fun translateJvmInstruction(proto: UvmProto, i: Instruction, commentPrefix: String, onlyNeedResultCount: Boolean, needTranslateResult2Boolean :Boolean ): MutableList<UvmInstruction> {
+    fun translateJvmInstruction(proto: UvmProto, i: Instruction, commentPrefix: String, needTranslateResult2Boolean :Boolean ): MutableList<UvmInstruction> {
         // TODO
         val result: MutableList<UvmInstruction> = mutableListOf()
+        proto.resetEvalStackDepth(i)
+        val countedLoops = proto.countedLoops
+        if (countedLoops != null) {
+            if (countedLoops.isSkipped(i)) {
+                // 循环条件和回边已经在forprep/forloop中翻译了
+                proto.addNotMappedILInstruction(i)
+                return result
+            }
+            val preparedLoop = countedLoops.loopPreparedAt(i)
+            if (preparedLoop != null) {
+                makeForPrepInstructions(proto, preparedLoop, i, result, commentPrefix)
+                return result
+            }
+            val latchedLoop = countedLoops.loopLatchedAt(i)
+            if (latchedLoop != null) {
+                makeForLoopInstructions(proto, latchedLoop, i, result, commentPrefix)
+                return result
+            }
+        }
+        val iteratorLoops = proto.iteratorLoops
+        if (iteratorLoops != null) {
+            if (iteratorLoops.isSkipped(i)) {
+                // 迭代函数调用，pair的读取和回边已经在tforcall/tforloop中翻译了
+                proto.addNotMappedILInstruction(i)
+                return result
+            }
+            val preparedLoop = iteratorLoops.loopPreparedAt(i)
+            if (preparedLoop != null) {
+                makeTForPrepInstructions(proto, preparedLoop, i, result, commentPrefix)
+                return result
+            }
+            val latchedLoop = iteratorLoops.loopLatchedAt(i)
+            if (latchedLoop != null) {
+                makeTForLoopInstructions(proto, latchedLoop, i, result, commentPrefix)
+                return result
+            }
+            // pair.first/pair.second就是tforcall返回的key和value
+            val keyLoop = iteratorLoops.keyLoadedAt(i)
+            val valueLoop = iteratorLoops.valueLoadedAt(i)
+            if (keyLoop != null || valueLoop != null) {
+                if (i.opCode == Opcodes.INVOKEVIRTUAL && proto.evalStackMode == EvalStackModeEnum.Register) {
+                    // 前面读取p的ALOAD没有翻译，栈顶的p不需要出栈
+                    proto.popEvalStackRegister()
+                }
+                val loopRegister = if (keyLoop != null) proto.iteratorLoopStartIndex + 6 * keyLoop.depth + 3
+                    else proto.iteratorLoopStartIndex + 6 * valueLoop!!.depth + 4
+                pushIntoEvalStackTopSlot(proto, loopRegister, i, result, commentPrefix)
+                return result
+            }
+        }
+        val stringConcats = proto.stringConcats
+        if (stringConcats != null) {
+            if (stringConcats.isSkipped(i)) {
+                // StringBuilder的创建和常量片段不需要压栈
+                proto.addNotMappedILInstruction(i)
+                return result
+            }
+            val piece = stringConcats.pieceAt(i)
+            if (piece != null) {
+                makeConcatPieceInstructions(proto, piece, i, result, commentPrefix)
+                return result
+            }
+            val concat = stringConcats.concatEndedAt(i)
+            if (concat != null) {
+                makeConcatInstructions(proto, concat, i, result, commentPrefix)
+                return result
+            }
+        }
         when (i.opCode) {
             Opcodes.AALOAD, Opcodes.BALOAD, Opcodes.CALOAD, Opcodes.DALOAD, Opcodes.FALOAD, Opcodes.IALOAD, Opcodes.LALOAD, Opcodes.SALOAD -> {
                 // load reference from array
@@ -676,7 +1232,13 @@ open class JavaToUvmTranslator {
                 pushIntoEvalStackTopSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
             }
             Opcodes.POP -> {  //?? 栈顶数值出栈 (该栈顶数值不能是long或double型)
-                popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
+                if (proto.evalStackMode == EvalStackModeEnum.Register) {
+                    // 只需要栈深度-1，不产生指令
+                    proto.popEvalStackRegister()
+                    proto.addNotMappedILInstruction(i)
+                } else {
+                    popFromEvalStackToSlot(proto, proto.tmpMaxStackTopSlotIndex, i, result, commentPrefix)
+                }
             }
 //            Opcodes.POP2 -> { //?? 栈顶的一个（如果是long、double型的)或两个（其它类型的）数值出栈
 //                popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
@@ -684,6 +1246,13 @@ open class JavaToUvmTranslator {
             Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3, Opcodes.ICONST_4, Opcodes.ICONST_5 -> {
                 // push integer to operand stack
                 val value = i.opCode - Opcodes.ICONST_0
+                if (producesLuaBoolean(proto, i)) {
+                    // 只作为boolean使用的0/1直接加载成false/true
+                    result.add(proto.makeInstruction(UvmOpCodeEnums.OP_LOADBOOL, commentPrefix, i,
+                            UvmOperand.register(proto.tmp1StackTopSlotIndex), UvmOperand.integer(value), UvmOperand.integer(0)))
+                    pushIntoEvalStackTopSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix + " loadbool " + value)
+                    return result
+                }
                 makeLoadConstInst(proto, i, result, proto.tmp1StackTopSlotIndex, value, commentPrefix)
                 pushIntoEvalStackTopSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix + " ldc " + value)
             }
@@ -703,7 +1272,8 @@ open class JavaToUvmTranslator {
                 pushIntoEvalStackTopSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix + " ldc " + value)
             }
             Opcodes.ICONST_M1 -> {
-                val value = i.opArgs[0]
+                // ICONST_M1没有操作数
+                val value = -1
                 makeLoadConstInst(proto, i, result, proto.tmp1StackTopSlotIndex, value, commentPrefix)
                 pushIntoEvalStackTopSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix + " ldc " + value)
             }
@@ -722,7 +1292,7 @@ open class JavaToUvmTranslator {
                 popFromEvalStackToSlot(proto,slotIndex,i,result,commentPrefix)
 
                 //add start pc
-                proto.locvars[slotIndex].startPc = proto.notEmptyCodeInstructions().size + result.size
+                proto.locvars[slotIndex].startPc = proto.currentPc() + result.size
                 if(proto.locvars[slotIndex].slotIndex!=slotIndex){
                     throw GjavacException("loc slotidx wrong")
                 }
@@ -734,12 +1304,17 @@ open class JavaToUvmTranslator {
             }
             Opcodes.ARETURN, Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.DRETURN, Opcodes.FRETURN, Opcodes.RETURN -> {
                 // return reference from method
+                if (proto.fusedJvmInstructions.contains(i)) {
+                    // 已经和前面的方法调用一起翻译成tailcall
+                    proto.addNotMappedILInstruction(i)
+                    return result
+                }
                 val hasReturn = !(proto.method?.signature?.returnType?.fullName().orEmpty().equals("void"))
                 val returnCount = if (hasReturn) 1 else 0
                 if (hasReturn) {
 
                     popFromEvalStackToSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix)
-                    if (needTranslateResult2Boolean)
+                    if (needTranslateResult2Boolean && !consumesLuaBoolean(proto, i))
                     {
                         convertInt2LuaBoolean(proto, proto.tmp1StackTopSlotIndex, i, commentPrefix, result);
                     }
@@ -830,6 +1405,11 @@ open class JavaToUvmTranslator {
                 // operand stack: ..., value1, value2 -> operand stack: ..., result
                 // when <t>cmpg, if value1 > value2, then result = 1; else if value 1 == value2, then result = 0; else result = -1
                 // TODO
+                val fusedBranch = nextFusableBranchInstruction(proto, i)
+                if (fusedBranch != null) {
+                    makeFusedCompareBranchInstructions(proto, i, fusedBranch, result, commentPrefix)
+                    return result
+                }
                 val op: String
                 if (i.opCode == Opcodes.DCMPG || i.opCode == Opcodes.FCMPG) {
                     op = "gt"
@@ -849,43 +1429,34 @@ open class JavaToUvmTranslator {
                 // 注释以op="gt"为例
                 // if ((RK(B) >  RK(C)) ~= A) then pc++
                 result.add(proto.makeInstructionLine("gt 0 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i))
-                var jmpLabel1 = proto.name + "_1_cmp_" + i.offset
-                val offsetOfLabel1 = 2 // 跳转到区分 = 还是 < 的判断
-                jmpLabel1 = proto.internNeedLocationLabel(offsetOfLabel1 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel1)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel1 + commentPrefix,
-                        i))
-
-                var jmpLabel2 = proto.name + "_2_cmp_" + i.offset;
-                var offsetOfInst2 = 6; // 跳转到把1压eval-stack栈的指令
-                jmpLabel2 = proto.internNeedLocationLabel(offsetOfInst2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel2)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel2 + commentPrefix,
-                        i))
+                val equalCheckInst = proto.makeInstructionLine("eq 1 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i)
+                val loadZeroInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 0" + commentPrefix, i)
+                val loadCmpTrueInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const " + (if (op == "gt") 1 else -1) + commentPrefix, i)
+                val loadCmpFalseInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const " + (if (op == "gt") -1 else 1) + commentPrefix, i)
+                val endInst = proto.makeEmptyInstruction("")
+                // 跳转到区分 = 还是 < 的判断
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_1_cmp_" + i.offset, equalCheckInst, commentPrefix, i))
+                // 跳转到把1压eval-stack栈的指令
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_2_cmp_" + i.offset, loadCmpTrueInst, commentPrefix, i))
 
                 // 区分等于还是小于
                 // if ((RK(B) eq  RK(C)) ~= A) then pc++
-                result.add(proto.makeInstructionLine("eq 1 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i))
-                var jmpLabel3 = proto.name + "_3_cmp_" + i.offset
-                val offsetOfLabel3 = 2 // 跳转到把0压operand stack栈
-                jmpLabel3 = proto.internNeedLocationLabel(offsetOfLabel3 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel3)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel3 + commentPrefix,
-                        i))
-
-                var jmpLabel4 = proto.name + "_4_cmp_" + i.offset;
-                var offsetOfInst4 = 5; // 如果比较成功，跳转到把-1压eval-stack栈的指令
-                jmpLabel4 = proto.internNeedLocationLabel(offsetOfInst4 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel4)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel4 + commentPrefix, i))
+                result.add(equalCheckInst)
+                // 跳转到把0压operand stack栈
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_3_cmp_" + i.offset, loadZeroInst, commentPrefix, i))
+                // 如果比较成功，跳转到把-1压eval-stack栈的指令
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_4_cmp_" + i.offset, loadCmpFalseInst, commentPrefix, i))
 
-                var jmpLabel5 = proto.name + "_5_cmp_" + i.offset
-                var offsetOfInst5 = 5; // 跳转到本jvm指令的end
-                jmpLabel5 = proto.internNeedLocationLabel(offsetOfInst5 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel5)
+                // 跳转到本jvm指令的end
+                val jmpLabel5 = proto.name + "_5_cmp_" + i.offset
+                result.add(loadZeroInst)
+                result.add(proto.makeJmpToUvmInstruction(jmpLabel5, endInst, commentPrefix, i))
 
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 0" + commentPrefix, i))
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel5 + commentPrefix, i))
+                result.add(loadCmpTrueInst)
+                result.add(proto.makeJmpToUvmInstruction(jmpLabel5, endInst, commentPrefix, i))
 
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const " + (if (op == "gt") 1 else -1) + commentPrefix, i))
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel5 + commentPrefix, i))
-
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const " + (if (op == "gt") -1 else 1) + commentPrefix, i))
+                result.add(loadCmpFalseInst)
+                result.add(endInst)
 
                 pushIntoEvalStackTopSlot(proto,proto.tmp3StackTopSlotIndex,i,result,commentPrefix)
             }
@@ -894,6 +1465,11 @@ open class JavaToUvmTranslator {
                 // operand stack: ..., value1, value2 -> operand stack: ..., result
                 // when <t>cmpg, if value1 > value2, then result = 1; else if value 1 == value2, then result = 0; else result = -1
                 // TODO
+                val fusedBranch = nextFusableBranchInstruction(proto, i)
+                if (fusedBranch != null) {
+                    makeFusedCompareBranchInstructions(proto, i, fusedBranch, result, commentPrefix)
+                    return result
+                }
                 val op: String
 
                 popFromEvalStackToSlot(proto,proto.tmp2StackTopSlotIndex,i,result,commentPrefix)//??
@@ -906,43 +1482,34 @@ open class JavaToUvmTranslator {
                 // 注释以op="lt"为例
                 // if ((RK(B) <  RK(C)) ~= A) then pc++
                 result.add(proto.makeInstructionLine("lt 0 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i))
-                var jmpLabel1 = proto.name + "_1_cmp_" + i.offset
-                val offsetOfLabel1 = 2 // 跳转到区分 = 还是 > 的判断
-                jmpLabel1 = proto.internNeedLocationLabel(offsetOfLabel1 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel1)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel1 + commentPrefix,
-                        i))
-
-                var jmpLabel2 = proto.name + "_2_cmp_" + i.offset;
-                var offsetOfInst2 = 6; // 跳转到把-1压eval-stack栈的指令
-                jmpLabel2 = proto.internNeedLocationLabel(offsetOfInst2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel2)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel2 + commentPrefix,
-                        i))
+                val equalCheckInst = proto.makeInstructionLine("eq 1 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i)
+                val loadZeroInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 0" + commentPrefix, i)
+                val loadCmpTrueInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const -1" + commentPrefix, i)
+                val loadCmpFalseInst = proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 1" + commentPrefix, i)
+                val endInst = proto.makeEmptyInstruction("")
+                // 跳转到区分 = 还是 > 的判断
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_1_cmp_" + i.offset, equalCheckInst, commentPrefix, i))
+                // 跳转到把-1压eval-stack栈的指令
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_2_cmp_" + i.offset, loadCmpTrueInst, commentPrefix, i))
 
                 // 区分等于还是大于
                 // if ((RK(B) eq  RK(C)) ~= A) then pc++
-                result.add(proto.makeInstructionLine("eq 1 %" + proto.tmp1StackTopSlotIndex + " %" + proto.tmp2StackTopSlotIndex + commentPrefix, i))
-                var jmpLabel3 = proto.name + "_3_cmp_" + i.offset
-                val offsetOfLabel3 = 2 // 跳转到把0压operand stack栈
-                jmpLabel3 = proto.internNeedLocationLabel(offsetOfLabel3 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel3)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel3 + commentPrefix,
-                        i))
+                result.add(equalCheckInst)
+                // 跳转到把0压operand stack栈
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_3_cmp_" + i.offset, loadZeroInst, commentPrefix, i))
+                // 如果比较成功，跳转到把1压eval-stack栈的指令
+                result.add(proto.makeJmpToUvmInstruction(proto.name + "_4_cmp_" + i.offset, loadCmpFalseInst, commentPrefix, i))
 
-                var jmpLabel4 = proto.name + "_4_cmp_" + i.offset;
-                var offsetOfInst4 = 5; // 如果比较成功，跳转到把1压eval-stack栈的指令
-                jmpLabel4 = proto.internNeedLocationLabel(offsetOfInst4 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel4)
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel4 + commentPrefix, i))
+                // 跳转到本jvm指令的end
+                val jmpLabel5 = proto.name + "_5_cmp_" + i.offset
+                result.add(loadZeroInst)
+                result.add(proto.makeJmpToUvmInstruction(jmpLabel5, endInst, commentPrefix, i))
 
-                var jmpLabel5 = proto.name + "_5_cmp_" + i.offset
-                var offsetOfInst5 = 5; // 跳转到本jvm指令的end
-                jmpLabel5 = proto.internNeedLocationLabel(offsetOfInst5 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), jmpLabel5)
+                result.add(loadCmpTrueInst)
+                result.add(proto.makeJmpToUvmInstruction(jmpLabel5, endInst, commentPrefix, i))
 
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 0" + commentPrefix, i))
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel5 + commentPrefix, i))
-
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const -1" + commentPrefix, i))
-                result.add(proto.makeInstructionLine("jmp 1 $" + jmpLabel5 + commentPrefix, i))
-
-                result.add(proto.makeInstructionLine("loadk %" + proto.tmp3StackTopSlotIndex + " const 1" + commentPrefix, i))
+                result.add(loadCmpFalseInst)
+                result.add(endInst)
 
                 pushIntoEvalStackTopSlot(proto,proto.tmp3StackTopSlotIndex,i,result,commentPrefix)
             }
@@ -1029,14 +1596,14 @@ open class JavaToUvmTranslator {
             Opcodes.GETFIELD -> {
                 val fieldInfo = i.opArgs[0] as FieldInfo
                 val fieldName = fieldInfo.name
-                val needConvToBool = fieldInfo.desc == "Z"
+                val needConvToBool = fieldInfo.desc == "Z" && !producesLuaBoolean(proto, i)
                 proto.internConstantValue(fieldName)
                 makeGetTablePropInstructions(proto, fieldName, i, result, commentPrefix, needConvToBool)
             }
             Opcodes.PUTFIELD -> {
                 val fieldInfo = i.opArgs[0] as FieldInfo
                 val fieldName = fieldInfo.name
-                val needConvToBool = fieldInfo.desc == "Z"
+                val needConvToBool = fieldInfo.desc == "Z" && !consumesLuaBoolean(proto, i)
                 proto.internConstantValue(fieldName)
                 makeSetTablePropInstructions(proto, fieldName, i, result, commentPrefix, needConvToBool)
             }
@@ -1044,6 +1611,10 @@ open class JavaToUvmTranslator {
                 // TODO: invoke a static method and puts the result on the stack (might be void) the method is identified by method reference index in constant pool (indexbyte1 << 8 + indexbyte2)
                 // [arg1, arg2, ...] → result
                 result.add(proto.makeEmptyInstruction(i.toString()))
+                if (i.opCode == Opcodes.INVOKEDYNAMIC) {
+                    // 只支持翻译成concat的字符串拼接
+                    throw GjavacException("not supported invokedynamic " + (i.opArgs[0] as SimpleInfo).name + " in " + proto.name)
+                }
                 val operand = i.opArgs[0] as MethodInfo
                 val calledMethod = operand
                 val methodName = calledMethod.name
@@ -1073,6 +1644,17 @@ open class JavaToUvmTranslator {
                     // constructor
                     // pop arguments, push newtable
                     //makeLoadNilInst(proto, i, result, proto.tmp1StackTopSlotIndex, commentPrefix)
+                    if ((calledTypeName == StringBuilder::class.java.canonicalName
+                            || calledTypeName == StringBuffer::class.java.canonicalName)
+                            && methodInfo.methodArgs.size == 1
+                            && (methodInfo.methodArgs[0].fullName() == "java.lang.String" || methodInfo.methodArgs[0].fullName() == "java.lang.CharSequence")) {
+                        // new StringBuilder(s)，用初始字符串替换new时压栈的""
+                        popFromEvalStackToSlot(proto, proto.tmp1StackTopSlotIndex, i, result, commentPrefix)
+                        popFromEvalStackToSlot(proto, proto.tmpMaxStackTopSlotIndex, i, result, commentPrefix)
+                        popFromEvalStackToSlot(proto, proto.tmpMaxStackTopSlotIndex, i, result, commentPrefix)
+                        pushIntoEvalStackTopSlot(proto, proto.tmp1StackTopSlotIndex, i, result, commentPrefix)
+                        return result
+                    }
                     for (j in 0..(methodInfo.methodArgs.size - 1)) {
                         popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
                     }
@@ -1086,6 +1668,11 @@ open class JavaToUvmTranslator {
                         popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
                         popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
                     } else if (methodName == "areEqual") {  //fix   compare  eq compare
+                        val fusedBranch = nextFusableBranchInstruction(proto, i)
+                        if (fusedBranch != null && (fusedBranch.opCode == Opcodes.IFEQ || fusedBranch.opCode == Opcodes.IFNE)) {
+                            makeFusedEqualsBranchInstructions(proto, i, fusedBranch, result, commentPrefix)
+                            return result
+                        }
 
 //                        popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
 //                        popFromEvalStackToSlot(proto,proto.tmpMaxStackTopSlotIndex,i,result,commentPrefix)
@@ -1104,19 +1691,13 @@ open class JavaToUvmTranslator {
 
                         result.add(proto.makeInstructionLine("eq 1 %" + arg1SlotIndex + " %" + arg2SlotIndex + commentPrefix, i))
 
-                        var labelWhenTrue = proto.name + "_true_" + i.offset;
-                        var labelWhenFalse = proto.name + "_false_" + i.offset;
-                        labelWhenTrue = proto.internNeedLocationLabel(
-                                2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenTrue)
-
-                        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenTrue + commentPrefix, i))
-
-                        labelWhenFalse =
-                                proto.internNeedLocationLabel(
-                                        2 + proto.notEmptyCodeInstructions().size + notEmptyUvmInstructionsCountInList(result), labelWhenFalse)
-                        result.add(proto.makeInstructionLine("jmp 1 $" + labelWhenFalse + commentPrefix, i))
+                        val whenTrueInst = proto.makeInstructionLine("loadk %" + proto.tmp1StackTopSlotIndex + " const 1" + commentPrefix, i)
+                        val whenFalseInst = proto.makeEmptyInstruction("") // 跳过loadk 1，直接压栈
+                        result.add(proto.makeJmpToUvmInstruction(proto.name + "_true_" + i.offset, whenTrueInst, commentPrefix, i))
+                        result.add(proto.makeJmpToUvmInstruction(proto.name + "_false_" + i.offset, whenFalseInst, commentPrefix, i))
 
-                        result.add(proto.makeInstructionLine("loadk %" + proto.tmp1StackTopSlotIndex + " const 1" + commentPrefix, i))
+                        result.add(whenTrueInst)
+                        result.add(whenFalseInst)
 
                         pushIntoEvalStackTopSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix)
 
@@ -1187,6 +1768,23 @@ open class JavaToUvmTranslator {
                         targetFuncName = "len";
                         useOpcode = true;
                         hasThis = true;
+                    } else if (methodName == "equals") {
+                        val fusedBranch = nextFusableBranchInstruction(proto, i)
+                        if (fusedBranch != null && (fusedBranch.opCode == Opcodes.IFEQ || fusedBranch.opCode == Opcodes.IFNE)) {
+                            makeFusedEqualsBranchInstructions(proto, i, fusedBranch, result, commentPrefix)
+                        } else {
+                            makeCompareInstructions(proto, "eq", i, result, commentPrefix)
+                        }
+                        return result
+                    } else if (methodName == "hashCode") {
+                        // switch(string)中的hashCode，后面的LOOKUPSWITCH直接用字符串分发，字符串留在栈顶
+                        val switchInst = nextNonNopInstructionInBlock(proto, i)
+                        if (switchInst == null || stringSwitchCaseRanges(proto, switchInst) == null) {
+                            throw GjavacException("not supported method " + calledTypeName + "::" + methodName + " outside switch on string")
+                        }
+                        proto.stringSwitchJvmInstructions.add(switchInst)
+                        proto.addNotMappedILInstruction(i)
+                        return result
                     } else {
                         throw GjavacException("not supported method " + calledTypeName + "::" + methodName)
                     }
@@ -1648,6 +2246,17 @@ open class JavaToUvmTranslator {
                 } else {
                     throw GjavacException("not supported yet")
                 }
+                val tailReturnInst = if (!useOpcode && hasReturn && !isExternalMethod && !needNeedPopThis)
+                    tailCallReturnInstruction(proto, i, resultBool2IntValue, needTranslateResult2Boolean) else null
+                if (tailReturnInst != null) {
+                    // return f(args): 直接tailcall，被调用函数的返回值就是本函数的返回值，不需要move和eval stack的压栈出栈
+                    result.add(proto.makeInstructionLine(
+                            "tailcall %" + proto.tmp2StackTopSlotIndex + " " + (paramsCount + 1) + " 0" + commentPrefix, i))
+                    result.add(proto.makeInstructionLine("return %" + proto.tmp2StackTopSlotIndex + " 0" + commentPrefix, i))
+                    proto.fusedJvmInstructions.add(tailReturnInst)
+                    tailCallPass.lowered.incrementAndGet()
+                    return result
+                }
                 if (!useOpcode) {
                     // 调用tmp2位置的函数，函数调用返回结果会存回tmp2开始的slots
                     result.add(proto.makeInstructionLine(
@@ -1680,14 +2289,22 @@ open class JavaToUvmTranslator {
                 if (toJmpToInst == null) {
                     throw GjavacException("goto dest line not found " + i)
                 }
-                makeJmpToInstruction(proto, i, "goto", toJmpToInst, result, commentPrefix, onlyNeedResultCount,needTranslateResult2Boolean)
+                makeJmpToInstruction(proto, i, "goto", toJmpToInst, result, commentPrefix)
             }
-            Opcodes.TABLESWITCH -> {
-                // TODO
-                throw GjavacException("not supported yet")
+            Opcodes.TABLESWITCH, Opcodes.LOOKUPSWITCH -> {
+                val ranges = if (proto.stringSwitchJvmInstructions.contains(i)) stringSwitchCaseRanges(proto, i) else switchCaseRanges(proto, i)
+                if (ranges == null) {
+                    throw GjavacException("not supported switch on string " + i)
+                }
+                makeSwitchInstructions(proto, i, ranges, result, commentPrefix)
             }
             Opcodes.IFNULL, Opcodes.IFNONNULL, Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFGE, Opcodes.IFGT, Opcodes.IFLT, Opcodes.IFLE, Opcodes.IF_ACMPEQ, Opcodes.IF_ACMPNE,
             Opcodes.IF_ICMPEQ, Opcodes.IF_ICMPNE, Opcodes.IF_ICMPGE, Opcodes.IF_ICMPGT, Opcodes.IF_ICMPLT, Opcodes.IF_ICMPLE -> {
+                if (proto.fusedJvmInstructions.contains(i)) {
+                    // 已经和前面的比较指令一起翻译了
+                    proto.addNotMappedILInstruction(i)
+                    return result
+                }
                 val opType = when (i.opCode) {
                     Opcodes.IFNULL -> "null"
                     Opcodes.IFNONNULL -> "notnull"
@@ -1708,70 +2325,51 @@ open class JavaToUvmTranslator {
                     }
                 }
 
-                val gotoLabel = i.opArgs[0] as Label
-                val gotoInstIndex = proto.method?.offsetOfLabel(gotoLabel)
-                if (gotoInstIndex == null) throw GjavacException("Can't find position of label " + gotoLabel)
-                val toJmpToInst = proto.method?.code?.get(gotoInstIndex)
-                if (toJmpToInst == null) {
-                    throw GjavacException("goto dest line not found " + i)
-                }
+                val toJmpToInst = jmpTargetInstruction(proto, i)
 
-                popFromEvalStackToSlot(proto,proto.tmp1StackTopSlotIndex,i,result,commentPrefix)
+                // register模式下直接比较栈顶寄存器
+                var arg1 = popEvalStackOperand(proto, proto.tmp1StackTopSlotIndex, i, result, commentPrefix)
+                var arg2: UvmOperand
 
-                var arg1SlotIndex = proto.tmp1StackTopSlotIndex
-                var arg2SlotIndex = proto.tmp2StackTopSlotIndex
+                if ((opType == "eq" || opType == "ne") && consumesLuaBoolean(proto, i)) {
+                    // 栈顶是uvm boolean，用test判断真假
+                    // test: if not (R(A) <=> C) then pc++
+                    result.add(proto.makeInstruction(UvmOpCodeEnums.OP_TEST, commentPrefix, i, arg1,
+                            UvmOperand.integer(if (opType == "eq") 0 else 1)))
+                    makeJmpToInstruction(proto, i, i.opCodeName(), toJmpToInst, result, commentPrefix)
+                    return result
+                }
 
                 when (opType) {
-                    "null", "notnull" -> makeLoadNilInst(proto, i, result, proto.tmp2StackTopSlotIndex, commentPrefix)
-                    "cmp_lt", "cmp_le", "cmp_gt", "cmp_ge", "cmp_eq", "cmp_ne" -> {
-                        // pop arg1
-                        popFromEvalStackToSlot(proto,proto.tmp2StackTopSlotIndex,i,result,commentPrefix)
-                        // swap arg1 and arg2
-                        val tmpSlot = arg1SlotIndex
-                        arg1SlotIndex = arg2SlotIndex
-                        arg2SlotIndex = tmpSlot
+                    "null", "notnull" -> {
+                        makeLoadNilInst(proto, i, result, proto.tmp2StackTopSlotIndex, commentPrefix)
+                        arg2 = UvmOperand.register(proto.tmp2StackTopSlotIndex)
                     }
-                    "eq","ne" -> { //eq   ne    IFEQ IFNE  比较boolean
-                        makeLoadConstInst(proto, i, result, proto.tmp2StackTopSlotIndex, 0, commentPrefix)//mdify
+                    "cmp_lt", "cmp_le", "cmp_gt", "cmp_ge", "cmp_eq", "cmp_ne" -> {
+                        // 先弹出的是value2，再弹出value1
+                        arg2 = arg1
+                        arg1 = popEvalStackOperand(proto, proto.tmp2StackTopSlotIndex, i, result, commentPrefix)
                     }
-                    else -> {  //le lt ge gt  比较数字
-                        makeLoadConstInst(proto, i, result, proto.tmp2StackTopSlotIndex, 0, commentPrefix)
+                    else -> {  //eq ne 比较boolean，le lt ge gt 比较数字，都是和0比较
+                        arg2 = makeConstOperand(proto, 0, proto.tmp2StackTopSlotIndex, i, result, commentPrefix)
                     }
                 }
 
-
-                // compare arg1 and arg2
-                when (opType) {
-                    "null", "eq", "cmp_eq" -> {
-                        // eq: if ((RK(B) == RK(C)) != A) then pc++
-                        result.add(proto.makeInstructionLine("eq " + 1 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
-                    "notnull", "ne", "cmp_ne" -> {
-                        result.add(proto.makeInstructionLine("eq " + 0 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
-                    "lt", "cmp_lt" -> {
-                        // lt: if ((RK(B) <  RK(C)) ~= A) then pc++
-                        result.add(proto.makeInstructionLine("lt " + 1 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
-                    "le", "cmp_le" -> {
-                        result.add(proto.makeInstructionLine("le " + 1 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
-                    "gt", "cmp_gt" -> {
-                        result.add(proto.makeInstructionLine("le " + 0 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
-                    "ge", "cmp_ge" -> {
-                        result.add(proto.makeInstructionLine("lt " + 0 + " %" + arg1SlotIndex + " %" + arg2SlotIndex +
-                                commentPrefix, i))
-                    }
+                // compare arg1 and arg2, 满足条件时执行下一条jmp
+                // eq: if ((RK(B) == RK(C)) ~= A) then pc++
+                // lt: if ((RK(B) <  RK(C)) ~= A) then pc++
+                val (compareOpCode, jmpWhen) = when (opType) {
+                    "null", "eq", "cmp_eq" -> Pair(UvmOpCodeEnums.OP_EQ, 1)
+                    "notnull", "ne", "cmp_ne" -> Pair(UvmOpCodeEnums.OP_EQ, 0)
+                    "lt", "cmp_lt" -> Pair(UvmOpCodeEnums.OP_LT, 1)
+                    "le", "cmp_le" -> Pair(UvmOpCodeEnums.OP_LE, 1)
+                    "gt", "cmp_gt" -> Pair(UvmOpCodeEnums.OP_LE, 0)
+                    "ge", "cmp_ge" -> Pair(UvmOpCodeEnums.OP_LT, 0)
                     else -> throw GjavacException("not supported compare type " + opType)
                 }
+                result.add(proto.makeInstruction(compareOpCode, commentPrefix, i, UvmOperand.integer(jmpWhen), arg1, arg2))
                 // 满足相反的条件，跳转到目标指令
-                makeJmpToInstruction(proto, i, i.opCodeName(), toJmpToInst, result, commentPrefix, onlyNeedResultCount,needTranslateResult2Boolean)
+                makeJmpToInstruction(proto, i, i.opCodeName(), toJmpToInst, result, commentPrefix)
             }
             Opcodes.INSTANCEOF -> {
                 makeLoadConstInst(proto, i, result, proto.tmp1StackTopSlotIndex, true, commentPrefix)
@@ -1806,10 +2404,85 @@ open class JavaToUvmTranslator {
     }
 
     fun translateJvmMethod(method: MethodDefinition, jvmContentBuilder: StringBuilder,
-                           luaAsmBuilder: StringBuilder, parentProto: UvmProto?): UvmProto? {
+                           parentProto: UvmProto?): UvmProto? {
         if (method.name.equals("<init>") || method.name.equals("<clinit>")) {
             return null;
         }
+        var translation = translatedMethods.remove(method)
+        if (translation == null) {
+            translation = newMethodTranslation(method)
+            prepareJvmMethod(translation)
+            translateMethodBody(translation)
+        }
+        if (translation.jvmContent != null) {
+            jvmContentBuilder.append(translation.jvmContent)
+        }
+        if (translation.console != null) {
+            diagnostics.report(DiagnosticCategory.OptimizerStats, DiagnosticLevel.Detail, translation.console.toString().trimEnd())
+        }
+        for (warning in translation.warnings) {
+            diagnostics.warn(warning)
+        }
+        val proto = translation.proto ?: throw GjavacException("method " + method.name + " not translated")
+        // 翻译时没有设置parent，upvalue在合并时按父proto当前的局部变量确定，父proto缺少的upvalue也在这里加入
+        proto.parent = parentProto
+        proto.resolveUpvalues()
+        return proto
+    }
+
+    /**
+     * 先在当前线程按顺序内联和常量折叠所有方法(内联会读取被调用方法的字节码，顺序不同结果可能不同)，
+     * 再在ForkJoinPool中并行翻译和优化每个方法，结果由translateJvmMethod按原来的顺序合并到父proto
+     */
+    private fun translateMethodsInParallel(types: List<ClassDefinition>) {
+        val translations = types.flatMap { it.methods }
+                .filter { !it.name.equals("<init>") && !it.name.equals("<clinit>") }
+                .map { newMethodTranslation(it) }
+        for (translation in translations) {
+            prepareJvmMethod(translation)
+        }
+        val pool = ForkJoinPool(parallelism)
+        try {
+            val futures = translations.map { translation -> pool.submit(Callable { translateMethodBody(translation) }) }
+            for (future in futures) {
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            pool.shutdown()
+        }
+        for (translation in translations) {
+            translatedMethods[translation.method] = translation
+        }
+    }
+
+    /**
+     * 在jvm字节码上内联和常量折叠，会读取其他方法的字节码，只在当前线程中按方法顺序执行
+     */
+    private fun prepareJvmMethod(translation: MethodTranslation) {
+        val method = translation.method
+        val jvmContentBuilder = translation.jvmContent
+        jvmContentBuilder?.append("method " + method.fullName() + ", simple name is " + method.name + "\r\n")
+        val inlinedCount = if (passes.isEnabled(inliner.name)) inliner.inline(method, definedTypes) else 0
+        if (inlinedCount > 0) {
+            jvmContentBuilder?.append("inlining: " + inlinedCount + " calls inlined\r\n")
+        }
+        val foldedCount = if (passes.isEnabled(constantFolder.name)) constantFolder.fold(method) else 0
+        if (foldedCount > 0) {
+            jvmContentBuilder?.append("constant folding: " + foldedCount + " jvm instructions folded\r\n")
+        }
+    }
+
+    /**
+     * 把一个方法翻译成proto并优化，只修改这个方法自己的proto和translation，可以在多个线程中同时执行
+     * proto还没有parent，upvalue只记录名称，由translateJvmMethod合并时确定
+     */
+    private fun translateMethodBody(translation: MethodTranslation) {
+        val method = translation.method
+        val jvmContentBuilder = translation.jvmContent
 
         //if(hasReturn && methodInfo.methodReturnType?.desc.equals("Z")){
         //var needConvtToBool = returnCount == 1 && (method.signature?.returnType?.isBoolean() ?: false)
@@ -1822,23 +2495,77 @@ open class JavaToUvmTranslator {
             proto.sizeP++; // this对象作为第一个参数
         }
         proto.isvararg = false;
-        proto.parent = parentProto;
         proto.method = method;
-        jvmContentBuilder.append("method " + method.fullName() + ", simple name is " + method.name + "\r\n")
-        // 在uvm的proto开头创建一个table局部变量，模拟evaluation stack
-        proto.evalStackIndex = method.maxLocals + 1 // eval stack所在的局部变量的slot index
-        var createEvalStackInst = UvmInstruction("newtable %" + proto.evalStackIndex + " 0 0") // 除参数外的第一个局部变量固定用作eval stack
-        // createEvalStackInst.LineInSource = method.
-        proto.addInstruction(createEvalStackInst)
+        val cfg = method.controlFlowGraph()
+        jvmContentBuilder?.append("control flow graph: " + cfg.blocks.size + " blocks, " + cfg.loopHeaders().size + " loops, "
+                + cfg.unreachableBlocks().size + " unreachable blocks\r\n")
+        val booleanTypes = BooleanTypeInference.analyze(method)
+        proto.booleanTypes = booleanTypes
+        if (booleanTypes.sourcesCount() > 0) {
+            jvmContentBuilder?.append("boolean inference: " + booleanTypes.sourcesCount() + " boolean sources, "
+                    + booleanTypes.operandsCount() + " boolean operands\r\n")
+        }
+        proto.evalStackMode = evalStackMode
+        if (evalStackMode == EvalStackModeEnum.Register) {
+            // 静态分析每条指令处的栈深度，栈中第n个值固定存放在evalStackIndex+n寄存器，不需要table和栈大小slot
+            val stackDepths = StackDepthAnalyzer.analyze(method)
+            proto.evalStackDepths = stackDepths
+            proto.evalStackIndex = method.maxLocals
+            proto.evalStackMaxDepth = if (stackDepths.maxDepth > 0) stackDepths.maxDepth else 1
+            proto.evalStackSizeIndex = -1
+            proto.forLoopStartIndex = proto.evalStackIndex + proto.evalStackMaxDepth
+        } else {
+            // 在uvm的proto开头创建一个table局部变量，模拟evaluation stack
+            proto.evalStackIndex = method.maxLocals + 1 // eval stack所在的局部变量的slot index
+            var createEvalStackInst = UvmInstruction("newtable %" + proto.evalStackIndex + " 0 0") // 除参数外的第一个局部变量固定用作eval stack
+            // createEvalStackInst.LineInSource = method.
+            proto.addInstruction(createEvalStackInst)
 
 
-        proto.evalStackSizeIndex = proto.evalStackIndex + 1; // 固定存储最新eval stack长度的slot
-        proto.internConstantValue(0)
-        proto.internConstantValue(1)
-        proto.addInstruction(proto.makeInstructionLine("loadk %" + proto.evalStackSizeIndex + " const 0", null))
+            proto.evalStackSizeIndex = proto.evalStackIndex + 1; // 固定存储最新eval stack长度的slot
+            proto.internConstantValue(0)
+            proto.internConstantValue(1)
+            proto.addInstruction(proto.makeInstructionLine("loadk %" + proto.evalStackSizeIndex + " const 0", null))
 
-        // 除了eval-stack的额外局部变量slot，额外还要提供2个slot用来存放一个栈顶值，用来做存到eval-stack的中转
-        proto.tmp1StackTopSlotIndex = proto.evalStackIndex + 2; // 临时存储，比如存放栈中取出的值或者参数值，返回值等
+            proto.forLoopStartIndex = proto.evalStackIndex + 2
+        }
+        // 循环使用的寄存器在eval stack和tmp区域之间，循环体中在tmp区域的函数调用不会覆盖它们
+        // 计数循环每层嵌套4个，迭代循环在计数循环后面，每层嵌套6个
+        if (passes.isEnabled(forLoopPass.name)) {
+            forLoopPass.methodCount.incrementAndGet()
+            val countedLoops = CountedLoopAnalyzer.analyze(method)
+            if (countedLoops.loops.size > 0 && proto.forLoopStartIndex + 4 * countedLoops.nestingLevels() <= MAX_FOR_LOOP_REGISTER) {
+                proto.countedLoops = countedLoops
+                forLoopPass.lowered.addAndGet(countedLoops.loops.size)
+                jvmContentBuilder?.append("counted loops: " + countedLoops.loops.size + "\r\n")
+            }
+        }
+        proto.iteratorLoopStartIndex = proto.forLoopStartIndex + 4 * (proto.countedLoops?.nestingLevels() ?: 0)
+        if (passes.isEnabled(genericForPass.name)) {
+            genericForPass.methodCount.incrementAndGet()
+            val iteratorLoops = IteratorLoopAnalyzer.analyze(method)
+            if (iteratorLoops.loops.size > 0 && proto.iteratorLoopStartIndex + 6 * iteratorLoops.nestingLevels() <= MAX_FOR_LOOP_REGISTER) {
+                proto.iteratorLoops = iteratorLoops
+                genericForPass.lowered.addAndGet(iteratorLoops.loops.size)
+                jvmContentBuilder?.append("iterator loops: " + iteratorLoops.loops.size + "\r\n")
+            }
+        }
+        if (passes.isEnabled(tailCallPass.name)) {
+            tailCallPass.methodCount.incrementAndGet()
+        }
+        // 字符串拼接的片段也要在函数调用期间保留，放在循环寄存器后面
+        proto.concatStartIndex = proto.iteratorLoopStartIndex + 6 * (proto.iteratorLoops?.nestingLevels() ?: 0)
+        // 只在register模式下合并拼接，复用已经分析好的栈深度; table模式按原来的StringBuilder调用翻译
+        val stackDepths = proto.evalStackDepths
+        if (stackDepths != null) {
+            val stringConcats = StringConcatAnalyzer.analyze(method, stackDepths)
+            if (stringConcats.concats.size > 0 && proto.concatStartIndex + stringConcats.registerCount() <= MAX_FOR_LOOP_REGISTER) {
+                proto.stringConcats = stringConcats
+                jvmContentBuilder?.append("string concats: " + stringConcats.concats.size + "\r\n")
+            }
+        }
+        // 除了eval stack，循环和拼接的寄存器，额外还要提供slot用来存放一个栈顶值，用来做存到eval stack的中转
+        proto.tmp1StackTopSlotIndex = proto.concatStartIndex + (proto.stringConcats?.registerCount() ?: 0) // 临时存储，比如存放栈中取出的值或者参数值，返回值等
         proto.tmp2StackTopSlotIndex = proto.tmp1StackTopSlotIndex + 1; // 临时存储，比如存放临时的栈顶值或者参数值等
         proto.tmp3StackTopSlotIndex = proto.tmp2StackTopSlotIndex + 1; // 临时存储，比如存放临时的参数值或者nil等
         proto.tmpMaxStackTopSlotIndex = proto.tmp1StackTopSlotIndex + 17; // 目前最多支持18个临时存储
@@ -1850,6 +2577,7 @@ open class JavaToUvmTranslator {
         proto.numparams = proto.sizeP;
         proto.maxCallStackSize = 0;
 
+
         var lastLinenumber = 0;
         var needTranslateResult2Boolean = false;
         if(method.signature?.returnType?.signature == "Z") //return boolean
@@ -1882,7 +2610,7 @@ open class JavaToUvmTranslator {
 
         // 不需要支持类型的虚函数调用，只支持静态函数
         for (i in method.code) {
-            jvmContentBuilder.append("" + i.instLine + "\r\n")
+            jvmContentBuilder?.append("" + i.instLine + "\r\n")
             var commentPrefix = ";"; // 一行指令的行信息的注释前缀
             var hasLineInfo = i.linenumber > 0
             if (hasLineInfo) {
@@ -1900,23 +2628,33 @@ open class JavaToUvmTranslator {
             // commentPrefix += dotnetOpStr;
             // 关于java的evaluation stack在uvm字节码虚拟机中的实现方式
             // 维护一个evaluation stack的局部变量,，每个proto入口处清空它
-            var uvmInstructions = translateJvmInstruction(proto, i, commentPrefix, false,needTranslateResult2Boolean)
+            var uvmInstructions = translateJvmInstruction(proto, i, commentPrefix, needTranslateResult2Boolean)
+            if (notEmptyUvmInstructionsCountInList(uvmInstructions) < 1 && !proto.notMappedJvmInstructions.contains(i)) {
+                // 没有产生uvm指令的jvm指令(比如register模式下的POP)，和后面的指令一起映射，保证跳转目标能找到
+                proto.addNotMappedILInstruction(i)
+            }
             for (uvmInst in uvmInstructions) {
                 proto.addInstruction(uvmInst)
             }
         }
 
+        // 重定位所有jmp指令，得到NeededLocationsMap
+        proto.resolvePendingJmpInstructions()
+
         // 处理NeededLocationsMap，忽略empty lines
-        var notEmptyInstructionsOfProto = proto.notEmptyCodeInstructions()
-        for (j in 0..(notEmptyInstructionsOfProto.size - 1)) {
-            var inst = notEmptyInstructionsOfProto[j];
-            if (proto.neededLocationsMap.containsKey(j)) {
-                inst.locationLabel = proto.neededLocationsMap[j];
+        for (inst in proto.codeInstructions) {
+            if (!(inst is UvmEmptyInstruction) && proto.neededLocationsMap.containsKey(proto.codeInstructions.pcOf(inst))) {
+                inst.locationLabel = proto.neededLocationsMap[proto.codeInstructions.pcOf(inst)];
             }
         }
 
         //add by zq
-        ReduceProtoUvmInsts(proto)
+        ReduceProtoUvmInsts(proto, translation.console)
+
+        translation.console?.appendln("proto name = " + proto.name + " " + proto.constantValues.statsString())
+        if (proto.constantValues.exceedsRkLimit()) {
+            translation.warnings.add("proto " + proto.name + " has more than " + (MAXINDEXRK + 1) + " constants, const operands over the limit need loadk")
+        }
 
 
         // TODO: 可能jmp到指令尾部?
@@ -1930,13 +2668,18 @@ open class JavaToUvmTranslator {
         // 函数代码块结尾添加return 0 1指令来结束代码块
         val endBlockInst = UvmInstruction("return %0 1")
 
-        jvmContentBuilder.append("\r\n")
+        jvmContentBuilder?.append("\r\n")
         proto.sizeCode = proto.codeInstructions.size
-        return proto;
+        translation.proto = proto
     }
 
     fun debugEvalStack(proto: UvmProto): MutableList<UvmInstruction> {
         val result: MutableList<UvmInstruction> = mutableListOf()
+        if (proto.evalStackMode == EvalStackModeEnum.Register) {
+            // register模式下没有eval stack table可以输出
+            result.add(proto.makeEmptyInstruction("for debug eval stack, not supported in register mode"))
+            return result
+        }
         // for debug,输出eval stack
         result.add(proto.makeEmptyInstruction("for debug eval stack"))
         var envSlot = proto.internUpvalue("ENV")
@@ -1948,315 +2691,13 @@ open class JavaToUvmTranslator {
         return result
     }
 
-    //----------------------------reduce code imp---------------------------------------
-
-    //------------------------reduce code imp----------------------------------
-    fun checkSlot(slot:String)
-    {
-        if (!slot.startsWith("%"))
-        {
-            throw GjavacException("error ReduceUvmInsts,invalid uvm inst:slot")
-        }
-    }
-
-    fun checkConstStr(str:String)
-    {
-        if (!str.startsWith("const \"") || !str.endsWith("\""))
-        {
-            throw GjavacException("error ReduceUvmInsts,invalid uvm inst:conststr")
-        }
-    }
-
-   fun getLtCount(intlist:MutableList<Int> , inta:Int):Int
-    {
-        var count = 0
-        for(i in intlist)
-        {
-            if (i < inta) count++
-        }
-        return count
-    }
-
-    fun checkLoctionMoveRight(originalLoc:Int, newLoc:Int, proto: UvmProto)
-    {
-        if (newLoc < originalLoc && newLoc >= 0)
-        {
-            var newIdx = 0;
-            for(j in 0..(originalLoc - 1))
-            {
-                if (!(proto.codeInstructions[j] is UvmEmptyInstruction))
-                {
-                    newIdx++
-                }
-            }
-            if (!proto.codeInstructions[originalLoc].hasLocationLabel()|| newLoc != newIdx)
-            {
-                throw GjavacException("loc move error,please check!!!!")
-            }
-        }
-    }
-
-    fun ReduceUvmInstsImp(proto: UvmProto):Int
-    {
-        val notEmptyCodeInstructions:MutableList<UvmInstruction> = mutableListOf()
-        for (codeInst in proto.codeInstructions)
-        {
-            if (!(codeInst is UvmEmptyInstruction))
-            {
-                notEmptyCodeInstructions.add(codeInst)
-            }
-        }
-        proto.codeInstructions.clear()
-        for(inst in notEmptyCodeInstructions)
-        {
-            proto.codeInstructions.add(inst)
-        }
-
-        //check location map first
-        for (loc in proto.neededLocationsMap)
-        {
-            if(!proto.codeInstructions[loc.key].hasLocationLabel()){
-                throw GjavacException("location map not match !!!!")
-            }
-        }
-
-        val CodeInstructions = proto.codeInstructions
-        val delIndexes:MutableList<Int>  = mutableListOf()
-        val modifyIndexes:MutableList<Int>  = mutableListOf()
-        val modifyUvmIns:MutableList<UvmInstruction>  = mutableListOf()
-        var AddEvalStackSizeIndex:Int = -1
-        var SetEvalStackTopIndex:Int = -1
-        var UvmInstCount:Int = CodeInstructions.count()
-        var affectedSlot:String = ""
-        var uvmInsstr:String = ""
-        var commentIndex:Int = -1
-        var constStr:String = ""
-        var commentPrefix:String = ""
-
-        for(gIndex in 0..(UvmInstCount - 1))
-        {
-            var uvmIns: UvmInstruction = CodeInstructions[gIndex]
-            if (uvmIns.jvmInstruction == null)
-            {
-                continue
-            }
-
-            if (uvmIns.hasLocationLabel())
-            {
-                AddEvalStackSizeIndex = -1
-                SetEvalStackTopIndex = -1
-            }
-
-            uvmInsstr = uvmIns.toString().trim()
-            commentIndex = uvmInsstr.indexOf(";")
-            if (commentIndex >= 0)
-            {
-                commentPrefix = "" + uvmInsstr.substring(commentIndex)
-                uvmInsstr = uvmInsstr.substring(0, commentIndex)
-            }
-            else
-            {
-                commentPrefix = ""
-            }
-            var ss = uvmInsstr.split(" ")
-
-            var evalOp: EvalStackOpEnum = CodeInstructions[gIndex].evalStackOp
-            when (evalOp)
-            {
-                EvalStackOpEnum.valueOf("AddEvalStackSize")->
-                {
-
-                    AddEvalStackSizeIndex = gIndex
-                    SetEvalStackTopIndex = -1
-                }
-                EvalStackOpEnum.valueOf("SetEvalStackTop")->
-                {
-                    if (!uvmInsstr.startsWith("settable"))
-                    {
-                        throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + uvmInsstr)
-                    }
-                    var ssCount = ss.count()
-                    if (ssCount == 4)
-                    {
-                        affectedSlot = ss[3].trim()
-                        checkSlot(affectedSlot)
-                    }
-                    else if (ssCount >= 5)
-                    {
-                        affectedSlot = ""
-                        constStr = ss[3]
-                        for(j in 4..(ssCount - 1))
-                        {
-                            constStr = constStr + " " + ss[j]
-                        }
-                        checkConstStr(constStr)
-                    }
-                    else
-                    {
-                        throw GjavacException("error ReduceUvmInsts,inst count err, invalid uvm inst:" + uvmInsstr)
-                    }
-                    SetEvalStackTopIndex = gIndex
-                    AddEvalStackSizeIndex = -1
-                }
-                EvalStackOpEnum.valueOf("SubEvalStackSize")->
-                {
-                    if (AddEvalStackSizeIndex != -1)
-                    {
-                        if (uvmIns.hasLocationLabel() || CodeInstructions[AddEvalStackSizeIndex].hasLocationLabel())
-                        {
-                            //print("do not remove, locactionmap needed \n")
-                        }
-                        else
-                        {
-                            delIndexes.add(AddEvalStackSizeIndex)
-                            delIndexes.add(gIndex)
-                            //print("find add-sub evalsize group, index " + AddEvalStackSizeIndex + "," + gIndex + "\n")
-                        }
-                    }
-                    AddEvalStackSizeIndex = -1
-                    SetEvalStackTopIndex = -1
-                }
-                EvalStackOpEnum.valueOf("GetEvalStackTop")->
-                {
-                    if (SetEvalStackTopIndex != -1)
-                    {
-                        if (!uvmInsstr.startsWith("gettable"))
-                        {
-                            throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + uvmInsstr)
-                        }
-                        if (ss.count() != 4)
-                        {
-                            throw GjavacException("error ReduceUvmInsts,inst count err, invalid uvm inst:" + uvmInsstr)
-                        }
-                        var targetSlot = ss[1]
-                        var inst: UvmInstruction
-                        if (affectedSlot.startsWith("%"))
-                        {
-                            inst = proto.makeInstructionLine("move " + targetSlot + " " + affectedSlot + commentPrefix + ";get from slot", uvmIns.jvmInstruction)
-                        }
-                        else if (constStr.startsWith("const "))
-                        {
-                            inst = proto.makeInstructionLine("loadk " + targetSlot + " " + constStr + commentPrefix + ";get from slot", uvmIns.jvmInstruction)
-                        }
-                        else
-                        {
-                            throw GjavacException("error ReduceUvmInsts,invalid uvm inst:" + uvmInsstr)
-                        }
-
-                        if (CodeInstructions[SetEvalStackTopIndex].hasLocationLabel())
-                        {
-                            //print("do not remove, locactionmap needed \n")
-                        }
-                        else
-                        {
-                            delIndexes.add(SetEvalStackTopIndex)
-                            modifyIndexes.add(gIndex)
-                            modifyUvmIns.add(inst)
-                            //print("find set-get evaltop group, index " + SetEvalStackTopIndex + "," + gIndex + "\n")
-                        }
-                    }
-                    AddEvalStackSizeIndex = -1
-                    SetEvalStackTopIndex = -1
-                }
-                else ->
-                {
-                    if (SetEvalStackTopIndex != -1)
-                    {
-                        if (affectedSlot.length > 1)
-                        {
-                            if (ss.contains(affectedSlot))
-                            {
-                                //print("do not remove , affect slot:" + affectedSlot + "\n")
-                                SetEvalStackTopIndex = -1
-                            }
-                            else if (ss[0].equals("call")||ss[0].equals("tailcall"))
-                            {
-                                var slotIndex:Int = ss[1].substring(1).toInt()
-                                var argcount:Int = ss[2].toInt()
-                                var resultcount:Int = ss[3].toInt()
-                                    var j:Int = 0
-                                for(j in 0..(resultcount - 2))
-                                {
-                                    if (affectedSlot.equals("%" + j))
-                                    {
-                                        //print("do not remove , in call inst:" + uvmInsstr + "affect slot:" + affectedSlot + "\n")
-                                        SetEvalStackTopIndex = -1
-                                    }
-                                }
-                            }
-                            else if (ss[0].equals("return"))
-                            {
-                                SetEvalStackTopIndex = -1
-                                AddEvalStackSizeIndex = -1
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        var delcount:Int = delIndexes.count()
-
-        for( mi in modifyIndexes)
-        {
-            proto.codeInstructions[mi] = modifyUvmIns[modifyIndexes.indexOf(mi)]
-        }
-
-        //删除delindex对应的指令
-        if (delcount > 0)
-        {
-            for(j in 0..(delcount-1))
-            {
-                var instr = proto.codeInstructions[delIndexes[j]].toString()
-                proto.codeInstructions[delIndexes[j]] = proto.makeEmptyInstruction(";deleted inst;original inst:" + instr)
-            }
-        }
-
-        //调整location map
-        var needLocCount:Int = proto.neededLocationsMap.count()
-        if (needLocCount > 0 && delcount > 0)
-        {
-            val locationMap: MutableMap<Int, String> = mutableMapOf()
-            for (loc in proto.neededLocationsMap)
-            {
-                var newKey:Int = loc.key - getLtCount(delIndexes, loc.key)
-                checkLoctionMoveRight(loc.key, newKey, proto)
-                locationMap.put(newKey, loc.value)
-            }
-
-            proto.neededLocationsMap.clear()
-            for (loc in locationMap)
-            {
-                proto.neededLocationsMap.put(loc.key, loc.value)
-            }
-        }
-
-        //调整localval startpc
-        for (locval in proto.locvars)
-        {
-            if (locval.startPc > 0)
-            {
-                var newPc = locval.startPc - getLtCount(delIndexes, locval.startPc);
-                locval.startPc = newPc;
-            }
-        }
-        //print("reduce codeslines =" + delIndexes.count() + "\n")
-        return delcount
-    }
-
-    fun ReduceProtoUvmInsts(proto: UvmProto)
+    fun ReduceProtoUvmInsts(proto: UvmProto, console: StringBuilder?)
     {
-        print("begin reduce: proto name = " + proto.name + " totalLines = " + proto.codeInstructions.count() + "\n")
-        var r:Int = 0
-        var totalReduceLines:Int = 0
-        var idx:Int = 0
-        do
-        {
-            //println("idx=" + idx + " , reduce proto begin:" + proto.name)
-            r = ReduceUvmInstsImp(proto)
-            totalReduceLines = totalReduceLines + r
-            idx++
-        } while (r > 0)
-        println("proto name = " + proto.name + " totalReduceLines = " + totalReduceLines + " , now totalLines = " + proto.codeInstructions.count() + "\n")
+        console?.append("begin reduce: proto name = " + proto.name + " totalLines = " + proto.codeInstructions.size + "\n")
+        val removedByPass = passManager.run(proto)
+        val totalReduceLines = removedByPass.values.sum()
+        console?.appendln("proto name = " + proto.name + " totalReduceLines = " + totalReduceLines + " " + removedByPass
+                + " , now totalLines = " + proto.codeInstructions.size + "\n")
     }
 
 }
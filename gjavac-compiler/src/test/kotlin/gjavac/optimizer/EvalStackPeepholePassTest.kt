@@ -0,0 +1,63 @@
+package gjavac.optimizer
+
+import gjavac.cecil.Instruction
+import gjavac.core.EvalStackModeEnum
+import gjavac.core.EvalStackOpEnum
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmProto
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.objectweb.asm.Opcodes
+
+class EvalStackPeepholePassTest {
+
+    // register模式的proto，%10是eval stack的第一个寄存器
+    private fun optimize(vararg lines: Pair<String, EvalStackOpEnum>): List<String> {
+        val proto = UvmProto("test")
+        proto.evalStackMode = EvalStackModeEnum.Register
+        for (line in lines) {
+            val inst = UvmInstruction(line.first, 0, Instruction(Opcodes.NOP))
+            inst.evalStackOp = line.second
+            proto.addInstruction(inst)
+        }
+        EvalStackPeepholePass().run(proto, UvmPassStats("eval-stack"))
+        proto.removeDeletedInstructions()
+        return proto.codeInstructions.map { it.toString() }
+    }
+
+    private fun push(line: String) = Pair(line, EvalStackOpEnum.SetEvalStackTop)
+
+    private fun pop(line: String) = Pair(line, EvalStackOpEnum.GetEvalStackTop)
+
+    private fun other(line: String) = Pair(line, EvalStackOpEnum.NotEvalStackOp)
+
+    @Test
+    fun testForwardsPushToPop() {
+        assertEquals(listOf("loadnil %3 0", "move %5 %2;get from slot"),
+                optimize(push("move %10 %2"), other("loadnil %3 0"), pop("move %5 %10")))
+    }
+
+    @Test
+    fun testLoadNilRangeBlocksForward() {
+        // loadnil %1 2 写入%1..%3，压栈的%2被覆盖
+        assertEquals(listOf("move %10 %2", "loadnil %1 2", "move %5 %10"),
+                optimize(push("move %10 %2"), other("loadnil %1 2"), pop("move %5 %10")))
+    }
+
+    @Test
+    fun testSelfBlocksForward() {
+        // self %1 %0 k 写入%1和%2
+        assertEquals(listOf("move %10 %2", "self %1 %0 const \"f\"", "move %5 %10"),
+                optimize(push("move %10 %2"), other("self %1 %0 const \"f\""), pop("move %5 %10")))
+    }
+
+    @Test
+    fun testCallResultRange() {
+        // call %5 1 4 把3个返回值写入%5..%7，压栈的%6被覆盖
+        assertEquals(listOf("move %10 %6", "call %5 1 4", "move %3 %10"),
+                optimize(push("move %10 %6"), other("call %5 1 4"), pop("move %3 %10")))
+        // 返回值不会写到%1，可以直接move
+        assertEquals(listOf("call %5 1 4", "move %3 %1;get from slot"),
+                optimize(push("move %10 %1"), other("call %5 1 4"), pop("move %3 %10")))
+    }
+}
@@ -0,0 +1,107 @@
+package gjavac.optimizer
+
+import gjavac.cecil.ClassDefinition
+import gjavac.cecil.MethodDefinition
+import gjavac.core.UvmEmptyInstruction
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmLocVar
+import gjavac.core.UvmProto
+import gjavac.core.UvmUpvaldesc
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class GlobalHoistPassTest {
+
+    // @0是_ENV，%8开始是循环寄存器，%20开始是tmp区域和call stack，空行是empty instruction
+    private fun newProto(vararg lines: String): UvmProto {
+        val proto = UvmProto("test")
+        proto.method = MethodDefinition(ClassDefinition("Test"))
+        proto.numparams = 1
+        proto.upvalues.add(UvmUpvaldesc("ENV"))
+        proto.forLoopStartIndex = 8
+        proto.iteratorLoopStartIndex = 8
+        proto.concatStartIndex = 8
+        proto.tmp1StackTopSlotIndex = 20
+        proto.callStackStartIndex = 20
+        proto.maxStackSize = 30
+        for (line in lines) {
+            if (line.length == 0) {
+                proto.addInstruction(UvmEmptyInstruction())
+                continue
+            }
+            // "L1: ..." 表示带label的指令
+            val inst = if (line.contains(": ")) UvmInstruction(line.substringAfter(": ")) else UvmInstruction(line)
+            if (line.contains(": ")) {
+                inst.locationLabel = line.substringBefore(": ")
+            }
+            proto.addInstruction(inst)
+        }
+        return proto
+    }
+
+    private fun optimize(vararg lines: String): List<String> {
+        val proto = newProto(*lines)
+        GlobalHoistPass().run(proto, UvmPassStats("hoist-globals"))
+        return proto.codeInstructions.map { it.toString().substringBefore(";") }
+    }
+
+    @Test
+    fun testHoistToEntry() {
+        assertEquals(listOf("gettabup %8 @0 const \"tostring\"", "move %22 %8", "call %22 2 2", "move %22 %8", "call %22 2 2",
+                "return %0 1"),
+                optimize("gettabup %21 @0 const \"tostring\"", "call %21 2 2", "gettabup %21 @0 const \"tostring\"",
+                        "call %21 2 2", "return %0 1"))
+    }
+
+    @Test
+    fun testHoistAfterEarlyReturn() {
+        // 提前返回的路径上没有使用，取值放在判断之后
+        assertEquals(listOf("eq 1 %1 %2", "jmp 1 \$L1", "gettabup %8 @0 const \"tostring\"", "move %22 %8", "call %22 2 2",
+                "move %22 %8", "call %22 2 2", "return %0 1"),
+                optimize("eq 1 %1 %2", "jmp 1 \$L1", "gettabup %21 @0 const \"tostring\"", "call %21 2 2",
+                        "gettabup %21 @0 const \"tostring\"", "call %21 2 2", "L1: return %0 1"))
+    }
+
+    @Test
+    fun testErrorBranchDoesNotBlockHoist() {
+        // 调用error的分支不会返回，使用仍然在所有返回的路径上
+        assertEquals(listOf("gettabup %8 @0 const \"tostring\"", "eq 1 %1 %2", "jmp 1 \$L1", "gettabup %22 @0 const \"error\"",
+                "call %22 2 1", "return %0 1", "move %22 %8", "call %22 2 2", "move %22 %8", "call %22 2 2", "return %0 1"),
+                optimize("eq 1 %1 %2", "jmp 1 \$L1", "gettabup %21 @0 const \"error\"", "call %21 2 1", "return %0 1",
+                        "L1: gettabup %21 @0 const \"tostring\"", "call %21 2 2", "gettabup %21 @0 const \"tostring\"",
+                        "call %21 2 2", "return %0 1"))
+    }
+
+    @Test
+    fun testLoopUseCountsOnce() {
+        // 循环中只有一次使用，循环可以从中间进入，没有preheader，也不能因为在循环中就提到入口
+        val lines = arrayOf("eq 1 %1 %2", "jmp 1 \$L2", "L1: gettabup %21 @0 const \"tostring\"", "call %21 2 2",
+                "L2: lt 1 %1 %2", "jmp 1 \$L1", "return %0 1")
+        assertEquals(lines.map { it.substringAfter(": ") }, optimize(*lines))
+    }
+
+    @Test
+    fun testHoistToLoopPreheader() {
+        // 迭代循环中的使用提到跳进循环的jmp前面，专用寄存器在tforcall的寄存器下面，迭代函数使用的栈不会覆盖它
+        assertEquals(listOf("move %9 %3", "gettabup %8 @0 const \"tostring\"", "jmp 1 \$Lcall", "move %22 %8", "call %22 2 2",
+                "tforcall %9 2", "tforloop %11 \$Lbody", "return %0 1"),
+                optimize("move %8 %3", "jmp 1 \$Lcall", "Lbody: gettabup %21 @0 const \"tostring\"", "call %21 2 2",
+                        "Lcall: tforcall %8 2", "tforloop %10 \$Lbody", "return %0 1"))
+    }
+
+    @Test
+    fun testLocvarStartAfterEmptyInstructions() {
+        // 插入位置前有empty instruction，下标和pc不同
+        val proto = newProto("", "", "eq 1 %1 %2", "jmp 1 \$L1", "gettabup %21 @0 const \"tostring\"", "call %21 2 2",
+                "gettabup %21 @0 const \"tostring\"", "call %21 2 2", "L1: return %0 1")
+        val before = UvmLocVar("a", 1, 1)
+        val atLoad = UvmLocVar("b", 2, 2)
+        val after = UvmLocVar("c", 3, 3)
+        proto.locvars.addAll(listOf(before, atLoad, after))
+        GlobalHoistPass().run(proto, UvmPassStats("hoist-globals"))
+        assertEquals("gettabup %8 @0 const \"tostring\"", proto.codeInstructions[4].toString().substringBefore(";"))
+        assertEquals(1, before.startPc)
+        assertEquals(3, atLoad.startPc)
+        assertEquals(4, after.startPc)
+    }
+}
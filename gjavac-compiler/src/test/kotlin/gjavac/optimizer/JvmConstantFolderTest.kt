@@ -0,0 +1,118 @@
+package gjavac.optimizer
+
+import gjavac.cecil.MethodDefinition
+import gjavac.cecil.TestMethods
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+class JvmConstantFolderTest {
+
+    // 用asm生成一个static方法并折叠，返回去掉NOP后的指令
+    private fun fold(desc: String, body: (MethodVisitor) -> Unit): List<String> {
+        val method = TestMethods.build(desc, body)
+        JvmConstantFolder().fold(method)
+        return ops(method)
+    }
+
+    private fun ops(method: MethodDefinition): List<String> {
+        return method.code.filter { it.opCode != Opcodes.NOP }.map {
+            if (it.opArgs.size > 0 && (it.opArgs[0] is Int || it.opArgs[0] is Long || it.opArgs[0] is String))
+                it.opCodeName() + " " + it.opArgs[0] else it.opCodeName()
+        }
+    }
+
+    @Test
+    fun testFoldIntExpression() {
+        assertEquals(listOf("LDC 42", "IRETURN"), fold("()I", { mv ->
+            mv.visitIntInsn(Opcodes.BIPUSH, 40)
+            mv.visitInsn(Opcodes.ICONST_2)
+            mv.visitInsn(Opcodes.IADD)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+    }
+
+    @Test
+    fun testIntOverflowNotFolded() {
+        // uvm整数是64位的，溢出int的结果和jvm不同，保留原来的运算
+        assertEquals(listOf("LDC 2147483647", "ICONST_1", "IADD", "IRETURN"), fold("()I", { mv ->
+            mv.visitLdcInsn(Int.MAX_VALUE)
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitInsn(Opcodes.IADD)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+        assertEquals(listOf("LDC -2147483648", "INEG", "IRETURN"), fold("()I", { mv ->
+            mv.visitLdcInsn(Int.MIN_VALUE)
+            mv.visitInsn(Opcodes.INEG)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+    }
+
+    @Test
+    fun testConstantBranchRemoved() {
+        // 条件总是成立，跳转改成GOTO，不会执行的分支换成NOP
+        assertEquals(listOf("GOTO", "ICONST_2", "IRETURN"), fold("()I", { mv ->
+            val target = Label()
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitJumpInsn(Opcodes.IFNE, target)
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitInsn(Opcodes.IRETURN)
+            mv.visitLabel(target)
+            mv.visitInsn(Opcodes.ICONST_2)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+        // 条件总是不成立，跳转删除，跳转目标的分支不可达
+        assertEquals(listOf("ICONST_1", "IRETURN"), fold("()I", { mv ->
+            val target = Label()
+            mv.visitInsn(Opcodes.ICONST_3)
+            mv.visitInsn(Opcodes.ICONST_4)
+            mv.visitJumpInsn(Opcodes.IF_ICMPGE, target)
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitInsn(Opcodes.IRETURN)
+            mv.visitLabel(target)
+            mv.visitInsn(Opcodes.ICONST_2)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+    }
+
+    @Test
+    fun testPropagateSingleStore() {
+        // 局部变量1只赋值一次常量，读取换成常量，赋值保留
+        assertEquals(listOf("BIPUSH 7", "ISTORE 1", "ILOAD 0", "LDC 7", "IADD", "IRETURN"), fold("(I)I", { mv ->
+            mv.visitIntInsn(Opcodes.BIPUSH, 7)
+            mv.visitVarInsn(Opcodes.ISTORE, 1)
+            mv.visitVarInsn(Opcodes.ILOAD, 0)
+            mv.visitVarInsn(Opcodes.ILOAD, 1)
+            mv.visitInsn(Opcodes.IADD)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+    }
+
+    @Test
+    fun testPropagationStopsAtSecondStore() {
+        // 局部变量1在分支中再次赋值，两次赋值后的读取都不能换成常量
+        assertEquals(listOf("BIPUSH 7", "ISTORE 1", "ILOAD 0", "IFEQ", "BIPUSH 8", "ISTORE 1", "ILOAD 1", "IRETURN"),
+                fold("(I)I", { mv ->
+                    val join = Label()
+                    mv.visitIntInsn(Opcodes.BIPUSH, 7)
+                    mv.visitVarInsn(Opcodes.ISTORE, 1)
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitJumpInsn(Opcodes.IFEQ, join)
+                    mv.visitIntInsn(Opcodes.BIPUSH, 8)
+                    mv.visitVarInsn(Opcodes.ISTORE, 1)
+                    mv.visitLabel(join)
+                    mv.visitVarInsn(Opcodes.ILOAD, 1)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }))
+        // IINC也算一次赋值
+        assertEquals(listOf("BIPUSH 7", "ISTORE 1", "IINC 1", "ILOAD 1", "IRETURN"), fold("()I", { mv ->
+            mv.visitIntInsn(Opcodes.BIPUSH, 7)
+            mv.visitVarInsn(Opcodes.ISTORE, 1)
+            mv.visitIincInsn(1, 1)
+            mv.visitVarInsn(Opcodes.ILOAD, 1)
+            mv.visitInsn(Opcodes.IRETURN)
+        }))
+    }
+}
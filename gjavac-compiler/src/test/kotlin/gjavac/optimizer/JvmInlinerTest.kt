@@ -0,0 +1,185 @@
+package gjavac.optimizer
+
+import gjavac.cecil.ClassDefinition
+import gjavac.cecil.Instruction
+import gjavac.cecil.MethodDefinition
+import gjavac.cecil.TestMethods
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+class JvmInlinerTest {
+
+    private fun method(cls: ClassDefinition, name: String): MethodDefinition = cls.methods.first { it.name == name }
+
+    // 去掉NOP后的指令，局部变量指令带上slot
+    private fun ops(method: MethodDefinition): List<String> {
+        return method.code.filter { it.opCode != Opcodes.NOP }.map { describe(it) }
+    }
+
+    private fun describe(inst: Instruction): String {
+        return if (inst.opCode >= Opcodes.ILOAD && inst.opCode <= Opcodes.ALOAD || inst.opCode >= Opcodes.ISTORE && inst.opCode <= Opcodes.ASTORE)
+            inst.opCodeName() + " " + inst.opArgs[0] else inst.opCodeName()
+    }
+
+    private fun target(method: MethodDefinition, inst: Instruction): Int = method.labelOffsets[inst.opArgs[0] as Label]!!
+
+    private fun callAbs(): (MethodVisitor) -> Unit = { mv ->
+        mv.visitVarInsn(Opcodes.ILOAD, 0)
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "Test", "abs", "(I)I", false)
+        mv.visitInsn(Opcodes.ICONST_1)
+        mv.visitInsn(Opcodes.IADD)
+        mv.visitInsn(Opcodes.IRETURN)
+    }
+
+    @Test
+    fun testUnusedArgumentAndCallerLocal() {
+        // first(x, 5): 没有用到的常量参数不压栈，只读的参数直接使用调用方的局部变量0
+        val cls = TestMethods.buildClass("Test", "java/lang/Object",
+                Pair("static first(II)I", { mv: MethodVisitor ->
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }),
+                Pair("static caller(I)I", { mv: MethodVisitor ->
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitInsn(Opcodes.ICONST_5)
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "Test", "first", "(II)I", false)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }))
+        val caller = method(cls, "caller")
+        assertEquals(1, JvmInliner().inline(caller, listOf(cls)))
+        assertEquals(listOf("ILOAD 0", "IRETURN"), ops(caller))
+        assertTrue(caller.code.any { it.instLine.contains("unused inlined argument ICONST_5") })
+    }
+
+    @Test
+    fun testStoredArgumentGetsOwnLocal() {
+        // 被调用方法修改参数，参数存入调用方局部变量后面的slot 1
+        val cls = TestMethods.buildClass("Test", "java/lang/Object",
+                Pair("static inc(I)I", { mv: MethodVisitor ->
+                    mv.visitIincInsn(0, 1)
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }),
+                Pair("static caller(I)I", { mv: MethodVisitor ->
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "Test", "inc", "(I)I", false)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }))
+        val caller = method(cls, "caller")
+        assertEquals(1, JvmInliner().inline(caller, listOf(cls)))
+        assertEquals(listOf("ILOAD 0", "ISTORE 1", "IINC", "ILOAD 1", "IRETURN"), ops(caller))
+        assertEquals(1, caller.code.first { it.opCode == Opcodes.IINC }.opArgs[0])
+        assertEquals(2, caller.maxLocals)
+    }
+
+    @Test
+    fun testReturnsJumpToEnd() {
+        // abs有两个return，前面的return改成GOTO到内联代码末尾，最后一条return顺序执行
+        val cls = TestMethods.buildClass("Test", "java/lang/Object",
+                Pair("static abs(I)I", { mv: MethodVisitor ->
+                    val positive = Label()
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitJumpInsn(Opcodes.IFGE, positive)
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitInsn(Opcodes.INEG)
+                    mv.visitInsn(Opcodes.IRETURN)
+                    mv.visitLabel(positive)
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }),
+                Pair("static caller(I)I", callAbs()))
+        val caller = method(cls, "caller")
+        assertEquals(1, JvmInliner().inline(caller, listOf(cls)))
+        assertEquals(listOf("ILOAD 0", "IFGE", "ILOAD 0", "INEG", "GOTO", "ILOAD 0", "ICONST_1", "IADD", "IRETURN"), ops(caller))
+        val ifge = caller.code.first { it.opCode == Opcodes.IFGE }
+        assertEquals("ILOAD 0", describe(caller.code[target(caller, ifge)]))
+        assertTrue(target(caller, ifge) > ifge.offset)
+        val goto = caller.code.first { it.opCode == Opcodes.GOTO }
+        assertEquals(Opcodes.ICONST_1, caller.code[target(caller, goto)].opCode)
+        for (k in 0 until caller.code.size) {
+            assertEquals(k, caller.code[k].offset)
+        }
+    }
+
+    @Test
+    fun testSwitchLabelsRemapped() {
+        val cls = TestMethods.buildClass("Test", "java/lang/Object",
+                Pair("static pick(I)I", { mv: MethodVisitor ->
+                    val zero = Label()
+                    val one = Label()
+                    val other = Label()
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitTableSwitchInsn(0, 1, other, zero, one)
+                    mv.visitLabel(zero)
+                    mv.visitIntInsn(Opcodes.BIPUSH, 10)
+                    mv.visitInsn(Opcodes.IRETURN)
+                    mv.visitLabel(one)
+                    mv.visitIntInsn(Opcodes.BIPUSH, 20)
+                    mv.visitInsn(Opcodes.IRETURN)
+                    mv.visitLabel(other)
+                    mv.visitIntInsn(Opcodes.BIPUSH, 30)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }),
+                Pair("static caller(I)I", { mv: MethodVisitor ->
+                    mv.visitInsn(Opcodes.ICONST_2)
+                    mv.visitVarInsn(Opcodes.ISTORE, 1)
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "Test", "pick", "(I)I", false)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }))
+        val callee = method(cls, "pick")
+        val caller = method(cls, "caller")
+        assertEquals(1, JvmInliner().inline(caller, listOf(cls)))
+        val switch = caller.code.first { it.opCode == Opcodes.TABLESWITCH }
+        val dflt = switch.opArgs[2] as Label
+        @Suppress("UNCHECKED_CAST")
+        val targets = (switch.opArgs[3] as Array<Label>).toList() + dflt
+        // 复制出的switch使用新的label，目标是调用方中对应的BIPUSH
+        assertTrue(targets.none { callee.labelOffsets.containsKey(it) })
+        assertEquals(listOf(10, 20, 30), targets.map { caller.code[caller.labelOffsets[it]!!].opArgs[0] })
+        // 被内联的代码在调用方局部变量后面，x直接使用调用方的slot 0
+        assertEquals(listOf("ICONST_2", "ISTORE 1", "ILOAD 0", "TABLESWITCH", "BIPUSH", "GOTO", "BIPUSH", "GOTO", "BIPUSH", "IRETURN"),
+                ops(caller))
+    }
+
+    @Test
+    fun testRecursiveCalleeNotInlined() {
+        val cls = TestMethods.buildClass("Test", "java/lang/Object",
+                Pair("static abs(I)I", { mv: MethodVisitor ->
+                    mv.visitVarInsn(Opcodes.ILOAD, 0)
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "Test", "abs", "(I)I", false)
+                    mv.visitInsn(Opcodes.IRETURN)
+                }),
+                Pair("static caller(I)I", callAbs()))
+        val caller = method(cls, "caller")
+        assertEquals(0, JvmInliner().inline(caller, listOf(cls)))
+        assertEquals(listOf("ILOAD 0", "INVOKESTATIC", "ICONST_1", "IADD", "IRETURN"), ops(caller))
+    }
+
+    @Test
+    fun testOverriddenMethodNotInlined() {
+        val getter: (MethodVisitor) -> Unit = { mv ->
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitInsn(Opcodes.IRETURN)
+        }
+        val callValue: (MethodVisitor) -> Unit = { mv ->
+            mv.visitVarInsn(Opcodes.ALOAD, 0)
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "Test", "value", "()I", false)
+            mv.visitInsn(Opcodes.IRETURN)
+        }
+        // 没有子类时可以内联，this没有用到直接删掉压栈
+        val alone = TestMethods.buildClass("Test", "java/lang/Object", Pair("value()I", getter), Pair("caller()I", callValue))
+        assertEquals(1, JvmInliner().inline(method(alone, "caller"), listOf(alone)))
+        assertEquals(listOf("ICONST_1", "IRETURN"), ops(method(alone, "caller")))
+
+        val cls = TestMethods.buildClass("Test", "java/lang/Object", Pair("value()I", getter), Pair("caller()I", callValue))
+        val sub = TestMethods.buildClass("Sub", "Test", Pair("value()I", getter))
+        val caller = method(cls, "caller")
+        assertEquals(0, JvmInliner().inline(caller, listOf(cls, sub)))
+        assertEquals(listOf("ALOAD 0", "INVOKEVIRTUAL", "IRETURN"), ops(caller))
+    }
+}
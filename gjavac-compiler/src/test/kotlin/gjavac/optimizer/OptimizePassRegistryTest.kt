@@ -0,0 +1,40 @@
+package gjavac.optimizer
+
+import gjavac.exceptions.GjavacException
+import gjavac.translater.JavaToUvmTranslator
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class OptimizePassRegistryTest {
+
+    @Test
+    fun testTranslatorRegistersAllPassesInOrder() {
+        val translator = JavaToUvmTranslator()
+        assertEquals(listOf("inline", "const-fold", "for-loop", "generic-for", "tail-call") + translator.passManager.passNames(),
+                translator.passes.names())
+    }
+
+    @Test
+    fun testDisableRemovesStats() {
+        val translator = JavaToUvmTranslator()
+        val passes = translator.passes
+        passes.disable("for-loop")
+        passes.disable("inline")
+        assertFalse(passes.isEnabled("for-loop"))
+        assertFalse(passes.isEnabled("inline"))
+        assertTrue(passes.isEnabled("const-fold"))
+        assertFalse(translator.passManager.isEnabled("inline"))
+        val stats = passes.statsString()
+        assertFalse(stats.contains("pass for-loop"))
+        assertFalse(stats.contains("pass inline"))
+        assertTrue(stats.contains("pass tail-call"))
+        assertEquals(passes.names().size - 2, stats.split("\n").size)
+    }
+
+    @Test(expected = GjavacException::class)
+    fun testDisableUnknownPass() {
+        JavaToUvmTranslator().passes.disable("no-such-pass")
+    }
+}
@@ -0,0 +1,82 @@
+package gjavac.optimizer
+
+import gjavac.cecil.ClassDefinition
+import gjavac.cecil.MethodDefinition
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmProto
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class StorageCachePassTest {
+
+    // %0是self，%10开始是循环寄存器，%20开始是tmp区域和call stack
+    private fun optimize(vararg lines: String): List<String> {
+        val proto = UvmProto("test")
+        proto.method = MethodDefinition(ClassDefinition("Test"))
+        proto.numparams = 1
+        proto.forLoopStartIndex = 10
+        proto.iteratorLoopStartIndex = 10
+        proto.concatStartIndex = 10
+        proto.tmp1StackTopSlotIndex = 20
+        proto.callStackStartIndex = 20
+        for (line in lines) {
+            // "L1: ..." 表示带label的指令
+            val inst = if (line.contains(": ")) UvmInstruction(line.substringAfter(": ")) else UvmInstruction(line)
+            if (line.contains(": ")) {
+                inst.locationLabel = line.substringBefore(": ")
+            }
+            proto.addInstruction(inst)
+        }
+        StorageCachePass().run(proto, UvmPassStats("storage-cache"))
+        proto.removeDeletedInstructions()
+        return proto.codeInstructions.map { it.toString().substringBefore(";") }
+    }
+
+    @Test
+    fun testRepeatedReadBecomesMove() {
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"", "move %4 %3", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"",
+                        "gettable %4 %2 const \"name\"", "return %4 2"))
+    }
+
+    @Test
+    fun testCallInvalidatesFields() {
+        // 调用可能修改storage的属性，之后要重新读取; storage表本身仍然在%2
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"", "call %21 1 1",
+                "gettable %4 %2 const \"name\"", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"", "call %21 1 1",
+                        "gettable %4 %2 const \"name\"", "return %4 2"))
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "call %21 1 1", "gettable %3 %2 const \"name\"",
+                "move %4 %2", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "call %21 1 1", "gettable %3 %2 const \"name\"",
+                        "gettable %4 %0 const \"storage\"", "return %4 2"))
+    }
+
+    @Test
+    fun testSettableSameKey() {
+        // 写入后属性的值在写入的寄存器%6中，不能再用%3
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"",
+                "settable %2 const \"name\" %6", "move %4 %6", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"",
+                        "settable %2 const \"name\" %6", "gettable %4 %2 const \"name\"", "return %4 2"))
+        // 不知道写入的是哪个table时，同名的属性失效
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"",
+                "settable %7 const \"name\" %6", "gettable %4 %2 const \"name\"", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"",
+                        "settable %7 const \"name\" %6", "gettable %4 %2 const \"name\"", "return %4 2"))
+    }
+
+    @Test
+    fun testJoinKeepsOnlyCommonValues() {
+        // 只有一个前驱读取过name，汇合后不能使用%3
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "eq 1 %5 %6", "jmp 1 \$L1", "gettable %3 %2 const \"name\"",
+                "gettable %4 %2 const \"name\"", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "eq 1 %5 %6", "jmp 1 \$L1", "gettable %3 %2 const \"name\"",
+                        "L1: gettable %4 %2 const \"name\"", "return %4 2"))
+        // 两个前驱都读取过的值在汇合后仍然可用
+        assertEquals(listOf("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"", "eq 1 %5 %6", "jmp 1 \$L1",
+                "loadnil %7 0", "move %4 %3", "return %4 2"),
+                optimize("gettable %2 %0 const \"storage\"", "gettable %3 %2 const \"name\"", "eq 1 %5 %6", "jmp 1 \$L1",
+                        "loadnil %7 0", "L1: gettable %4 %2 const \"name\"", "return %4 2"))
+    }
+}
@@ -0,0 +1,57 @@
+package gjavac.optimizer
+
+import gjavac.core.UvmInstruction
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class UvmInstructionEffectsTest {
+
+    private fun writes(asm: String, register: Int): Boolean {
+        return UvmInstructionEffects.writeRanges(UvmInstruction(asm)).any { register in it }
+    }
+
+    private fun definitelyWrites(asm: String, register: Int): Boolean {
+        return UvmInstructionEffects.definiteWriteRanges(UvmInstruction(asm)).any { register in it }
+    }
+
+    @Test
+    fun testForLoopWritesLoopVariable() {
+        // forloop继续循环时把计数器复制到A+3
+        assertTrue(writes("forloop %4 \$L1", 4))
+        assertTrue(writes("forloop %4 \$L1", 7))
+        assertFalse(writes("forloop %4 \$L1", 8))
+        assertTrue(definitelyWrites("forloop %4 \$L1", 4))
+        assertFalse(definitelyWrites("forloop %4 \$L1", 7))
+    }
+
+    @Test
+    fun testForPrepWritesLoopRegisters() {
+        for (register in 4..7) {
+            assertTrue(writes("forprep %4 \$L1", register))
+        }
+        assertFalse(writes("forprep %4 \$L1", 3))
+        assertFalse(definitelyWrites("forprep %4 \$L1", 7))
+    }
+
+    @Test
+    fun testConditionalWrites() {
+        // testset和tforloop只在条件成立时写入A，不能当作一定写入
+        assertTrue(writes("testset %3 %5 1", 3))
+        assertFalse(writes("testset %3 %5 1", 5))
+        assertFalse(definitelyWrites("testset %3 %5 1", 3))
+        assertTrue(writes("tforloop %6 \$L2", 6))
+        assertFalse(definitelyWrites("tforloop %6 \$L2", 6))
+    }
+
+    @Test
+    fun testRangeWrites() {
+        assertEquals(listOf(2..5), UvmInstructionEffects.writeRanges(UvmInstruction("loadnil %2 3")))
+        assertEquals(listOf(2..3), UvmInstructionEffects.writeRanges(UvmInstruction("self %2 %0 const \"f\"")))
+        assertEquals(listOf(9..10), UvmInstructionEffects.writeRanges(UvmInstruction("tforcall %6 2")))
+        assertEquals(listOf(3..4), UvmInstructionEffects.writeRanges(UvmInstruction("call %3 2 3")))
+        assertEquals(listOf(3..UvmInstructionEffects.ALL_REGISTERS), UvmInstructionEffects.writeRanges(UvmInstruction("call %3 2 0")))
+        assertTrue(UvmInstructionEffects.definiteWriteRanges(UvmInstruction("call %3 2 0")).isEmpty())
+    }
+}
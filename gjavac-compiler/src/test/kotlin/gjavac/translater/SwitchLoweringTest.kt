@@ -0,0 +1,199 @@
+package gjavac.translater
+
+import gjavac.cecil.Instruction
+import gjavac.cecil.MethodDefinition
+import gjavac.cecil.TestMethods
+import gjavac.core.EvalStackModeEnum
+import gjavac.core.UvmConstantPool
+import gjavac.core.UvmInstruction
+import gjavac.core.UvmJmpInstruction
+import gjavac.core.UvmOpCodeEnums
+import gjavac.core.UvmProto
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+
+class SwitchLoweringTest {
+
+    private val translator = JavaToUvmTranslator()
+
+    // register模式的proto，switch的key在eval stack的第一个寄存器%10
+    private fun proto(method: MethodDefinition): UvmProto {
+        val proto = UvmProto("test")
+        proto.method = method
+        proto.evalStackMode = EvalStackModeEnum.Register
+        proto.evalStackIndex = 10
+        proto.evalStackMaxDepth = 4
+        proto.evalStackDepth = 1
+        proto.tmp1StackTopSlotIndex = 20
+        proto.tmp2StackTopSlotIndex = 21
+        return proto
+    }
+
+    private fun switchOf(method: MethodDefinition): Instruction {
+        return method.code.first { it.opCode == Opcodes.TABLESWITCH || it.opCode == Opcodes.LOOKUPSWITCH }
+    }
+
+    // reader会为读入的代码新建Label，所以这里按指令下标找跳转目标
+    private fun targetOf(method: MethodDefinition, offset: Int): Instruction = method.code[offset]
+
+    /**
+     * 执行生成的比较树，返回跳转到的jvm指令和执行的比较次数
+     * eq/lt/le: if ((RK(B) op RK(C)) ~= A) then pc++
+     */
+    private fun dispatch(code: List<UvmInstruction>, key: Any): Pair<Instruction, Int> {
+        var pc = 0
+        var compares = 0
+        while (true) {
+            val inst = code[pc]
+            if (inst is UvmJmpInstruction) {
+                val jvmTarget = inst.targetJvmInstruction
+                if (jvmTarget != null) {
+                    return Pair(jvmTarget, compares)
+                }
+                pc = code.indexOf(inst.targetUvmInstruction!!)
+                continue
+            }
+            val opCode = inst.opCode
+            if (opCode == null) {
+                pc++
+                continue
+            }
+            assertEquals(10, inst.operand(1).index)
+            val cmp = translator.compareSwitchKeys(key, UvmConstantPool.valueOfLiteral(inst.operand(2).literal).let {
+                if (it is Long) it.toInt() else it
+            })
+            val result = when (opCode) {
+                UvmOpCodeEnums.OP_EQ -> cmp == 0
+                UvmOpCodeEnums.OP_LT -> cmp < 0
+                UvmOpCodeEnums.OP_LE -> cmp <= 0
+                else -> throw AssertionError("unexpected instruction in switch " + inst)
+            }
+            compares++
+            pc += if (result != (inst.operand(0).index != 0)) 2 else 1
+        }
+    }
+
+    private fun lower(method: MethodDefinition, ranges: List<JavaToUvmTranslator.SwitchCaseRange>): List<UvmInstruction> {
+        val result: MutableList<UvmInstruction> = mutableListOf()
+        translator.makeSwitchInstructions(proto(method), switchOf(method), ranges, result, "")
+        return result
+    }
+
+    @Test
+    fun testDenseTableSwitch() {
+        // 0..2 -> a, 3..4 -> b, 5 -> default, 6..9 -> c，相邻的同目标key合并成区间
+        val a = Label()
+        val b = Label()
+        val c = Label()
+        val other = Label()
+        val method = TestMethods.build("(I)I", { mv ->
+            mv.visitVarInsn(Opcodes.ILOAD, 0)
+            mv.visitTableSwitchInsn(0, 9, other, a, a, a, b, b, other, c, c, c, c)
+            for ((label, value) in listOf(Pair(a, 1), Pair(b, 2), Pair(c, 3), Pair(other, 0))) {
+                mv.visitLabel(label)
+                mv.visitIntInsn(Opcodes.BIPUSH, value)
+                mv.visitInsn(Opcodes.IRETURN)
+            }
+        })
+        val ranges = translator.switchCaseRanges(proto(method), switchOf(method))
+        assertEquals(listOf(Pair(0, 2), Pair(3, 4), Pair(6, 9)), ranges.map { Pair(it.low, it.high) })
+        val code = lower(method, ranges)
+        // a, b, c, other分别从指令2, 4, 6, 8开始
+        val expected = mapOf(0 to 2, 1 to 2, 2 to 2, 3 to 4, 4 to 4, 6 to 6, 7 to 6, 8 to 6, 9 to 6)
+        for (key in -2..11) {
+            assertEquals("key " + key, targetOf(method, expected[key] ?: 8), dispatch(code, key).first)
+        }
+    }
+
+    @Test
+    fun testSparseLookupSwitchUsesTree() {
+        val keys = intArrayOf(-5, 7, 9, 42, 1000, 300000, 1 shl 20, Int.MAX_VALUE)
+        val labels = keys.map { Label() }
+        val other = Label()
+        val method = TestMethods.build("(I)I", { mv ->
+            mv.visitVarInsn(Opcodes.ILOAD, 0)
+            mv.visitLookupSwitchInsn(other, keys, labels.toTypedArray())
+            for ((k, label) in labels.withIndex()) {
+                mv.visitLabel(label)
+                mv.visitIntInsn(Opcodes.BIPUSH, k + 1)
+                mv.visitInsn(Opcodes.IRETURN)
+            }
+            mv.visitLabel(other)
+            mv.visitInsn(Opcodes.ICONST_0)
+            mv.visitInsn(Opcodes.IRETURN)
+        })
+        val ranges = translator.switchCaseRanges(proto(method), switchOf(method))
+        assertEquals(keys.size, ranges.size)
+        val code = lower(method, ranges)
+        var maxCompares = 0
+        for ((k, key) in keys.withIndex()) {
+            for (probe in listOf(key - 1, key, key + 1)) {
+                val (target, compares) = dispatch(code, probe)
+                // 第k个分支从指令2 + 2 * k开始，default在最后
+                val index = if (probe == key) k else keys.indexOf(probe)
+                val expected = if (index >= 0) 2 + 2 * index else 2 + 2 * keys.size
+                assertEquals("key " + probe, targetOf(method, expected), target)
+                maxCompares = Math.max(maxCompares, compares)
+            }
+        }
+        // 8个分支: 两层二分比较 + 叶子中最多3次顺序比较
+        assertTrue("too many compares: " + maxCompares, maxCompares <= 2 + 3)
+    }
+
+    @Test
+    fun testStringSwitchHashCollision() {
+        // "Aa"和"BB"的hashCode都是2112，javac把它们放在同一个hash分支中依次比较
+        val s = 0
+        val collide = Label()
+        val bbCheck = Label()
+        val single = Label()
+        val other = Label()
+        val aaBody = Label()
+        val bbBody = Label()
+        val cBody = Label()
+        val method = TestMethods.build("(Ljava/lang/String;)I", { mv ->
+            mv.visitVarInsn(Opcodes.ALOAD, s)
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "hashCode", "()I", false)
+            mv.visitLookupSwitchInsn(other, intArrayOf("C".hashCode(), "Aa".hashCode()), arrayOf(single, collide))
+            for ((check, literal, next, body) in listOf(Quad(collide, "Aa", bbCheck, aaBody), Quad(bbCheck, "BB", other, bbBody),
+                    Quad(single, "C", other, cBody))) {
+                mv.visitLabel(check)
+                mv.visitVarInsn(Opcodes.ALOAD, s)
+                mv.visitLdcInsn(literal)
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false)
+                mv.visitJumpInsn(Opcodes.IFEQ, next)
+                mv.visitJumpInsn(Opcodes.GOTO, body)
+            }
+            for ((label, value) in listOf(Pair(aaBody, 1), Pair(bbBody, 2), Pair(cBody, 3), Pair(other, 0))) {
+                mv.visitLabel(label)
+                mv.visitIntInsn(Opcodes.BIPUSH, value)
+                mv.visitInsn(Opcodes.IRETURN)
+            }
+        })
+        val ranges = translator.stringSwitchCaseRanges(proto(method), switchOf(method))!!
+        assertEquals(listOf<Any>("Aa", "BB", "C"), ranges.map { it.low })
+        val code = lower(method, ranges)
+        // 每个字符串直接跳到自己的equals检查(指令3, 8, 13)，同hash的"BB"不用先比较"Aa"，default是指令24
+        assertEquals(targetOf(method, 3), dispatch(code, "Aa").first)
+        assertEquals(targetOf(method, 8), dispatch(code, "BB").first)
+        assertEquals(targetOf(method, 13), dispatch(code, "C").first)
+        assertEquals(targetOf(method, 24), dispatch(code, "D").first)
+        assertEquals(targetOf(method, 24), dispatch(code, "").first)
+    }
+
+    @Test
+    fun testStringKeysUseUtf8Order() {
+        // uvm按字节比较字符串: U+FF21的utf-8是EF BC A1，U+1F600是F0 9F 98 80，和java的utf-16顺序相反
+        val fullwidthA = "Ａ"
+        val emoji = "😀"
+        assertTrue(fullwidthA.compareTo(emoji) > 0)
+        assertTrue(translator.compareSwitchKeys(fullwidthA, emoji) < 0)
+        assertTrue(translator.compareSwitchKeys("ab", "abc") < 0)
+        assertTrue(translator.compareSwitchKeys(-1, 1) < 0)
+    }
+
+    private data class Quad(val check: Label, val literal: String, val next: Label, val body: Label)
+}
@@ -0,0 +1,210 @@
+package gjavac.cecil
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+
+/**
+ * 方法中哪些jvm指令可以直接使用uvm的boolean(true/false)，不需要和java的int 0/1互相转换
+ * boolSources[offset]: 这条指令压栈的值翻译成uvm boolean(ICONST_0/ICONST_1, GETFIELD Z)
+ * boolOperands[offset]: 这条指令使用的栈顶值一定是uvm boolean(IFEQ/IFNE, PUTFIELD Z, 返回boolean的IRETURN, POP)
+ */
+class MethodBooleanTypes(private val boolSources: BooleanArray, private val boolOperands: BooleanArray) {
+  fun producesBoolean(inst: Instruction): Boolean = inst.offset < boolSources.size && boolSources[inst.offset]
+
+  fun consumesBoolean(inst: Instruction): Boolean = inst.offset < boolOperands.size && boolOperands[inst.offset]
+
+  fun sourcesCount(): Int = boolSources.count { it }
+
+  fun operandsCount(): Int = boolOperands.count { it }
+}
+
+/**
+ * jvm中的boolean就是int，翻译时在字段读写，返回值等边界处要在int 0/1和uvm boolean之间转换
+ * 这里对局部变量和operand stack做数据流分析，跟踪每个值可能来自哪些产生boolean的指令，
+ * 如果一个来源的值只流向可以直接使用uvm boolean的指令，这个来源就直接产生uvm boolean，两端都不需要转换；
+ * 否则(参与运算，和int值在分支汇合处混合等)这个来源退回到int，反复分析直到不再变化
+ */
+class BooleanTypeInference(val method: MethodDefinition) {
+
+  companion object {
+    // 值可能是普通的int或其他类型
+    private val NOT_BOOLEAN = -1
+
+    fun analyze(method: MethodDefinition): MethodBooleanTypes {
+      return BooleanTypeInference(method).analyze()
+    }
+  }
+
+  // 栈中的一个值，sources是可能产生它的boolean来源指令的offset，包含NOT_BOOLEAN时可能是其他值
+  private class Value(val size: Int, val sources: Set<Int>)
+
+  private class Frame(val stack: MutableList<Value>, val locals: Array<Set<Int>>) {
+    fun copy(): Frame = Frame(stack.toMutableList(), locals.copyOf())
+  }
+
+  private val code = method.code
+  private val notBoolean: Set<Int> = setOf(NOT_BOOLEAN)
+  private val returnsBoolean = method.desc.orEmpty().endsWith(")Z")
+  private val candidates = BooleanArray(code.size)
+  private val boolOperands = BooleanArray(code.size)
+  private var checking = false
+  private var demoted = false
+
+  private val interpreter = object : JvmStackInterpreter<Value>(method) {
+    override fun newValue(inst: Instruction, size: Int): Value {
+      return if (size == 1 && candidates[inst.offset]) Value(1, setOf(inst.offset)) else Value(size, notBoolean)
+    }
+
+    override fun sizeOf(value: Value): Int = value.size
+
+    override fun consume(inst: Instruction, value: Value, indexFromTop: Int) {
+      consumeSources(inst, value.sources, indexFromTop)
+    }
+  }
+
+  fun analyze(): MethodBooleanTypes {
+    for (j in 0 until code.size) {
+      candidates[j] = isCandidate(code[j])
+    }
+    do {
+      val frames = computeFrames()
+      // 用稳定后的frame检查每个来源的值的去向
+      demoted = false
+      checking = true
+      for (j in 0 until code.size) {
+        boolOperands[j] = false
+      }
+      for (j in 0 until code.size) {
+        val frame = frames[j] ?: continue
+        execute(code[j], frame.copy())
+      }
+      checking = false
+    } while (demoted)
+    return MethodBooleanTypes(candidates.copyOf(), boolOperands.copyOf())
+  }
+
+  private fun isCandidate(inst: Instruction): Boolean {
+    return when (inst.opCode) {
+      Opcodes.ICONST_0, Opcodes.ICONST_1 -> true
+      Opcodes.GETFIELD -> (inst.opArgs[0] as FieldInfo).desc == "Z"
+      else -> false
+    }
+  }
+
+  // 可以直接使用uvm boolean栈顶值的指令
+  private fun acceptsBoolean(inst: Instruction, indexFromTop: Int): Boolean {
+    if (indexFromTop != 0) {
+      return false
+    }
+    return when (inst.opCode) {
+      Opcodes.IFEQ, Opcodes.IFNE, Opcodes.POP -> true
+      Opcodes.PUTFIELD -> (inst.opArgs[0] as FieldInfo).desc == "Z"
+      Opcodes.IRETURN -> returnsBoolean
+      else -> false
+    }
+  }
+
+  private fun consumeSources(inst: Instruction, sources: Set<Int>, indexFromTop: Int) {
+    if (!checking || !sources.any { it != NOT_BOOLEAN }) {
+      return
+    }
+    if (!sources.contains(NOT_BOOLEAN) && acceptsBoolean(inst, indexFromTop)) {
+      boolOperands[inst.offset] = true
+      return
+    }
+    for (source in sources) {
+      if (source != NOT_BOOLEAN && candidates[source]) {
+        candidates[source] = false
+        demoted = true
+      }
+    }
+  }
+
+  private fun computeFrames(): Array<Frame?> {
+    val frames: Array<Frame?> = arrayOfNulls(code.size)
+    if (code.isEmpty()) {
+      return frames
+    }
+    val locals: Array<Set<Int>> = Array(Math.max(method.maxLocals, 1)) { setOf<Int>() }
+    var paramSlots = if (method.isStatic) 0 else 1
+    for (argType in Type.getArgumentTypes(method.desc.orEmpty())) {
+      paramSlots += argType.size
+    }
+    for (slot in 0 until Math.min(paramSlots, locals.size)) {
+      locals[slot] = notBoolean
+    }
+    frames[0] = Frame(mutableListOf(), locals)
+    val worklist: MutableList<Int> = mutableListOf(0)
+    while (worklist.size > 0) {
+      val index = worklist.removeAt(worklist.size - 1)
+      val frame = frames[index]!!.copy()
+      execute(code[index], frame)
+      for (succ in ControlFlowGraph.successorOffsets(method, index)) {
+        if (succ < 0 || succ >= code.size) {
+          continue
+        }
+        val existed = frames[succ]
+        if (existed == null) {
+          frames[succ] = frame.copy()
+          worklist.add(succ)
+        } else if (merge(existed, frame)) {
+          worklist.add(succ)
+        }
+      }
+    }
+    return frames
+  }
+
+  // 把from合并到into，返回into是否改变
+  private fun merge(into: Frame, from: Frame): Boolean {
+    var changed = false
+    for (j in 0 until Math.min(into.stack.size, from.stack.size)) {
+      val existed = into.stack[j]
+      if (!existed.sources.containsAll(from.stack[j].sources)) {
+        into.stack[j] = Value(existed.size, existed.sources + from.stack[j].sources)
+        changed = true
+      }
+    }
+    for (j in 0 until into.locals.size) {
+      if (!into.locals[j].containsAll(from.locals[j])) {
+        into.locals[j] = into.locals[j] + from.locals[j]
+        changed = true
+      }
+    }
+    return changed
+  }
+
+  private fun setLocal(frame: Frame, slot: Int, sources: Set<Int>) {
+    if (slot < frame.locals.size) {
+      frame.locals[slot] = sources
+    }
+  }
+
+  private fun execute(inst: Instruction, frame: Frame) {
+    when (inst.opCode) {
+      Opcodes.ILOAD -> {
+        val slot = inst.opArgs[0] as Int
+        frame.stack.add(Value(1, if (slot < frame.locals.size) frame.locals[slot] else notBoolean))
+      }
+      Opcodes.ISTORE, Opcodes.FSTORE, Opcodes.ASTORE -> {
+        val slot = inst.opArgs[0] as Int
+        val value = frame.stack.removeAt(frame.stack.size - 1)
+        setLocal(frame, slot, if (inst.opCode == Opcodes.ISTORE) value.sources else notBoolean)
+      }
+      Opcodes.LSTORE, Opcodes.DSTORE -> {
+        val slot = inst.opArgs[0] as Int
+        frame.stack.removeAt(frame.stack.size - 1)
+        setLocal(frame, slot, notBoolean)
+        setLocal(frame, slot + 1, notBoolean)
+      }
+      Opcodes.IINC -> {
+        val slot = inst.opArgs[0] as Int
+        if (slot < frame.locals.size) {
+          consumeSources(inst, frame.locals[slot], 1)
+        }
+        setLocal(frame, slot, notBoolean)
+      }
+      else -> interpreter.execute(inst, frame.stack)
+    }
+  }
+}
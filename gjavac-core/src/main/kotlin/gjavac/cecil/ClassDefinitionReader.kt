@@ -1,17 +1,23 @@
 package gjavac.cecil
 
+import gjavac.utils.DiagnosticCategory
+import gjavac.utils.DiagnosticLevel
+import gjavac.utils.Diagnostics
 import gjavac.utils.MethodTypeInfo
 import gjavac.utils.TypeInfo
-import gjavac.utils.use
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.util.Printer
 import org.objectweb.asm.util.TraceClassVisitor
-import java.io.File
-import java.io.FileInputStream
 import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
 
 class ModuleDefinition {
   // 若干个java的.class文件构成的集合
@@ -39,8 +45,10 @@ class MethodDefinition(val definitionClass: ClassDefinition) {
   val code: MutableList<Instruction> = mutableListOf()
   var labelOffsets: MutableMap<Label, Int> = mutableMapOf()
   var lastLineNumber: Int = 0
+  private var controlFlowGraph: ControlFlowGraph? = null
 
   fun addInstruction(inst: Instruction) {
+    controlFlowGraph = null
     inst.offset = code.size
     if(inst.linenumber<=0) {
       inst.linenumber = lastLineNumber
@@ -49,9 +57,25 @@ class MethodDefinition(val definitionClass: ClassDefinition) {
   }
 
   fun addLabelOffset(label: Label, offset: Int) {
+    controlFlowGraph = null
     labelOffsets[label] = offset
   }
 
+  // 方法的控制流图，第一次使用时构造并缓存，修改code后需要调用invalidateControlFlowGraph
+  fun controlFlowGraph(): ControlFlowGraph {
+    val cached = controlFlowGraph
+    if (cached != null) {
+      return cached
+    }
+    val cfg = ControlFlowGraph.build(this)
+    controlFlowGraph = cfg
+    return cfg
+  }
+
+  fun invalidateControlFlowGraph() {
+    controlFlowGraph = null
+  }
+
   fun lastInstruction(): Instruction? {
     return if(code.isEmpty()) null else code.last()
   }
@@ -101,25 +125,77 @@ class Instruction(val opCode: Int, var opArgs: MutableList<Any> = mutableListOf(
 }
 
 class ClassDefinitionReader {
-  var curClassDefinition: ClassDefinition? = null
-  var curMethodDefinition: MethodDefinition? = null
+  // 同时读取class文件的线程数，1表示在当前线程中顺序读取
+  var parallelism = 1
+  // trace为detail级别时输出每个class的ASM trace
+  var diagnostics = Diagnostics()
+
+  // 读取一个class的结果，trace是这个class的ASM trace，没有开启时为null
+  private class ClassReadResult(val classDef: ClassDefinition, val trace: String?)
+
+  /**
+   * 读取所有class文件，module中class的顺序和clsPaths一致
+   */
   fun readClass(clsPaths: List<String>): ModuleDefinition {
     val module = ModuleDefinition()
-    for(clsPath in clsPaths) {
-      use(FileInputStream(File(clsPath))) { clsInputStream ->
-        val clsReader = ClassReader(clsInputStream)
-        val printWriter = PrintWriter(System.out)
-        val traceClassVisitor: ClassVisitor = TraceClassVisitor(printWriter)
-        val myClassVisitor = DefinitionReaderClassVisitor(clsReader.className, this, traceClassVisitor)
-        clsReader.accept(myClassVisitor, ClassReader.EXPAND_FRAMES)
-        val classDef = curClassDefinition
-        if (classDef != null) {
-          classDef.interfaces.addAll(clsReader.interfaces)
-          classDef.superClassName = clsReader.superName.replace("/", ".")
-          module.classes.add(classDef)
+    if (parallelism <= 1 || clsPaths.size <= 1) {
+      for (clsPath in clsPaths) {
+        addClass(module, readClassFileWithTrace(clsPath))
+      }
+      return module
+    }
+    val pool = ForkJoinPool(Math.min(parallelism, clsPaths.size))
+    try {
+      val futures = clsPaths.map { clsPath -> pool.submit(Callable { readClassFileWithTrace(clsPath) }) }
+      for (future in futures) {
+        try {
+          addClass(module, future.get())
+        } catch (e: ExecutionException) {
+          throw e.cause ?: e
         }
       }
+    } finally {
+      pool.shutdown()
     }
     return module
   }
+
+  // 按clsPaths的顺序加入module并输出trace，并行读取时trace也不会交错
+  private fun addClass(module: ModuleDefinition, result: ClassReadResult) {
+    module.classes.add(result.classDef)
+    if (result.trace != null) {
+      diagnostics.report(DiagnosticCategory.Trace, DiagnosticLevel.Detail, result.trace)
+    }
+  }
+
+  /**
+   * 读取一个class文件，只使用这次调用自己的ClassReader和visitor，可以在多个线程中同时调用
+   */
+  fun readClassFile(clsPath: String): ClassDefinition {
+    return readClassFileWithTrace(clsPath).classDef
+  }
+
+  fun readClassBytes(bytes: ByteArray): ClassDefinition {
+    return readClassBytesWithTrace(bytes).classDef
+  }
+
+  private fun readClassFileWithTrace(clsPath: String): ClassReadResult {
+    return readClassBytesWithTrace(Files.readAllBytes(Paths.get(clsPath)))
+  }
+
+  private fun readClassBytesWithTrace(bytes: ByteArray): ClassReadResult {
+    val clsReader = ClassReader(bytes)
+    var traceWriter: StringWriter? = null
+    var traceClassVisitor: ClassVisitor? = null
+    if (diagnostics.isEnabled(DiagnosticCategory.Trace, DiagnosticLevel.Detail)) {
+      traceWriter = StringWriter()
+      traceClassVisitor = TraceClassVisitor(PrintWriter(traceWriter))
+    }
+    val myClassVisitor = DefinitionReaderClassVisitor(clsReader.className, traceClassVisitor)
+    clsReader.accept(myClassVisitor, ClassReader.EXPAND_FRAMES)
+    val classDef = myClassVisitor.classDef
+    classDef.interfaces.addAll(clsReader.interfaces)
+    classDef.superClassName = clsReader.superName.replace("/", ".")
+    return ClassReadResult(classDef, traceWriter?.toString())
+  }
 }
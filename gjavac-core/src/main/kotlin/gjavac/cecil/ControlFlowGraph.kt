@@ -0,0 +1,282 @@
+package gjavac.cecil
+
+import gjavac.exceptions.GjavacException
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+
+/**
+ * jvm方法体中的基本块，包含method.code中[startOffset, endOffset)的指令
+ */
+class BasicBlock(val index: Int, val startOffset: Int, val endOffset: Int) {
+  val preds: MutableList<BasicBlock> = mutableListOf()
+  val succs: MutableList<BasicBlock> = mutableListOf()
+  // 直接支配节点，入口块和不可达块为null
+  var idom: BasicBlock? = null
+  // 支配树中的子节点
+  val domChildren: MutableList<BasicBlock> = mutableListOf()
+  // 在逆后序中的位置，不可达的块为-1
+  var rpoIndex: Int = -1
+
+  fun isReachable(): Boolean = rpoIndex >= 0
+
+  fun size(): Int = endOffset - startOffset
+
+  fun lastOffset(): Int = endOffset - 1
+
+  fun instructions(method: MethodDefinition): List<Instruction> {
+    return method.code.subList(startOffset, endOffset)
+  }
+
+  override fun toString(): String {
+    return "B$index[$startOffset,$endOffset)"
+  }
+}
+
+/**
+ * jvm方法的控制流图，基本块按offset顺序排列，blocks[0]是入口块
+ * 通过MethodDefinition.controlFlowGraph()获取，每个方法只构造一次
+ */
+class ControlFlowGraph(val method: MethodDefinition, val blocks: List<BasicBlock>, private val blockIndexOfOffset: IntArray) {
+  // 可达块的逆后序
+  val reversePostOrder: MutableList<BasicBlock> = mutableListOf()
+
+  companion object {
+    fun build(method: MethodDefinition): ControlFlowGraph {
+      val code = method.code
+      val isLeader = BooleanArray(code.size + 1)
+      if (code.size > 0) {
+        isLeader[0] = true
+      }
+      for (j in 0 until code.size) {
+        val inst = code[j]
+        if (!endsBlock(inst.opCode)) {
+          continue
+        }
+        isLeader[j + 1] = true
+        for (succ in successorOffsets(method, j)) {
+          if (succ >= 0 && succ < code.size) {
+            isLeader[succ] = true
+          }
+        }
+      }
+      val blocks: MutableList<BasicBlock> = mutableListOf()
+      val blockIndexOfOffset = IntArray(code.size)
+      var start = 0
+      for (j in 1..code.size) {
+        if (j == code.size || isLeader[j]) {
+          val block = BasicBlock(blocks.size, start, j)
+          for (k in start until j) {
+            blockIndexOfOffset[k] = block.index
+          }
+          blocks.add(block)
+          start = j
+        }
+      }
+      for (block in blocks) {
+        for (succ in successorOffsets(method, block.lastOffset())) {
+          if (succ < 0 || succ >= code.size) {
+            continue
+          }
+          val succBlock = blocks[blockIndexOfOffset[succ]]
+          if (!block.succs.contains(succBlock)) {
+            block.succs.add(succBlock)
+            succBlock.preds.add(block)
+          }
+        }
+      }
+      val cfg = ControlFlowGraph(method, blocks, blockIndexOfOffset)
+      cfg.computeReversePostOrder()
+      cfg.computeDominators()
+      return cfg
+    }
+
+    /**
+     * 会结束基本块的指令(跳转，switch，return，throw)
+     */
+    fun endsBlock(opCode: Int): Boolean {
+      return when (opCode) {
+        Opcodes.GOTO, Opcodes.JSR, Opcodes.RET,
+        Opcodes.IFNULL, Opcodes.IFNONNULL, Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFGE, Opcodes.IFGT, Opcodes.IFLT, Opcodes.IFLE,
+        Opcodes.IF_ACMPEQ, Opcodes.IF_ACMPNE, Opcodes.IF_ICMPEQ, Opcodes.IF_ICMPNE, Opcodes.IF_ICMPGE, Opcodes.IF_ICMPGT,
+        Opcodes.IF_ICMPLT, Opcodes.IF_ICMPLE, Opcodes.TABLESWITCH, Opcodes.LOOKUPSWITCH,
+        Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.RETURN,
+        Opcodes.ATHROW -> true
+        else -> false
+      }
+    }
+
+    private fun labelIndex(method: MethodDefinition, label: Any): Int {
+      val offset = method.offsetOfLabel(label as Label)
+      if (offset == null) {
+        throw GjavacException("Can't find position of label " + label)
+      }
+      return offset
+    }
+
+    /**
+     * 第index条指令执行后可能到达的指令位置，条件跳转的fallthrough在前
+     */
+    fun successorOffsets(method: MethodDefinition, index: Int): List<Int> {
+      val inst = method.code[index]
+      return when (inst.opCode) {
+        Opcodes.GOTO, Opcodes.JSR -> listOf(labelIndex(method, inst.opArgs[0]))
+        Opcodes.IFNULL, Opcodes.IFNONNULL, Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFGE, Opcodes.IFGT, Opcodes.IFLT, Opcodes.IFLE,
+        Opcodes.IF_ACMPEQ, Opcodes.IF_ACMPNE, Opcodes.IF_ICMPEQ, Opcodes.IF_ICMPNE, Opcodes.IF_ICMPGE, Opcodes.IF_ICMPGT,
+        Opcodes.IF_ICMPLT, Opcodes.IF_ICMPLE -> listOf(index + 1, labelIndex(method, inst.opArgs[0]))
+        Opcodes.TABLESWITCH -> {
+          val targets = mutableListOf(labelIndex(method, inst.opArgs[2]))
+          for (label in inst.opArgs[3] as Array<*>) {
+            targets.add(labelIndex(method, label!!))
+          }
+          targets
+        }
+        Opcodes.LOOKUPSWITCH -> {
+          val targets = mutableListOf(labelIndex(method, inst.opArgs[0]))
+          for (label in inst.opArgs[2] as Array<*>) {
+            targets.add(labelIndex(method, label!!))
+          }
+          targets
+        }
+        Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.RETURN,
+        Opcodes.ATHROW, Opcodes.RET -> listOf()
+        else -> listOf(index + 1)
+      }
+    }
+  }
+
+  fun entry(): BasicBlock? = if (blocks.isEmpty()) null else blocks[0]
+
+  fun blockAt(offset: Int): BasicBlock {
+    if (offset < 0 || offset >= blockIndexOfOffset.size) {
+      throw GjavacException("offset " + offset + " out of method code " + method.fullName())
+    }
+    return blocks[blockIndexOfOffset[offset]]
+  }
+
+  fun blockOf(inst: Instruction): BasicBlock = blockAt(inst.offset)
+
+  /**
+   * a是否支配b(每个可达块都支配自己)
+   */
+  fun dominates(a: BasicBlock, b: BasicBlock): Boolean {
+    if (!a.isReachable() || !b.isReachable()) {
+      return false
+    }
+    var cur: BasicBlock? = b
+    while (cur != null) {
+      if (cur == a) {
+        return true
+      }
+      cur = cur.idom
+    }
+    return false
+  }
+
+  // 目标块支配来源块的边是循环的回边
+  fun isBackEdge(from: BasicBlock, to: BasicBlock): Boolean = from.succs.contains(to) && dominates(to, from)
+
+  fun loopHeaders(): List<BasicBlock> {
+    return reversePostOrder.filter { header -> header.preds.any { isBackEdge(it, header) } }
+  }
+
+  /**
+   * 回边latch -> header对应的自然循环: header以及不经过header能到达latch的所有块
+   */
+  fun naturalLoop(header: BasicBlock, latch: BasicBlock): Set<BasicBlock> {
+    val body: MutableSet<BasicBlock> = mutableSetOf(header)
+    val worklist: MutableList<BasicBlock> = mutableListOf()
+    if (body.add(latch)) {
+      worklist.add(latch)
+    }
+    while (worklist.size > 0) {
+      val block = worklist.removeAt(worklist.size - 1)
+      for (pred in block.preds) {
+        if (pred.isReachable() && body.add(pred)) {
+          worklist.add(pred)
+        }
+      }
+    }
+    return body
+  }
+
+  fun unreachableBlocks(): List<BasicBlock> = blocks.filter { !it.isReachable() }
+
+  private fun computeReversePostOrder() {
+    val entry = entry() ?: return
+    val postOrder: MutableList<BasicBlock> = mutableListOf()
+    val visited = BooleanArray(blocks.size)
+    // 非递归dfs，栈中保存(块, 下一个要访问的后继下标)
+    val stack: MutableList<Pair<BasicBlock, Int>> = mutableListOf(Pair(entry, 0))
+    visited[entry.index] = true
+    while (stack.size > 0) {
+      val (block, succIndex) = stack[stack.size - 1]
+      if (succIndex < block.succs.size) {
+        stack[stack.size - 1] = Pair(block, succIndex + 1)
+        val succ = block.succs[succIndex]
+        if (!visited[succ.index]) {
+          visited[succ.index] = true
+          stack.add(Pair(succ, 0))
+        }
+      } else {
+        stack.removeAt(stack.size - 1)
+        postOrder.add(block)
+      }
+    }
+    for (j in postOrder.size - 1 downTo 0) {
+      val block = postOrder[j]
+      block.rpoIndex = reversePostOrder.size
+      reversePostOrder.add(block)
+    }
+  }
+
+  /**
+   * Cooper-Harvey-Kennedy迭代算法计算直接支配节点
+   */
+  private fun computeDominators() {
+    val entry = entry() ?: return
+    val idoms: Array<BasicBlock?> = arrayOfNulls(blocks.size)
+    idoms[entry.index] = entry
+    var changed = true
+    while (changed) {
+      changed = false
+      for (block in reversePostOrder) {
+        if (block == entry) {
+          continue
+        }
+        var newIdom: BasicBlock? = null
+        for (pred in block.preds) {
+          if (idoms[pred.index] == null) {
+            continue
+          }
+          newIdom = if (newIdom == null) pred else intersect(pred, newIdom, idoms)
+        }
+        if (newIdom != null && idoms[block.index] != newIdom) {
+          idoms[block.index] = newIdom
+          changed = true
+        }
+      }
+    }
+    for (block in reversePostOrder) {
+      if (block == entry) {
+        continue
+      }
+      val idom = idoms[block.index]!!
+      block.idom = idom
+      idom.domChildren.add(block)
+    }
+  }
+
+  private fun intersect(b1: BasicBlock, b2: BasicBlock, idoms: Array<BasicBlock?>): BasicBlock {
+    var finger1 = b1
+    var finger2 = b2
+    while (finger1 != finger2) {
+      while (finger1.rpoIndex > finger2.rpoIndex) {
+        finger1 = idoms[finger1.index]!!
+      }
+      while (finger2.rpoIndex > finger1.rpoIndex) {
+        finger2 = idoms[finger2.index]!!
+      }
+    }
+    return finger1
+  }
+}
@@ -0,0 +1,245 @@
+package gjavac.cecil
+
+import org.objectweb.asm.Opcodes
+
+/**
+ * 可以翻译成uvm数值for循环(forprep/forloop)的计数循环
+ * 循环变量是int局部变量slot，每次迭代加step，循环继续的条件是 i <= limit(step > 0) 或 i >= limit(step < 0)，
+ * limit是常量(limitSlot为-1时用limitConstant)或者循环中不会修改的int局部变量limitSlot再加上limitAdjust
+ * prepInst处翻译成forprep，latchInst处翻译成forloop，skippedInstructions中的指令不再翻译
+ * incrementsOnExit为true时，正常结束循环时jvm的循环变量比最后一次迭代的值多加了一次step
+ * depth是外层计数循环的层数，用来分配forloop使用的寄存器
+ */
+class CountedLoop(val slot: Int, val step: Int, val limitSlot: Int, val limitConstant: Int, val limitAdjust: Int,
+                  val prepInst: Instruction, val latchInst: Instruction, val exitInst: Instruction,
+                  val skippedInstructions: List<Instruction>, val incrementsOnExit: Boolean, val depth: Int) {
+  fun hasConstantLimit(): Boolean = limitSlot < 0
+}
+
+class MethodCountedLoops(val loops: List<CountedLoop>) {
+  private val loopsByPrep = loops.associateBy { it.prepInst }
+  private val loopsByLatch = loops.associateBy { it.latchInst }
+  private val skipped: Set<Instruction> = loops.flatMap { it.skippedInstructions }.toSet()
+
+  fun loopPreparedAt(inst: Instruction): CountedLoop? = loopsByPrep[inst]
+
+  fun loopLatchedAt(inst: Instruction): CountedLoop? = loopsByLatch[inst]
+
+  fun isSkipped(inst: Instruction): Boolean = skipped.contains(inst)
+
+  // 同时需要的forloop寄存器组数
+  fun nestingLevels(): Int = (loops.map { it.depth }.max() ?: -1) + 1
+}
+
+/**
+ * 在控制流图的自然循环中识别计数循环，支持两种字节码结构:
+ * 1. 先判断条件再执行循环体(javac的for/while，kotlin的while):
+ *      header: ILOAD i; <bound>; IF_ICMPxx exit
+ *      body...
+ *      latch:  IINC i step; GOTO header
+ * 2. kotlin的 for (i in a..b)，先判断一次 i > b，之后每次迭代结束时判断 i == b:
+ *      guard:  ILOAD i; ILOAD b; IF_ICMPGT exit
+ *      header: body...
+ *              ILOAD i; ILOAD b; IF_ICMPEQ exit
+ *      latch:  IINC i 1; GOTO header
+ * bound是int常量或者int局部变量，循环体中除了latch的IINC以外不能修改i和bound
+ */
+class CountedLoopAnalyzer(val method: MethodDefinition) {
+
+  companion object {
+    fun analyze(method: MethodDefinition): MethodCountedLoops {
+      return CountedLoopAnalyzer(method).analyze()
+    }
+  }
+
+  // 还没有计算嵌套层数的计数循环
+  private class LoopMatch(val header: BasicBlock, val body: Set<BasicBlock>, val slot: Int, val step: Int,
+                          val bound: Instruction, val limitAdjust: Int, val prepInst: Instruction,
+                          val latchInst: Instruction, val exitInst: Instruction,
+                          val skippedInstructions: List<Instruction>, val incrementsOnExit: Boolean)
+
+  private val code = method.code
+  private val cfg = method.controlFlowGraph()
+
+  fun analyze(): MethodCountedLoops {
+    val matches: MutableList<LoopMatch> = mutableListOf()
+    for (header in cfg.loopHeaders()) {
+      val match = matchLoop(header)
+      if (match != null) {
+        matches.add(match)
+      }
+    }
+    val loops: MutableList<CountedLoop> = mutableListOf()
+    for (match in matches) {
+      val depth = matches.count { it != match && it.body.contains(match.header) }
+      val limitSlot = if (match.bound.opCode == Opcodes.ILOAD) match.bound.opArgs[0] as Int else -1
+      val limitConstant = if (limitSlot < 0) constantOf(match.bound)!! + match.limitAdjust else 0
+      loops.add(CountedLoop(match.slot, match.step, limitSlot, limitConstant, match.limitAdjust, match.prepInst,
+          match.latchInst, match.exitInst, match.skippedInstructions, match.incrementsOnExit, depth))
+    }
+    return MethodCountedLoops(loops)
+  }
+
+  private fun matchLoop(header: BasicBlock): LoopMatch? {
+    val backEdges = header.preds.filter { cfg.isBackEdge(it, header) }
+    if (backEdges.size != 1) {
+      return null
+    }
+    val latch = backEdges[0]
+    val latchInsts = nonNopInstructions(latch)
+    if (latchInsts.size < 2) {
+      return null
+    }
+    val gotoInst = latchInsts[latchInsts.size - 1]
+    val incInst = latchInsts[latchInsts.size - 2]
+    if (gotoInst.opCode != Opcodes.GOTO || incInst.opCode != Opcodes.IINC) {
+      return null
+    }
+    val slot = incInst.opArgs[0] as Int
+    val step = incInst.opArgs[1] as Int
+    if (step == 0) {
+      return null
+    }
+    val body = cfg.naturalLoop(header, latch)
+    val match = matchTopTestedLoop(header, latch, body, slot, step, incInst, gotoInst)
+        ?: matchRangeLoop(header, latch, body, slot, step, incInst, gotoInst)
+        ?: return null
+    if (modifiesLocal(body, slot, incInst)
+        || (match.bound.opCode == Opcodes.ILOAD && modifiesLocal(body, match.bound.opArgs[0] as Int, null))) {
+      return null
+    }
+    return match
+  }
+
+  private fun matchTopTestedLoop(header: BasicBlock, latch: BasicBlock, body: Set<BasicBlock>, slot: Int, step: Int,
+                                 incInst: Instruction, gotoInst: Instruction): LoopMatch? {
+    val headerInsts = nonNopInstructions(header)
+    if (headerInsts.size != 3 || code[header.startOffset] != headerInsts[0] || latch == header) {
+      return null
+    }
+    val cond = matchCondition(headerInsts, 0, slot) ?: return null
+    val branchInst = headerInsts[2]
+    // 条件成立时跳出循环
+    val limitAdjust = when {
+      step > 0 && branchInst.opCode == Opcodes.IF_ICMPGE -> -1
+      step > 0 && branchInst.opCode == Opcodes.IF_ICMPGT -> 0
+      step < 0 && branchInst.opCode == Opcodes.IF_ICMPLE -> 1
+      step < 0 && branchInst.opCode == Opcodes.IF_ICMPLT -> 0
+      else -> return null
+    }
+    val bodyStart = cfg.blockAt(branchInst.offset + 1)
+    val exitInst = exitOf(branchInst, body) ?: return null
+    if (!body.contains(bodyStart) || bodyStart.preds != listOf(header)) {
+      return null
+    }
+    return LoopMatch(header, body, slot, step, cond, limitAdjust, headerInsts[0], incInst, exitInst,
+        listOf(cond, branchInst, gotoInst), true)
+  }
+
+  private fun matchRangeLoop(header: BasicBlock, latch: BasicBlock, body: Set<BasicBlock>, slot: Int, step: Int,
+                             incInst: Instruction, gotoInst: Instruction): LoopMatch? {
+    if ((step != 1 && step != -1) || latch.preds.size != 1 || nonNopInstructions(latch).size != 2) {
+      return null
+    }
+    // 每次迭代结束时的 i == b 判断
+    val check = latch.preds[0]
+    val checkInsts = nonNopInstructions(check)
+    if (!body.contains(check) || checkInsts.size < 3) {
+      return null
+    }
+    val checkBound = matchCondition(checkInsts, checkInsts.size - 3, slot) ?: return null
+    val checkBranch = checkInsts[checkInsts.size - 1]
+    if (checkBranch.opCode != Opcodes.IF_ICMPEQ || cfg.blockAt(checkBranch.offset + 1) != latch) {
+      return null
+    }
+    // 进入循环前的 i > b 判断，紧挨在header前面
+    val guard = header.preds.find { it != latch && it.endOffset == header.startOffset } ?: return null
+    if (header.preds.size != 2) {
+      return null
+    }
+    val guardInsts = nonNopInstructions(guard)
+    if (guardInsts.size < 3) {
+      return null
+    }
+    val guardBound = matchCondition(guardInsts, guardInsts.size - 3, slot) ?: return null
+    val guardBranch = guardInsts[guardInsts.size - 1]
+    val guardOpCode = if (step > 0) Opcodes.IF_ICMPGT else Opcodes.IF_ICMPLT
+    if (guardBranch.opCode != guardOpCode || !sameBound(guardBound, checkBound)) {
+      return null
+    }
+    val exitInst = exitOf(checkBranch, body) ?: return null
+    if (exitOf(guardBranch, body) != exitInst) {
+      return null
+    }
+    return LoopMatch(header, body, slot, step, guardBound, 0, guardInsts[guardInsts.size - 3],
+        checkInsts[checkInsts.size - 3], exitInst,
+        listOf(guardBound, guardBranch, checkBound, checkBranch, incInst, gotoInst), false)
+  }
+
+  /**
+   * insts[from]是ILOAD slot，insts[from + 1]是int常量或ILOAD，insts[from + 2]是IF_ICMPxx，返回bound指令
+   */
+  private fun matchCondition(insts: List<Instruction>, from: Int, slot: Int): Instruction? {
+    val load = insts[from]
+    val bound = insts[from + 1]
+    val branch = insts[from + 2]
+    if (load.opCode != Opcodes.ILOAD || load.opArgs[0] as Int != slot
+        || branch.opCode < Opcodes.IF_ICMPEQ || branch.opCode > Opcodes.IF_ICMPLE) {
+      return null
+    }
+    if (bound.opCode == Opcodes.ILOAD) {
+      return if (bound.opArgs[0] as Int != slot) bound else null
+    }
+    return if (constantOf(bound) != null) bound else null
+  }
+
+  private fun sameBound(a: Instruction, b: Instruction): Boolean {
+    if (a.opCode == Opcodes.ILOAD || b.opCode == Opcodes.ILOAD) {
+      return a.opCode == b.opCode && a.opArgs[0] == b.opArgs[0]
+    }
+    return constantOf(a) == constantOf(b)
+  }
+
+  // 条件跳转的目标在循环外时返回目标指令
+  private fun exitOf(branchInst: Instruction, body: Set<BasicBlock>): Instruction? {
+    val offset = ControlFlowGraph.successorOffsets(method, branchInst.offset)[1]
+    if (offset < 0 || offset >= code.size || body.contains(cfg.blockAt(offset))) {
+      return null
+    }
+    return code[offset]
+  }
+
+  private fun constantOf(inst: Instruction): Int? {
+    return when (inst.opCode) {
+      Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3, Opcodes.ICONST_4,
+      Opcodes.ICONST_5 -> inst.opCode - Opcodes.ICONST_0
+      Opcodes.BIPUSH, Opcodes.SIPUSH -> inst.opArgs[0] as Int
+      Opcodes.LDC -> inst.opArgs[0] as? Int
+      else -> null
+    }
+  }
+
+  // 循环中除了except以外是否有指令修改局部变量slot
+  private fun modifiesLocal(body: Set<BasicBlock>, slot: Int, except: Instruction?): Boolean {
+    for (block in body) {
+      for (inst in block.instructions(method)) {
+        if (inst == except) {
+          continue
+        }
+        val modified = when (inst.opCode) {
+          Opcodes.ISTORE, Opcodes.FSTORE, Opcodes.ASTORE, Opcodes.IINC -> inst.opArgs[0] as Int == slot
+          Opcodes.LSTORE, Opcodes.DSTORE -> inst.opArgs[0] as Int == slot || inst.opArgs[0] as Int + 1 == slot
+          else -> false
+        }
+        if (modified) {
+          return true
+        }
+      }
+    }
+    return false
+  }
+
+  private fun nonNopInstructions(block: BasicBlock): List<Instruction> {
+    return block.instructions(method).filter { it.opCode != Opcodes.NOP }
+  }
+}
@@ -4,19 +4,15 @@ import gjavac.exceptions.ByteCodeDecodeException
 import gjavac.utils.MethodTypeInfo
 import gjavac.utils.decodeFromTypeSignature
 import org.objectweb.asm.*
-import org.objectweb.asm.util.Textifier
-import java.io.PrintWriter
 
 // TODO: read sub classes
 
-class DefinitionReaderClassVisitor (val clsName: String, val definitionReader: ClassDefinitionReader, cv: ClassVisitor) : ClassVisitor(Opcodes.ASM5, cv) {
+// 每个class使用自己的visitor，读取结果只保存在classDef中，不同的class可以在不同线程中读取
+// cv是输出ASM trace的visitor，不需要trace时为null
+class DefinitionReaderClassVisitor (val clsName: String, cv: ClassVisitor?) : ClassVisitor(Opcodes.ASM5, cv) {
 
   val classDef = ClassDefinition(clsName)
 
-  init {
-    definitionReader.curClassDefinition = classDef
-  }
-
   override fun visitField(access: Int, name: String, desc: String,
                           signature: String?, value: Any?): FieldVisitor? {
     val field = FieldDefinition(name, access and Opcodes.ACC_PUBLIC == Opcodes.ACC_PUBLIC,
@@ -32,14 +28,11 @@ class DefinitionReaderClassVisitor (val clsName: String, val definitionReader: C
 
   override fun visitInnerClass(name: String, outerName: String,
                       innerName: String, access: Int) {
-    val parentCurClass = definitionReader.curClassDefinition
     val innerCls = ClassDefinition(name)
-    definitionReader.curClassDefinition = innerCls
-    parentCurClass?.innerClasses?.add(innerCls)
+    classDef.innerClasses.add(innerCls)
     if (cv != null) {
       cv.visitInnerClass(name, outerName, innerName, access)
     }
-    definitionReader.curClassDefinition = parentCurClass
     // TODO: 内部类暂时还没测
   }
 
@@ -51,12 +44,13 @@ class DefinitionReaderClassVisitor (val clsName: String, val definitionReader: C
   }
 
   override fun visitEnd() {
+    if (cv != null) {
+      cv.visitEnd()
+    }
   }
 
   override fun visitMethod(access: Int, name: String, desc: String?,
                            signature: String?, exceptions: Array<String>?): MethodVisitor? {
-    val mv = cv.visitMethod(access, name, desc, signature, exceptions)
-
     val methodDef = MethodDefinition(classDef)
     methodDef.name = name
     methodDef.desc = desc
@@ -69,16 +63,9 @@ class DefinitionReaderClassVisitor (val clsName: String, val definitionReader: C
       throw ByteCodeDecodeException("Can't find method's signature, method name is " + name)
     }
     classDef.methods.add(methodDef)
-    definitionReader.curMethodDefinition = methodDef
 
-    val p = object : Textifier(Opcodes.ASM5) {
-      override fun visitMethodEnd() {
-        print(PrintWriter(System.out)) // print it after it has been visited
-      }
-    }
-//    return TraceMethodVisitor(mv, p)
     // TODO: read labels: now ifnull, goto instructions etc. 's destination in invalid
 
-    return DefinitionReaderMethodVisitor(methodDef, super.visitMethod(access, name, desc, signature, exceptions), p)
+    return DefinitionReaderMethodVisitor(methodDef, super.visitMethod(access, name, desc, signature, exceptions))
   }
 }
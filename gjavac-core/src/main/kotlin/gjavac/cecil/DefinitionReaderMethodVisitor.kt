@@ -7,7 +7,7 @@ import org.objectweb.asm.util.Printer
 import org.objectweb.asm.util.Textifier
 import org.objectweb.asm.util.TraceSignatureVisitor
 
-class DefinitionReaderMethodVisitor(val method: MethodDefinition, mv: MethodVisitor, val p: Textifier) : MethodVisitor(Opcodes.ASM4, mv) {
+class DefinitionReaderMethodVisitor(val method: MethodDefinition, mv: MethodVisitor?) : MethodVisitor(Opcodes.ASM4, mv) {
 
     private val buf = StringBuffer()
 
@@ -226,7 +226,9 @@ class DefinitionReaderMethodVisitor(val method: MethodDefinition, mv: MethodVisi
         }
         buf.append('\n')
         buf.append(tab2).append("]\n")
-        method.addInstruction(Instruction(Opcodes.INVOKEDYNAMIC, opArgs = mutableListOf(SimpleInfo(name, desc) as Object), instLine = buf.toString()))
+        // opArgs: 调用点的名称和描述符, bootstrap方法, bootstrap参数(比如字符串拼接的recipe)
+        method.addInstruction(Instruction(Opcodes.INVOKEDYNAMIC, opArgs = mutableListOf(SimpleInfo(name, desc) as Object, bsm as Any,
+                bsmArgs.toList() as Any), instLine = buf.toString()))
     }
 
     protected var labelNames: MutableMap<Label, String>? = null
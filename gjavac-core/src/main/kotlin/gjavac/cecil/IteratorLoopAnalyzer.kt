@@ -0,0 +1,304 @@
+package gjavac.cecil
+
+import gjavac.lib.ArrayIterator
+import gjavac.lib.MapIterator
+import org.objectweb.asm.Opcodes
+
+/**
+ * 可以翻译成uvm泛型for循环(tforcall/tforloop)的UvmMap.pairs/UvmArray.ipairs迭代循环
+ * prepInst是第一次调用迭代函数的INVOKEINTERFACE，翻译时把栈上的迭代函数，集合和初始key放到tforcall寄存器
+ * latchInst是回边处再次调用迭代函数的第一条指令，翻译成tforcall和tforloop，skippedInstructions中的指令不再翻译
+ * keyLoads/valueLoads是循环体中读取pair.first/pair.second的指令，直接使用tforcall返回的寄存器，不再创建pair table
+ * depth是外层迭代循环的层数，用来分配tforcall使用的寄存器
+ */
+class IteratorLoop(val prepInst: Instruction, val latchInst: Instruction, val bodyStartInst: Instruction,
+                   val exitInst: Instruction, val skippedInstructions: List<Instruction>,
+                   val keyLoads: List<Instruction>, val valueLoads: List<Instruction>, val depth: Int)
+
+class MethodIteratorLoops(val loops: List<IteratorLoop>) {
+  private val loopsByPrep = loops.associateBy { it.prepInst }
+  private val loopsByLatch = loops.associateBy { it.latchInst }
+  private val skipped: Set<Instruction> = loops.flatMap { it.skippedInstructions }.toSet()
+  private val loopsByKeyLoad: Map<Instruction, IteratorLoop> = loops.flatMap { loop -> loop.keyLoads.map { Pair(it, loop) } }.toMap()
+  private val loopsByValueLoad: Map<Instruction, IteratorLoop> = loops.flatMap { loop -> loop.valueLoads.map { Pair(it, loop) } }.toMap()
+
+  fun loopPreparedAt(inst: Instruction): IteratorLoop? = loopsByPrep[inst]
+
+  fun loopLatchedAt(inst: Instruction): IteratorLoop? = loopsByLatch[inst]
+
+  fun isSkipped(inst: Instruction): Boolean = skipped.contains(inst)
+
+  fun keyLoadedAt(inst: Instruction): IteratorLoop? = loopsByKeyLoad[inst]
+
+  fun valueLoadedAt(inst: Instruction): IteratorLoop? = loopsByValueLoad[inst]
+
+  // 同时需要的tforcall寄存器组数
+  fun nestingLevels(): Int = (loops.map { it.depth }.max() ?: -1) + 1
+}
+
+/**
+ * 识别java/kotlin中用pairs/ipairs迭代集合的循环，javac和kotlinc生成的字节码结构相同:
+ *      init:   ALOAD it; ALOAD coll; <初始key>; INVOKEINTERFACE ArrayIterator/MapIterator.invoke; CHECKCAST kotlin/Pair; ASTORE p
+ *      header: ALOAD p; INVOKEVIRTUAL Pair.getFirst; IFNULL exit
+ *      body... (ALOAD p; INVOKEVIRTUAL Pair.getFirst/getSecond, ALOAD p; IFNULL/IFNONNULL)
+ *      latch:  ALOAD it; ALOAD coll; ALOAD p; INVOKEVIRTUAL Pair.getFirst; INVOKEINTERFACE invoke; CHECKCAST kotlin/Pair; ASTORE p; GOTO header
+ * 初始key是ipairs的 ICONST_0; Integer.valueOf 或者pairs的 ACONST_NULL 等单条压栈指令
+ * 循环中不能修改it和coll，p只能用来读取first/second或者判断是否为null(循环体中一定不是null)，循环外也不能再读取循环中的p
+ */
+class IteratorLoopAnalyzer(val method: MethodDefinition) {
+
+  companion object {
+    private val ITERATOR_OWNERS = setOf(ArrayIterator::class.java.name.replace('.', '/'),
+        MapIterator::class.java.name.replace('.', '/'))
+    private val PAIR_OWNER = "kotlin/Pair"
+
+    fun analyze(method: MethodDefinition): MethodIteratorLoops {
+      return IteratorLoopAnalyzer(method).analyze()
+    }
+  }
+
+  // 还没有计算嵌套层数的迭代循环
+  private class LoopMatch(val header: BasicBlock, val body: Set<BasicBlock>, val prepInst: Instruction,
+                          val latchInst: Instruction, val bodyStartInst: Instruction, val exitInst: Instruction,
+                          val skippedInstructions: List<Instruction>, val keyLoads: List<Instruction>,
+                          val valueLoads: List<Instruction>)
+
+  private val code = method.code
+  private val cfg = method.controlFlowGraph()
+
+  fun analyze(): MethodIteratorLoops {
+    val matches: MutableList<LoopMatch> = mutableListOf()
+    for (header in cfg.loopHeaders()) {
+      val match = matchLoop(header)
+      if (match != null) {
+        matches.add(match)
+      }
+    }
+    val loops: MutableList<IteratorLoop> = mutableListOf()
+    for (match in matches) {
+      val depth = matches.count { it != match && it.body.contains(match.header) }
+      loops.add(IteratorLoop(match.prepInst, match.latchInst, match.bodyStartInst, match.exitInst,
+          match.skippedInstructions, match.keyLoads, match.valueLoads, depth))
+    }
+    return MethodIteratorLoops(loops)
+  }
+
+  private fun matchLoop(header: BasicBlock): LoopMatch? {
+    val backEdges = header.preds.filter { cfg.isBackEdge(it, header) }
+    if (backEdges.size != 1 || header.preds.size != 2) {
+      return null
+    }
+    val latch = backEdges[0]
+    val init = header.preds.find { it != latch && it.endOffset == header.startOffset } ?: return null
+    if (latch == header) {
+      return null
+    }
+    // header: ALOAD p; getFirst; IFNULL exit
+    val headerInsts = nonNopInstructions(header)
+    if (headerInsts.size != 3 || code[header.startOffset] != headerInsts[0] || headerInsts[0].opCode != Opcodes.ALOAD
+        || !isPairGetter(headerInsts[1], "getFirst") || headerInsts[2].opCode != Opcodes.IFNULL) {
+      return null
+    }
+    val pairSlot = headerInsts[0].opArgs[0] as Int
+    val body = cfg.naturalLoop(header, latch)
+    val branchInst = headerInsts[2]
+    val bodyStart = cfg.blockAt(branchInst.offset + 1)
+    val exitOffset = ControlFlowGraph.successorOffsets(method, branchInst.offset)[1]
+    if (!body.contains(bodyStart) || bodyStart.preds != listOf(header) || body.contains(cfg.blockAt(exitOffset))) {
+      return null
+    }
+    // init: ALOAD it; ALOAD coll; <key>; invoke; CHECKCAST Pair; ASTORE p
+    val initInsts = nonNopInstructions(init)
+    if (initInsts.size < 6) {
+      return null
+    }
+    val initStore = initInsts[initInsts.size - 1]
+    val initCast = initInsts[initInsts.size - 2]
+    val initCall = initInsts[initInsts.size - 3]
+    if (!isPairStore(initStore, initCast, pairSlot) || !isIteratorCall(initCall)) {
+      return null
+    }
+    val keyStart = matchKey(initInsts, initInsts.size - 4) ?: return null
+    if (keyStart < 2) {
+      return null
+    }
+    val initIterator = initInsts[keyStart - 2]
+    val initCollection = initInsts[keyStart - 1]
+    if (initIterator.opCode != Opcodes.ALOAD || initCollection.opCode != Opcodes.ALOAD) {
+      return null
+    }
+    val iteratorSlot = initIterator.opArgs[0] as Int
+    val collectionSlot = initCollection.opArgs[0] as Int
+    if (iteratorSlot == pairSlot || collectionSlot == pairSlot) {
+      return null
+    }
+    // latch: ALOAD it; ALOAD coll; ALOAD p; getFirst; invoke; CHECKCAST Pair; ASTORE p; GOTO header
+    val latchInsts = nonNopInstructions(latch)
+    if (latchInsts.size < 8) {
+      return null
+    }
+    val latchSeq = latchInsts.subList(latchInsts.size - 8, latchInsts.size)
+    if (!isLoad(latchSeq[0], iteratorSlot) || !isLoad(latchSeq[1], collectionSlot) || !isLoad(latchSeq[2], pairSlot)
+        || !isPairGetter(latchSeq[3], "getFirst") || !isIteratorCall(latchSeq[4])
+        || !isPairStore(latchSeq[6], latchSeq[5], pairSlot) || latchSeq[7].opCode != Opcodes.GOTO
+        || latchSeq[0].offset < initCall.offset) {
+      return null
+    }
+    if (modifiesLocal(body, iteratorSlot, null) || modifiesLocal(body, collectionSlot, null)
+        || modifiesLocal(body, pairSlot, latchSeq[6])) {
+      return null
+    }
+    // 循环体中对p的使用
+    val latchSkipped = latchSeq.subList(1, latchSeq.size).toSet()
+    val skipped: MutableList<Instruction> = mutableListOf(initCast, initStore)
+    skipped.addAll(headerInsts)
+    skipped.addAll(latchSkipped)
+    val keyLoads: MutableList<Instruction> = mutableListOf()
+    val valueLoads: MutableList<Instruction> = mutableListOf()
+    for (block in body) {
+      if (block == header) {
+        continue
+      }
+      val insts = nonNopInstructions(block)
+      for (k in 0 until insts.size) {
+        val inst = insts[k]
+        if (!isLoad(inst, pairSlot) || latchSkipped.contains(inst)) {
+          continue
+        }
+        val user = if (k + 1 < insts.size) insts[k + 1] else return null
+        if (isPairGetter(user, "getFirst")) {
+          skipped.add(inst)
+          keyLoads.add(user)
+        } else if (isPairGetter(user, "getSecond")) {
+          skipped.add(inst)
+          valueLoads.add(user)
+        } else if (user.opCode == Opcodes.IFNULL) {
+          // 循环体中p一定不是null，不会跳转
+          skipped.add(inst)
+          skipped.add(user)
+        } else if (user.opCode == Opcodes.IFNONNULL) {
+          // 用一定不是nil的key寄存器代替p
+          keyLoads.add(inst)
+        } else {
+          return null
+        }
+      }
+    }
+    if (readsPairAfterLoop(body, pairSlot)) {
+      return null
+    }
+    return LoopMatch(header, body, initCall, latchSeq[0], code[bodyStart.startOffset], code[exitOffset], skipped,
+        keyLoads, valueLoads)
+  }
+
+  /**
+   * insts[last]是初始key压栈的最后一条指令，返回初始key第一条指令的下标
+   */
+  private fun matchKey(insts: List<Instruction>, last: Int): Int? {
+    val keyInst = insts[last]
+    if (keyInst.opCode == Opcodes.INVOKESTATIC) {
+      val boxMethod = keyInst.opArgs[0] as MethodInfo
+      if (boxMethod.name != "valueOf" || (boxMethod.owner != "java/lang/Integer" && boxMethod.owner != "java/lang/Long")
+          || last < 1 || !isSimplePush(insts[last - 1])) {
+        return null
+      }
+      return last - 1
+    }
+    return if (isSimplePush(keyInst)) last else null
+  }
+
+  private fun isSimplePush(inst: Instruction): Boolean {
+    return when (inst.opCode) {
+      Opcodes.ACONST_NULL, Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3,
+      Opcodes.ICONST_4, Opcodes.ICONST_5, Opcodes.LCONST_0, Opcodes.LCONST_1, Opcodes.BIPUSH, Opcodes.SIPUSH, Opcodes.LDC,
+      Opcodes.ILOAD, Opcodes.LLOAD, Opcodes.ALOAD -> true
+      else -> false
+    }
+  }
+
+  private fun isLoad(inst: Instruction, slot: Int): Boolean {
+    return inst.opCode == Opcodes.ALOAD && inst.opArgs[0] as Int == slot
+  }
+
+  private fun isIteratorCall(inst: Instruction): Boolean {
+    if (inst.opCode != Opcodes.INVOKEINTERFACE) {
+      return false
+    }
+    val calledMethod = inst.opArgs[0] as MethodInfo
+    return calledMethod.name == "invoke" && ITERATOR_OWNERS.contains(calledMethod.owner)
+  }
+
+  private fun isPairGetter(inst: Instruction, name: String): Boolean {
+    if (inst.opCode != Opcodes.INVOKEVIRTUAL) {
+      return false
+    }
+    val calledMethod = inst.opArgs[0] as MethodInfo
+    return calledMethod.owner == PAIR_OWNER && calledMethod.name == name
+  }
+
+  private fun isPairStore(store: Instruction, cast: Instruction, slot: Int): Boolean {
+    return store.opCode == Opcodes.ASTORE && store.opArgs[0] as Int == slot
+        && cast.opCode == Opcodes.CHECKCAST && cast.opArgs[0] == PAIR_OWNER
+  }
+
+  /**
+   * 从循环出口开始，在p被重新赋值之前是否还会读取p(循环中的p没有创建pair table)
+   */
+  private fun readsPairAfterLoop(body: Set<BasicBlock>, slot: Int): Boolean {
+    val visited = BooleanArray(code.size)
+    val worklist: MutableList<Int> = mutableListOf()
+    for (block in body) {
+      for (offset in block.startOffset until block.endOffset) {
+        for (succ in ControlFlowGraph.successorOffsets(method, offset)) {
+          if (succ >= 0 && succ < code.size && !body.contains(cfg.blockAt(succ)) && !visited[succ]) {
+            visited[succ] = true
+            worklist.add(succ)
+          }
+        }
+      }
+    }
+    while (worklist.size > 0) {
+      val offset = worklist.removeAt(worklist.size - 1)
+      val inst = code[offset]
+      when (inst.opCode) {
+        Opcodes.ALOAD, Opcodes.ILOAD, Opcodes.FLOAD, Opcodes.IINC -> if (inst.opArgs[0] as Int == slot) return true
+        Opcodes.LLOAD, Opcodes.DLOAD -> if (inst.opArgs[0] as Int == slot || inst.opArgs[0] as Int + 1 == slot) return true
+        Opcodes.RET -> return true
+      }
+      if (inst.opCode == Opcodes.ASTORE && inst.opArgs[0] as Int == slot) {
+        continue
+      }
+      for (succ in ControlFlowGraph.successorOffsets(method, offset)) {
+        if (succ >= 0 && succ < code.size && !visited[succ] && !body.contains(cfg.blockAt(succ))) {
+          visited[succ] = true
+          worklist.add(succ)
+        }
+      }
+    }
+    return false
+  }
+
+  // 循环中除了except以外是否有指令修改局部变量slot
+  private fun modifiesLocal(body: Set<BasicBlock>, slot: Int, except: Instruction?): Boolean {
+    for (block in body) {
+      for (inst in block.instructions(method)) {
+        if (inst == except) {
+          continue
+        }
+        val modified = when (inst.opCode) {
+          Opcodes.ISTORE, Opcodes.FSTORE, Opcodes.ASTORE, Opcodes.IINC -> inst.opArgs[0] as Int == slot
+          Opcodes.LSTORE, Opcodes.DSTORE -> inst.opArgs[0] as Int == slot || inst.opArgs[0] as Int + 1 == slot
+          else -> false
+        }
+        if (modified) {
+          return true
+        }
+      }
+    }
+    return false
+  }
+
+  private fun nonNopInstructions(block: BasicBlock): List<Instruction> {
+    return block.instructions(method).filter { it.opCode != Opcodes.NOP }
+  }
+}
@@ -0,0 +1,257 @@
+package gjavac.cecil
+
+import gjavac.exceptions.GjavacException
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+
+/**
+ * 每条jvm指令执行前operand stack的深度(按值个数计算，long/double也只算1个，和uvm的一个寄存器对应)
+ */
+class MethodStackDepths(val depthsBefore: IntArray, val maxDepth: Int) {
+  fun depthBefore(inst: Instruction): Int {
+    if (inst.offset < 0 || inst.offset >= depthsBefore.size) {
+      throw GjavacException("instruction out of method code " + inst)
+    }
+    return depthsBefore[inst.offset]
+  }
+}
+
+/**
+ * 静态分析方法体中每条指令处operand stack的深度
+ * 用每个值的slot宽度(1或2)模拟operand stack，从而能正确处理POP2/DUP2等按字宽操作的指令，
+ * 跳转目标通过labelOffsets定位，不可达的指令深度视为0
+ */
+class StackDepthAnalyzer(val method: MethodDefinition) {
+
+  companion object {
+    fun analyze(method: MethodDefinition): MethodStackDepths {
+      return StackDepthAnalyzer(method).analyze()
+    }
+  }
+
+  private val code = method.code
+  private val entryStacks: Array<MutableList<Int>?> = arrayOfNulls(code.size)
+  // 栈中每个值用它的slot宽度表示
+  private val interpreter = object : JvmStackInterpreter<Int>(method) {
+    override fun newValue(inst: Instruction, size: Int): Int = size
+
+    override fun sizeOf(value: Int): Int = value
+  }
+
+  fun analyze(): MethodStackDepths {
+    val worklist: MutableList<Int> = mutableListOf()
+    if (code.size > 0) {
+      entryStacks[0] = mutableListOf()
+      worklist.add(0)
+    }
+    while (worklist.size > 0) {
+      val index = worklist.removeAt(worklist.size - 1)
+      val inst = code[index]
+      val stack = entryStacks[index]!!.toMutableList()
+      interpreter.execute(inst, stack)
+      for (succ in ControlFlowGraph.successorOffsets(method, index)) {
+        if (succ < 0 || succ >= code.size) {
+          continue
+        }
+        val existed = entryStacks[succ]
+        if (existed == null) {
+          entryStacks[succ] = stack.toMutableList()
+          worklist.add(succ)
+        } else if (existed.size != stack.size) {
+          throw GjavacException("operand stack depth not match at " + code[succ] + " in method " + method.fullName())
+        }
+      }
+    }
+    val depths = IntArray(code.size)
+    var maxDepth = 0
+    for (j in 0 until code.size) {
+      depths[j] = entryStacks[j]?.size ?: 0
+      if (depths[j] > maxDepth) {
+        maxDepth = depths[j]
+      }
+      // 指令执行后的深度也要计入
+      val entry = entryStacks[j]
+      if (entry != null) {
+        val after = entry.toMutableList()
+        interpreter.execute(code[j], after)
+        if (after.size > maxDepth) {
+          maxDepth = after.size
+        }
+      }
+    }
+    return MethodStackDepths(depths, maxDepth)
+  }
+}
+
+/**
+ * 按jvm指令对operand stack的影响模拟执行，栈中的每个值用V表示
+ * 指令新产生的值由newValue构造，DUP/SWAP/POP2等按字宽操作的指令搬动原来的值，其他指令弹出的值会传给consume
+ */
+abstract class JvmStackInterpreter<V>(val method: MethodDefinition) {
+
+  abstract fun newValue(inst: Instruction, size: Int): V
+
+  abstract fun sizeOf(value: V): Int
+
+  // inst使用了弹出的value，indexFromTop为0表示原来的栈顶
+  open fun consume(inst: Instruction, value: V, indexFromTop: Int) {
+  }
+
+  protected fun pop(stack: MutableList<V>, inst: Instruction, indexFromTop: Int = 0): V {
+    if (stack.isEmpty()) {
+      throw GjavacException("operand stack underflow at " + inst + " in method " + method.fullName())
+    }
+    val value = stack.removeAt(stack.size - 1)
+    consume(inst, value, indexFromTop)
+    return value
+  }
+
+  protected fun popValues(stack: MutableList<V>, count: Int, inst: Instruction) {
+    for (j in 0 until count) {
+      pop(stack, inst, j)
+    }
+  }
+
+  /**
+   * 从栈顶弹出总宽度为words的若干个值，按原来的顺序返回
+   */
+  protected fun popWords(stack: MutableList<V>, words: Int, inst: Instruction): List<V> {
+    val values: MutableList<V> = mutableListOf()
+    var count = 0
+    while (count < words) {
+      if (stack.isEmpty()) {
+        throw GjavacException("operand stack underflow at " + inst + " in method " + method.fullName())
+      }
+      val value = stack.removeAt(stack.size - 1)
+      values.add(0, value)
+      count += sizeOf(value)
+    }
+    if (count != words) {
+      throw GjavacException("invalid operand stack words at " + inst + " in method " + method.fullName())
+    }
+    return values
+  }
+
+  protected fun sizeOfDesc(desc: String): Int {
+    return Type.getType(desc).size
+  }
+
+  fun execute(inst: Instruction, stack: MutableList<V>) {
+    when (inst.opCode) {
+      Opcodes.NOP, Opcodes.IINC, Opcodes.GOTO, Opcodes.RET, Opcodes.RETURN -> {
+      }
+      Opcodes.ACONST_NULL, Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3,
+      Opcodes.ICONST_4, Opcodes.ICONST_5, Opcodes.FCONST_0, Opcodes.FCONST_1, Opcodes.FCONST_2, Opcodes.BIPUSH,
+      Opcodes.SIPUSH, Opcodes.ILOAD, Opcodes.FLOAD, Opcodes.ALOAD, Opcodes.NEW, Opcodes.JSR -> stack.add(newValue(inst, 1))
+      Opcodes.LCONST_0, Opcodes.LCONST_1, Opcodes.DCONST_0, Opcodes.DCONST_1, Opcodes.LLOAD, Opcodes.DLOAD -> stack.add(newValue(inst, 2))
+      Opcodes.LDC -> {
+        val value = inst.opArgs[0]
+        stack.add(newValue(inst, if (value is Long || value is Double) 2 else 1))
+      }
+      Opcodes.IALOAD, Opcodes.FALOAD, Opcodes.AALOAD, Opcodes.BALOAD, Opcodes.CALOAD, Opcodes.SALOAD -> {
+        popValues(stack, 2, inst)
+        stack.add(newValue(inst, 1))
+      }
+      Opcodes.LALOAD, Opcodes.DALOAD -> {
+        popValues(stack, 2, inst)
+        stack.add(newValue(inst, 2))
+      }
+      Opcodes.ISTORE, Opcodes.LSTORE, Opcodes.FSTORE, Opcodes.DSTORE, Opcodes.ASTORE, Opcodes.POP,
+      Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFLT, Opcodes.IFGE, Opcodes.IFGT, Opcodes.IFLE, Opcodes.IFNULL, Opcodes.IFNONNULL,
+      Opcodes.TABLESWITCH, Opcodes.LOOKUPSWITCH, Opcodes.PUTSTATIC, Opcodes.MONITORENTER, Opcodes.MONITOREXIT,
+      Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.ATHROW -> pop(stack, inst)
+      Opcodes.IASTORE, Opcodes.LASTORE, Opcodes.FASTORE, Opcodes.DASTORE, Opcodes.AASTORE, Opcodes.BASTORE,
+      Opcodes.CASTORE, Opcodes.SASTORE -> popValues(stack, 3, inst)
+      Opcodes.POP2 -> popWords(stack, 2, inst)
+      Opcodes.DUP -> {
+        val value = popWords(stack, 1, inst)
+        stack.addAll(value)
+        stack.addAll(value)
+      }
+      Opcodes.DUP_X1 -> {
+        val value1 = popWords(stack, 1, inst)
+        val value2 = popWords(stack, 1, inst)
+        stack.addAll(value1)
+        stack.addAll(value2)
+        stack.addAll(value1)
+      }
+      Opcodes.DUP_X2 -> {
+        val value1 = popWords(stack, 1, inst)
+        val value2 = popWords(stack, 2, inst)
+        stack.addAll(value1)
+        stack.addAll(value2)
+        stack.addAll(value1)
+      }
+      Opcodes.DUP2 -> {
+        val value = popWords(stack, 2, inst)
+        stack.addAll(value)
+        stack.addAll(value)
+      }
+      Opcodes.DUP2_X1 -> {
+        val value1 = popWords(stack, 2, inst)
+        val value2 = popWords(stack, 1, inst)
+        stack.addAll(value1)
+        stack.addAll(value2)
+        stack.addAll(value1)
+      }
+      Opcodes.DUP2_X2 -> {
+        val value1 = popWords(stack, 2, inst)
+        val value2 = popWords(stack, 2, inst)
+        stack.addAll(value1)
+        stack.addAll(value2)
+        stack.addAll(value1)
+      }
+      Opcodes.SWAP -> {
+        val value1 = popWords(stack, 1, inst)
+        val value2 = popWords(stack, 1, inst)
+        stack.addAll(value1)
+        stack.addAll(value2)
+      }
+      Opcodes.IADD, Opcodes.FADD, Opcodes.ISUB, Opcodes.FSUB, Opcodes.IMUL, Opcodes.FMUL, Opcodes.IDIV, Opcodes.FDIV,
+      Opcodes.IREM, Opcodes.FREM, Opcodes.ISHL, Opcodes.ISHR, Opcodes.IUSHR, Opcodes.IAND, Opcodes.IOR, Opcodes.IXOR,
+      Opcodes.LCMP, Opcodes.FCMPL, Opcodes.FCMPG, Opcodes.DCMPL, Opcodes.DCMPG -> {
+        popValues(stack, 2, inst)
+        stack.add(newValue(inst, 1))
+      }
+      Opcodes.LADD, Opcodes.DADD, Opcodes.LSUB, Opcodes.DSUB, Opcodes.LMUL, Opcodes.DMUL, Opcodes.LDIV, Opcodes.DDIV,
+      Opcodes.LREM, Opcodes.DREM, Opcodes.LSHL, Opcodes.LSHR, Opcodes.LUSHR, Opcodes.LAND, Opcodes.LOR, Opcodes.LXOR -> {
+        popValues(stack, 2, inst)
+        stack.add(newValue(inst, 2))
+      }
+      Opcodes.INEG, Opcodes.FNEG, Opcodes.I2F, Opcodes.L2I, Opcodes.L2F, Opcodes.F2I, Opcodes.D2I, Opcodes.D2F,
+      Opcodes.I2B, Opcodes.I2C, Opcodes.I2S, Opcodes.NEWARRAY, Opcodes.ANEWARRAY, Opcodes.ARRAYLENGTH,
+      Opcodes.CHECKCAST, Opcodes.INSTANCEOF -> {
+        pop(stack, inst)
+        stack.add(newValue(inst, 1))
+      }
+      Opcodes.LNEG, Opcodes.DNEG, Opcodes.I2L, Opcodes.I2D, Opcodes.L2D, Opcodes.F2L, Opcodes.F2D, Opcodes.D2L -> {
+        pop(stack, inst)
+        stack.add(newValue(inst, 2))
+      }
+      Opcodes.IF_ICMPEQ, Opcodes.IF_ICMPNE, Opcodes.IF_ICMPLT, Opcodes.IF_ICMPGE, Opcodes.IF_ICMPGT, Opcodes.IF_ICMPLE,
+      Opcodes.IF_ACMPEQ, Opcodes.IF_ACMPNE, Opcodes.PUTFIELD -> popValues(stack, 2, inst)
+      Opcodes.GETSTATIC -> stack.add(newValue(inst, sizeOfDesc((inst.opArgs[0] as FieldInfo).desc)))
+      Opcodes.GETFIELD -> {
+        pop(stack, inst)
+        stack.add(newValue(inst, sizeOfDesc((inst.opArgs[0] as FieldInfo).desc)))
+      }
+      Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL, Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE, Opcodes.INVOKEDYNAMIC -> {
+        val operand = inst.opArgs[0]
+        val desc = if (operand is MethodInfo) operand.desc else (operand as SimpleInfo).desc
+        popValues(stack, Type.getArgumentTypes(desc).size, inst)
+        if (inst.opCode != Opcodes.INVOKESTATIC && inst.opCode != Opcodes.INVOKEDYNAMIC) {
+          pop(stack, inst, Type.getArgumentTypes(desc).size) // this
+        }
+        val returnType = Type.getReturnType(desc)
+        if (returnType.sort != Type.VOID) {
+          stack.add(newValue(inst, returnType.size))
+        }
+      }
+      Opcodes.MULTIANEWARRAY -> {
+        popValues(stack, inst.opArgs[1] as Int, inst)
+        stack.add(newValue(inst, 1))
+      }
+      else -> throw GjavacException("not supported jvm opcode " + inst.opCodeName() + " in stack depth analysis")
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package gjavac.cecil
+
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+
+/**
+ * 可以翻译成一条uvm concat的字符串拼接，片段k放在concatStartIndex + registerOffset + k寄存器
+ * endInst是StringBuilder.toString或者invokedynamic，在这里执行concat
+ * indyPieces是invokedynamic拼接的各个片段，null表示栈上的参数，否则是recipe中的常量
+ * registerOffset是外层拼接占用的寄存器数，lua的concat至少要2个操作数，所以至少占用2个寄存器
+ */
+class StringConcat(val endInst: Instruction, val pieceCount: Int, val indyPieces: List<Any?>?, val registerOffset: Int) {
+  fun registerCount(): Int = Math.max(pieceCount, 2)
+}
+
+/**
+ * StringBuilder.append处放入第index个片段，constant不为null时是直接loadk的常量片段，对应的压栈指令不翻译
+ */
+class StringConcatPiece(val concat: StringConcat, val index: Int, val constant: Any?)
+
+class MethodStringConcats(val concats: List<StringConcat>, private val pieces: Map<Instruction, StringConcatPiece>,
+                          private val skipped: Set<Instruction>) {
+  private val concatsByEnd = concats.associateBy { it.endInst }
+
+  fun isSkipped(inst: Instruction): Boolean = skipped.contains(inst)
+
+  fun pieceAt(inst: Instruction): StringConcatPiece? = pieces[inst]
+
+  fun concatEndedAt(inst: Instruction): StringConcat? = concatsByEnd[inst]
+
+  // 同时需要的拼接寄存器数
+  fun registerCount(): Int = concats.map { it.registerOffset + it.registerCount() }.max() ?: 0
+}
+
+/**
+ * 识别javac/kotlinc生成的字符串拼接:
+ * 1. StringBuilder链: NEW StringBuilder; DUP; [<初始字符串>;] INVOKESPECIAL <init>; (<片段>; INVOKEVIRTUAL append)*; INVOKEVIRTUAL toString
+ *    每个片段的字节码只能从开头进入，只能在append处离开，执行过程中不能动栈里的StringBuilder
+ * 2. java 9以后的 INVOKEDYNAMIC makeConcatWithConstants/makeConcat
+ * 不满足条件的拼接还是逐个append翻译成两个操作数的concat
+ */
+class StringConcatAnalyzer(val method: MethodDefinition, val depths: MethodStackDepths) {
+
+  companion object {
+    private val BUILDER_TYPES = setOf("java/lang/StringBuilder", "java/lang/StringBuffer")
+    private val CONCAT_FACTORY = "java/lang/invoke/StringConcatFactory"
+    // recipe中表示一个参数和一个bootstrap常量的字符
+    private val TAG_ARG = '\u0001'
+    private val TAG_CONST = '\u0002'
+
+    fun analyze(method: MethodDefinition, depths: MethodStackDepths): MethodStringConcats {
+      return StringConcatAnalyzer(method, depths).analyze()
+    }
+  }
+
+  // 还没有计算寄存器位置的拼接，[start, end]是它在code中的范围
+  private class ConcatMatch(val start: Int, val end: Int, val pieces: List<Pair<Instruction, Any?>>,
+                            val indyPieces: List<Any?>?, val skipped: List<Instruction>)
+
+  private val code = method.code
+  // 每条指令可能从哪些跳转指令跳转过来(不含顺序执行)
+  private val jumpSources: Array<MutableList<Int>> = Array(code.size) { mutableListOf<Int>() }
+  private var consumed = 0
+  // 只用来计算指令弹出的值的个数
+  private val interpreter = object : JvmStackInterpreter<Int>(method) {
+    override fun newValue(inst: Instruction, size: Int): Int = size
+
+    override fun sizeOf(value: Int): Int = value
+
+    override fun consume(inst: Instruction, value: Int, indexFromTop: Int) {
+      consumed++
+    }
+  }
+
+  fun analyze(): MethodStringConcats {
+    for (j in 0 until code.size) {
+      if (!ControlFlowGraph.endsBlock(code[j].opCode)) {
+        continue
+      }
+      for (succ in ControlFlowGraph.successorOffsets(method, j)) {
+        if (succ >= 0 && succ < code.size && succ != j + 1) {
+          jumpSources[succ].add(j)
+        }
+      }
+    }
+    val matches: MutableList<ConcatMatch> = mutableListOf()
+    for (j in 0 until code.size) {
+      val match = when (code[j].opCode) {
+        Opcodes.NEW -> matchBuilderChain(j)
+        Opcodes.INVOKEDYNAMIC -> matchIndyConcat(j)
+        else -> null
+      }
+      if (match != null) {
+        matches.add(match)
+      }
+    }
+    val concats: MutableList<StringConcat> = mutableListOf()
+    val pieces: MutableMap<Instruction, StringConcatPiece> = mutableMapOf()
+    val skipped: MutableSet<Instruction> = mutableSetOf()
+    for (match in matches) {
+      // 外层拼接的片段在计算内层拼接时还在寄存器中
+      val offset = matches.filter { it != match && it.start < match.start && it.end > match.end }
+          .map { Math.max(it.pieces.size, 2) }.sum()
+      val concat = StringConcat(code[match.end], match.pieces.size, match.indyPieces, offset)
+      concats.add(concat)
+      for (k in 0 until match.pieces.size) {
+        val piece = match.pieces[k]
+        if (match.indyPieces == null) {
+          pieces[piece.first] = StringConcatPiece(concat, k, piece.second)
+        }
+      }
+      skipped.addAll(match.skipped)
+    }
+    return MethodStringConcats(concats, pieces, skipped)
+  }
+
+  private fun matchBuilderChain(newIndex: Int): ConcatMatch? {
+    val builderType = code[newIndex].opArgs[0] as? String ?: return null
+    if (!BUILDER_TYPES.contains(builderType) || jumpSources[newIndex].size > 0) {
+      return null
+    }
+    val depth = depths.depthBefore(code[newIndex])
+    val dupIndex = next(newIndex)
+    if (dupIndex >= code.size || code[dupIndex].opCode != Opcodes.DUP || jumpSources[dupIndex].size > 0) {
+      return null
+    }
+    val skipped: MutableList<Instruction> = mutableListOf(code[newIndex], code[dupIndex])
+    val pieces: MutableList<Pair<Instruction, Any?>> = mutableListOf()
+    // <init>()或者<init>(String)，初始字符串是第一个片段
+    var pos = next(dupIndex)
+    if (pos >= code.size) {
+      return null
+    }
+    if (isBuilderCall(code[pos], builderType, "<init>", "()V") && jumpSources[pos].size == 0) {
+      skipped.add(code[pos])
+    } else {
+      val initIndex = matchPiece(pos, depth + 2, builderType, "<init>") ?: return null
+      val initDesc = (code[initIndex].opArgs[0] as MethodInfo).desc
+      if (initDesc != "(Ljava/lang/String;)V" && initDesc != "(Ljava/lang/CharSequence;)V") {
+        return null
+      }
+      addPiece(pos, initIndex, pieces, skipped)
+      pos = initIndex
+    }
+    pos = next(pos)
+    while (pos < code.size) {
+      val inst = code[pos]
+      if (isBuilderCall(inst, builderType, "toString", "()Ljava/lang/String;") && depths.depthBefore(inst) == depth + 1
+          && jumpSources[pos].size == 0) {
+        return ConcatMatch(newIndex, pos, pieces, null, skipped)
+      }
+      val appendIndex = matchPiece(pos, depth + 1, builderType, "append") ?: return null
+      addPiece(pos, appendIndex, pieces, skipped)
+      pos = next(appendIndex)
+    }
+    return null
+  }
+
+  /**
+   * 从from开始计算一个片段，找到消耗这个片段的StringBuilder方法调用，baseDepth是片段开始时的栈深度
+   * 片段中的指令不能弹出baseDepth以下的值，跳转只能在片段内部向前跳
+   */
+  private fun matchPiece(from: Int, baseDepth: Int, builderType: String, name: String): Int? {
+    if (jumpSources[from].size > 0) {
+      return null
+    }
+    var maxJumpTarget = from
+    var j = from
+    while (j < code.size) {
+      val inst = code[j]
+      if (j > from && jumpSources[j].any { it < from || it >= j }) {
+        // 从片段外面跳进来，或者片段中有循环
+        return null
+      }
+      val depth = depths.depthBefore(inst)
+      if (j > from && depth == baseDepth + 1 && isBuilderCall(inst, builderType, name, null)) {
+        val argCount = Type.getArgumentTypes((inst.opArgs[0] as MethodInfo).desc).size
+        return if (argCount == 1 && maxJumpTarget <= j) j else null
+      }
+      if (depth - poppedValues(inst, depth) < baseDepth || inst.opCode == Opcodes.RET || inst.opCode == Opcodes.JSR) {
+        return null
+      }
+      for (succ in ControlFlowGraph.successorOffsets(method, j)) {
+        if (succ != j + 1) {
+          if (succ <= j) {
+            return null
+          }
+          maxJumpTarget = Math.max(maxJumpTarget, succ)
+        }
+      }
+      j++
+    }
+    return null
+  }
+
+  // inst执行时弹出的值的个数，SWAP/DUP_X1等在栈中搬动值的指令视为弹出全部
+  private fun poppedValues(inst: Instruction, depth: Int): Int {
+    when (inst.opCode) {
+      Opcodes.SWAP, Opcodes.DUP_X1, Opcodes.DUP_X2, Opcodes.DUP2, Opcodes.DUP2_X1, Opcodes.DUP2_X2, Opcodes.POP2 -> return depth
+    }
+    consumed = 0
+    interpreter.execute(inst, (0 until depth).map { 1 }.toMutableList())
+    return consumed
+  }
+
+  private fun addPiece(from: Int, callIndex: Int, pieces: MutableList<Pair<Instruction, Any?>>,
+                       skipped: MutableList<Instruction>) {
+    val callInst = code[callIndex]
+    val constant = if (next(from) == callIndex) constantPiece(code[from], callInst) else null
+    if (constant != null) {
+      skipped.add(code[from])
+    }
+    pieces.add(Pair(callInst, constant))
+  }
+
+  /**
+   * 单条常量指令压栈的片段，按append的参数类型转换成拼接后的字符串，char和boolean要转换成对应的字符串
+   */
+  private fun constantPiece(inst: Instruction, callInst: Instruction): Any? {
+    val argType = Type.getArgumentTypes((callInst.opArgs[0] as MethodInfo).desc)[0]
+    val value: Any = when (inst.opCode) {
+      Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2, Opcodes.ICONST_3, Opcodes.ICONST_4,
+      Opcodes.ICONST_5 -> inst.opCode - Opcodes.ICONST_0
+      Opcodes.BIPUSH, Opcodes.SIPUSH -> inst.opArgs[0] as Int
+      Opcodes.LDC -> {
+        val literal = inst.opArgs[0]
+        if (literal is String || literal is Int) literal else return null
+      }
+      else -> return null
+    }
+    return when (argType.sort) {
+      Type.CHAR -> if (value is Int) value.toChar().toString() else null
+      Type.BOOLEAN -> if (value == 0) "false" else if (value == 1) "true" else null
+      Type.INT, Type.SHORT, Type.BYTE -> if (value is Int) value else null
+      Type.OBJECT -> if (value is String && (argType.internalName == "java/lang/String"
+          || argType.internalName == "java/lang/CharSequence" || argType.internalName == "java/lang/Object")) value else null
+      else -> null
+    }
+  }
+
+  private fun matchIndyConcat(index: Int): ConcatMatch? {
+    val inst = code[index]
+    if (inst.opArgs.size < 3) {
+      return null
+    }
+    val callSite = inst.opArgs[0] as SimpleInfo
+    val bsm = inst.opArgs[1] as Handle
+    val bsmArgs = inst.opArgs[2] as List<*>
+    if (bsm.owner != CONCAT_FACTORY || Type.getReturnType(callSite.desc).descriptor != "Ljava/lang/String;") {
+      return null
+    }
+    val argCount = Type.getArgumentTypes(callSite.desc).size
+    val indyPieces: MutableList<Any?> = mutableListOf()
+    if (bsm.name == "makeConcat") {
+      for (k in 0 until argCount) {
+        indyPieces.add(null)
+      }
+    } else if (bsm.name == "makeConcatWithConstants" && bsmArgs.size > 0 && bsmArgs[0] is String) {
+      val recipe = bsmArgs[0] as String
+      var constIndex = 1
+      val literal = StringBuilder()
+      for (c in recipe) {
+        if (c != TAG_ARG && c != TAG_CONST) {
+          literal.append(c)
+          continue
+        }
+        if (literal.length > 0) {
+          indyPieces.add(literal.toString())
+          literal.setLength(0)
+        }
+        if (c == TAG_ARG) {
+          indyPieces.add(null)
+        } else {
+          if (constIndex >= bsmArgs.size) {
+            return null
+          }
+          indyPieces.add(bsmArgs[constIndex++].toString())
+        }
+      }
+      if (literal.length > 0) {
+        indyPieces.add(literal.toString())
+      }
+    } else {
+      return null
+    }
+    if (indyPieces.count { it == null } != argCount) {
+      return null
+    }
+    return ConcatMatch(index, index, indyPieces.map { Pair(inst, it) }, indyPieces, listOf())
+  }
+
+  // desc为null时不检查方法描述符
+  private fun isBuilderCall(inst: Instruction, builderType: String, name: String, desc: String?): Boolean {
+    if (inst.opCode != Opcodes.INVOKEVIRTUAL && inst.opCode != Opcodes.INVOKESPECIAL) {
+      return false
+    }
+    val calledMethod = inst.opArgs[0] as MethodInfo
+    return calledMethod.owner == builderType && calledMethod.name == name && (desc == null || calledMethod.desc == desc)
+  }
+
+  // 下一条不是NOP的指令
+  private fun next(index: Int): Int {
+    var j = index + 1
+    while (j < code.size && code[j].opCode == Opcodes.NOP) {
+      j++
+    }
+    return j
+  }
+}
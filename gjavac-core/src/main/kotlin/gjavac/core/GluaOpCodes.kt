@@ -67,7 +67,26 @@ enum class UvmOpCodeEnums(val opCode: Int)
 
   OP_VARARG(45), /*	A B	R(A), R(A+1), ..., R(A+B-2) = vararg		*/
 
-  OP_EXTRAARG(46) /*	Ax	extra (larger) argument for previous opcode	*/
+  OP_EXTRAARG(46); /*	Ax	extra (larger) argument for previous opcode	*/
+
+  // 指令在.ass中的名称，比如move
+  fun asmName(): String = OpcodeNames[opCode].toLowerCase()
+
+  // 指令的编码格式，和lopcodes.c的luaP_opmodes一致
+  fun opMode(): OpMode {
+    return when (this) {
+      OP_LOADK, OP_LOADKX, OP_CLOSURE -> OpMode.iABx
+      OP_JMP, OP_FORLOOP, OP_FORPREP, OP_TFORLOOP -> OpMode.iAsBx
+      OP_EXTRAARG -> OpMode.iAx
+      else -> OpMode.iABC
+    }
+  }
+
+  companion object {
+    private val opCodesByAsmName: Map<String, UvmOpCodeEnums> = values().associateBy { it.asmName() }
+
+    fun fromAsmName(name: String): UvmOpCodeEnums? = opCodesByAsmName[name]
+  }
 }
 
 /*===========================================================================
@@ -89,6 +108,35 @@ enum class UvmOpCodeEnums(val opCode: Int)
  ===========================================================================*/
 enum class OpMode { iABC, iABx, iAsBx, iAx } /* basic instruction format */
 
+/* size and position of opcode arguments */
+const val SIZE_C = 9
+const val SIZE_B = 9
+const val SIZE_Bx = SIZE_C + SIZE_B
+const val SIZE_A = 8
+const val SIZE_Ax = SIZE_C + SIZE_B + SIZE_A
+
+/* limits for opcode arguments */
+const val MAXARG_Bx = (1 shl SIZE_Bx) - 1
+const val MAXARG_sBx = MAXARG_Bx shr 1 /* 'sBx' is signed */
+const val MAXARG_Ax = (1 shl SIZE_Ax) - 1
+const val MAXARG_A = (1 shl SIZE_A) - 1
+const val MAXARG_B = (1 shl SIZE_B) - 1
+const val MAXARG_C = (1 shl SIZE_C) - 1
+
+/* this bit 1 means constant (0 means register) in RK operands */
+const val BITRK = 1 shl (SIZE_B - 1)
+/* max index of a constant that can be used directly as RK operand */
+const val MAXINDEXRK = BITRK - 1
+
+/* positions of the opcode and arguments in an instruction */
+const val SIZE_OP = 6
+const val POS_OP = 0
+const val POS_A = POS_OP + SIZE_OP
+const val POS_C = POS_A + SIZE_A
+const val POS_B = POS_C + SIZE_C
+const val POS_Bx = POS_C
+const val POS_Ax = POS_A
+
 val OpcodeNames = listOf(
   "MOVE",
   "LOADK",
@@ -0,0 +1,275 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import java.io.OutputStream
+
+/**
+ * 把proto直接编码成uvm字节码(.out)，不需要先输出.ass再用uvm_ass汇编，输出和uvm_ass汇编同一个.ass的结果逐字节相同
+ * 格式是uvm的lundump读取的格式: 文件头(签名"\x1bGlua")，顶层proto的upvalue数量，然后递归输出proto
+ * 和lua 5.3的ldump.c不同，每个proto输出名称而不是source，没有局部变量和upvalue名称，行号只来自指令注释中的;L<行号>
+ * 数值按little endian输出，int 4字节，size_t 8字节，lua_Integer和lua_Number 8字节
+ * 写入前要先用internConstants把指令中用到的常量加入常量池，编码和写入不修改proto
+ */
+class UvmBytecodeWriter(private val out: OutputStream) {
+    companion object {
+        val SIGNATURE = byteArrayOf(0x1b, 'G'.toByte(), 'l'.toByte(), 'u'.toByte(), 'a'.toByte())
+        const val VERSION = 0x10
+        const val FORMAT = 0
+        val DATA = byteArrayOf(0x19, 0x93.toByte(), '\r'.toByte(), '\n'.toByte(), 0x1a, '\n'.toByte())
+        const val SIZE_INT = 4
+        const val SIZE_SIZE_T = 8
+        const val SIZE_INSTRUCTION = 4
+        const val SIZE_INTEGER = 8
+        const val SIZE_NUMBER = 8
+        const val CHECK_INTEGER = 0x5678L
+        const val CHECK_NUMBER = 370.5
+
+        // 常量类型标记，lobject.h中的LUA_TBOOLEAN, LUA_TNUMFLT, LUA_TNUMINT, LUA_TSHRSTR
+        // uvm_ass对长字符串也使用LUA_TSHRSTR
+        const val TYPE_BOOLEAN = 1
+        const val TYPE_NUMBER_FLOAT = 3
+        const val TYPE_NUMBER_INT = 3 or (1 shl 4)
+        const val TYPE_STRING = 4
+
+        /**
+         * 和uvm_ass一样，把指令中用到但没有加入常量池的常量按指令顺序加到常量池最后，包括所有子proto
+         */
+        fun internConstants(proto: UvmProto) {
+            for (inst in proto.codeInstructions) {
+                for (operand in inst.operands) {
+                    if (operand.kind == UvmOperandKind.Constant && proto.constantValues.indexOfLiteral(operand.literal) < 0) {
+                        proto.constantValues.intern(UvmConstantPool.valueOfLiteral(operand.literal))
+                    }
+                }
+            }
+            for (subProto in proto.subProtos) {
+                internConstants(subProto)
+            }
+        }
+
+        // 编码一条指令，labelPcs是proto中label到pc的映射
+        fun encode(proto: UvmProto, inst: UvmInstruction, pc: Int, labelPcs: Map<String, Int>): Int {
+            val opCode = inst.opCode ?: throw GjavacException("can't encode empty instruction in proto " + proto.name)
+            val ops = inst.operands
+            val code = opCode.opCode shl POS_OP
+            when (opCode.opMode()) {
+                OpMode.iABC -> {
+                    // test和tforcall在.ass中只写A C
+                    if (opCode == UvmOpCodeEnums.OP_TEST || opCode == UvmOpCodeEnums.OP_TFORCALL) {
+                        return code or argA(proto, inst, 0) or (operandValue(proto, inst, 1, true, MAXARG_C) shl POS_C)
+                    }
+                    var result = code or argA(proto, inst, 0)
+                    if (ops.size > 1) {
+                        result = result or (operandValue(proto, inst, 1, true, MAXARG_B) shl POS_B)
+                    }
+                    if (ops.size > 2) {
+                        result = result or (operandValue(proto, inst, 2, true, MAXARG_C) shl POS_C)
+                    }
+                    return result
+                }
+                OpMode.iABx -> {
+                    val bx = if (ops.size > 1) operandValue(proto, inst, 1, false, MAXARG_Bx) else 0
+                    return code or argA(proto, inst, 0) or (bx shl POS_Bx)
+                }
+                OpMode.iAsBx -> {
+                    val label = inst.operand(1).literal
+                    val target = labelPcs[label] ?: throw GjavacException("Can't find label " + label + " in proto " + proto.name)
+                    val sbx = target - (pc + 1)
+                    if (sbx < -MAXARG_sBx || sbx > MAXARG_sBx) {
+                        throw GjavacException("jump offset " + sbx + " out of range in proto " + proto.name)
+                    }
+                    return code or argA(proto, inst, 0) or ((sbx + MAXARG_sBx) shl POS_Bx)
+                }
+                OpMode.iAx -> {
+                    return code or (operandValue(proto, inst, 0, false, MAXARG_Ax) shl POS_Ax)
+                }
+            }
+        }
+
+        /**
+         * 和uvm_ass一样从指令汇编行第一个';'开始的注释中取行号，注释以";L"加数字开头并且数字后面还有字符时才有行号，否则返回-1
+         */
+        fun lineNumberOf(inst: UvmInstruction): Int {
+            val line = inst.toString()
+            val start = line.indexOf(';')
+            if (start < 0 || line.length - start < 3 || line[start + 1] != 'L') {
+                return -1
+            }
+            var end = start + 2
+            while (end < line.length && line[end] >= '0' && line[end] <= '9') {
+                end++
+            }
+            if (end == start + 2 || end >= line.length) {
+                return -1
+            }
+            try {
+                return line.substring(start + 2, end).toLong().toInt()
+            } catch (e: NumberFormatException) {
+                return -1
+            }
+        }
+
+        private fun argA(proto: UvmProto, inst: UvmInstruction, index: Int): Int {
+            return operandValue(proto, inst, index, false, MAXARG_A) shl POS_A
+        }
+
+        // 操作数的值，rk为true时常量加上BITRK
+        private fun operandValue(proto: UvmProto, inst: UvmInstruction, index: Int, rk: Boolean, max: Int): Int {
+            val operand = inst.operand(index)
+            val value = when (operand.kind) {
+                UvmOperandKind.Register, UvmOperandKind.Upvalue, UvmOperandKind.Integer -> operand.index
+                UvmOperandKind.Constant -> {
+                    val constIndex = proto.constantValues.indexOfLiteral(operand.literal)
+                    if (constIndex < 0) {
+                        throw GjavacException("constant " + operand.literal + " of " + inst + " not in constant pool of proto " + proto.name
+                                + ", call internConstants before encoding")
+                    }
+                    if (rk) {
+                        if (constIndex > MAXINDEXRK) {
+                            throw GjavacException("constant " + operand.literal + " index " + constIndex + " too large for RK operand of " + inst)
+                        }
+                        constIndex or BITRK
+                    } else {
+                        constIndex
+                    }
+                }
+                UvmOperandKind.Name -> {
+                    // closure的子proto
+                    val protoIndex = proto.subProtos.indexOfFirst { it.name == operand.literal }
+                    if (protoIndex < 0) {
+                        throw GjavacException("Can't find sub proto " + operand.literal + " of proto " + proto.name)
+                    }
+                    protoIndex
+                }
+                UvmOperandKind.Label -> throw GjavacException("unexpected label operand in " + inst)
+            }
+            if (value < 0 || value > max) {
+                throw GjavacException("operand " + operand + " out of range in " + inst + " of proto " + proto.name)
+            }
+            return value
+        }
+    }
+
+    fun write(topProto: UvmProto) {
+        writeHeader()
+        writeByte(topProto.upvalues.size)
+        // 顶层proto在.ass中的名称是main
+        writeFunction(topProto, "main")
+        out.flush()
+    }
+
+    private fun writeHeader() {
+        out.write(SIGNATURE)
+        writeByte(VERSION)
+        writeByte(FORMAT)
+        out.write(DATA)
+        writeByte(SIZE_INT)
+        writeByte(SIZE_SIZE_T)
+        writeByte(SIZE_INSTRUCTION)
+        writeByte(SIZE_INTEGER)
+        writeByte(SIZE_NUMBER)
+        writeLong(CHECK_INTEGER)
+        writeLong(java.lang.Double.doubleToRawLongBits(CHECK_NUMBER))
+    }
+
+    private fun writeFunction(proto: UvmProto, name: String) {
+        writeString(name)
+        if (proto.maxStackSize > MAXARG_A + 1) {
+            throw GjavacException("proto " + proto.name + " needs " + proto.maxStackSize + " registers, limit is " + (MAXARG_A + 1))
+        }
+        // uvm_ass不输出linedefined和lastlinedefined，is_vararg是.func的第三个数
+        writeInt(0)
+        writeInt(0)
+        writeByte(proto.numparams)
+        writeByte(proto.sizeLocVars)
+        writeByte(proto.maxStackSize)
+
+        val code = proto.codeInstructions.notEmptyInstructions()
+        val labelPcs: MutableMap<String, Int> = mutableMapOf()
+        for (inst in proto.codeInstructions) {
+            val label = inst.locationLabel
+            if (label != null && label.length > 0) {
+                labelPcs[label] = proto.codeInstructions.pcOf(inst)
+            }
+        }
+        writeInt(code.size)
+        for (pc in 0 until code.size) {
+            writeInt(encode(proto, code[pc], pc, labelPcs))
+        }
+
+        writeInt(proto.constantValues.size)
+        for (value in proto.constantValues) {
+            writeConstant(value)
+        }
+
+        writeInt(proto.upvalues.size)
+        for (upvalue in proto.upvalues) {
+            writeByte(if (upvalue.instack) 1 else 0)
+            writeByte(upvalue.idx)
+        }
+
+        writeInt(proto.subProtos.size)
+        for (subProto in proto.subProtos) {
+            writeFunction(subProto, subProto.name ?: throw GjavacException("sub proto of " + proto.name + " has no name"))
+        }
+
+        // debug信息: 只有带行号注释的指令才输出行号，局部变量和upvalue名称的数量都是0
+        val lines = code.map { lineNumberOf(it) }.filter { it >= 0 }
+        writeInt(lines.size)
+        for (line in lines) {
+            writeInt(line)
+        }
+        writeInt(0)
+        writeInt(0)
+    }
+
+    private fun writeConstant(value: Any) {
+        when (UvmConstantPool.typeOf(value)) {
+            UvmConstantPool.ConstantType.Boolean -> {
+                writeByte(TYPE_BOOLEAN)
+                writeByte(if (value as Boolean) 1 else 0)
+            }
+            UvmConstantPool.ConstantType.Integer -> {
+                writeByte(TYPE_NUMBER_INT)
+                writeLong((value as Number).toLong())
+            }
+            UvmConstantPool.ConstantType.Number -> {
+                writeByte(TYPE_NUMBER_FLOAT)
+                writeLong(java.lang.Double.doubleToRawLongBits((value as Number).toDouble()))
+            }
+            UvmConstantPool.ConstantType.String -> {
+                writeByte(TYPE_STRING)
+                writeString(value.toString())
+            }
+        }
+    }
+
+    // 字符串先输出长度+1(小于0xFF时1字节，否则0xFF后跟size_t)，再输出内容，不包括结尾的0
+    private fun writeString(str: String) {
+        val bytes = str.toByteArray(Charsets.UTF_8)
+        val size = bytes.size + 1
+        if (size < 0xFF) {
+            writeByte(size)
+        } else {
+            writeByte(0xFF)
+            writeLong(size.toLong())
+        }
+        out.write(bytes)
+    }
+
+    private fun writeByte(value: Int) {
+        out.write(value and 0xFF)
+    }
+
+    private fun writeInt(value: Int) {
+        for (k in 0 until SIZE_INT) {
+            out.write((value shr (8 * k)) and 0xFF)
+        }
+    }
+
+    private fun writeLong(value: Long) {
+        for (k in 0 until 8) {
+            out.write(((value shr (8 * k)) and 0xFF).toInt())
+        }
+    }
+}
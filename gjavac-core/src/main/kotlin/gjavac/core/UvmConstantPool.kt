@@ -0,0 +1,118 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+
+/**
+ * proto的常量池，按(uvm常量类型, .ass中的字面量)去重，和uvm assembler的去重规则一致
+ * 比如Int 1和Long 1在.ass中都是integer 1，只占一个常量
+ */
+class UvmConstantPool : Iterable<Any> {
+    enum class ConstantType { Boolean, Integer, Number, String }
+
+    private data class ConstantKey(val type: ConstantType, val literal: String)
+
+    private val values: MutableList<Any> = mutableListOf()
+    private val indexes: MutableMap<ConstantKey, Int> = mutableMapOf()
+    // 指令的常量操作数只有字面量，生成字节码时按字面量找常量
+    private val literalIndexes: MutableMap<String, Int> = mutableMapOf()
+
+    // 统计信息
+    var internCount = 0
+        private set
+    var hitCount = 0
+        private set
+
+    val size: Int
+        get() = values.size
+
+    override fun iterator(): Iterator<Any> {
+        return values.iterator()
+    }
+
+    operator fun get(index: Int): Any {
+        return values[index]
+    }
+
+    fun intern(value: Any): Int {
+        internCount++
+        val key = ConstantKey(typeOf(value), literalOf(value))
+        val index = indexes[key]
+        if (index != null) {
+            hitCount++
+            return index
+        }
+        // loadk的Bx只有18位
+        if (values.size > MAXARG_Bx) {
+            throw GjavacException("too many constants in proto, limit is " + (MAXARG_Bx + 1))
+        }
+        values.add(value)
+        indexes[key] = values.size - 1
+        if (!literalIndexes.containsKey(key.literal)) {
+            literalIndexes[key.literal] = values.size - 1
+        }
+        return values.size - 1
+    }
+
+    fun indexOf(value: Any): Int {
+        val index = indexes[ConstantKey(typeOf(value), literalOf(value))]
+        return if (index != null) index else -1
+    }
+
+    fun indexOfLiteral(literal: String): Int {
+        val index = literalIndexes[literal]
+        return if (index != null) index else -1
+    }
+
+    // 超过MAXINDEXRK的常量不能直接作为RK操作数使用
+    fun exceedsRkLimit(): Boolean {
+        return values.size > MAXINDEXRK + 1
+    }
+
+    fun statsString(): String {
+        return "constants = " + values.size + " , interned = " + internCount + " , hits = " + hitCount
+    }
+
+    companion object {
+        fun typeOf(value: Any): ConstantType {
+            if (value is Boolean) {
+                return ConstantType.Boolean
+            } else if (value is Int || value is Long || value is Short || value is Byte) {
+                return ConstantType.Integer
+            } else if (value is Double || value is Float) {
+                return ConstantType.Number
+            } else {
+                return ConstantType.String
+            }
+        }
+
+        // .ass中的字面量对应的常量值
+        fun valueOfLiteral(literal: String): Any {
+            if (literal.length >= 2 && literal.startsWith("\"") && literal.endsWith("\"")) {
+                return literal.substring(1, literal.length - 1)
+            }
+            if (literal == "true" || literal == "false") {
+                return literal == "true"
+            }
+            try {
+                return literal.toLong()
+            } catch (e: NumberFormatException) {
+            }
+            try {
+                return literal.toDouble()
+            } catch (e: NumberFormatException) {
+                throw GjavacException("invalid constant literal " + literal)
+            }
+        }
+
+        // 常量在.ass中的字面量
+        fun literalOf(value: Any): String {
+            if (value is String) {
+                return "\"" + value + "\""
+            } else if (value is Boolean) {
+                return if (value) "true" else "false"
+            } else {
+                return value.toString()
+            }
+        }
+    }
+}
@@ -1,14 +1,52 @@
 package gjavac.core
 
+import gjavac.cecil.CountedLoop
 import gjavac.cecil.Instruction
+import gjavac.cecil.IteratorLoop
+import gjavac.cecil.MethodBooleanTypes
+import gjavac.cecil.MethodCountedLoops
 import gjavac.cecil.MethodDefinition
+import gjavac.cecil.MethodIteratorLoops
+import gjavac.cecil.MethodStackDepths
+import gjavac.cecil.MethodStringConcats
 import gjavac.exceptions.GjavacException
+import java.util.concurrent.atomic.AtomicInteger
 
-open class UvmInstruction(val asmLine: String, var lineNumber: Int = 0, var jvmInstruction: Instruction? = null) {
+/**
+ * 结构化的uvm指令，opCode为null表示只有注释的行，只在输出.ass时才转成文本
+ */
+open class UvmInstruction(val opCode: UvmOpCodeEnums?, val operands: MutableList<UvmOperand>, val comment: String = "",
+                          var lineNumber: Int = 0, var jvmInstruction: Instruction? = null) {
     var locationLabel: String? = null
     var evalStackOp: EvalStackOpEnum = EvalStackOpEnum.NotEvalStackOp  //add by zq
+    var pc: Int = -1 // 在proto指令列表中的位置(不计empty instruction)，由UvmInstructionBuffer维护
+    internal var buffer: UvmInstructionBuffer? = null // 指令所在的buffer，pcOf用来检查指令属于哪个buffer
+
+    // 从汇编文本构造，只在构造时解析一次
+    constructor(asmLine: String, lineNumber: Int = 0, jvmInstruction: Instruction? = null)
+        : this(UvmAsmLineParser.parse(asmLine), lineNumber, jvmInstruction)
+
+    private constructor(parsed: ParsedUvmAsmLine, lineNumber: Int, jvmInstruction: Instruction?)
+        : this(parsed.opCode, parsed.operands, parsed.comment, lineNumber, jvmInstruction)
+
+    fun operand(index: Int): UvmOperand {
+        if (index >= operands.size) {
+            throw GjavacException("uvm instruction " + this + " has no operand " + index)
+        }
+        return operands[index]
+    }
+
     override fun toString(): String {
-        return asmLine
+        val op = opCode
+        if (op == null) {
+            return comment
+        }
+        val builder = StringBuilder(op.asmName())
+        for (operand in operands) {
+            builder.append(' ').append(operand.toString())
+        }
+        builder.append(comment)
+        return builder.toString()
     }
 
     fun hasLocationLabel(): Boolean {
@@ -17,7 +55,25 @@ open class UvmInstruction(val asmLine: String, var lineNumber: Int = 0, var jvmI
     }
 }
 
-class UvmEmptyInstruction(val comment: String = "") : UvmInstruction("", 0) {
+/**
+ * 目标位置在生成时还未确定的jmp指令，目标可以是某条uvm指令或者某条jvm指令(映射到的第一条uvm指令)
+ * 方法翻译结束时统一重定位，确定label
+ * forprep/forloop也是A sBx格式的跳转，operandA是循环使用的第一个寄存器
+ */
+class UvmJmpInstruction(label: String, comment: String, jvmInstruction: Instruction?,
+                        opCode: UvmOpCodeEnums = UvmOpCodeEnums.OP_JMP, operandA: UvmOperand = UvmOperand.integer(1))
+    : UvmInstruction(opCode, mutableListOf(operandA, UvmOperand.label(label)), comment, 0, jvmInstruction) {
+    var targetUvmInstruction: UvmInstruction? = null
+    var targetJvmInstruction: Instruction? = null
+
+    var label: String
+        get() = operands[1].literal
+        set(value) {
+            operands[1] = UvmOperand.label(value)
+        }
+}
+
+class UvmEmptyInstruction(comment: String = "") : UvmInstruction(null, mutableListOf(), comment) {
     override fun toString(): String {
         return ""
     }
@@ -33,6 +89,13 @@ enum class EvalStackOpEnum(val value:Int)
     SetEvalStackTop(4)
 }
 
+// java的operand stack在uvm中的模拟方式
+enum class EvalStackModeEnum(val value:Int)
+{
+    Table(0),     // proto开头newtable模拟eval stack，另有一个slot记录栈大小
+    Register(1)   // 静态分析出每条指令处的栈深度，栈深度直接映射到固定的寄存器
+}
+
 
 enum class UvmTypeInfoEnum(val value: Int) {
     LTI_OBJECT(0),
@@ -96,7 +159,8 @@ class UvmUpvaldesc(var name: String) {
 
 class UvmProto {
     companion object {
-        var protoNameIncrementor = 0
+        // 方法可能在多个线程中翻译
+        val protoNameIncrementor = AtomicInteger(0)
     }
 
     /* name of proto */
@@ -122,9 +186,9 @@ class UvmProto {
     /* debug information  */
     var lastLineDefined: Int = 0
     /* constants used by the function */
-    val constantValues: MutableList<Object> = mutableListOf()
+    val constantValues: UvmConstantPool = UvmConstantPool()
     /* opcodes */
-    val codeInstructions: MutableList<UvmInstruction> = mutableListOf()
+    val codeInstructions: UvmInstructionBuffer = UvmInstructionBuffer()
     /* functions defined inside the function */
     val subProtos: MutableList<UvmProto> = mutableListOf()
     /* map from opcodes to source lines (debug information) */
@@ -155,78 +219,101 @@ class UvmProto {
     var maxCallStackSize: Int = 0
     var method: MethodDefinition? = null
 
-    // 是否处于proto数据不受影响的模式（调用proto函数不会改变proto状态的模式，伪装纯函数）
-    var inNotAffectMode: Boolean = false
+    // register模式下eval stack各深度对应的寄存器从evalStackIndex开始
+    var evalStackMode: EvalStackModeEnum = EvalStackModeEnum.Table
+    var evalStackDepths: MethodStackDepths? = null
+    // 哪些jvm指令直接使用uvm boolean，不需要和int 0/1互相转换
+    var booleanTypes: MethodBooleanTypes? = null
+    // 翻译成forprep/forloop的计数循环，第n层嵌套的循环使用forLoopStartIndex + 4 * n开始的4个寄存器
+    var countedLoops: MethodCountedLoops? = null
+    var forLoopStartIndex: Int = 0
+    // 已经翻译了forprep，等待在latch处加入的forloop指令
+    val pendingForLoopInstructions: MutableMap<CountedLoop, UvmInstruction> = mutableMapOf()
+    // 翻译成tforcall/tforloop的pairs/ipairs迭代循环，在计数循环的寄存器后面，第n层嵌套使用iteratorLoopStartIndex + 6 * n开始的6个寄存器
+    var iteratorLoops: MethodIteratorLoops? = null
+    var iteratorLoopStartIndex: Int = 0
+    // 已经在循环入口生成，等待在latch处加入的tforcall指令
+    val pendingIteratorLoopInstructions: MutableMap<IteratorLoop, UvmInstruction> = mutableMapOf()
+    // 翻译成一条concat的字符串拼接，片段放在迭代循环寄存器后面从concatStartIndex开始的寄存器
+    var stringConcats: MethodStringConcats? = null
+    var concatStartIndex: Int = 0
+    var evalStackDepth: Int = 0
+    var evalStackMaxDepth: Int = 0
+
+    // 等待重定位的jmp指令
+    val pendingJmpInstructions: MutableList<UvmJmpInstruction> = mutableListOf()
 
     // 没有映射到uvm instruction的.Net IL的nop等指令的列表，为了将每条IL指令关联到uvm指令方便跳转查找，
     // 对于不产生uvm instructions的IL指令，加入这个队列等待下一个有效非空uvm instruction一起映射关联
     val notMappedJvmInstructions: MutableList<Instruction> = mutableListOf()
 
+    // 已经和前面的比较指令(lcmp,dcmpg,Intrinsics.areEqual等)合并翻译成一条比较+jmp的条件跳转指令
+    val fusedJvmInstructions: MutableSet<Instruction> = mutableSetOf()
+
+    // switch(string)的LOOKUPSWITCH，前面的String.hashCode没有翻译，直接按字符串分发
+    val stringSwitchJvmInstructions: MutableSet<Instruction> = mutableSetOf()
+
     constructor(name: String? = null) {
-        this.name = if (name != null) name else ("tmp_" + (protoNameIncrementor++))
+        this.name = if (name != null) name else ("tmp_" + protoNameIncrementor.getAndIncrement())
         this.source = ""
     }
 
     fun toUvmAss(isTop: Boolean = false): String {
-        // TODO: 整体跑wan zai diaoyong zhege, also in C# version contains it
         val builder = StringBuilder()
+        writeUvmAss(builder, isTop)
+        return builder.toString()
+    }
+
+    /**
+     * 把proto和子proto按深度优先直接输出到out，不在内存中拼接整个.ass
+     */
+    fun writeUvmAss(out: Appendable, isTop: Boolean = false) {
+        // TODO: 整体跑wan zai diaoyong zhege, also in C# version contains it
 
         // 如果是顶部proto，增加.upvalues num
         if (isTop) {
-            builder.append(".upvalues " + upvalues.size + "\r\n")
+            out.append(".upvalues ").append(upvalues.size.toString()).append("\r\n")
         }
         if (isTop) {
             name = "main"
         }
-        builder.append(".func " + name + " " + maxStackSize + " " + numparams + " " + sizeLocVars + "\r\n")
+        out.append(".func ").append(name).append(" ").append(maxStackSize.toString()).append(" ")
+                .append(numparams.toString()).append(" ").append(sizeLocVars.toString()).append("\r\n")
 
-        builder.append(".begin_const\r\n")
+        out.append(".begin_const\r\n")
         for (value: Any in constantValues) {
-            builder.append("\t")
-            if (value == null) {
-                builder.append("nil\r\n")
-            }
-            if (value is String) {
-                builder.append("\"" + value + "\"\r\n")
-            } else if (value is Int || value is Long || value is Double || value is Short || value is Byte) {
-                builder.append(value.toString() + "\r\n")
-            } else if (value is Boolean) {
-                builder.append((if (value) "true" else "false") + "\r\n")
-            } else {
-                builder.append(value.toString() + "\r\n")
-            }
+            out.append("\t").append(UvmConstantPool.literalOf(value)).append("\r\n")
         }
-        builder.append(".end_const\r\n")
+        out.append(".end_const\r\n")
 
-        builder.append(".begin_upvalue\r\n")
+        out.append(".begin_upvalue\r\n")
         for (upvalue in upvalues) {
-            builder.append("\t" + (if (upvalue.instack) 1 else 0) + " " + upvalue.idx + " \"" +upvalue.name +"\"" +"\r\n")
+            out.append("\t").append(if (upvalue.instack) "1" else "0").append(" ").append(upvalue.idx.toString())
+                    .append(" \"").append(upvalue.name).append("\"\r\n")
         }
-        builder.append(".end_upvalue\r\n")
+        out.append(".end_upvalue\r\n")
 
-        builder.append(".begin_local\r\n")
+        out.append(".begin_local\r\n")
         for (local in locvars) {
-            builder.append("\t" + "\"" +local.name + "\" " + local.startPc + " " + sizeCode + "\r\n" )
+            out.append("\t\"").append(local.name).append("\" ").append(local.startPc.toString()).append(" ")
+                    .append(sizeCode.toString()).append("\r\n")
         }
-        builder.append(".end_local\r\n")
+        out.append(".end_local\r\n")
 
-        builder.append(".begin_code\r\n")
+        out.append(".begin_code\r\n")
         for (inst in codeInstructions) {
             if (inst.hasLocationLabel()) {
-                builder.append(inst.locationLabel + ":\r\n")
+                out.append(inst.locationLabel).append(":\r\n")
             }
-            builder.append("\t")
-            builder.append(inst.toString())
-            builder.append("\r\n")
+            out.append("\t").append(inst.toString()).append("\r\n")
         }
-        builder.append(".end_code\r\n")
+        out.append(".end_code\r\n")
 
         for (subProto in subProtos) {
-            builder.append("\r\n")
-            builder.append(subProto.toUvmAss(false))
+            out.append("\r\n")
+            subProto.writeUvmAss(out, false)
         }
-        builder.append("\r\n")
-        return builder.toString()
+        out.append("\r\n")
     }
 
     override fun toString(): String {
@@ -260,22 +347,13 @@ class UvmProto {
         if (value == null) {
             throw GjavacException("Can't put null in constant pool")
         }
-        if (inNotAffectMode) {
-            return 0
-        }
-        if (!constantValues.contains(value as Object)) {
-            constantValues.add(value as Object)
-        }
-        return constantValues.indexOf(value)
+        return constantValues.intern(value)
     }
 
     fun internUpvalue(upvalueName: String): Int {
         if (upvalueName == null || upvalueName.length < 1) {
             throw GjavacException("upvalue名称不能为空")
         }
-        if (inNotAffectMode) {
-            return 0
-        }
 
         for (i in 0..(upvalues.size - 1)) {
             var upvalueItem = upvalues[i]
@@ -285,7 +363,25 @@ class UvmProto {
         }
 
         val upvalue = UvmUpvaldesc(upvalueName)
+        resolveUpvalue(upvalue, upvalues.size)
+        upvalues.add(upvalue)
+        return upvalues.size - 1
+    }
 
+    /**
+     * 设置parent后按顺序重新确定每个upvalue的instack和idx，用于翻译时还没有设置parent的proto
+     * 上级proto中缺少的upvalue按同样的顺序加入，结果和翻译时就设置了parent一样
+     */
+    fun resolveUpvalues() {
+        for (i in 0..(upvalues.size - 1)) {
+            resolveUpvalue(upvalues[i], i)
+        }
+    }
+
+    private fun resolveUpvalue(upvalue: UvmUpvaldesc, index: Int) {
+        val upvalueName = upvalue.name
+        upvalue.instack = false
+        upvalue.idx = 0
         // 从上级proto中查找是否存在对应的localvars，判断instack的值
         if (parent != null) {
             var locvar = parent?.findLocvar(upvalueName)
@@ -309,18 +405,37 @@ class UvmProto {
                     throw GjavacException("internUpvalue wrong")
                 }
             } else {
-                upvalue.idx = upvalues.size
+                upvalue.idx = index
                 upvalue.instack = true
             }
         }
-        upvalues.add(upvalue)
-        return upvalues.size - 1
     }
 
-    fun addNotMappedILInstruction(i: Instruction) {
-        if (inNotAffectMode) {
-            return
+    // register模式下，取得压栈的目标寄存器，栈深度+1
+    fun pushEvalStackRegister(): Int {
+        if (evalStackDepth >= evalStackMaxDepth) {
+            throw GjavacException("eval stack overflow in proto " + name)
+        }
+        return evalStackIndex + (evalStackDepth++)
+    }
+
+    // register模式下，栈深度-1，返回原栈顶所在寄存器
+    fun popEvalStackRegister(): Int {
+        if (evalStackDepth <= 0) {
+            throw GjavacException("eval stack underflow in proto " + name)
         }
+        return evalStackIndex + (--evalStackDepth)
+    }
+
+    // register模式下，翻译一条jvm指令前把当前栈深度重置为静态分析的结果
+    fun resetEvalStackDepth(i: Instruction) {
+        val depths = evalStackDepths
+        if (evalStackMode == EvalStackModeEnum.Register && depths != null) {
+            evalStackDepth = depths.depthBefore(i)
+        }
+    }
+
+    fun addNotMappedILInstruction(i: Instruction) {
         notMappedJvmInstructions.add(i)
     }
 
@@ -349,20 +464,19 @@ class UvmProto {
     }
 
     fun notEmptyCodeInstructions(): MutableList<UvmInstruction> {
-        val notEmptyInsts: MutableList<UvmInstruction> = mutableListOf()
-        for (codeInst in codeInstructions) {
-            if (!(codeInst is UvmEmptyInstruction)) {
-                notEmptyInsts.add(codeInst)
-            }
-        }
-        return notEmptyInsts
+        return codeInstructions.notEmptyInstructions()
+    }
+
+    // 当前已生成的非空指令数量，也就是下一条非空指令的pc
+    fun currentPc(): Int {
+        return codeInstructions.currentPc()
     }
 
     fun indexOfUvmInstruction(inst: UvmInstruction?): Int {
         if (inst == null) {
             return -1
         }
-        return notEmptyCodeInstructions().indexOf(inst)
+        return codeInstructions.pcOf(inst)
     }
 
     fun addInstructionLine(line: String, ilInstruction: Instruction?) {
@@ -375,6 +489,10 @@ class UvmProto {
         return inst
     }
 
+    fun makeInstruction(opCode: UvmOpCodeEnums, comment: String, jvmInstruction: Instruction?, vararg operands: UvmOperand): UvmInstruction {
+        return UvmInstruction(opCode, operands.toMutableList(), comment, 0, jvmInstruction)
+    }
+
     fun addEmptyInstruction(comment: String) {
         addInstruction(UvmEmptyInstruction(comment))
     }
@@ -383,13 +501,113 @@ class UvmProto {
         return UvmEmptyInstruction(comment)
     }
 
+    /**
+     * 生成跳转到某条uvm指令的jmp，目标可以是还没加入proto的指令，
+     * 目标是empty instruction时跳转到它后面的第一条非空指令
+     */
+    fun makeJmpToUvmInstruction(label: String, target: UvmInstruction, comment: String,
+                                jvmInstruction: Instruction?): UvmJmpInstruction {
+        val jmpInst = UvmJmpInstruction(label, comment, jvmInstruction)
+        jmpInst.targetUvmInstruction = target
+        pendingJmpInstructions.add(jmpInst)
+        return jmpInst
+    }
+
+    /**
+     * 生成跳转到某条uvm指令的forprep/forloop，和jmp一样在方法翻译结束时重定位
+     */
+    fun makeForLoopInstruction(opCode: UvmOpCodeEnums, loopStartIndex: Int, label: String, target: UvmInstruction,
+                               comment: String, jvmInstruction: Instruction?): UvmJmpInstruction {
+        val jmpInst = UvmJmpInstruction(label, comment, jvmInstruction, opCode, UvmOperand.register(loopStartIndex))
+        jmpInst.targetUvmInstruction = target
+        pendingJmpInstructions.add(jmpInst)
+        return jmpInst
+    }
+
+    /**
+     * 生成跳转到某条jvm指令对应的第一条uvm指令的jmp
+     */
+    fun makeJmpToJvmInstruction(label: String, target: Instruction, comment: String,
+                                jvmInstruction: Instruction?): UvmJmpInstruction {
+        val jmpInst = UvmJmpInstruction(label, comment, jvmInstruction)
+        jmpInst.targetJvmInstruction = target
+        pendingJmpInstructions.add(jmpInst)
+        return jmpInst
+    }
+
+    /**
+     * 重定位所有等待中的jmp指令，目标位置按非空指令计数，同一位置的多个jmp共用一个label
+     */
+    fun resolvePendingJmpInstructions() {
+        val pc = codeInstructions.currentPc()
+        for (jmpInst in pendingJmpInstructions) {
+            val targetJvmInstruction = jmpInst.targetJvmInstruction
+            val target = if (targetJvmInstruction != null) findUvmInstructionMappedByIlInstruction(targetJvmInstruction) else jmpInst.targetUvmInstruction
+            if (target == null) {
+                throw GjavacException("Can't find mapped instruction to jmp " + jmpInst)
+            }
+            val targetPc = codeInstructions.pcOf(target)
+            if (targetPc < 0 || targetPc >= pc) {
+                throw GjavacException("jmp target not in proto " + jmpInst)
+            }
+            jmpInst.label = internNeedLocationLabel(targetPc, jmpInst.label)
+        }
+        pendingJmpInstructions.clear()
+    }
+
+    /**
+     * 移除优化中删除的指令(替换成的empty instruction)，修正local变量的startPc，并按指令上的label重建neededLocationsMap
+     * 要求删除前指令列表中没有其他empty instruction，也就是startPc等于删除前的下标
+     */
+    fun removeDeletedInstructions() {
+        for (locvar in locvars) {
+            if (locvar.startPc > 0) {
+                locvar.startPc = if (locvar.startPc >= codeInstructions.size) codeInstructions.currentPc()
+                    else codeInstructions.pcOf(codeInstructions[locvar.startPc])
+            }
+        }
+        codeInstructions.removeEmptyInstructions()
+        neededLocationsMap.clear()
+        for (inst in codeInstructions) {
+            val label = inst.locationLabel
+            if (label != null && label.length > 0) {
+                neededLocationsMap.put(codeInstructions.pcOf(inst), label)
+            }
+        }
+    }
+
+    /**
+     * 优化时在eval stack和循环寄存器之间插入count个寄存器，返回第一个的编号
+     * 循环，拼接，tmp区域和call stack的寄存器整体后移，插入的寄存器不会被函数调用和tforcall覆盖
+     */
+    fun reserveRegisters(count: Int): Int {
+        val start = forLoopStartIndex
+        for (inst in codeInstructions) {
+            for (k in 0 until inst.operands.size) {
+                val operand = inst.operands[k]
+                if (operand.isRegister() && operand.index >= start) {
+                    inst.operands[k] = UvmOperand.register(operand.index + count)
+                }
+            }
+        }
+        forLoopStartIndex += count
+        iteratorLoopStartIndex += count
+        concatStartIndex += count
+        tmp1StackTopSlotIndex += count
+        tmp2StackTopSlotIndex += count
+        tmp3StackTopSlotIndex += count
+        tmpMaxStackTopSlotIndex += count
+        callStackStartIndex += count
+        if (maxStackSize > 0) {
+            maxStackSize += count
+        }
+        return start
+    }
+
     /**
      * 如果已经存在这个loc对应的label，直接复用，否则用参数的label构造
      */
     fun internNeedLocationLabel(loc: Int, label: String): String {
-        if (inNotAffectMode) {
-            return ""
-        }
         if (neededLocationsMap.containsKey(loc)) {
             return neededLocationsMap.get(loc).orEmpty()
         } else {
@@ -0,0 +1,56 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import java.io.DataInputStream
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.Arrays
+
+/**
+ * .gpc文件的内容，storage属性按属性名排序
+ */
+class UvmGpcContent(val bytecode: ByteArray, val apis: List<String>, val offlineApis: List<String>, val events: List<String>,
+                    val storagePropertiesTypes: Map<String, StorageValueTypes>)
+
+/**
+ * 读取UvmGpcWriter或者package_gpc生成的.gpc文件，格式见UvmGpcWriter
+ */
+class UvmGpcReader(input: InputStream) {
+    private val input = DataInputStream(input)
+
+    fun read(): UvmGpcContent {
+        val digest = ByteArray(20)
+        input.readFully(digest)
+        val bytecode = ByteArray(input.readInt())
+        input.readFully(bytecode)
+        if (!Arrays.equals(digest, MessageDigest.getInstance("SHA-1").digest(bytecode))) {
+            throw GjavacException("sha1 of bytecode in .gpc doesn't match")
+        }
+        val apis = readStrings()
+        val offlineApis = readStrings()
+        val events = readStrings()
+        val storagePropertiesTypes: MutableMap<String, StorageValueTypes> = linkedMapOf()
+        val storageCount = input.readInt()
+        for (k in 0 until storageCount) {
+            val name = readString()
+            val typeValue = input.readInt()
+            storagePropertiesTypes[name] = StorageValueTypes.values().firstOrNull { it.value == typeValue }
+                    ?: throw GjavacException("unknown storage value type " + typeValue + " of storage property " + name)
+        }
+        if (input.read() >= 0) {
+            throw GjavacException("unexpected bytes after storage properties in .gpc")
+        }
+        return UvmGpcContent(bytecode, apis, offlineApis, events, storagePropertiesTypes)
+    }
+
+    private fun readStrings(): List<String> {
+        val count = input.readInt()
+        return (0 until count).map { readString() }
+    }
+
+    private fun readString(): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
@@ -0,0 +1,51 @@
+package gjavac.core
+
+import java.io.OutputStream
+import java.security.MessageDigest
+
+/**
+ * 把字节码和合约的meta信息打包成可以部署的.gpc文件，格式和package_gpc一致:
+ * 字节码的sha1(20字节)，字节码长度和内容，api列表，offline api列表，event列表，storage属性名和类型
+ * int都是4字节big endian，字符串先输出长度再输出内容(不包括结尾的0)
+ * package_gpc用std::map保存storage属性，所以按属性名排序输出
+ * 和package_gpc一样不输出api_args_types
+ */
+class UvmGpcWriter(private val out: OutputStream) {
+
+    fun write(bytecode: ByteArray, apis: List<String>, offlineApis: List<String>, events: List<String>,
+              storagePropertiesTypes: Map<String, StorageValueTypes>) {
+        out.write(MessageDigest.getInstance("SHA-1").digest(bytecode))
+        writeInt(bytecode.size)
+        out.write(bytecode)
+        writeStrings(apis)
+        writeStrings(offlineApis)
+        writeStrings(events)
+        val storageNames = storagePropertiesTypes.keys.sorted()
+        writeInt(storageNames.size)
+        for (name in storageNames) {
+            writeString(name)
+            writeInt(storagePropertiesTypes[name]!!.value)
+        }
+        out.flush()
+    }
+
+    private fun writeStrings(items: List<String>) {
+        writeInt(items.size)
+        for (item in items) {
+            writeString(item)
+        }
+    }
+
+    private fun writeString(str: String) {
+        val bytes = str.toByteArray(Charsets.UTF_8)
+        writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun writeInt(value: Int) {
+        out.write((value ushr 24) and 0xFF)
+        out.write((value ushr 16) and 0xFF)
+        out.write((value ushr 8) and 0xFF)
+        out.write(value and 0xFF)
+    }
+}
@@ -0,0 +1,146 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+
+/**
+ * proto的指令列表，每条指令上记录它的pc(之前非空指令的数量，empty instruction的pc等于它后面第一条非空指令的pc)
+ * 追加指令时维护pc; 替换/插入/删除指令后只记录最前面被修改的下标，下次查询pc时从这个下标开始重新编号
+ * 优化pass先批量修改再查询，每次查询的代价是被修改部分之后的指令数量; 交替在前部修改和查询时每次查询仍然是O(n)
+ */
+class UvmInstructionBuffer : Iterable<UvmInstruction> {
+    private val items: MutableList<UvmInstruction> = mutableListOf()
+    private var notEmptyCount = 0
+    // 这个下标之前的指令pc都是正确的
+    private var validCount = 0
+
+    val size: Int
+        get() = items.size
+
+    override fun iterator(): Iterator<UvmInstruction> {
+        return items.iterator()
+    }
+
+    operator fun get(index: Int): UvmInstruction {
+        return items[index]
+    }
+
+    operator fun set(index: Int, inst: UvmInstruction) {
+        val old = items[index]
+        items[index] = inst
+        // 空和非空没有变化时后面的pc不变
+        if ((old is UvmEmptyInstruction) == (inst is UvmEmptyInstruction) && index < validCount) {
+            inst.pc = old.pc
+        } else {
+            invalidateFrom(index)
+        }
+        release(old)
+        inst.buffer = this
+    }
+
+    fun add(inst: UvmInstruction) {
+        renumber()
+        inst.pc = notEmptyCount
+        inst.buffer = this
+        if (!(inst is UvmEmptyInstruction)) {
+            notEmptyCount++
+        }
+        items.add(inst)
+        validCount = items.size
+    }
+
+    fun insert(index: Int, inst: UvmInstruction) {
+        items.add(index, inst)
+        inst.buffer = this
+        invalidateFrom(index)
+    }
+
+    fun removeAt(index: Int): UvmInstruction {
+        val old = items.removeAt(index)
+        release(old)
+        invalidateFrom(index)
+        return old
+    }
+
+    fun clear() {
+        for (inst in items) {
+            release(inst)
+        }
+        items.clear()
+        notEmptyCount = 0
+        validCount = 0
+    }
+
+    /**
+     * 删除所有empty instruction，之后下标和pc一致
+     */
+    fun removeEmptyInstructions() {
+        val firstEmpty = items.indexOfFirst { it is UvmEmptyInstruction }
+        if (firstEmpty < 0) {
+            return
+        }
+        val notEmptyItems = items.filter { !(it is UvmEmptyInstruction) }
+        for (inst in items) {
+            if (inst is UvmEmptyInstruction) {
+                release(inst)
+            }
+        }
+        items.clear()
+        items.addAll(notEmptyItems)
+        invalidateFrom(firstEmpty)
+    }
+
+    /**
+     * 下一条追加的非空指令的pc，也就是当前非空指令的数量
+     */
+    fun currentPc(): Int {
+        renumber()
+        return notEmptyCount
+    }
+
+    /**
+     * 指令在proto中的pc，指令不在这个buffer中时抛出异常
+     */
+    fun pcOf(inst: UvmInstruction): Int {
+        if (inst.buffer !== this) {
+            throw GjavacException("uvm instruction " + inst + " is not in this instruction buffer")
+        }
+        renumber()
+        return inst.pc
+    }
+
+    fun notEmptyInstructions(): MutableList<UvmInstruction> {
+        return items.filter { !(it is UvmEmptyInstruction) }.toMutableList()
+    }
+
+    private fun release(inst: UvmInstruction) {
+        inst.pc = -1
+        inst.buffer = null
+    }
+
+    private fun invalidateFrom(index: Int) {
+        if (index < validCount) {
+            validCount = index
+        }
+    }
+
+    // 从第一条pc可能不正确的指令开始重新编号
+    private fun renumber() {
+        if (validCount == items.size) {
+            return
+        }
+        var pc = 0
+        if (validCount > 0) {
+            val previous = items[validCount - 1]
+            pc = previous.pc + (if (previous is UvmEmptyInstruction) 0 else 1)
+        }
+        for (k in validCount until items.size) {
+            val inst = items[k]
+            inst.pc = pc
+            if (!(inst is UvmEmptyInstruction)) {
+                pc++
+            }
+        }
+        notEmptyCount = pc
+        validCount = items.size
+    }
+}
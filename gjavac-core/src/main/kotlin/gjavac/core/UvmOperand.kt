@@ -0,0 +1,117 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+
+enum class UvmOperandKind {
+    Register,   // %n
+    Upvalue,    // @n
+    Constant,   // const literal
+    Integer,    // 立即数，比如call的参数个数
+    Label,      // $label，jmp的目标
+    Name        // 其他名称，比如closure的proto名称
+}
+
+/**
+ * uvm指令的一个操作数，index用于寄存器/upvalue/立即数，literal用于常量/label/名称
+ */
+data class UvmOperand(val kind: UvmOperandKind, val index: Int = 0, val literal: String = "") {
+    companion object {
+        fun register(index: Int): UvmOperand = UvmOperand(UvmOperandKind.Register, index)
+
+        fun upvalue(index: Int): UvmOperand = UvmOperand(UvmOperandKind.Upvalue, index)
+
+        // 常量按.ass中的字面量保存，字符串会加上引号
+        fun constant(value: Any): UvmOperand = UvmOperand(UvmOperandKind.Constant, 0, UvmConstantPool.literalOf(value))
+
+        fun integer(value: Int): UvmOperand = UvmOperand(UvmOperandKind.Integer, value)
+
+        fun label(name: String): UvmOperand = UvmOperand(UvmOperandKind.Label, 0, name)
+
+        fun name(name: String): UvmOperand = UvmOperand(UvmOperandKind.Name, 0, name)
+    }
+
+    fun isRegister(): Boolean = kind == UvmOperandKind.Register
+
+    fun isConstant(): Boolean = kind == UvmOperandKind.Constant
+
+    override fun toString(): String {
+        return when (kind) {
+            UvmOperandKind.Register -> "%" + index
+            UvmOperandKind.Upvalue -> "@" + index
+            UvmOperandKind.Constant -> "const " + literal
+            UvmOperandKind.Integer -> index.toString()
+            UvmOperandKind.Label -> "$" + literal
+            UvmOperandKind.Name -> literal
+        }
+    }
+}
+
+class ParsedUvmAsmLine(val opCode: UvmOpCodeEnums?, val operands: MutableList<UvmOperand>, val comment: String)
+
+/**
+ * 把"op operand1 operand2 ...;comment"形式的汇编文本解析成结构化的指令，
+ * 操作数之间用一个空格分隔，操作数后面剩下的部分(一般以;开头)作为注释原样保留
+ */
+object UvmAsmLineParser {
+    fun parse(line: String): ParsedUvmAsmLine {
+        var pos = 0
+        while (pos < line.length && Character.isLetter(line[pos])) {
+            pos++
+        }
+        if (pos == 0) {
+            // 没有指令，只有注释或者空行
+            return ParsedUvmAsmLine(null, mutableListOf(), line)
+        }
+        val opName = line.substring(0, pos)
+        val opCode = UvmOpCodeEnums.fromAsmName(opName)
+        if (opCode == null) {
+            throw GjavacException("invalid uvm instruction " + line)
+        }
+        val operands: MutableList<UvmOperand> = mutableListOf()
+        while (pos + 1 < line.length && line[pos] == ' ' && line[pos + 1] != ' ' && line[pos + 1] != ';') {
+            val start = pos + 1
+            var end: Int
+            if (line.startsWith("const \"", start)) {
+                end = line.indexOf('"', start + 7)
+                if (end < 0) {
+                    throw GjavacException("invalid string constant in uvm instruction " + line)
+                }
+                end++
+            } else {
+                end = if (line.startsWith("const ", start)) start + 6 else start
+                while (end < line.length && line[end] != ' ' && line[end] != ';') {
+                    end++
+                }
+            }
+            operands.add(parseOperand(line.substring(start, end), line))
+            pos = end
+        }
+        return ParsedUvmAsmLine(opCode, operands, line.substring(pos))
+    }
+
+    private fun parseOperand(text: String, line: String): UvmOperand {
+        if (text.startsWith("const ")) {
+            return UvmOperand(UvmOperandKind.Constant, 0, text.substring(6))
+        }
+        if (text.startsWith("$")) {
+            return UvmOperand.label(text.substring(1))
+        }
+        try {
+            if (text.startsWith("%")) {
+                return UvmOperand.register(text.substring(1).toInt())
+            }
+            if (text.startsWith("@")) {
+                return UvmOperand.upvalue(text.substring(1).toInt())
+            }
+        } catch (e: NumberFormatException) {
+            throw GjavacException("invalid operand " + text + " in uvm instruction " + line)
+        }
+        if (text.length > 0 && (Character.isDigit(text[0]) || (text[0] == '-' && text.length > 1))) {
+            try {
+                return UvmOperand.integer(text.toInt())
+            } catch (e: NumberFormatException) {
+            }
+        }
+        return UvmOperand.name(text)
+    }
+}
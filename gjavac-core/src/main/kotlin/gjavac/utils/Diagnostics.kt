@@ -0,0 +1,123 @@
+package gjavac.utils
+
+import gjavac.exceptions.GjavacException
+import java.io.IOException
+import java.io.Writer
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * 编译过程中的诊断信息分类
+ * Trace: 每个方法的jvm指令列表(summary)，每个class的ASM trace(detail)
+ * OptimizerStats: 各优化pass的总统计(summary)，每个proto的优化结果和常量池统计(detail)
+ * Timings: 读取class，翻译和输出各阶段的耗时
+ */
+enum class DiagnosticCategory(val optionName: String) {
+    Trace("trace"),
+    OptimizerStats("stats"),
+    Timings("timings");
+
+    companion object {
+        fun fromOptionName(name: String): DiagnosticCategory? = values().firstOrNull { it.optionName == name }
+    }
+}
+
+enum class DiagnosticLevel(val optionName: String) {
+    Off("off"),
+    Summary("summary"),
+    Detail("detail");
+
+    companion object {
+        fun fromOptionName(name: String): DiagnosticLevel? = values().firstOrNull { it.optionName == name }
+    }
+}
+
+/**
+ * 按分类和级别输出诊断信息，默认全部关闭
+ * 默认输出到控制台，writeToFile后由一个后台线程按报告的顺序写到文件，编译线程不等待文件IO
+ * 警告不受分类开关影响，总是输出到stderr
+ */
+class Diagnostics {
+    private val levels: MutableMap<DiagnosticCategory, DiagnosticLevel> = mutableMapOf()
+    private var fileWriter: Writer? = null
+    private var fileExecutor: ExecutorService? = null
+    @Volatile private var fileError: IOException? = null
+
+    fun enable(category: DiagnosticCategory, level: DiagnosticLevel) {
+        levels[category] = level
+    }
+
+    fun isEnabled(category: DiagnosticCategory, level: DiagnosticLevel = DiagnosticLevel.Summary): Boolean {
+        return level != DiagnosticLevel.Off && (levels[category] ?: DiagnosticLevel.Off) >= level
+    }
+
+    fun report(category: DiagnosticCategory, level: DiagnosticLevel, message: CharSequence) {
+        if (!isEnabled(category, level)) {
+            return
+        }
+        val executor = fileExecutor
+        if (executor != null) {
+            val text = message.toString()
+            executor.execute {
+                try {
+                    fileWriter?.write(text)
+                    fileWriter?.write(System.lineSeparator())
+                } catch (e: IOException) {
+                    if (fileError == null) {
+                        fileError = e
+                    }
+                }
+            }
+        } else {
+            synchronized(System.out) {
+                println(message)
+            }
+        }
+    }
+
+    fun warn(message: String) {
+        synchronized(System.err) {
+            System.err.println("warning: " + message)
+        }
+    }
+
+    /**
+     * 之后的诊断信息写到文件
+     */
+    fun writeToFile(path: String) {
+        close()
+        fileWriter = Files.newBufferedWriter(Paths.get(path), Charsets.UTF_8)
+        // daemon线程，编译出错没有调用close时不会阻止进程退出
+        fileExecutor = Executors.newSingleThreadExecutor { r ->
+            val thread = Thread(r, "gjavac-diagnostics")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    /**
+     * 等待还没有写完的诊断信息写到文件并关闭文件
+     */
+    fun close() {
+        val executor = fileExecutor ?: return
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        fileExecutor = null
+        try {
+            fileWriter?.close()
+        } catch (e: IOException) {
+            if (fileError == null) {
+                fileError = e
+            }
+        }
+        fileWriter = null
+        val error = fileError
+        if (error != null) {
+            fileError = null
+            throw GjavacException("failed to write diagnostics file: " + error.message)
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package gjavac.cecil
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+
+class ControlFlowGraphTest {
+
+  private fun startsOf(blocks: List<BasicBlock>): List<Int> = blocks.map { it.startOffset }
+
+  @Test
+  fun testTableSwitchEdges() {
+    val method = TestMethods.build("(I)I", { mv ->
+      val zero = Label()
+      val one = Label()
+      val other = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitTableSwitchInsn(0, 1, other, zero, one)
+      mv.visitLabel(zero)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitInsn(Opcodes.IRETURN)
+      mv.visitLabel(one)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitInsn(Opcodes.IRETURN)
+      mv.visitLabel(other)
+      mv.visitInsn(Opcodes.ICONST_3)
+      mv.visitInsn(Opcodes.IRETURN)
+    })
+    // default在前，然后按case顺序
+    assertEquals(listOf(6, 2, 4), ControlFlowGraph.successorOffsets(method, 1))
+    val cfg = method.controlFlowGraph()
+    assertEquals(listOf(0, 2, 4, 6), startsOf(cfg.blocks))
+    val entry = cfg.entry()!!
+    assertEquals(listOf(6, 2, 4), startsOf(entry.succs))
+    for (block in cfg.blocks.drop(1)) {
+      assertEquals(entry, block.idom)
+      assertTrue(block.succs.isEmpty())
+    }
+  }
+
+  @Test
+  fun testLookupSwitchSharedTarget() {
+    // 两个key跳到同一个块，块之间只有一条边
+    val method = TestMethods.build("(I)I", { mv ->
+      val same = Label()
+      val other = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitLookupSwitchInsn(other, intArrayOf(10, 20), arrayOf(same, same))
+      mv.visitLabel(same)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitInsn(Opcodes.IRETURN)
+      mv.visitLabel(other)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitInsn(Opcodes.IRETURN)
+    })
+    assertEquals(listOf(4, 2, 2), ControlFlowGraph.successorOffsets(method, 1))
+    val cfg = method.controlFlowGraph()
+    assertEquals(listOf(4, 2), startsOf(cfg.entry()!!.succs))
+    assertEquals(listOf(cfg.entry()!!), cfg.blockAt(2).preds)
+  }
+
+  @Test
+  fun testThrowHasNoExceptionEdges() {
+    // throw翻译成error()，uvm中会结束整个调用，所以athrow没有后继，catch块不可达
+    val method = TestMethods.build("(I)I", { mv ->
+      val start = Label()
+      val end = Label()
+      val handler = Label()
+      val fail = Label()
+      mv.visitTryCatchBlock(start, end, handler, "java/lang/RuntimeException")
+      mv.visitLabel(start)
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IFEQ, fail)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitInsn(Opcodes.IRETURN)
+      mv.visitLabel(fail)
+      mv.visitTypeInsn(Opcodes.NEW, "java/lang/RuntimeException")
+      mv.visitInsn(Opcodes.DUP)
+      mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/RuntimeException", "<init>", "()V", false)
+      mv.visitInsn(Opcodes.ATHROW)
+      mv.visitLabel(end)
+      mv.visitLabel(handler)
+      mv.visitVarInsn(Opcodes.ASTORE, 1)
+      mv.visitInsn(Opcodes.ICONST_M1)
+      mv.visitInsn(Opcodes.IRETURN)
+    })
+    assertEquals(listOf<Int>(), ControlFlowGraph.successorOffsets(method, 7))
+    val cfg = method.controlFlowGraph()
+    assertEquals(listOf(0, 2, 4, 8), startsOf(cfg.blocks))
+    assertTrue(cfg.blockAt(7).succs.isEmpty())
+    assertEquals(listOf(cfg.blockAt(8)), cfg.unreachableBlocks())
+    assertFalse(cfg.blockAt(8).isReachable())
+    assertFalse(cfg.dominates(cfg.entry()!!, cfg.blockAt(8)))
+  }
+
+  @Test
+  fun testLoopHeaderAndBody() {
+    // while (x > 0) x--
+    val method = TestMethods.build("(I)V", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitLabel(head)
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IFLE, exit)
+      mv.visitIincInsn(0, -1)
+      mv.visitJumpInsn(Opcodes.GOTO, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val cfg = method.controlFlowGraph()
+    val header = cfg.blockAt(0)
+    val latch = cfg.blockAt(2)
+    assertEquals(listOf(header), cfg.loopHeaders())
+    assertTrue(cfg.isBackEdge(latch, header))
+    assertFalse(cfg.isBackEdge(header, latch))
+    assertEquals(setOf(header, latch), cfg.naturalLoop(header, latch))
+  }
+}
@@ -0,0 +1,197 @@
+package gjavac.cecil
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+
+class CountedLoopAnalyzerTest {
+
+  @Test
+  fun testTopTestedLoop() {
+    // for (i = 0; i < 10; i++) sum += i
+    val method = TestMethods.build("()I", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitVarInsn(Opcodes.ISTORE, 1)
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitVarInsn(Opcodes.ISTORE, 2)
+      mv.visitLabel(head)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitIntInsn(Opcodes.BIPUSH, 10)
+      mv.visitJumpInsn(Opcodes.IF_ICMPGE, exit)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitInsn(Opcodes.IADD)
+      mv.visitVarInsn(Opcodes.ISTORE, 2)
+      mv.visitIincInsn(1, 1)
+      mv.visitJumpInsn(Opcodes.GOTO, head)
+      mv.visitLabel(exit)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitInsn(Opcodes.IRETURN)
+    })
+    val code = method.code
+    val loops = CountedLoopAnalyzer.analyze(method)
+    assertEquals(1, loops.loops.size)
+    val loop = loops.loops[0]
+    assertEquals(1, loop.slot)
+    assertEquals(1, loop.step)
+    // i < 10 即 i <= 9
+    assertTrue(loop.hasConstantLimit())
+    assertEquals(9, loop.limitConstant)
+    assertEquals(-1, loop.limitAdjust)
+    assertEquals(code[4], loop.prepInst)
+    assertEquals(code[11], loop.latchInst)
+    assertEquals(code[13], loop.exitInst)
+    assertTrue(loop.incrementsOnExit)
+    assertEquals(0, loop.depth)
+    assertEquals(loop, loops.loopPreparedAt(code[4]))
+    assertEquals(loop, loops.loopLatchedAt(code[11]))
+    assertNull(loops.loopPreparedAt(code[11]))
+    // 条件判断和回跳不再翻译，循环体和IINC照常翻译
+    assertEquals(listOf(code[5], code[6], code[12]), loop.skippedInstructions)
+    assertTrue(loops.isSkipped(code[6]))
+    assertFalse(loops.isSkipped(code[4]))
+    assertFalse(loops.isSkipped(code[11]))
+    assertEquals(1, loops.nestingLevels())
+  }
+
+  @Test
+  fun testNestedLoopsWithVariableLimit() {
+    // for (i = n; i > 0; i--) for (j = 0; j <= i; j++) {}
+    val method = TestMethods.build("(I)V", { mv ->
+      val outer = Label()
+      val inner = Label()
+      val innerExit = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitVarInsn(Opcodes.ISTORE, 1)
+      mv.visitLabel(outer)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitJumpInsn(Opcodes.IF_ICMPLE, exit)
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitVarInsn(Opcodes.ISTORE, 2)
+      mv.visitLabel(inner)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitJumpInsn(Opcodes.IF_ICMPGT, innerExit)
+      mv.visitIincInsn(2, 1)
+      mv.visitJumpInsn(Opcodes.GOTO, inner)
+      mv.visitLabel(innerExit)
+      mv.visitIincInsn(1, -1)
+      mv.visitJumpInsn(Opcodes.GOTO, outer)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val code = method.code
+    val loops = CountedLoopAnalyzer.analyze(method)
+    assertEquals(2, loops.loops.size)
+    val outerLoop = loops.loopPreparedAt(code[2])!!
+    val innerLoop = loops.loopPreparedAt(code[7])!!
+    // i > 0 即 i >= 1
+    assertEquals(-1, outerLoop.step)
+    assertEquals(1, outerLoop.limitConstant)
+    assertEquals(1, outerLoop.limitAdjust)
+    assertEquals(code[14], outerLoop.exitInst)
+    assertEquals(0, outerLoop.depth)
+    // 内层的limit是外层的循环变量，内层没有修改它
+    assertEquals(2, innerLoop.slot)
+    assertFalse(innerLoop.hasConstantLimit())
+    assertEquals(1, innerLoop.limitSlot)
+    assertEquals(0, innerLoop.limitAdjust)
+    assertEquals(code[12], innerLoop.exitInst)
+    assertEquals(1, innerLoop.depth)
+    assertEquals(2, loops.nestingLevels())
+  }
+
+  @Test
+  fun testKotlinRangeLoop() {
+    // for (i in a..b) x = i，先判断一次 i > b，每次迭代结束时判断 i == b
+    val method = TestMethods.build("(II)V", { mv ->
+      val header = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitVarInsn(Opcodes.ISTORE, 2)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitJumpInsn(Opcodes.IF_ICMPGT, exit)
+      mv.visitLabel(header)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitVarInsn(Opcodes.ISTORE, 3)
+      mv.visitVarInsn(Opcodes.ILOAD, 2)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitJumpInsn(Opcodes.IF_ICMPEQ, exit)
+      mv.visitIincInsn(2, 1)
+      mv.visitJumpInsn(Opcodes.GOTO, header)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val code = method.code
+    val loops = CountedLoopAnalyzer.analyze(method)
+    assertEquals(1, loops.loops.size)
+    val loop = loops.loops[0]
+    assertEquals(2, loop.slot)
+    assertEquals(1, loop.step)
+    assertEquals(1, loop.limitSlot)
+    assertEquals(0, loop.limitAdjust)
+    // forprep在guard的ILOAD处，forloop在i == b判断的ILOAD处
+    assertEquals(code[2], loop.prepInst)
+    assertEquals(code[7], loop.latchInst)
+    assertEquals(code[12], loop.exitInst)
+    assertFalse(loop.incrementsOnExit)
+    assertEquals(listOf(code[3], code[4], code[8], code[9], code[10], code[11]), loop.skippedInstructions)
+    assertFalse(loops.isSkipped(code[5]))
+  }
+
+  @Test
+  fun testLoopVariableModifiedInBody() {
+    // 循环体中给i赋值时不是计数循环
+    val method = TestMethods.build("(I)V", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitVarInsn(Opcodes.ISTORE, 1)
+      mv.visitLabel(head)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IF_ICMPGE, exit)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitInsn(Opcodes.IMUL)
+      mv.visitVarInsn(Opcodes.ISTORE, 1)
+      mv.visitIincInsn(1, 1)
+      mv.visitJumpInsn(Opcodes.GOTO, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val loops = CountedLoopAnalyzer.analyze(method)
+    assertTrue(loops.loops.isEmpty())
+    assertEquals(0, loops.nestingLevels())
+  }
+
+  @Test
+  fun testLimitModifiedInBody() {
+    // while (i < n) { n--; i++ }
+    val method = TestMethods.build("(I)V", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitVarInsn(Opcodes.ISTORE, 1)
+      mv.visitLabel(head)
+      mv.visitVarInsn(Opcodes.ILOAD, 1)
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IF_ICMPGE, exit)
+      mv.visitIincInsn(0, -1)
+      mv.visitIincInsn(1, 1)
+      mv.visitJumpInsn(Opcodes.GOTO, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    assertTrue(CountedLoopAnalyzer.analyze(method).loops.isEmpty())
+  }
+}
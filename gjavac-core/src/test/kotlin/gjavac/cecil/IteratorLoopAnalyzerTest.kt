@@ -0,0 +1,170 @@
+package gjavac.cecil
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+class IteratorLoopAnalyzerTest {
+
+  private val MAP_ITERATOR = "gjavac/lib/MapIterator"
+  private val ARRAY_ITERATOR = "gjavac/lib/ArrayIterator"
+
+  // 局部变量: 0是集合，1是迭代函数，2是pair
+  private fun callIterator(mv: MethodVisitor, owner: String) {
+    mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, owner, "invoke",
+        "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", true)
+    mv.visitTypeInsn(Opcodes.CHECKCAST, "kotlin/Pair")
+    mv.visitVarInsn(Opcodes.ASTORE, 2)
+  }
+
+  private fun pairGetter(mv: MethodVisitor, name: String) {
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "kotlin/Pair", name, "()Ljava/lang/Object;", false)
+  }
+
+  private fun header(mv: MethodVisitor, head: Label, exit: Label) {
+    mv.visitLabel(head)
+    mv.visitVarInsn(Opcodes.ALOAD, 2)
+    pairGetter(mv, "getFirst")
+    mv.visitJumpInsn(Opcodes.IFNULL, exit)
+  }
+
+  private fun latch(mv: MethodVisitor, owner: String, head: Label) {
+    mv.visitVarInsn(Opcodes.ALOAD, 1)
+    mv.visitVarInsn(Opcodes.ALOAD, 0)
+    mv.visitVarInsn(Opcodes.ALOAD, 2)
+    pairGetter(mv, "getFirst")
+    callIterator(mv, owner)
+    mv.visitJumpInsn(Opcodes.GOTO, head)
+  }
+
+  @Test
+  fun testMapPairsLoop() {
+    // for (p = it(coll, null); p.first != null; p = it(coll, p.first)) { k = p.first; v = p.second }
+    val method = TestMethods.build("(Lgjavac/lib/UvmMap;Lgjavac/lib/MapIterator;)V", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      mv.visitInsn(Opcodes.ACONST_NULL)
+      callIterator(mv, MAP_ITERATOR)
+      header(mv, head, exit)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      pairGetter(mv, "getFirst")
+      mv.visitVarInsn(Opcodes.ASTORE, 3)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      pairGetter(mv, "getSecond")
+      mv.visitVarInsn(Opcodes.ASTORE, 4)
+      latch(mv, MAP_ITERATOR, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val code = method.code
+    val loops = IteratorLoopAnalyzer.analyze(method)
+    assertEquals(1, loops.loops.size)
+    val loop = loops.loops[0]
+    assertEquals(code[3], loop.prepInst)
+    assertEquals(code[15], loop.latchInst)
+    assertEquals(code[9], loop.bodyStartInst)
+    assertEquals(code[23], loop.exitInst)
+    assertEquals(0, loop.depth)
+    assertEquals(loop, loops.loopPreparedAt(code[3]))
+    assertEquals(loop, loops.loopLatchedAt(code[15]))
+    // 循环体中的p.first/p.second直接使用tforcall返回的寄存器
+    assertEquals(listOf(code[10]), loop.keyLoads)
+    assertEquals(listOf(code[13]), loop.valueLoads)
+    assertEquals(loop, loops.keyLoadedAt(code[10]))
+    assertEquals(loop, loops.valueLoadedAt(code[13]))
+    assertNull(loops.keyLoadedAt(code[13]))
+    // pair的保存和读取、header的判断以及latch中除第一条以外的指令都不再翻译
+    for (offset in listOf(4, 5, 6, 7, 8, 9, 12, 16, 17, 18, 19, 20, 21, 22)) {
+      assertTrue("offset " + offset, loops.isSkipped(code[offset]))
+    }
+    for (offset in listOf(0, 1, 2, 3, 10, 11, 13, 14, 15, 23)) {
+      assertFalse("offset " + offset, loops.isSkipped(code[offset]))
+    }
+    assertEquals(1, loops.nestingLevels())
+  }
+
+  @Test
+  fun testArrayIpairsLoopWithNullCheck() {
+    // 初始key是Integer.valueOf(0)，循环体中的 p == null 判断一定不成立
+    val method = TestMethods.build("(Lgjavac/lib/UvmArray;Lgjavac/lib/ArrayIterator;)V", { mv ->
+      val head = Label()
+      val next = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      mv.visitInsn(Opcodes.ICONST_0)
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false)
+      callIterator(mv, ARRAY_ITERATOR)
+      header(mv, head, exit)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      mv.visitJumpInsn(Opcodes.IFNULL, next)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      pairGetter(mv, "getSecond")
+      mv.visitVarInsn(Opcodes.ASTORE, 3)
+      mv.visitLabel(next)
+      latch(mv, ARRAY_ITERATOR, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val code = method.code
+    val loops = IteratorLoopAnalyzer.analyze(method)
+    assertEquals(1, loops.loops.size)
+    val loop = loops.loops[0]
+    assertEquals(code[4], loop.prepInst)
+    assertEquals(code[15], loop.latchInst)
+    assertTrue(loop.keyLoads.isEmpty())
+    assertEquals(listOf(code[13]), loop.valueLoads)
+    assertTrue(loops.isSkipped(code[10]))
+    assertTrue(loops.isSkipped(code[11]))
+    assertTrue(loops.isSkipped(code[12]))
+    // 初始key照常压栈
+    assertFalse(loops.isSkipped(code[2]))
+    assertFalse(loops.isSkipped(code[3]))
+  }
+
+  @Test
+  fun testPairReadAfterLoop() {
+    // 循环结束后还读取p时需要真正的pair，不能翻译成tforcall
+    val method = TestMethods.build("(Lgjavac/lib/UvmMap;Lgjavac/lib/MapIterator;)Ljava/lang/Object;", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      mv.visitInsn(Opcodes.ACONST_NULL)
+      callIterator(mv, MAP_ITERATOR)
+      header(mv, head, exit)
+      latch(mv, MAP_ITERATOR, head)
+      mv.visitLabel(exit)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    assertTrue(IteratorLoopAnalyzer.analyze(method).loops.isEmpty())
+  }
+
+  @Test
+  fun testPairEscapesInBody() {
+    // 循环体中把p本身保存到别的变量
+    val method = TestMethods.build("(Lgjavac/lib/UvmMap;Lgjavac/lib/MapIterator;)V", { mv ->
+      val head = Label()
+      val exit = Label()
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      mv.visitInsn(Opcodes.ACONST_NULL)
+      callIterator(mv, MAP_ITERATOR)
+      header(mv, head, exit)
+      mv.visitVarInsn(Opcodes.ALOAD, 2)
+      mv.visitVarInsn(Opcodes.ASTORE, 3)
+      latch(mv, MAP_ITERATOR, head)
+      mv.visitLabel(exit)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    assertTrue(IteratorLoopAnalyzer.analyze(method).loops.isEmpty())
+  }
+}
@@ -0,0 +1,82 @@
+package gjavac.cecil
+
+import gjavac.exceptions.GjavacException
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+
+class StackDepthAnalyzerTest {
+
+  @Test
+  fun testWideValuesCountOnce() {
+    // long占两个字宽但只算一个值，DUP2复制一个long，POP2可以弹出两个int或者一个long
+    val method = TestMethods.build("()V", { mv ->
+      mv.visitInsn(Opcodes.LCONST_1)
+      mv.visitInsn(Opcodes.DUP2)
+      mv.visitInsn(Opcodes.LADD)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitInsn(Opcodes.POP2)
+      mv.visitInsn(Opcodes.POP2)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    val depths = StackDepthAnalyzer.analyze(method)
+    assertEquals(listOf(0, 1, 2, 1, 2, 3, 1, 0), depths.depthsBefore.toList())
+    assertEquals(3, depths.maxDepth)
+  }
+
+  @Test
+  fun testDup2OfTwoInts() {
+    // DUP2复制栈顶的两个int，复制double时只复制一个值
+    val method = TestMethods.build("()D", { mv ->
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitInsn(Opcodes.DUP2)
+      mv.visitInsn(Opcodes.IADD)
+      mv.visitInsn(Opcodes.IADD)
+      mv.visitInsn(Opcodes.IADD)
+      mv.visitInsn(Opcodes.POP)
+      mv.visitInsn(Opcodes.DCONST_1)
+      mv.visitInsn(Opcodes.DUP2)
+      mv.visitInsn(Opcodes.DADD)
+      mv.visitInsn(Opcodes.DRETURN)
+    })
+    val depths = StackDepthAnalyzer.analyze(method)
+    assertEquals(listOf(0, 1, 2, 4, 3, 2, 1, 0, 1, 2, 1), depths.depthsBefore.toList())
+    assertEquals(4, depths.maxDepth)
+  }
+
+  @Test
+  fun testJoinDepth() {
+    // 两个分支各压入一个值，汇合处深度为1，不可达的指令深度为0
+    val method = TestMethods.build("(I)I", { mv ->
+      val other = Label()
+      val join = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IFEQ, other)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitJumpInsn(Opcodes.GOTO, join)
+      mv.visitInsn(Opcodes.ICONST_3)
+      mv.visitLabel(other)
+      mv.visitInsn(Opcodes.ICONST_2)
+      mv.visitLabel(join)
+      mv.visitInsn(Opcodes.IRETURN)
+    })
+    val depths = StackDepthAnalyzer.analyze(method)
+    assertEquals(listOf(0, 1, 0, 1, 0, 0, 1), depths.depthsBefore.toList())
+  }
+
+  @Test(expected = GjavacException::class)
+  fun testJoinDepthMismatch() {
+    val method = TestMethods.build("(I)V", { mv ->
+      val join = Label()
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IFEQ, join)
+      mv.visitInsn(Opcodes.ICONST_1)
+      mv.visitLabel(join)
+      mv.visitInsn(Opcodes.RETURN)
+    })
+    StackDepthAnalyzer.analyze(method)
+  }
+}
@@ -0,0 +1,177 @@
+package gjavac.cecil
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+class StringConcatAnalyzerTest {
+
+  private val BUILDER = "java/lang/StringBuilder"
+
+  private fun newBuilder(mv: MethodVisitor) {
+    mv.visitTypeInsn(Opcodes.NEW, BUILDER)
+    mv.visitInsn(Opcodes.DUP)
+  }
+
+  private fun builderCall(mv: MethodVisitor, name: String, desc: String) {
+    val opcode = if (name == "<init>") Opcodes.INVOKESPECIAL else Opcodes.INVOKEVIRTUAL
+    mv.visitMethodInsn(opcode, BUILDER, name, desc, false)
+  }
+
+  private fun append(mv: MethodVisitor, argDesc: String) {
+    builderCall(mv, "append", "(" + argDesc + ")Ljava/lang/StringBuilder;")
+  }
+
+  private fun analyze(method: MethodDefinition): MethodStringConcats {
+    return StringConcatAnalyzer.analyze(method, StackDepthAnalyzer.analyze(method))
+  }
+
+  @Test
+  fun testBuilderChainPieces() {
+    // "a=" + x + 'c' + true
+    val method = TestMethods.build("(I)Ljava/lang/String;", { mv ->
+      newBuilder(mv)
+      mv.visitLdcInsn("a=")
+      builderCall(mv, "<init>", "(Ljava/lang/String;)V")
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      append(mv, "I")
+      mv.visitIntInsn(Opcodes.BIPUSH, 'c'.toInt())
+      append(mv, "C")
+      mv.visitInsn(Opcodes.ICONST_1)
+      append(mv, "Z")
+      builderCall(mv, "toString", "()Ljava/lang/String;")
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    val code = method.code
+    val concats = analyze(method)
+    assertEquals(1, concats.concats.size)
+    val concat = concats.concatEndedAt(code[10])!!
+    assertEquals(4, concat.pieceCount)
+    assertEquals(0, concat.registerOffset)
+    assertNull(concat.indyPieces)
+    // 常量片段转换成拼接后的字符串，char和boolean不能按int拼接
+    val expected = listOf(Pair(3, "a="), Pair(5, null), Pair(7, "c"), Pair(9, "true"))
+    for ((index, piece) in expected.withIndex()) {
+      val actual = concats.pieceAt(code[piece.first])!!
+      assertEquals(concat, actual.concat)
+      assertEquals(index, actual.index)
+      assertEquals(piece.second, actual.constant)
+    }
+    for (offset in listOf(0, 1, 2, 6, 8)) {
+      assertTrue("offset " + offset, concats.isSkipped(code[offset]))
+    }
+    for (offset in listOf(3, 4, 5, 10, 11)) {
+      assertFalse("offset " + offset, concats.isSkipped(code[offset]))
+    }
+    assertEquals(4, concats.registerCount())
+  }
+
+  @Test
+  fun testNestedConcatRegisters() {
+    // "x" + ("y" + s)，内层拼接时外层的2个寄存器还在使用
+    val method = TestMethods.build("(Ljava/lang/String;)Ljava/lang/String;", { mv ->
+      newBuilder(mv)
+      builderCall(mv, "<init>", "()V")
+      mv.visitLdcInsn("x")
+      append(mv, "Ljava/lang/String;")
+      newBuilder(mv)
+      builderCall(mv, "<init>", "()V")
+      mv.visitLdcInsn("y")
+      append(mv, "Ljava/lang/String;")
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      append(mv, "Ljava/lang/String;")
+      builderCall(mv, "toString", "()Ljava/lang/String;")
+      append(mv, "Ljava/lang/String;")
+      builderCall(mv, "toString", "()Ljava/lang/String;")
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    val code = method.code
+    val concats = analyze(method)
+    assertEquals(2, concats.concats.size)
+    val outer = concats.concatEndedAt(code[14])!!
+    val inner = concats.concatEndedAt(code[12])!!
+    assertEquals(0, outer.registerOffset)
+    assertEquals(2, inner.registerOffset)
+    assertEquals(inner, concats.pieceAt(code[11])!!.concat)
+    assertEquals(outer, concats.pieceAt(code[13])!!.concat)
+    assertEquals(1, concats.pieceAt(code[13])!!.index)
+    assertEquals(4, concats.registerCount())
+  }
+
+  @Test
+  fun testConditionalPiece() {
+    // 片段内部向前跳转: "v" + (flag ? "a" : "b")
+    val method = TestMethods.build("(Z)Ljava/lang/String;", { mv ->
+      val other = Label()
+      val done = Label()
+      newBuilder(mv)
+      builderCall(mv, "<init>", "()V")
+      mv.visitLdcInsn("v")
+      append(mv, "Ljava/lang/String;")
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitJumpInsn(Opcodes.IFEQ, other)
+      mv.visitLdcInsn("a")
+      mv.visitJumpInsn(Opcodes.GOTO, done)
+      mv.visitLabel(other)
+      mv.visitLdcInsn("b")
+      mv.visitLabel(done)
+      append(mv, "Ljava/lang/String;")
+      builderCall(mv, "toString", "()Ljava/lang/String;")
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    val code = method.code
+    val concats = analyze(method)
+    assertEquals(2, concats.concatEndedAt(code[11])!!.pieceCount)
+    assertNull(concats.pieceAt(code[10])!!.constant)
+    assertFalse(concats.isSkipped(code[7]))
+    assertFalse(concats.isSkipped(code[9]))
+  }
+
+  @Test
+  fun testBuilderStoredInLocal() {
+    // StringBuilder保存到局部变量后离开了栈，不能合并成一条concat
+    val method = TestMethods.build("(Ljava/lang/String;)Ljava/lang/String;", { mv ->
+      newBuilder(mv)
+      builderCall(mv, "<init>", "()V")
+      mv.visitVarInsn(Opcodes.ASTORE, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitVarInsn(Opcodes.ALOAD, 0)
+      append(mv, "Ljava/lang/String;")
+      builderCall(mv, "toString", "()Ljava/lang/String;")
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    val concats = analyze(method)
+    assertTrue(concats.concats.isEmpty())
+    assertFalse(concats.isSkipped(method.code[0]))
+    assertEquals(0, concats.registerCount())
+  }
+
+  @Test
+  fun testIndyConcatRecipe() {
+    // java 9的makeConcatWithConstants，\u0001是参数，\u0002是bootstrap常量
+    val bsm = Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+        "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;"
+            + "[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false)
+    val method = TestMethods.build("(ILjava/lang/String;)Ljava/lang/String;", { mv ->
+      mv.visitVarInsn(Opcodes.ILOAD, 0)
+      mv.visitVarInsn(Opcodes.ALOAD, 1)
+      mv.visitInvokeDynamicInsn("makeConcatWithConstants", "(ILjava/lang/String;)Ljava/lang/String;", bsm,
+          "\u0001 = \u0002\u0001!", "42")
+      mv.visitInsn(Opcodes.ARETURN)
+    })
+    val concats = analyze(method)
+    val concat = concats.concatEndedAt(method.code[2])!!
+    assertEquals(listOf(null, " = ", "42", null, "!"), concat.indyPieces)
+    assertEquals(5, concat.pieceCount)
+    assertEquals(5, concat.registerCount())
+    // invokedynamic的片段在执行concat时才放入寄存器
+    assertNull(concats.pieceAt(method.code[2]))
+    assertFalse(concats.isSkipped(method.code[0]))
+  }
+}
@@ -0,0 +1,33 @@
+package gjavac.cecil
+
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+/**
+ * 测试用: 用asm生成类，读成ClassDefinition或者其中的MethodDefinition
+ */
+object TestMethods {
+  // 类Test中的一个static方法test
+  fun build(desc: String, body: (MethodVisitor) -> Unit): MethodDefinition {
+    return buildClass("Test", "java/lang/Object", Pair("static test" + desc, body)).methods.first { it.name == "test" }
+  }
+
+  // 只有方法的类，方法写成"name(desc)"，static方法加上"static "前缀
+  fun buildClass(name: String, superName: String, vararg methods: Pair<String, (MethodVisitor) -> Unit>): ClassDefinition {
+    val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, superName, null)
+    for ((nameAndDesc, body) in methods) {
+      val static = nameAndDesc.startsWith("static ")
+      val signature = nameAndDesc.removePrefix("static ")
+      val mv = writer.visitMethod(Opcodes.ACC_PUBLIC or (if (static) Opcodes.ACC_STATIC else 0),
+          signature.substringBefore("("), "(" + signature.substringAfter("("), null, null)
+      mv.visitCode()
+      body(mv)
+      mv.visitMaxs(0, 0)
+      mv.visitEnd()
+    }
+    writer.visitEnd()
+    return ClassDefinitionReader().readClassBytes(writer.toByteArray())
+  }
+}
@@ -0,0 +1,47 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class UvmBytecodeWriterTest {
+
+    private fun proto(): UvmProto {
+        val proto = UvmProto("main")
+        proto.maxStackSize = 2
+        proto.constantValues.intern("a")
+        proto.addInstruction(UvmInstruction("loadk %0 const \"b\""))
+        proto.addInstruction(UvmInstruction("gettable %1 %0 const \"a\""))
+        proto.addInstruction(UvmInstruction("return %0 1"))
+        return proto
+    }
+
+    private fun write(proto: UvmProto): ByteArray {
+        val out = ByteArrayOutputStream()
+        UvmBytecodeWriter(out).write(proto)
+        return out.toByteArray()
+    }
+
+    @Test(expected = GjavacException::class)
+    fun testMissingConstantThrows() {
+        write(proto())
+    }
+
+    @Test
+    fun testInternConstantsBeforeWrite() {
+        val proto = proto()
+        UvmBytecodeWriter.internConstants(proto)
+        assertEquals(listOf<Any>("a", "b"), proto.constantValues.toList())
+        // 写入不修改proto，多次写入结果相同
+        val first = write(proto)
+        assertArrayEquals(first, write(proto))
+        assertEquals(2, proto.constantValues.size)
+        val code = proto.codeInstructions.notEmptyInstructions()
+        assertEquals(UvmOpCodeEnums.OP_LOADK.opCode or (1 shl POS_Bx), UvmBytecodeWriter.encode(proto, code[0], 0, mapOf()))
+        // gettable的C是RK操作数
+        assertEquals(UvmOpCodeEnums.OP_GETTABLE.opCode or (1 shl POS_A) or (BITRK shl POS_C),
+                UvmBytecodeWriter.encode(proto, code[1], 1, mapOf()))
+    }
+}
@@ -0,0 +1,66 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class UvmConstantPoolTest {
+
+    @Test
+    fun testDedupByTypeAndLiteral() {
+        val pool = UvmConstantPool()
+        assertEquals(0, pool.intern(1))
+        // Int和Long在.ass中都是integer 1
+        assertEquals(0, pool.intern(1L))
+        // 字面量相同但类型不同的常量分开保存
+        assertEquals(1, pool.intern("1"))
+        assertEquals(2, pool.intern(1.0))
+        assertEquals(3, pool.intern(true))
+        assertEquals(4, pool.intern("true"))
+        assertEquals(3, pool.intern(true))
+        assertEquals(5, pool.size)
+        assertEquals(7, pool.internCount)
+        assertEquals(2, pool.hitCount)
+        assertEquals(1, pool.indexOf("1"))
+        assertEquals(-1, pool.indexOf(false))
+        assertEquals(4, pool.indexOfLiteral("\"true\""))
+    }
+
+    @Test
+    fun testLiteralRoundTrip() {
+        for (value in listOf<Any>("name", true, false, 42L, -7L, 2.5)) {
+            assertEquals(value, UvmConstantPool.valueOfLiteral(UvmConstantPool.literalOf(value)))
+        }
+    }
+
+    @Test
+    fun testRkLimit() {
+        val pool = UvmConstantPool()
+        for (j in 0..MAXINDEXRK) {
+            pool.intern(j)
+        }
+        // 下标0..MAXINDEXRK都可以作为RK操作数
+        assertFalse(pool.exceedsRkLimit())
+        pool.intern(MAXINDEXRK + 1)
+        assertTrue(pool.exceedsRkLimit())
+    }
+
+    @Test
+    fun testBxLimit() {
+        val pool = UvmConstantPool()
+        for (j in 0..MAXARG_Bx) {
+            pool.intern(j)
+        }
+        assertEquals(MAXARG_Bx + 1, pool.size)
+        // 已有的常量仍然可以查到
+        assertEquals(MAXARG_Bx, pool.intern(MAXARG_Bx))
+        try {
+            pool.intern(MAXARG_Bx + 1)
+            throw AssertionError("constant beyond the 18-bit Bx limit was interned")
+        } catch (e: GjavacException) {
+            assertEquals(MAXARG_Bx + 1, pool.size)
+        }
+    }
+}
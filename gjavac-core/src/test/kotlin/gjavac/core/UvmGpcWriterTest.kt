@@ -0,0 +1,39 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+class UvmGpcWriterTest {
+
+    private val bytecode = byteArrayOf(0x1b, 'G'.toByte(), 'l'.toByte(), 'u'.toByte(), 'a'.toByte(), 0x10)
+
+    private fun write(): ByteArray {
+        val out = ByteArrayOutputStream()
+        UvmGpcWriter(out).write(bytecode, listOf("init", "transfer"), listOf("balanceOf"), listOf("Transfer"),
+                mapOf("supply" to StorageValueTypes.storage_value_int, "name" to StorageValueTypes.storage_value_string))
+        return out.toByteArray()
+    }
+
+    @Test
+    fun testRoundTrip() {
+        val content = UvmGpcReader(ByteArrayInputStream(write())).read()
+        assertArrayEquals(bytecode, content.bytecode)
+        assertEquals(listOf("init", "transfer"), content.apis)
+        assertEquals(listOf("balanceOf"), content.offlineApis)
+        assertEquals(listOf("Transfer"), content.events)
+        // 和package_gpc一样按属性名排序
+        assertEquals(listOf("name", "supply"), content.storagePropertiesTypes.keys.toList())
+        assertEquals(StorageValueTypes.storage_value_int, content.storagePropertiesTypes["supply"])
+    }
+
+    @Test(expected = GjavacException::class)
+    fun testDigestChecked() {
+        val gpc = write()
+        gpc[0] = (gpc[0].toInt() xor 1).toByte()
+        UvmGpcReader(ByteArrayInputStream(gpc)).read()
+    }
+}
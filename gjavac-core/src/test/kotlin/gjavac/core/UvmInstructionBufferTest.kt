@@ -0,0 +1,64 @@
+package gjavac.core
+
+import gjavac.exceptions.GjavacException
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class UvmInstructionBufferTest {
+
+    private fun buffer(vararg lines: String): UvmInstructionBuffer {
+        val buffer = UvmInstructionBuffer()
+        for (line in lines) {
+            buffer.add(if (line.startsWith(";")) UvmEmptyInstruction(line) else UvmInstruction(line))
+        }
+        return buffer
+    }
+
+    private fun pcs(buffer: UvmInstructionBuffer): List<Int> = buffer.map { buffer.pcOf(it) }
+
+    @Test
+    fun testAddNumbersNotEmptyInstructions() {
+        val buffer = buffer("move %1 %0", ";comment", "move %2 %1", "return %0 1")
+        assertEquals(listOf(0, 1, 1, 2), pcs(buffer))
+        assertEquals(3, buffer.currentPc())
+    }
+
+    @Test
+    fun testEditsRenumber() {
+        val buffer = buffer("move %1 %0", "move %2 %1", "move %3 %2", "return %0 1")
+        // 替换成empty instruction相当于删除
+        buffer[1] = UvmEmptyInstruction(";deleted")
+        assertEquals(listOf(0, 1, 1, 2), pcs(buffer))
+        buffer.insert(0, UvmInstruction("loadnil %0 0"))
+        assertEquals(listOf(0, 1, 2, 2, 3), pcs(buffer))
+        val removed = buffer.removeAt(1)
+        assertEquals(-1, removed.pc)
+        assertEquals(listOf(0, 1, 1, 2), pcs(buffer))
+        buffer.removeEmptyInstructions()
+        assertEquals(listOf(0, 1, 2), pcs(buffer))
+        buffer.add(UvmInstruction("return %0 1"))
+        assertEquals(4, buffer.currentPc())
+    }
+
+    @Test
+    fun testSetKeepsPcs() {
+        val buffer = buffer("move %1 %0", "move %2 %1", "return %0 1")
+        val replacement = UvmInstruction("move %2 %0")
+        buffer[1] = replacement
+        assertEquals(1, buffer.pcOf(replacement))
+        assertEquals(listOf(0, 1, 2), pcs(buffer))
+    }
+
+    @Test(expected = GjavacException::class)
+    fun testPcOfForeignInstruction() {
+        val other = buffer("move %1 %0")
+        buffer("move %1 %0").pcOf(other[0])
+    }
+
+    @Test(expected = GjavacException::class)
+    fun testPcOfRemovedInstruction() {
+        val buffer = buffer("move %1 %0", "return %0 1")
+        val removed = buffer.removeAt(0)
+        buffer.pcOf(removed)
+    }
+}
@@ -0,0 +1,170 @@
+package gjavac.test;
+
+import gjavac.MainKt;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 比较--emit=bytecode直接输出的.out和--emit=ass输出的.ass
+ * .out还要和仓库中uvm_ass汇编得到的result.out逐字节相同
+ * 代码生成改变时，用uvm_ass汇编新的target/bytecode-test/ass/result.ass，替换src/test/resources/gjavac/test/result.out
+ */
+public class BytecodeOutputTest {
+
+    private static final String testClassesDir = "target/test-classes";
+    private static final File outputDir = new File("target/bytecode-test");
+
+    private static class AssFunction {
+        String name;
+        int maxStackSize;
+        int numparams;
+        List<String> constants = new ArrayList<String>();
+        List<String> code = new ArrayList<String>();
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        // 带;L<行号>注释的指令数，uvm_ass只为这些指令写lineinfo
+        int lineInfoCount;
+    }
+
+    static String[] contractClasses() {
+        return new String[]{
+                testClassesDir + "/gjavac/test/java/DemoContract",
+                testClassesDir + "/gjavac/test/java/Utils",
+                testClassesDir + "/gjavac/test/java/MultiOwnedContractSimpleInterface",
+                testClassesDir + "/gjavac/test/java/DemoContractEntrypoint",
+                testClassesDir + "/gjavac/test/java/Storage"};
+    }
+
+    static void compile(File dir, String... options) {
+        dir.mkdirs();
+        List<String> args = new ArrayList<String>();
+        args.add("-o");
+        args.add(dir.getPath());
+        args.addAll(Arrays.asList(options));
+        args.addAll(Arrays.asList(contractClasses()));
+        MainKt.main(args.toArray(new String[args.size()]));
+    }
+
+    @BeforeClass
+    public static void compileContract() {
+        compile(new File(outputDir, "ass"));
+        compile(new File(outputDir, "bytecode"), "--emit=bytecode");
+    }
+
+    private static List<AssFunction> readAss(File file) throws IOException {
+        List<AssFunction> functions = new ArrayList<AssFunction>();
+        AssFunction current = null;
+        String section = "";
+        for (String line : Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith(".func ")) {
+                String[] parts = trimmed.split(" ");
+                current = new AssFunction();
+                current.name = parts[1];
+                current.maxStackSize = Integer.parseInt(parts[2]);
+                current.numparams = Integer.parseInt(parts[3]);
+                functions.add(current);
+            } else if (trimmed.startsWith(".begin_")) {
+                section = trimmed.substring(".begin_".length());
+            } else if (trimmed.startsWith(".end_")) {
+                section = "";
+            } else if (current != null && section.equals("code") && !line.startsWith("\t") && trimmed.endsWith(":")) {
+                current.labels.put(trimmed.substring(0, trimmed.length() - 1), current.code.size());
+            } else if (current != null && trimmed.length() > 0 && !trimmed.startsWith(";")) {
+                if (section.equals("const")) {
+                    current.constants.add(trimmed);
+                } else if (section.equals("code")) {
+                    current.code.add(trimmed);
+                    if (trimmed.matches("[^;]*;L[0-9]+.+")) {
+                        current.lineInfoCount++;
+                    }
+                }
+            }
+        }
+        return functions;
+    }
+
+    // .out中的函数按.ass中的顺序(深度优先)展开
+    private static void flatten(UvmBytecodeReader.Function function, List<UvmBytecodeReader.Function> result) {
+        result.add(function);
+        for (UvmBytecodeReader.Function sub : function.subFunctions) {
+            flatten(sub, result);
+        }
+    }
+
+    @Test
+    public void testBytecodeMatchesAss() throws IOException {
+        byte[] bytes = Files.readAllBytes(new File(outputDir, "bytecode/result.out").toPath());
+        UvmBytecodeReader reader = new UvmBytecodeReader(bytes);
+        UvmBytecodeReader.Function top = reader.read();
+        assertEquals(0x10, reader.version);
+        assertEquals(0, reader.format);
+
+        List<AssFunction> assFunctions = readAss(new File(outputDir, "ass/result.ass"));
+        List<UvmBytecodeReader.Function> functions = new ArrayList<UvmBytecodeReader.Function>();
+        flatten(top, functions);
+        assertEquals(assFunctions.size(), functions.size());
+        assertEquals(top.upvalueCount, reader.topUpvalueCount);
+        for (int j = 0; j < functions.size(); j++) {
+            UvmBytecodeReader.Function f = functions.get(j);
+            AssFunction ass = assFunctions.get(j);
+            assertEquals(ass.name, f.name);
+            assertEquals(ass.maxStackSize, f.maxStackSize);
+            assertEquals(ass.numparams, f.numparams);
+            assertEquals(ass.code.size(), f.code.length);
+            assertEquals(ass.lineInfoCount, f.lineInfoCount);
+            // 指令中用到但.ass常量区没有的常量追加在最后
+            assertTrue(f.constants.size() >= ass.constants.size());
+            assertEquals(ass.constants, f.constants.subList(0, ass.constants.size()));
+            // uvm_ass不输出局部变量和upvalue名称
+            assertEquals(0, f.locvars.size());
+            assertEquals(0, f.upvalueNames.size());
+            for (int pc = 0; pc < f.code.length; pc++) {
+                String[] parts = ass.code.get(pc).split(";")[0].trim().split(" ");
+                assertEquals(ass.code.get(pc), parts[0], f.opName(pc));
+                // 跳转的目标和.ass中label的位置相同
+                String last = parts[parts.length - 1];
+                if (last.startsWith("$")) {
+                    int sbx = (f.code[pc] >>> 14) - 131071;
+                    assertEquals(ass.code.get(pc), ass.labels.get(last.substring(1)).intValue(), pc + 1 + sbx);
+                }
+            }
+        }
+    }
+
+    static byte[] readResource(String name) throws IOException {
+        InputStream input = BytecodeOutputTest.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void testBytecodeSameAsUvmAss() throws IOException {
+        byte[] actual = Files.readAllBytes(new File(outputDir, "bytecode/result.out").toPath());
+        assertArrayEquals(readResource("result.out"), actual);
+    }
+}
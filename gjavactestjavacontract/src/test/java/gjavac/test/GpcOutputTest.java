@@ -0,0 +1,69 @@
+package gjavac.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import gjavac.core.UvmGpcContent;
+import gjavac.core.UvmGpcReader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * --emit=gpc的输出和仓库中的result.gpc逐字节相同，读回后和--emit=bytecode的.out以及meta信息一致
+ * 代码生成改变时，确认输出正确后用target/gpc-test/gpc/result.gpc替换src/test/resources/gjavac/test/result.gpc
+ */
+public class GpcOutputTest {
+
+    private static final File outputDir = new File("target/gpc-test");
+
+    @BeforeClass
+    public static void compileContract() {
+        BytecodeOutputTest.compile(new File(outputDir, "gpc"), "--emit=gpc");
+        BytecodeOutputTest.compile(new File(outputDir, "bytecode"), "--emit=bytecode");
+    }
+
+    private static List<String> strings(JsonElement element) {
+        List<String> result = new ArrayList<String>();
+        for (JsonElement item : element.getAsJsonArray()) {
+            result.add(item.getAsString());
+        }
+        return result;
+    }
+
+    @Test
+    public void testGpcMatchesGolden() throws IOException {
+        byte[] actual = Files.readAllBytes(new File(outputDir, "gpc/result.gpc").toPath());
+        assertArrayEquals(BytecodeOutputTest.readResource("result.gpc"), actual);
+    }
+
+    @Test
+    public void testGpcRoundTrip() throws IOException {
+        byte[] gpc = Files.readAllBytes(new File(outputDir, "gpc/result.gpc").toPath());
+        UvmGpcContent content = new UvmGpcReader(new ByteArrayInputStream(gpc)).read();
+        assertArrayEquals(Files.readAllBytes(new File(outputDir, "bytecode/result.out").toPath()), content.getBytecode());
+
+        String metaJson = new String(Files.readAllBytes(new File(outputDir, "gpc/result.meta.json").toPath()), Charset.forName("UTF-8"));
+        JsonObject meta = new JsonParser().parse(metaJson).getAsJsonObject();
+        assertEquals(strings(meta.get("api")), content.getApis());
+        assertEquals(strings(meta.get("offline_api")), content.getOfflineApis());
+        assertEquals(strings(meta.get("event")), content.getEvents());
+        JsonArray storage = meta.get("storage_properties_types").getAsJsonArray();
+        assertEquals(storage.size(), content.getStoragePropertiesTypes().size());
+        for (JsonElement item : storage) {
+            JsonArray pair = item.getAsJsonArray();
+            assertEquals(pair.get(1).getAsInt(), content.getStoragePropertiesTypes().get(pair.get(0).getAsString()).getValue());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package gjavac.test;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * -j 4并行读取class和翻译方法的输出要和-j 1顺序执行的输出逐字节相同
+ */
+public class ParallelOutputTest {
+
+    private static final File outputDir = new File("target/parallel-test");
+
+    private static void assertSameFile(String name, File expectedDir, File actualDir) throws IOException {
+        assertArrayEquals(name, Files.readAllBytes(new File(expectedDir, name).toPath()),
+                Files.readAllBytes(new File(actualDir, name).toPath()));
+    }
+
+    @Test
+    public void testParallelOutputSameAsSequential() throws IOException {
+        File sequential = new File(outputDir, "j1");
+        File parallel = new File(outputDir, "j4");
+        BytecodeOutputTest.compile(sequential, "-j", "1");
+        BytecodeOutputTest.compile(parallel, "-j", "4");
+        assertSameFile("result.ass", sequential, parallel);
+        assertSameFile("result.meta.json", sequential, parallel);
+    }
+
+    @Test
+    public void testParallelBytecodeSameAsSequential() throws IOException {
+        File sequential = new File(outputDir, "bytecode-j1");
+        File parallel = new File(outputDir, "bytecode-j4");
+        BytecodeOutputTest.compile(sequential, "-j", "1", "--emit=bytecode");
+        BytecodeOutputTest.compile(parallel, "-j", "4", "--emit=bytecode");
+        assertSameFile("result.out", sequential, parallel);
+        assertSameFile("result.meta.json", sequential, parallel);
+    }
+}
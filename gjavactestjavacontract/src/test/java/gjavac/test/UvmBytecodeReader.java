@@ -0,0 +1,167 @@
+package gjavac.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按uvm lundump的格式(uvm_ass的输出)读取字节码(.out)，不依赖编译器中的写入代码，用来检查--emit=bytecode的输出
+ */
+public class UvmBytecodeReader {
+
+    public static final byte[] SIGNATURE = {0x1b, 'G', 'l', 'u', 'a'};
+    public static final byte[] DATA = {0x19, (byte) 0x93, '\r', '\n', 0x1a, '\n'};
+
+    // lua 5.3 lopcodes.c中的指令名称，按opcode顺序
+    public static final List<String> OPNAMES = Arrays.asList("move", "loadk", "loadkx", "loadbool", "loadnil", "getupval",
+            "gettabup", "gettable", "settabup", "setupval", "settable", "newtable", "self", "add", "sub", "mul", "mod", "pow",
+            "div", "idiv", "band", "bor", "bxor", "shl", "shr", "unm", "bnot", "not", "len", "concat", "jmp", "eq", "lt", "le",
+            "test", "testset", "call", "tailcall", "return", "forloop", "forprep", "tforcall", "tforloop", "setlist", "closure",
+            "vararg", "extraarg");
+
+    public static class LocVar {
+        public String name;
+        public int startPc;
+        public int endPc;
+    }
+
+    public static class Function {
+        public String name;
+        public int numparams;
+        public boolean isVararg;
+        public int maxStackSize;
+        public int[] code;
+        // 常量按.ass中的字面量保存
+        public List<String> constants = new ArrayList<String>();
+        public int upvalueCount;
+        public List<Function> subFunctions = new ArrayList<Function>();
+        public int lineInfoCount;
+        public List<LocVar> locvars = new ArrayList<LocVar>();
+        public List<String> upvalueNames = new ArrayList<String>();
+
+        public String opName(int pc) {
+            return OPNAMES.get(code[pc] & 0x3f);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    public int version;
+    public int format;
+    public int topUpvalueCount;
+
+    public UvmBytecodeReader(byte[] bytes) {
+        this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Function read() {
+        expectBytes(SIGNATURE, "signature");
+        version = readByte();
+        format = readByte();
+        expectBytes(DATA, "data");
+        for (int size : new int[]{4, 8, 4, 8, 8}) {
+            if (readByte() != size) {
+                throw new IllegalStateException("unexpected type size in header");
+            }
+        }
+        if (buffer.getLong() != 0x5678L) {
+            throw new IllegalStateException("bad check integer");
+        }
+        if (buffer.getDouble() != 370.5) {
+            throw new IllegalStateException("bad check number");
+        }
+        topUpvalueCount = readByte();
+        Function function = readFunction();
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException(buffer.remaining() + " bytes after top function");
+        }
+        return function;
+    }
+
+    private Function readFunction() {
+        Function f = new Function();
+        f.name = readString();
+        buffer.getInt();
+        buffer.getInt();
+        f.numparams = readByte();
+        f.isVararg = readByte() != 0;
+        f.maxStackSize = readByte();
+        f.code = new int[buffer.getInt()];
+        for (int pc = 0; pc < f.code.length; pc++) {
+            f.code[pc] = buffer.getInt();
+        }
+        int constantCount = buffer.getInt();
+        for (int k = 0; k < constantCount; k++) {
+            int type = readByte();
+            switch (type) {
+                case 1:
+                    f.constants.add(readByte() != 0 ? "true" : "false");
+                    break;
+                case 3:
+                    f.constants.add(Double.toString(buffer.getDouble()));
+                    break;
+                case 3 | (1 << 4):
+                    f.constants.add(Long.toString(buffer.getLong()));
+                    break;
+                case 4:
+                    f.constants.add("\"" + readString() + "\"");
+                    break;
+                default:
+                    throw new IllegalStateException("unknown constant type " + type);
+            }
+        }
+        f.upvalueCount = buffer.getInt();
+        for (int k = 0; k < f.upvalueCount; k++) {
+            readByte();
+            readByte();
+        }
+        int subCount = buffer.getInt();
+        for (int k = 0; k < subCount; k++) {
+            f.subFunctions.add(readFunction());
+        }
+        f.lineInfoCount = buffer.getInt();
+        for (int k = 0; k < f.lineInfoCount; k++) {
+            buffer.getInt();
+        }
+        int locvarCount = buffer.getInt();
+        for (int k = 0; k < locvarCount; k++) {
+            LocVar locvar = new LocVar();
+            locvar.name = readString();
+            locvar.startPc = buffer.getInt();
+            locvar.endPc = buffer.getInt();
+            f.locvars.add(locvar);
+        }
+        int upvalueNameCount = buffer.getInt();
+        for (int k = 0; k < upvalueNameCount; k++) {
+            f.upvalueNames.add(readString());
+        }
+        return f;
+    }
+
+    private String readString() {
+        long size = readByte();
+        if (size == 0xFF) {
+            size = buffer.getLong();
+        }
+        if (size == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) size - 1];
+        buffer.get(bytes);
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    private int readByte() {
+        return buffer.get() & 0xFF;
+    }
+
+    private void expectBytes(byte[] expected, String what) {
+        byte[] actual = new byte[expected.length];
+        buffer.get(actual);
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException("bad " + what + " in header");
+        }
+    }
+}